@@ -0,0 +1,32 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import java.io.IOException;
+
+/**
+ * Receives the events of one part of a stream, in stream order, see Events#fromDeserializer. A consumer is only
+ * called from the thread decoding its part, so it doesn't need to be thread-safe.
+ */
+public interface EventConsumer
+{
+    /**
+     * @param event next event of the part
+     * @throws IOException to stop decoding the stream
+     */
+    void consume(Event event) throws IOException;
+}
@@ -23,6 +23,10 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class Events
 {
@@ -75,4 +79,95 @@ public class Events
 
         return events;
     }
+
+    /**
+     * Split a deserializer into (at most) the given number of parts, at record boundaries, e.g. to decode a large
+     * file on all cores. The largest part is split first, so that parts end up of similar size.
+     *
+     * @param deserializer deserializer to split. It covers the last part on return and should not be used directly
+     * @param maxParts     maximum number of parts
+     * @return parts, in stream order
+     */
+    public static List<SplittableEventDeserializer> split(final SplittableEventDeserializer deserializer, final int maxParts)
+    {
+        final List<SplittableEventDeserializer> parts = new ArrayList<SplittableEventDeserializer>();
+        final List<SplittableEventDeserializer> unsplittable = new ArrayList<SplittableEventDeserializer>();
+        parts.add(deserializer);
+
+        while (parts.size() < maxParts && unsplittable.size() < parts.size()) {
+            int largest = -1;
+            for (int i = 0; i < parts.size(); i++) {
+                final SplittableEventDeserializer part = parts.get(i);
+                if (!unsplittable.contains(part) && (largest < 0 || part.estimateSize() > parts.get(largest).estimateSize())) {
+                    largest = i;
+                }
+            }
+
+            final SplittableEventDeserializer prefix = parts.get(largest).trySplit();
+            if (prefix == null) {
+                unsplittable.add(parts.get(largest));
+            }
+            else {
+                parts.add(largest, prefix);
+            }
+        }
+
+        return parts;
+    }
+
+    /**
+     * Given a splittable deserializer, decode parts of the stream in parallel, one part per consumer. Part i is sent
+     * to consumers.get(i), so the events of the consumers, taken in order, are the events of the stream in order.
+     * The stream is never held in memory as a whole.
+     *
+     * @param deserializer deserializer to read
+     * @param executor     executor running the decoding tasks
+     * @param consumers    one consumer per part, the number of consumers is the maximum number of parts
+     * @return number of parts the stream was split into: the consumers after that receive no events
+     * @throws IOException if any part could not be decoded or consumed
+     */
+    public static int fromDeserializer(final SplittableEventDeserializer deserializer, final ExecutorService executor, final List<? extends EventConsumer> consumers) throws IOException
+    {
+        final List<SplittableEventDeserializer> parts = split(deserializer, consumers.size());
+
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < parts.size(); i++) {
+            final SplittableEventDeserializer part = parts.get(i);
+            final EventConsumer consumer = consumers.get(i);
+            futures.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    while (part.hasNextEvent()) {
+                        consumer.consume(part.getNextEvent());
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding events", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to decode events", e.getCause());
+        }
+        finally {
+            for (final Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return parts.size();
+    }
 }
@@ -17,7 +17,9 @@
 package com.ning.metrics.serialization.event;
 
 import com.ning.metrics.serialization.util.DateTimeUtil;
+import org.joda.time.Chronology;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.Days;
 import org.joda.time.Hours;
 import org.joda.time.Interval;
@@ -29,6 +31,7 @@ import org.joda.time.ReadableInterval;
 import org.joda.time.ReadablePeriod;
 import org.joda.time.Weeks;
 import org.joda.time.Years;
+import org.joda.time.chrono.ISOChronology;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -66,6 +69,24 @@ public enum Granularity
             {
                 return String.format("%s/%02d/%02d/%02d/%02d", date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), date.getHourOfDay(), date.getMinuteOfHour());
             }
+
+            @Override
+            public long truncate(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.truncateToMinute(epochMillis, zone);
+            }
+
+            @Override
+            public long next(final long epochMillis, final DateTimeZone zone)
+            {
+                return truncate(epochMillis, zone) + DateTimeUtil.MINUTE_MILLIS;
+            }
+
+            @Override
+            public long getBucketIndex(final long epochMillis, final DateTimeZone zone)
+            {
+                return DateTimeUtil.floorDiv(truncate(epochMillis, zone), DateTimeUtil.MINUTE_MILLIS);
+            }
         },
     HOURLY(Hours.ONE)
         {
@@ -97,6 +118,24 @@ public enum Granularity
             {
                 return String.format("%s/%02d/%02d/%02d", date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), date.getHourOfDay());
             }
+
+            @Override
+            public long truncate(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.truncateToHour(epochMillis, zone);
+            }
+
+            @Override
+            public long next(final long epochMillis, final DateTimeZone zone)
+            {
+                return truncate(epochMillis, zone) + DateTimeUtil.HOUR_MILLIS;
+            }
+
+            @Override
+            public long getBucketIndex(final long epochMillis, final DateTimeZone zone)
+            {
+                return DateTimeUtil.floorDiv(truncate(epochMillis, zone), DateTimeUtil.HOUR_MILLIS);
+            }
         },
     DAILY(Days.ONE)
         {
@@ -128,6 +167,24 @@ public enum Granularity
             {
                 return String.format("%s/%02d/%02d", date.getYear(), date.getMonthOfYear(), date.getDayOfMonth());
             }
+
+            @Override
+            public long truncate(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.truncateToDay(epochMillis, zone);
+            }
+
+            @Override
+            public long next(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.plusDays(truncate(epochMillis, zone), zone, 1);
+            }
+
+            @Override
+            public long getBucketIndex(final long epochMillis, final DateTimeZone zone)
+            {
+                return DateTimeUtil.floorDiv(dateTimeUtil.toLocalMillis(epochMillis, zone), DateTimeUtil.DAY_MILLIS);
+            }
         },
 
     WEEKLY(Weeks.ONE)
@@ -161,6 +218,25 @@ public enum Granularity
             {
                 return String.format("%s/%02d/%02d", date.getYear(), date.getMonthOfYear(), date.getDayOfMonth());
             }
+
+            @Override
+            public long truncate(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.truncateToWeek(epochMillis, zone);
+            }
+
+            @Override
+            public long next(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.plusDays(truncate(epochMillis, zone), zone, 7);
+            }
+
+            @Override
+            public long getBucketIndex(final long epochMillis, final DateTimeZone zone)
+            {
+                // Weeks start on Sundays, 1970-01-04 was the first one
+                return DateTimeUtil.floorDiv(DateTimeUtil.floorDiv(dateTimeUtil.toLocalMillis(epochMillis, zone), DateTimeUtil.DAY_MILLIS) - 3, 7);
+            }
         },
 
     MONTHLY(Months.ONE)
@@ -203,6 +279,25 @@ public enum Granularity
             {
                 return String.format("%s/%02d", date.getYear(), date.getMonthOfYear());
             }
+
+            @Override
+            public long truncate(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.truncateToMonth(epochMillis, zone);
+            }
+
+            @Override
+            public long next(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.plusMonths(truncate(epochMillis, zone), zone, 1);
+            }
+
+            @Override
+            public long getBucketIndex(final long epochMillis, final DateTimeZone zone)
+            {
+                final long localMillis = dateTimeUtil.toLocalMillis(epochMillis, zone);
+                return (LOCAL_CHRONOLOGY.year().get(localMillis) - 1970) * 12L + LOCAL_CHRONOLOGY.monthOfYear().get(localMillis) - 1;
+            }
         },
 
     YEARLY(Years.ONE)
@@ -238,10 +333,29 @@ public enum Granularity
             {
                 return String.format("%s", date.getYear());
             }
+
+            @Override
+            public long truncate(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.truncateToYear(epochMillis, zone);
+            }
+
+            @Override
+            public long next(final long epochMillis, final DateTimeZone zone)
+            {
+                return dateTimeUtil.plusYears(truncate(epochMillis, zone), zone, 1);
+            }
+
+            @Override
+            public long getBucketIndex(final long epochMillis, final DateTimeZone zone)
+            {
+                return LOCAL_CHRONOLOGY.year().get(dateTimeUtil.toLocalMillis(epochMillis, zone)) - 1970;
+            }
         },;
 
     public static final String GRANULARITY_QUERY_PARAM = "gr";
     private static final DateTimeUtil dateTimeUtil = new DateTimeUtil();
+    private static final Chronology LOCAL_CHRONOLOGY = ISOChronology.getInstanceUTC();
 
     public static interface Callback<T extends Throwable>
     {
@@ -249,10 +363,12 @@ public enum Granularity
     }
 
     private final ReadablePeriod period;
+    private final GranularityPathCache pathCache;
 
     Granularity(final ReadablePeriod period)
     {
         this.period = period;
+        this.pathCache = new GranularityPathCache(this);
     }
 
     public ReadablePeriod getPeriod()
@@ -292,5 +408,46 @@ public enum Granularity
     public abstract DateTime truncate(ReadableDateTime date);
 
     public abstract String getRelativePathFor(ReadableDateTime date);
+
+    /**
+     * Allocation-free equivalent of truncate(new DateTime(epochMillis, zone)).getMillis()
+     *
+     * @param epochMillis instant to truncate
+     * @param zone        time zone of the buckets
+     * @return start of the bucket containing epochMillis, in epoch milliseconds
+     */
+    public abstract long truncate(long epochMillis, DateTimeZone zone);
+
+    /**
+     * Allocation-free equivalent of the steps of stepThroughInterval
+     *
+     * @param epochMillis instant
+     * @param zone        time zone of the buckets
+     * @return start of the bucket following the one containing epochMillis, in epoch milliseconds
+     */
+    public abstract long next(long epochMillis, DateTimeZone zone);
+
+    /**
+     * Index of the bucket containing an instant, e.g. to partition events. Consecutive buckets have consecutive indexes.
+     * Minutes and hours are counted from 1970-01-01T00:00Z (the hour repeated on daylight saving time changes has its
+     * own index), longer granularities from 1970-01-01 local time.
+     *
+     * @param epochMillis instant
+     * @param zone        time zone of the buckets
+     * @return index of the bucket containing epochMillis
+     */
+    public abstract long getBucketIndex(long epochMillis, DateTimeZone zone);
+
+    /**
+     * Same as getRelativePathFor, but recently used buckets are cached: all events in the same bucket share the same
+     * String instance and the lookup doesn't allocate.
+     *
+     * @param date date to map
+     * @return relative path for the bucket containing date
+     */
+    public String getCachedRelativePathFor(final ReadableDateTime date)
+    {
+        return pathCache.getRelativePathFor(date);
+    }
 }
 
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.ReadableDateTime;
+
+/**
+ * Cache of relative output paths for a Granularity, keyed by time bucket.
+ * <p/>
+ * Each entry covers the [start, end) range of a bucket, in epoch milliseconds, and the chronology (time zone) it was
+ * computed for. A lookup for an instant within a cached bucket returns the same String instance, without allocating.
+ * <p/>
+ * The cache is direct-mapped: a bucket can only live in the slot given by its (approximate) index, a colliding bucket
+ * simply replaces it. Slots are read and written without locking, which is safe since entries are immutable.
+ */
+final class GranularityPathCache
+{
+    private static final int SLOTS = 64;
+
+    private final Granularity granularity;
+    // Approximate length of a bucket, used to spread consecutive buckets across slots
+    private final long bucketMillis;
+    private final Entry[] entries = new Entry[SLOTS];
+
+    GranularityPathCache(final Granularity granularity)
+    {
+        this.granularity = granularity;
+        this.bucketMillis = new DateTime(0L, DateTimeZone.UTC).plus(granularity.getPeriod()).getMillis();
+    }
+
+    public String getRelativePathFor(final ReadableDateTime date)
+    {
+        final long millis = date.getMillis();
+        final Chronology chronology = date.getChronology();
+        final int slot = slotFor(millis);
+
+        final Entry entry = entries[slot];
+        if (entry != null && entry.contains(millis, chronology)) {
+            return entry.path;
+        }
+
+        final String path = granularity.getRelativePathFor(date);
+        final DateTime start = granularity.truncate(date);
+        final DateTime end = start.plus(granularity.getPeriod());
+
+        // Only cache buckets whose first and last instants map to the same path (this may not be the case around
+        // daylight saving time transitions, in which case we don't cache at all)
+        if (start.getMillis() <= millis && millis < end.getMillis() &&
+            path.equals(granularity.getRelativePathFor(start)) &&
+            path.equals(granularity.getRelativePathFor(end.minusMillis(1)))) {
+            entries[slot] = new Entry(start.getMillis(), end.getMillis(), chronology, path);
+        }
+
+        return path;
+    }
+
+    private int slotFor(final long millis)
+    {
+        long bucket = millis / bucketMillis;
+        if (millis < 0) {
+            bucket--;
+        }
+        return (int) (bucket & (SLOTS - 1));
+    }
+
+    private static final class Entry
+    {
+        private final long startMillis;
+        private final long endMillis;
+        private final Chronology chronology;
+        private final String path;
+
+        private Entry(final long startMillis, final long endMillis, final Chronology chronology, final String path)
+        {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.chronology = chronology;
+            this.path = path;
+        }
+
+        private boolean contains(final long millis, final Chronology otherChronology)
+        {
+            return startMillis <= millis && millis < endMillis && (chronology == otherChronology || chronology.equals(otherChronology));
+        }
+    }
+}
@@ -68,6 +68,18 @@ public class GranularityPathMapper implements Serializable
 
     public String getPathForDateTime(final ReadableDateTime dateTime)
     {
-        return String.format("%s/%s", prefix, granularity.getRelativePathFor(dateTime));
+        return appendPathForDateTime(new StringBuilder(prefix.length() + 17), dateTime).toString();
+    }
+
+    /**
+     * Append the path for a given date to a (reusable) buffer
+     *
+     * @param builder  buffer to append to
+     * @param dateTime date to map
+     * @return builder
+     */
+    public StringBuilder appendPathForDateTime(final StringBuilder builder, final ReadableDateTime dateTime)
+    {
+        return builder.append(prefix).append('/').append(granularity.getCachedRelativePathFor(dateTime));
     }
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import java.io.IOException;
+
+/**
+ * EventDeserializer which can decode events in place into an existing event, to avoid allocating a new event (and
+ * its internal structures) per record.
+ */
+public interface ReusingEventDeserializer extends EventDeserializer
+{
+    /**
+     * Same as getNextEvent(), but decode the event in place into an existing event when possible. Once reused, the
+     * event previously returned must not be used anymore by the caller.
+     *
+     * @param reuse event to reset in place, typically the one returned by the previous call. If null, or of a type not
+     *              produced by this deserializer, a new event is allocated
+     * @return the next event, reuse itself if it could be reused
+     * @throws IOException generic I/O exception
+     */
+    Event getNextEvent(Event reuse) throws IOException;
+}
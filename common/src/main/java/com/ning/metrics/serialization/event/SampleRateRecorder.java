@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+/**
+ * Records the rate at which an event was sampled (see SamplingEventWriter), so that downstream jobs can re-weight
+ * counts. Events are read-only: implementations typically return a copy of the event, with an extra field.
+ * Only sampled events are recorded: downstream, events without a sample rate were kept at a rate of 1.0.
+ * See SmileSampleRateRecorder and ThriftSampleRateRecorder.
+ */
+public interface SampleRateRecorder
+{
+    /**
+     * @param event      event kept by the sampler
+     * @param sampleRate probability the event had to be kept, in (0, 1)
+     * @return the event to write
+     */
+    public Event record(Event event, double sampleRate);
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+/**
+ * EventDeserializer whose remaining events can be partitioned, at record boundaries, so that each part can be decoded
+ * on its own thread (see Events#split).
+ * <p/>
+ * This mirrors java.util.Spliterator#trySplit, which is not available to us.
+ */
+public interface SplittableEventDeserializer extends EventDeserializer
+{
+    /**
+     * Split off the first part of the remaining events. On success, the returned deserializer covers the events
+     * before the split point and this deserializer the ones after it.
+     *
+     * @return deserializer covering a prefix of the remaining events, null if this deserializer cannot be split
+     *         (e.g. too few events remaining)
+     */
+    public SplittableEventDeserializer trySplit();
+
+    /**
+     * @return estimate of the remaining work (e.g. number of bytes left to decode), used to balance splits
+     */
+    public long estimateSize();
+}
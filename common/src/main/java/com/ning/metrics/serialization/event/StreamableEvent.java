@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Event whose serialized form (same bytes as getSerializedEvent()) can be sized and written to a stream or a buffer
+ * without going through a copy of the bytes. Serializers and writers check for it with instanceof and fall back to
+ * getSerializedEvent() for other events.
+ */
+public interface StreamableEvent extends Event
+{
+    /**
+     * Size of the serialized form of the event, i.e. the number of bytes written by writeTo.
+     *
+     * @return size in bytes of the serialized event, -1 if the event doesn't have a serialized form
+     */
+    public int serializedSize();
+
+    /**
+     * Write the serialized form of the event to a stream. Cached bytes are written as-is, otherwise the event is
+     * serialized straight into the stream, so a failure can leave a partial record behind: callers which cannot
+     * afford it should write into a reusable buffer first (see ThriftEnvelopeEventSerializer). The stream is not
+     * closed.
+     *
+     * @param out stream to write to
+     * @throws IOException generic I/O exception, or if the event cannot be serialized
+     */
+    public void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Write the serialized form of the event to a buffer, at its current position.
+     *
+     * @param buffer buffer to write to, with at least serializedSize() bytes remaining
+     * @throws IOException                      if the event cannot be serialized
+     * @throws java.nio.BufferOverflowException if the buffer is too small, in which case nothing is written
+     */
+    public void writeTo(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Serialized form of the event, without copy. The event is serialized, and the bytes cached, if needed.
+     *
+     * @return read-only view of the serialized event
+     * @throws IOException if the event cannot be serialized
+     */
+    public ByteBuffer getSerializedBuffer() throws IOException;
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.flow;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventDeserializer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publisher of the events read by an EventDeserializer (e.g. SmileEventDeserializer or ThriftEventDeserializer).
+ * <p/>
+ * Events are decoded lazily, only when requested by the Subscriber, so a slow consumer never causes the whole stream
+ * to be buffered in memory. Since the underlying stream can only be read once, a single Subscriber is supported.
+ * <p/>
+ * Decoding happens on the given Executor, or on the thread calling Subscription#request if none is specified.
+ */
+public class EventDeserializerPublisher implements Publisher<Event>
+{
+    private static final Executor SAME_THREAD_EXECUTOR = new Executor()
+    {
+        @Override
+        public void execute(final Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    private final EventDeserializer deserializer;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    public EventDeserializerPublisher(final EventDeserializer deserializer)
+    {
+        this(deserializer, SAME_THREAD_EXECUTOR);
+    }
+
+    public EventDeserializerPublisher(final EventDeserializer deserializer, final Executor executor)
+    {
+        this.deserializer = deserializer;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(final Subscriber<? super Event> subscriber)
+    {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber cannot be null");
+        }
+
+        final DeserializerSubscription subscription = new DeserializerSubscription(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(subscription);
+            subscription.terminate(new IllegalStateException("EventDeserializerPublisher supports a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(subscription);
+    }
+
+    private final class DeserializerSubscription implements Subscription, Runnable
+    {
+        private final Subscriber<? super Event> subscriber;
+        private final AtomicLong demand = new AtomicLong(0);
+        // Number of pending drain requests, the drain loop runs only when it goes from 0 to 1
+        private final AtomicInteger pending = new AtomicInteger(0);
+
+        private volatile boolean done = false;
+        private volatile Throwable requestError = null;
+
+        private DeserializerSubscription(final Subscriber<? super Event> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n)
+        {
+            if (done) {
+                return;
+            }
+
+            if (n <= 0) {
+                requestError = new IllegalArgumentException("Number of requested events must be positive, got " + n);
+            }
+            else {
+                addDemand(n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel()
+        {
+            done = true;
+        }
+
+        @Override
+        public void run()
+        {
+            int missed = 1;
+            while (true) {
+                drain();
+
+                missed = pending.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void drain()
+        {
+            while (!done) {
+                if (requestError != null) {
+                    terminate(requestError);
+                    return;
+                }
+
+                final Event event;
+                try {
+                    if (!deserializer.hasNextEvent()) {
+                        done = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    if (demand.get() == 0) {
+                        return;
+                    }
+
+                    event = deserializer.getNextEvent();
+                }
+                catch (Exception e) {
+                    terminate(e);
+                    return;
+                }
+
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+                subscriber.onNext(event);
+            }
+        }
+
+        private void terminate(final Throwable throwable)
+        {
+            if (!done) {
+                done = true;
+                subscriber.onError(throwable);
+            }
+        }
+
+        private void schedule()
+        {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        private void addDemand(final long n)
+        {
+            while (true) {
+                final long current = demand.get();
+                // Demand is capped to Long.MAX_VALUE, which means unbounded
+                final long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                if (demand.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.flow;
+
+/**
+ * Producer of a potentially unbounded number of items, sent to its Subscriber on demand.
+ * <p/>
+ * This mirrors java.util.concurrent.Flow.Publisher (and org.reactivestreams.Publisher), which are not available to us.
+ *
+ * @param <T> type of the items published
+ */
+public interface Publisher<T>
+{
+    /**
+     * Request the Publisher to start streaming items. Subscriber#onSubscribe is always called first, items are then
+     * sent via Subscriber#onNext only when requested, via Subscription#request.
+     *
+     * @param subscriber Subscriber which will consume the items
+     */
+    public void subscribe(Subscriber<? super T> subscriber);
+}
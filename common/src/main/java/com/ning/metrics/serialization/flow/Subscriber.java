@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.flow;
+
+/**
+ * Receiver of the items sent by a Publisher. Methods are called serially, never concurrently.
+ * <p/>
+ * This mirrors java.util.concurrent.Flow.Subscriber (and org.reactivestreams.Subscriber), which are not available to us.
+ *
+ * @param <T> type of the items consumed
+ */
+public interface Subscriber<T>
+{
+    /**
+     * Called once, before any other method. No item will be sent until Subscription#request is called.
+     *
+     * @param subscription Subscription to use to signal demand or cancel
+     */
+    public void onSubscribe(Subscription subscription);
+
+    /**
+     * Next item. Never called more often than requested.
+     *
+     * @param item next item
+     */
+    public void onNext(T item);
+
+    /**
+     * Terminal state: the Publisher failed. No other method will be called afterwards.
+     *
+     * @param throwable cause of the failure
+     */
+    public void onError(Throwable throwable);
+
+    /**
+     * Terminal state: all items have been sent. No other method will be called afterwards.
+     */
+    public void onComplete();
+}
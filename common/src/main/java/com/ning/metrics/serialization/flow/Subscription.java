@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.flow;
+
+/**
+ * Link between a Publisher and a Subscriber, used by the Subscriber to signal demand.
+ * <p/>
+ * This mirrors java.util.concurrent.Flow.Subscription (and org.reactivestreams.Subscription), which are not available to us.
+ */
+public interface Subscription
+{
+    /**
+     * Add n to the number of items the Subscriber is ready to receive. Demand is cumulative.
+     *
+     * @param n number of additional items, strictly positive
+     */
+    public void request(long n);
+
+    /**
+     * Stop sending items. Some items may still be sent before cancellation takes effect.
+     */
+    public void cancel();
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.schema;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, lookup-optimized form of a Schema, to be used on hot paths (e.g. per record in loaders).
+ * <p/>
+ * Fields have an index, their position when sorted by id. Lookups by id go through a dense array, lookups by name
+ * through a collision-free (perfect) hash table, built once. The slot of a name is its String.hashCode (cached by the
+ * String, so a lookup doesn't rehash the name) mixed with a seed, which is changed (and then the table grown) until
+ * there is no collision. A lookup costs a mix of the hash code and a single equals(). If no seed is found within a
+ * bounded search, or if distinct names have the same hash code (they would collide whatever the seed), lookups by
+ * name fall back to a HashMap.
+ * <p/>
+ * The fingerprint is a 64 bits FNV-1a hash of the fields (id, name and type, in id order). It doesn't depend on
+ * the schema name and is stable across JVMs and releases, so it can be stored along with the data.
+ *
+ * @see Schema#compile()
+ */
+public final class CompiledSchema
+{
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_SEEDS = 64;
+    // Max table size, as a multiple of the initial size
+    private static final int MAX_TABLE_GROWTH = 8;
+
+    private final String name;
+    // Sorted by id
+    private final SchemaField[] fields;
+    private final List<SchemaField> fieldList;
+    // Field index by (id - minId), -1 if there is no such field
+    private final int[] indexById;
+    private final int minId;
+    // Perfect hash table of names: slot -> field index, -1 for empty slots. Null if none was found
+    private final int[] nameSlots;
+    private final int nameSeed;
+    // Field index by name, only if there is no perfect hash table
+    private final Map<String, Integer> indexByName;
+    private final long fingerprint;
+
+    public CompiledSchema(final String name, final Collection<SchemaField> schemaFields)
+    {
+        this.name = name;
+
+        fields = schemaFields.toArray(new SchemaField[schemaFields.size()]);
+        Arrays.sort(fields, new Comparator<SchemaField>()
+        {
+            @Override
+            public int compare(final SchemaField left, final SchemaField right)
+            {
+                return left.getId() - right.getId();
+            }
+        });
+        fieldList = Collections.unmodifiableList(Arrays.asList(fields));
+
+        if (fields.length == 0) {
+            minId = 0;
+            indexById = new int[0];
+        }
+        else {
+            minId = fields[0].getId();
+            indexById = new int[fields[fields.length - 1].getId() - minId + 1];
+            Arrays.fill(indexById, -1);
+            for (int i = 0; i < fields.length; i++) {
+                if (indexById[fields[i].getId() - minId] != -1) {
+                    throw new IllegalArgumentException(String.format("Duplicate field id %d in schema %s", fields[i].getId(), name));
+                }
+                indexById[fields[i].getId() - minId] = i;
+            }
+        }
+
+        // Find a table size and seed without collisions
+        final int initialTableSize = Integer.highestOneBit(Math.max(1, fields.length) * 2 - 1) << 1;
+        int tableSize = initialTableSize;
+        int seed = 0;
+        int[] slots = null;
+        // Distinct names with the same hash code would collide whatever the seed
+        if (!hasHashCodeCollisions(fields)) {
+            slots = buildNameTable(tableSize, seed);
+            while (slots == null) {
+                seed++;
+                if (seed == MAX_SEEDS) {
+                    seed = 0;
+                    tableSize <<= 1;
+                    if (tableSize > initialTableSize * MAX_TABLE_GROWTH) {
+                        break;
+                    }
+                }
+                slots = buildNameTable(tableSize, seed);
+            }
+        }
+        nameSlots = slots;
+        nameSeed = seed;
+
+        if (nameSlots == null) {
+            indexByName = new HashMap<String, Integer>();
+            // Duplicate names: lookups return the field with the lowest id
+            for (int i = fields.length - 1; i >= 0; i--) {
+                indexByName.put(fields[i].getName(), i);
+            }
+        }
+        else {
+            indexByName = null;
+        }
+
+        fingerprint = computeFingerprint(fields);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return number of fields
+     */
+    public int size()
+    {
+        return fields.length;
+    }
+
+    /**
+     * @return all fields, sorted by id (the list cannot be modified)
+     */
+    public List<SchemaField> getFields()
+    {
+        return fieldList;
+    }
+
+    /**
+     * @param index field index (position in id order)
+     * @return the field at that index
+     */
+    public SchemaField getField(final int index)
+    {
+        return fields[index];
+    }
+
+    /**
+     * @param id field id
+     * @return the field index, -1 if there is no field with that id
+     */
+    public int getIndexById(final short id)
+    {
+        final int offset = id - minId;
+        if (offset < 0 || offset >= indexById.length) {
+            return -1;
+        }
+        return indexById[offset];
+    }
+
+    /**
+     * @param name field name
+     * @return the field index, -1 if there is no field with that name
+     */
+    public int getIndexByName(final String name)
+    {
+        if (nameSlots == null) {
+            final Integer index = indexByName.get(name);
+            return index == null ? -1 : index;
+        }
+
+        final int index = nameSlots[slotFor(name, nameSeed, nameSlots.length)];
+        if (index != -1 && fields[index].getName().equals(name)) {
+            return index;
+        }
+        return -1;
+    }
+
+    public SchemaField getFieldById(final short id)
+    {
+        final int index = getIndexById(id);
+        return index == -1 ? null : fields[index];
+    }
+
+    public SchemaField getFieldByName(final String name)
+    {
+        final int index = getIndexByName(name);
+        return index == -1 ? null : fields[index];
+    }
+
+    public long getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("CompiledSchema{name=%s, fields=%d, fingerprint=%016x}", name, fields.length, fingerprint);
+    }
+
+    private int[] buildNameTable(final int tableSize, final int seed)
+    {
+        final int[] slots = new int[tableSize];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < fields.length; i++) {
+            final int slot = slotFor(fields[i].getName(), seed, tableSize);
+            if (slots[slot] != -1) {
+                if (fields[slots[slot]].getName().equals(fields[i].getName())) {
+                    // Duplicate name, lookups return the field with the lowest id
+                    continue;
+                }
+                return null;
+            }
+            slots[slot] = i;
+        }
+        return slots;
+    }
+
+    private static boolean hasHashCodeCollisions(final SchemaField[] fields)
+    {
+        final Map<Integer, String> namesByHashCode = new HashMap<Integer, String>();
+        for (final SchemaField field : fields) {
+            final String previous = namesByHashCode.put(field.getName().hashCode(), field.getName());
+            if (previous != null && !previous.equals(field.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int slotFor(final String name, final int seed, final int tableSize)
+    {
+        // Seeded Murmur3 finalizer on the hash code, cached by the String
+        int hash = name.hashCode() ^ (seed * 0x9e3779b9);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash & (tableSize - 1);
+    }
+
+    private static long computeFingerprint(final SchemaField[] fields)
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for (final SchemaField field : fields) {
+            final byte[] bytes;
+            try {
+                bytes = String.format("%d:%s:%s;", field.getId(), field.getName(), field.getType()).getBytes("UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+
+            for (final byte b : bytes) {
+                hash ^= b & 0xff;
+                hash *= FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+}
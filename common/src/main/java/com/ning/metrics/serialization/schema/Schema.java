@@ -17,9 +17,9 @@
 package com.ning.metrics.serialization.schema;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * A Schema is a collection of SchemaFields.
@@ -32,6 +32,8 @@ public class Schema
 
     private final String name;
     private final HashMap<Short, SchemaField> schemaFields = new HashMap<Short, SchemaField>();
+    // Reset when fields are added
+    private volatile CompiledSchema compiledSchema = null;
 
     public Schema(final String name)
     {
@@ -46,6 +48,7 @@ public class Schema
     public void addSchemaField(final SchemaField schemaField)
     {
         schemaFields.put(schemaField.getId(), schemaField);
+        compiledSchema = null;
     }
 
     public SchemaField getFieldByPosition(final short id)
@@ -55,13 +58,7 @@ public class Schema
 
     public SchemaField getFieldByName(final String name)
     {
-        for (final SchemaField field : schemaFields.values()) {
-            if (field.getName().equals(name)) {
-                return field;
-            }
-        }
-
-        return null;
+        return compile().getFieldByName(name);
     }
 
     /**
@@ -72,17 +69,41 @@ public class Schema
      */
     public ArrayList<SchemaField> getSchema()
     {
-        final ArrayList<SchemaField> items = new ArrayList<SchemaField>(schemaFields.values());
+        return new ArrayList<SchemaField>(compile().getFields());
+    }
 
-        Collections.sort(items, new Comparator<SchemaField>()
-        {
-            @Override
-            public int compare(final SchemaField left, final SchemaField right)
-            {
-                return left.getId() - right.getId();
-            }
-        });
+    /**
+     * Get the immutable, compiled, form of this schema. It is cached until fields are added.
+     *
+     * @return the compiled schema
+     */
+    public CompiledSchema compile()
+    {
+        CompiledSchema compiled = compiledSchema;
+        if (compiled == null) {
+            compiled = new CompiledSchema(name, schemaFields.values());
+            compiledSchema = compiled;
+        }
+        return compiled;
+    }
 
-        return items;
+    /**
+     * Select a subset of the fields, for readers to skip the other ones
+     *
+     * @param fieldNames names of the fields to read
+     * @return the projection
+     * @throws IllegalArgumentException if a field is not in the schema
+     */
+    public SchemaProjection project(final Collection<String> fieldNames)
+    {
+        final List<SchemaField> fields = new ArrayList<SchemaField>(fieldNames.size());
+        for (final String fieldName : fieldNames) {
+            final SchemaField field = getFieldByName(fieldName);
+            if (field == null) {
+                throw new IllegalArgumentException(String.format("No field %s in schema %s", fieldName, name));
+            }
+            fields.add(field);
+        }
+        return new SchemaProjection(fields);
     }
 }
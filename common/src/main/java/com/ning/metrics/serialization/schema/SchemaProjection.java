@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.schema;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Subset of the fields of a schema, for readers to decode only the fields they need.
+ * Lookups are supported both by id (Thrift) and by name (Smile).
+ *
+ * @see Schema#project(Collection)
+ */
+public final class SchemaProjection
+{
+    private final BitSet ids = new BitSet();
+    private final Set<String> names = new HashSet<String>();
+
+    public SchemaProjection(final Collection<SchemaField> fields)
+    {
+        for (final SchemaField field : fields) {
+            ids.set(field.getId() & 0xffff);
+            names.add(field.getName());
+        }
+    }
+
+    public boolean containsId(final short id)
+    {
+        return ids.get(id & 0xffff);
+    }
+
+    public boolean containsName(final String name)
+    {
+        return names.contains(name);
+    }
+
+    public int size()
+    {
+        return names.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SchemaProjection" + names;
+    }
+}
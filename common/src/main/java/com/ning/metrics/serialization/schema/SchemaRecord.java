@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.schema;
+
+import java.util.Arrays;
+
+/**
+ * Mutable, reusable, values of a record of a given schema, accessed by field index (see CompiledSchema).
+ * <p/>
+ * Primitive values are stored unboxed. Typed accessors don't check the field type: reading a field as another type
+ * than the one of the schema returns garbage. This class is not thread safe.
+ */
+public final class SchemaRecord
+{
+    private final CompiledSchema schema;
+    private final long[] primitives;
+    private final String[] strings;
+    private final boolean[] set;
+
+    public SchemaRecord(final CompiledSchema schema)
+    {
+        this.schema = schema;
+        this.primitives = new long[schema.size()];
+        this.strings = new String[schema.size()];
+        this.set = new boolean[schema.size()];
+    }
+
+    public CompiledSchema getSchema()
+    {
+        return schema;
+    }
+
+    /**
+     * Unset all fields, to reuse the record
+     */
+    public void clear()
+    {
+        Arrays.fill(set, false);
+        Arrays.fill(strings, null);
+    }
+
+    public boolean isSet(final int index)
+    {
+        return set[index];
+    }
+
+    public void unset(final int index)
+    {
+        set[index] = false;
+        strings[index] = null;
+    }
+
+    public boolean getBoolean(final int index)
+    {
+        return primitives[index] != 0;
+    }
+
+    public byte getByte(final int index)
+    {
+        return (byte) primitives[index];
+    }
+
+    public short getShort(final int index)
+    {
+        return (short) primitives[index];
+    }
+
+    public int getInt(final int index)
+    {
+        return (int) primitives[index];
+    }
+
+    public long getLong(final int index)
+    {
+        return primitives[index];
+    }
+
+    public double getDouble(final int index)
+    {
+        return Double.longBitsToDouble(primitives[index]);
+    }
+
+    public String getString(final int index)
+    {
+        return strings[index];
+    }
+
+    public void setBoolean(final int index, final boolean value)
+    {
+        setPrimitive(index, value ? 1 : 0);
+    }
+
+    public void setByte(final int index, final byte value)
+    {
+        setPrimitive(index, value);
+    }
+
+    public void setShort(final int index, final short value)
+    {
+        setPrimitive(index, value);
+    }
+
+    public void setInt(final int index, final int value)
+    {
+        setPrimitive(index, value);
+    }
+
+    public void setLong(final int index, final long value)
+    {
+        setPrimitive(index, value);
+    }
+
+    public void setDouble(final int index, final double value)
+    {
+        setPrimitive(index, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * @param index field index
+     * @param value value, null to unset the field
+     */
+    public void setString(final int index, final String value)
+    {
+        strings[index] = value;
+        set[index] = value != null;
+    }
+
+    private void setPrimitive(final int index, final long value)
+    {
+        primitives[index] = value;
+        set[index] = true;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder("SchemaRecord{");
+        for (int i = 0; i < set.length; i++) {
+            if (!set[i]) {
+                continue;
+            }
+            if (builder.charAt(builder.length() - 1) != '{') {
+                builder.append(", ");
+            }
+
+            final SchemaField field = schema.getField(i);
+            builder.append(field.getName()).append('=');
+            switch (field.getType()) {
+                case BOOLEAN:
+                    builder.append(getBoolean(i));
+                    break;
+                case DOUBLE:
+                    builder.append(getDouble(i));
+                    break;
+                case STRING:
+                    builder.append(getString(i));
+                    break;
+                default:
+                    builder.append(getLong(i));
+            }
+        }
+        return builder.append('}').toString();
+    }
+}
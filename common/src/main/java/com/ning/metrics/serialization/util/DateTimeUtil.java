@@ -16,13 +16,37 @@
 
 package com.ning.metrics.serialization.util;
 
+import org.joda.time.Chronology;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.Days;
 import org.joda.time.MutableDateTime;
 import org.joda.time.ReadableDateTime;
+import org.joda.time.chrono.ISOChronology;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Truncation helpers, on Joda objects and on epoch milliseconds.
+ * <p/>
+ * The epoch milliseconds variants (ISO chronology) don't allocate in the common case: the local time is computed
+ * using precomputed offset transitions of the zone, truncated arithmetically and converted back to UTC. They fall back
+ * to the Joda variants when the offset changes within the bucket (daylight saving time transitions), and return the
+ * same results.
+ */
 public class DateTimeUtil
 {
+    public static final long MINUTE_MILLIS = 60 * 1000L;
+    public static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    public static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+    // 1970-01-01 was a Thursday, weeks start on Sundays
+    private static final long FIRST_SUNDAY_IN_DAYS = 3;
+    // Local times are handled as UTC instants
+    private static final Chronology LOCAL_CHRONOLOGY = ISOChronology.getInstanceUTC();
+
+    private final ConcurrentMap<DateTimeZone, ZoneOffsets> zoneOffsets = new ConcurrentHashMap<DateTimeZone, ZoneOffsets>();
+
     public DateTime truncateToHour()
     {
         return truncateToHour(new DateTime());
@@ -119,5 +143,117 @@ public class DateTimeUtil
         result.setMonthOfYear(1);
         return new DateTime(result);
     }
-}
 
+    public long truncateToMinute(final long millis, final DateTimeZone zone)
+    {
+        final ZoneOffsets offsets = getZoneOffsets(zone);
+        final int offset = offsets.getOffset(millis);
+        final long result = offsets.toUTC(floor(millis + offset, MINUTE_MILLIS), offset);
+        return result != ZoneOffsets.NONE ? result : truncateToMinute(new DateTime(millis, zone)).getMillis();
+    }
+
+    public long truncateToHour(final long millis, final DateTimeZone zone)
+    {
+        final ZoneOffsets offsets = getZoneOffsets(zone);
+        final int offset = offsets.getOffset(millis);
+        final long result = offsets.toUTC(floor(millis + offset, HOUR_MILLIS), offset);
+        return result != ZoneOffsets.NONE ? result : truncateToHour(new DateTime(millis, zone)).getMillis();
+    }
+
+    public long truncateToDay(final long millis, final DateTimeZone zone)
+    {
+        final ZoneOffsets offsets = getZoneOffsets(zone);
+        final int offset = offsets.getOffset(millis);
+        final long result = offsets.toUTC(floor(millis + offset, DAY_MILLIS), offset);
+        return result != ZoneOffsets.NONE ? result : truncateToDay(new DateTime(millis, zone)).getMillis();
+    }
+
+    public long truncateToWeek(final long millis, final DateTimeZone zone)
+    {
+        final ZoneOffsets offsets = getZoneOffsets(zone);
+        final int offset = offsets.getOffset(millis);
+        final long days = floorDiv(millis + offset, DAY_MILLIS);
+        final long sunday = days - floorMod(days - FIRST_SUNDAY_IN_DAYS, 7);
+        final long result = offsets.toUTC(sunday * DAY_MILLIS, offset);
+        return result != ZoneOffsets.NONE ? result : truncateToWeek(new DateTime(millis, zone)).getMillis();
+    }
+
+    public long truncateToMonth(final long millis, final DateTimeZone zone)
+    {
+        final ZoneOffsets offsets = getZoneOffsets(zone);
+        final int offset = offsets.getOffset(millis);
+        final long result = offsets.toUTC(LOCAL_CHRONOLOGY.monthOfYear().roundFloor(millis + offset), offset);
+        return result != ZoneOffsets.NONE ? result : truncateToMonth(new DateTime(millis, zone)).getMillis();
+    }
+
+    public long truncateToYear(final long millis, final DateTimeZone zone)
+    {
+        final ZoneOffsets offsets = getZoneOffsets(zone);
+        final int offset = offsets.getOffset(millis);
+        final long result = offsets.toUTC(LOCAL_CHRONOLOGY.year().roundFloor(millis + offset), offset);
+        return result != ZoneOffsets.NONE ? result : truncateToYear(new DateTime(millis, zone)).getMillis();
+    }
+
+    public long plusDays(final long millis, final DateTimeZone zone, final int days)
+    {
+        final ZoneOffsets offsets = getZoneOffsets(zone);
+        final int offset = offsets.getOffset(millis);
+        final long result = offsets.toUTC(millis + offset + days * DAY_MILLIS, offset);
+        return result != ZoneOffsets.NONE ? result : new DateTime(millis, zone).plusDays(days).getMillis();
+    }
+
+    public long plusMonths(final long millis, final DateTimeZone zone, final int months)
+    {
+        final ZoneOffsets offsets = getZoneOffsets(zone);
+        final int offset = offsets.getOffset(millis);
+        final long result = offsets.toUTC(LOCAL_CHRONOLOGY.months().add(millis + offset, months), offset);
+        return result != ZoneOffsets.NONE ? result : new DateTime(millis, zone).plusMonths(months).getMillis();
+    }
+
+    public long plusYears(final long millis, final DateTimeZone zone, final int years)
+    {
+        final ZoneOffsets offsets = getZoneOffsets(zone);
+        final int offset = offsets.getOffset(millis);
+        final long result = offsets.toUTC(LOCAL_CHRONOLOGY.years().add(millis + offset, years), offset);
+        return result != ZoneOffsets.NONE ? result : new DateTime(millis, zone).plusYears(years).getMillis();
+    }
+
+    /**
+     * @param millis epoch milliseconds
+     * @param zone   time zone
+     * @return the local (wall clock) time in zone, as milliseconds since 1970-01-01T00:00 local time
+     */
+    public long toLocalMillis(final long millis, final DateTimeZone zone)
+    {
+        return millis + getZoneOffsets(zone).getOffset(millis);
+    }
+
+    public static long floorDiv(final long value, final long divisor)
+    {
+        final long quotient = value / divisor;
+        return (value % divisor < 0) ? quotient - 1 : quotient;
+    }
+
+    private static long floorMod(final long value, final long divisor)
+    {
+        return value - floorDiv(value, divisor) * divisor;
+    }
+
+    private static long floor(final long value, final long unit)
+    {
+        return floorDiv(value, unit) * unit;
+    }
+
+    private ZoneOffsets getZoneOffsets(final DateTimeZone zone)
+    {
+        ZoneOffsets offsets = zoneOffsets.get(zone);
+        if (offsets == null) {
+            offsets = new ZoneOffsets(zone);
+            final ZoneOffsets existing = zoneOffsets.putIfAbsent(zone, offsets);
+            if (existing != null) {
+                offsets = existing;
+            }
+        }
+        return offsets;
+    }
+}
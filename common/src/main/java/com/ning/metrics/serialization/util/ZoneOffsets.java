@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.util;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precomputed offset transitions of a time zone, between 1970 and 2100.
+ * <p/>
+ * Looking up the offset of an instant is a binary search over the transitions (a single comparison for fixed zones),
+ * instants outside of the precomputed range are delegated to the zone.
+ */
+final class ZoneOffsets
+{
+    // Returned by toUTC when the local time is ambiguous or doesn't exist
+    static final long NONE = Long.MIN_VALUE;
+
+    private static final long START = 0L;
+    private static final long END = new DateTime(2100, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC).getMillis();
+
+    private final DateTimeZone zone;
+    // offsets[i] applies from transitions[i] (inclusive) to transitions[i + 1] (exclusive)
+    private final long[] transitions;
+    private final int[] offsets;
+
+    ZoneOffsets(final DateTimeZone zone)
+    {
+        this.zone = zone;
+
+        final List<Long> instants = new ArrayList<Long>();
+        long instant = START;
+        while (instant < END) {
+            instants.add(instant);
+
+            final long next = zone.nextTransition(instant);
+            if (next <= instant) {
+                break;
+            }
+            instant = next;
+        }
+
+        transitions = new long[instants.size()];
+        offsets = new int[instants.size()];
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = instants.get(i);
+            offsets[i] = zone.getOffset(transitions[i]);
+        }
+    }
+
+    int getOffset(final long millis)
+    {
+        if (millis < START || millis >= END) {
+            return zone.getOffset(millis);
+        }
+        if (transitions.length == 1) {
+            return offsets[0];
+        }
+
+        int index = Arrays.binarySearch(transitions, millis);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return offsets[index];
+    }
+
+    /**
+     * Convert a local time back to UTC, assuming the offset didn't change
+     *
+     * @param localMillis local time
+     * @param offset      expected offset
+     * @return the instant for localMillis, or NONE if the offset is different at that time
+     */
+    long toUTC(final long localMillis, final int offset)
+    {
+        final long millis = localMillis - offset;
+        if (getOffset(millis) == offset) {
+            return millis;
+        }
+        else {
+            return NONE;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Compare the output path computation with and without the path cache.
+ * <p/>
+ * This is not run as part of the test suite, run it manually:
+ * java -cp ... com.ning.metrics.serialization.event.GranularityPathBenchmark [events] [events per second]
+ */
+public class GranularityPathBenchmark
+{
+    private static final String PREFIX = "/events/FrontDoorVisit";
+
+    public static void main(final String[] args)
+    {
+        final int events = args.length > 0 ? Integer.valueOf(args[0]) : 5000000;
+        final int eventsPerSecond = args.length > 1 ? Integer.valueOf(args[1]) : 100000;
+
+        // Timestamps as they come in: increasing, at the given rate
+        final DateTime[] dates = new DateTime[events];
+        final long start = new DateTime("2012-01-31T16:00:00", DateTimeZone.UTC).getMillis();
+        for (int i = 0; i < events; i++) {
+            dates[i] = new DateTime(start + (1000L * i) / eventsPerSecond, DateTimeZone.UTC);
+        }
+
+        for (final Granularity granularity : new Granularity[]{Granularity.MINUTE, Granularity.HOURLY}) {
+            for (int i = 0; i < 3; i++) {
+                final boolean report = i == 2;
+                run("String.format", granularity, events, report, new PathFunction()
+                {
+                    @Override
+                    public int apply(final DateTime date, final StringBuilder builder)
+                    {
+                        return String.format("%s/%s", PREFIX, granularity.getRelativePathFor(date)).length();
+                    }
+                }, dates);
+                run("cached", granularity, events, report, new PathFunction()
+                {
+                    @Override
+                    public int apply(final DateTime date, final StringBuilder builder)
+                    {
+                        return new StringBuilder(64).append(PREFIX).append('/').append(granularity.getCachedRelativePathFor(date)).toString().length();
+                    }
+                }, dates);
+                run("cached, reused", granularity, events, report, new PathFunction()
+                {
+                    @Override
+                    public int apply(final DateTime date, final StringBuilder builder)
+                    {
+                        builder.setLength(0);
+                        return builder.append(PREFIX).append('/').append(granularity.getCachedRelativePathFor(date)).length();
+                    }
+                }, dates);
+            }
+        }
+    }
+
+    private static void run(final String name, final Granularity granularity, final int events, final boolean report, final PathFunction function, final DateTime[] dates)
+    {
+        final StringBuilder builder = new StringBuilder(64);
+        long checksum = 0;
+        final long startTime = System.nanoTime();
+        for (final DateTime date : dates) {
+            checksum += function.apply(date, builder);
+        }
+        final long elapsedNanos = System.nanoTime() - startTime;
+
+        if (report) {
+            System.out.println(String.format("%-8s %-16s %8.1f ns/event %10.0f events/s (%d)", granularity, name, elapsedNanos / (double) events, events / (elapsedNanos / 1e9), checksum));
+        }
+    }
+
+    private static interface PathFunction
+    {
+        public int apply(DateTime date, StringBuilder builder);
+    }
+}
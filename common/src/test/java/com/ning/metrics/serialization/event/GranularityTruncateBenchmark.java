@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Compare bucketing of timestamps with Joda objects and with epoch milliseconds.
+ * <p/>
+ * This is not run as part of the test suite, run it manually:
+ * java -cp ... com.ning.metrics.serialization.event.GranularityTruncateBenchmark [events] [time zone]
+ */
+public class GranularityTruncateBenchmark
+{
+    public static void main(final String[] args)
+    {
+        final int events = args.length > 0 ? Integer.valueOf(args[0]) : 5000000;
+        final DateTimeZone zone = DateTimeZone.forID(args.length > 1 ? args[1] : "America/Los_Angeles");
+
+        final long[] timestamps = new long[events];
+        final long start = new DateTime("2012-01-31T16:00:00", DateTimeZone.UTC).getMillis();
+        for (int i = 0; i < events; i++) {
+            timestamps[i] = start + i * 10L;
+        }
+
+        for (final Granularity granularity : new Granularity[]{Granularity.HOURLY, Granularity.DAILY, Granularity.MONTHLY}) {
+            for (int i = 0; i < 3; i++) {
+                long checksum = 0;
+                long startTime = System.nanoTime();
+                for (final long timestamp : timestamps) {
+                    checksum += granularity.truncate(new DateTime(timestamp, zone)).getMillis();
+                }
+                final long jodaNanos = System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                for (final long timestamp : timestamps) {
+                    checksum -= granularity.truncate(timestamp, zone);
+                }
+                final long millisNanos = System.nanoTime() - startTime;
+
+                if (i == 2) {
+                    report(granularity, "DateTime", events, jodaNanos, checksum);
+                    report(granularity, "epoch millis", events, millisNanos, checksum);
+                }
+            }
+        }
+    }
+
+    private static void report(final Granularity granularity, final String name, final int events, final long elapsedNanos, final long checksum)
+    {
+        System.out.println(String.format("%-8s %-14s %8.1f ns/event %12.0f events/s (%d)", granularity, name, elapsedNanos / (double) events, events / (elapsedNanos / 1e9), checksum));
+    }
+}
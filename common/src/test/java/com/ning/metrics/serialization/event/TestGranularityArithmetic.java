@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Interval;
+import org.joda.time.ReadableInterval;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TestGranularityArithmetic
+{
+    private static final DateTimeZone[] ZONES = new DateTimeZone[]{
+        DateTimeZone.UTC,
+        DateTimeZone.forOffsetHours(-8),
+        DateTimeZone.forID("America/Los_Angeles"),
+        DateTimeZone.forID("Europe/Paris"),
+        DateTimeZone.forID("Asia/Kolkata"),
+        DateTimeZone.forID("Australia/Sydney")
+    };
+
+    @Test(groups = "fast")
+    public void testTruncateMatchesJoda()
+    {
+        final Random random = new Random(42);
+        final long base = new DateTime("2011-01-01T00:00:00", DateTimeZone.UTC).getMillis();
+
+        for (final Granularity granularity : Granularity.values()) {
+            for (final DateTimeZone zone : ZONES) {
+                for (int i = 0; i < 2000; i++) {
+                    final long millis = base + (long) (random.nextDouble() * 3 * 365 * 24 * 3600 * 1000L);
+                    final DateTime date = new DateTime(millis, zone);
+                    Assert.assertEquals(granularity.truncate(millis, zone), granularity.truncate(date).getMillis(), granularity + " " + date);
+                }
+            }
+        }
+
+        // Before 1970 and after 2100
+        final DateTimeZone zone = DateTimeZone.forID("America/Los_Angeles");
+        for (final long millis : new long[]{-123456789012L, 4200000000000L}) {
+            Assert.assertEquals(Granularity.WEEKLY.truncate(millis, zone), Granularity.WEEKLY.truncate(new DateTime(millis, zone)).getMillis());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDaylightSavingTime()
+    {
+        final DateTimeZone zone = DateTimeZone.forID("America/Los_Angeles");
+        // Clocks went forward on 2011-03-13 and back on 2011-11-06
+        for (final String day : new String[]{"2011-03-13", "2011-11-06"}) {
+            final long start = new DateTime(day + "T00:00:00", zone).getMillis();
+            for (long millis = start; millis < start + 24 * 3600 * 1000L; millis += 7 * 60 * 1000L) {
+                for (final Granularity granularity : Granularity.values()) {
+                    Assert.assertEquals(granularity.truncate(millis, zone), granularity.truncate(new DateTime(millis, zone)).getMillis());
+                }
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testNextMatchesStepThroughInterval()
+    {
+        for (final Granularity granularity : Granularity.values()) {
+            for (final DateTimeZone zone : ZONES) {
+                final DateTime start = new DateTime("2011-01-01T00:00:00", zone);
+                final DateTime end;
+                if (granularity == Granularity.MINUTE) {
+                    end = start.plusDays(10);
+                }
+                else if (granularity == Granularity.HOURLY) {
+                    end = start.plusYears(1);
+                }
+                else {
+                    end = start.plusYears(30);
+                }
+                final ReadableInterval interval = new Interval(start, end);
+
+                final List<Long> expected = new ArrayList<Long>();
+                for (final Object step : granularity.forwardSteps(interval)) {
+                    expected.add(((DateTime) step).getMillis());
+                }
+
+                final List<Long> actual = new ArrayList<Long>();
+                long previousIndex = granularity.getBucketIndex(start.getMillis(), zone) - 1;
+                for (long millis = granularity.truncate(start.getMillis(), zone); millis < interval.getEndMillis(); millis = granularity.next(millis, zone)) {
+                    actual.add(millis);
+
+                    // Consecutive indexes
+                    final long index = granularity.getBucketIndex(millis, zone);
+                    Assert.assertEquals(index, previousIndex + 1, granularity + " " + new DateTime(millis, zone));
+                    previousIndex = index;
+                }
+
+                Assert.assertEquals(actual, expected, granularity + " " + zone);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBucketIndex()
+    {
+        Assert.assertEquals(Granularity.HOURLY.getBucketIndex(0, DateTimeZone.UTC), 0);
+        Assert.assertEquals(Granularity.HOURLY.getBucketIndex(-1, DateTimeZone.UTC), -1);
+        Assert.assertEquals(Granularity.DAILY.getBucketIndex(new DateTime("1970-01-02T23:00:00", DateTimeZone.forOffsetHours(-8)).getMillis(), DateTimeZone.forOffsetHours(-8)), 1);
+        // 1970-01-04 was a Sunday
+        Assert.assertEquals(Granularity.WEEKLY.getBucketIndex(new DateTime("1970-01-03T00:00:00", DateTimeZone.UTC).getMillis(), DateTimeZone.UTC), -1);
+        Assert.assertEquals(Granularity.WEEKLY.getBucketIndex(new DateTime("1970-01-04T00:00:00", DateTimeZone.UTC).getMillis(), DateTimeZone.UTC), 0);
+        Assert.assertEquals(Granularity.MONTHLY.getBucketIndex(new DateTime("2012-01-31T00:00:00", DateTimeZone.UTC).getMillis(), DateTimeZone.UTC), 42 * 12);
+        Assert.assertEquals(Granularity.YEARLY.getBucketIndex(new DateTime("2012-01-31T00:00:00", DateTimeZone.UTC).getMillis(), DateTimeZone.UTC), 42);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+public class TestGranularityPathCache
+{
+    @Test(groups = "fast")
+    public void testSameBucketSharesPath()
+    {
+        final DateTime start = new DateTime("2010-10-01T07:00:00", DateTimeZone.UTC);
+        final String path = Granularity.HOURLY.getCachedRelativePathFor(start);
+
+        Assert.assertEquals(path, "2010/10/01/07");
+        Assert.assertSame(Granularity.HOURLY.getCachedRelativePathFor(start.plusMinutes(30)), path);
+        Assert.assertSame(Granularity.HOURLY.getCachedRelativePathFor(start.plusMinutes(60).minusMillis(1)), path);
+        Assert.assertEquals(Granularity.HOURLY.getCachedRelativePathFor(start.plusMinutes(60)), "2010/10/01/08");
+
+        // Same instant, different time zone
+        Assert.assertEquals(Granularity.HOURLY.getCachedRelativePathFor(start.withZone(DateTimeZone.forOffsetHours(-8))), "2010/09/30/23");
+    }
+
+    @Test(groups = "fast")
+    public void testMatchesUncachedPaths()
+    {
+        final Random random = new Random(42);
+        final DateTimeZone[] zones = new DateTimeZone[]{DateTimeZone.UTC, DateTimeZone.forID("America/Los_Angeles"), DateTimeZone.forID("Asia/Kolkata")};
+        final long base = new DateTime("2011-01-01T00:00:00", DateTimeZone.UTC).getMillis();
+
+        for (final Granularity granularity : Granularity.values()) {
+            for (final DateTimeZone zone : zones) {
+                for (int i = 0; i < 5000; i++) {
+                    // Up to ~two years, with clusters of events close to each other
+                    final long millis = base + (long) (random.nextDouble() * 2 * 365 * 24 * 3600 * 1000L) / (i % 2 == 0 ? 1 : 1000);
+                    final DateTime date = new DateTime(millis, zone);
+                    Assert.assertEquals(granularity.getCachedRelativePathFor(date), granularity.getRelativePathFor(date), date.toString());
+                }
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDaylightSavingTime()
+    {
+        final DateTimeZone zone = DateTimeZone.forID("America/Los_Angeles");
+        // Clocks went back from 2am to 1am on 2011-11-06
+        DateTime date = new DateTime("2011-11-06T00:00:00", zone);
+        for (int i = 0; i < 4 * 60; i++) {
+            for (final Granularity granularity : Granularity.values()) {
+                Assert.assertEquals(granularity.getCachedRelativePathFor(date), granularity.getRelativePathFor(date), date.toString());
+            }
+            date = date.plusMinutes(1);
+        }
+    }
+}
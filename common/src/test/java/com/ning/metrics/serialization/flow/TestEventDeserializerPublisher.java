@@ -0,0 +1,171 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.flow;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventDeserializer;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestEventDeserializerPublisher
+{
+    @Test(groups = "fast")
+    public void testDecodeOnDemand() throws Exception
+    {
+        final ListEventDeserializer deserializer = new ListEventDeserializer(5, false);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        new EventDeserializerPublisher(deserializer).subscribe(subscriber);
+
+        // Nothing is decoded until requested
+        Assert.assertEquals(deserializer.decoded, 0);
+        Assert.assertEquals(subscriber.events.size(), 0);
+
+        subscriber.subscription.request(2);
+        Assert.assertEquals(deserializer.decoded, 2);
+        Assert.assertEquals(subscriber.events.size(), 2);
+        Assert.assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(10);
+        Assert.assertEquals(subscriber.events.size(), 5);
+        Assert.assertTrue(subscriber.completed);
+        Assert.assertNull(subscriber.error);
+    }
+
+    @Test(groups = "fast")
+    public void testRequestFromOnNext() throws Exception
+    {
+        final ListEventDeserializer deserializer = new ListEventDeserializer(1000, false);
+        final RecordingSubscriber subscriber = new RecordingSubscriber()
+        {
+            @Override
+            public void onNext(final Event item)
+            {
+                super.onNext(item);
+                subscription.request(1);
+            }
+        };
+        new EventDeserializerPublisher(deserializer).subscribe(subscriber);
+
+        // Re-entrant requests don't recurse
+        subscriber.subscription.request(1);
+        Assert.assertEquals(subscriber.events.size(), 1000);
+        Assert.assertTrue(subscriber.completed);
+    }
+
+    @Test(groups = "fast")
+    public void testCancel() throws Exception
+    {
+        final ListEventDeserializer deserializer = new ListEventDeserializer(5, false);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        new EventDeserializerPublisher(deserializer).subscribe(subscriber);
+
+        subscriber.subscription.request(1);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(1);
+        Assert.assertEquals(subscriber.events.size(), 1);
+        Assert.assertFalse(subscriber.completed);
+    }
+
+    @Test(groups = "fast")
+    public void testErrors() throws Exception
+    {
+        // Decoding failure
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        final EventDeserializerPublisher publisher = new EventDeserializerPublisher(new ListEventDeserializer(5, true));
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(10);
+        Assert.assertEquals(subscriber.events.size(), 0);
+        Assert.assertTrue(subscriber.error instanceof IOException);
+
+        // Single subscriber only
+        final RecordingSubscriber secondSubscriber = new RecordingSubscriber();
+        publisher.subscribe(secondSubscriber);
+        Assert.assertTrue(secondSubscriber.error instanceof IllegalStateException);
+
+        // Invalid demand
+        final RecordingSubscriber thirdSubscriber = new RecordingSubscriber();
+        new EventDeserializerPublisher(new ListEventDeserializer(5, false)).subscribe(thirdSubscriber);
+        thirdSubscriber.subscription.request(0);
+        Assert.assertTrue(thirdSubscriber.error instanceof IllegalArgumentException);
+    }
+
+    private static class RecordingSubscriber implements Subscriber<Event>
+    {
+        protected final List<Event> events = new ArrayList<Event>();
+        protected Subscription subscription;
+        protected boolean completed = false;
+        protected Throwable error = null;
+
+        @Override
+        public void onSubscribe(final Subscription subscription)
+        {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final Event item)
+        {
+            events.add(item);
+        }
+
+        @Override
+        public void onError(final Throwable throwable)
+        {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete()
+        {
+            completed = true;
+        }
+    }
+
+    private static class ListEventDeserializer implements EventDeserializer
+    {
+        private final int size;
+        private final boolean fails;
+        private int decoded = 0;
+
+        private ListEventDeserializer(final int size, final boolean fails)
+        {
+            this.size = size;
+            this.fails = fails;
+        }
+
+        @Override
+        public boolean hasNextEvent()
+        {
+            return decoded < size;
+        }
+
+        @Override
+        public Event getNextEvent() throws IOException
+        {
+            if (fails) {
+                throw new IOException("IGNORE - Expected exception for tests");
+            }
+            decoded++;
+            return new StubEvent();
+        }
+    }
+}
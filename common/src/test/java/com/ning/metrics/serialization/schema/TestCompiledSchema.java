@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.schema;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestCompiledSchema
+{
+    @Test(groups = "fast")
+    public void testLookups() throws Exception
+    {
+        final Schema schema = new Schema("FuuEvent");
+        for (short id = 200; id > 0; id -= 2) {
+            schema.addSchemaField(SchemaFieldType.createSchemaField("field" + id, "STRING", id));
+        }
+
+        final CompiledSchema compiled = schema.compile();
+        Assert.assertSame(schema.compile(), compiled);
+        Assert.assertEquals(compiled.getName(), "FuuEvent");
+        Assert.assertEquals(compiled.size(), 100);
+        Assert.assertEquals(compiled.getFields(), schema.getSchema());
+
+        for (int index = 0; index < compiled.size(); index++) {
+            final SchemaField field = compiled.getField(index);
+            Assert.assertEquals(field.getId(), (short) (2 * (index + 1)));
+            Assert.assertEquals(compiled.getIndexById(field.getId()), index);
+            Assert.assertEquals(compiled.getIndexByName(field.getName()), index);
+            Assert.assertSame(compiled.getFieldByName(field.getName()), field);
+            Assert.assertSame(compiled.getFieldById(field.getId()), field);
+        }
+
+        Assert.assertEquals(compiled.getIndexById((short) 3), -1);
+        Assert.assertEquals(compiled.getIndexById((short) 0), -1);
+        Assert.assertEquals(compiled.getIndexById((short) 1000), -1);
+        Assert.assertEquals(compiled.getIndexByName("field3"), -1);
+        Assert.assertNull(compiled.getFieldByName("nope"));
+        Assert.assertNull(schema.getFieldByName("nope"));
+
+        // Adding a field recompiles
+        schema.addSchemaField(SchemaFieldType.createSchemaField("field3", "DATE", (short) 3));
+        Assert.assertNotSame(schema.compile(), compiled);
+        Assert.assertEquals(schema.compile().getIndexByName("field3"), 1);
+        Assert.assertEquals(schema.getFieldByName("field3").getType(), SchemaFieldType.DATE);
+    }
+
+    @Test(groups = "fast")
+    public void testNamesWithTheSameHashCode() throws Exception
+    {
+        // "Aa" and "BB" have the same String.hashCode, and so do all their concatenations
+        final Schema schema = new Schema("CollidingEvent");
+        short id = 1;
+        for (final String first : new String[]{"Aa", "BB"}) {
+            for (final String second : new String[]{"Aa", "BB"}) {
+                for (final String third : new String[]{"Aa", "BB"}) {
+                    schema.addSchemaField(SchemaFieldType.createSchemaField(first + second + third, "STRING", id++));
+                }
+            }
+        }
+        Assert.assertEquals("AaAaAa".hashCode(), "BBBBBB".hashCode());
+
+        final CompiledSchema compiled = schema.compile();
+        Assert.assertEquals(compiled.size(), 8);
+        for (int index = 0; index < compiled.size(); index++) {
+            Assert.assertEquals(compiled.getIndexByName(compiled.getField(index).getName()), index);
+        }
+        Assert.assertEquals(compiled.getIndexByName("AaAaBBBB"), -1);
+    }
+
+    @Test(groups = "fast")
+    public void testEmptySchema() throws Exception
+    {
+        final CompiledSchema compiled = new Schema("empty").compile();
+        Assert.assertEquals(compiled.size(), 0);
+        Assert.assertEquals(compiled.getIndexById((short) 1), -1);
+        Assert.assertEquals(compiled.getIndexByName("a"), -1);
+        Assert.assertTrue(compiled.getFields().isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprint() throws Exception
+    {
+        final Schema first = new Schema("first");
+        first.addSchemaField(SchemaFieldType.createSchemaField("a", "STRING", (short) 1));
+        first.addSchemaField(SchemaFieldType.createSchemaField("b", "DATE", (short) 2));
+
+        // Same fields, added in a different order, different name
+        final Schema second = new Schema("second");
+        second.addSchemaField(SchemaFieldType.createSchemaField("b", "DATE", (short) 2));
+        second.addSchemaField(SchemaFieldType.createSchemaField("a", "STRING", (short) 1));
+
+        final Schema third = new Schema("first");
+        third.addSchemaField(SchemaFieldType.createSchemaField("a", "STRING", (short) 1));
+        third.addSchemaField(SchemaFieldType.createSchemaField("b", "STRING", (short) 2));
+
+        Assert.assertEquals(first.compile().getFingerprint(), second.compile().getFingerprint());
+        Assert.assertFalse(first.compile().getFingerprint() == third.compile().getFingerprint());
+    }
+}
@@ -87,7 +87,8 @@ public class SmileRecordReader extends RecordReader
             return false;
         }
         else {
-            value = deserializer.getNextEvent();
+            // Like Hadoop's own readers, decode each record into the previous value instead of allocating a new one
+            value = deserializer.getNextEvent(value);
             key = value.getEventDateTime();
             return true;
         }
@@ -26,9 +26,12 @@ import com.fasterxml.jackson.dataformat.smile.SmileParser;
 import org.joda.time.DateTime;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Map;
 
@@ -36,7 +39,7 @@ import java.util.Map;
  * Event representation of a single Smile event. This class is useful to send JSON trees
  * to the collector via the eventtracker library.
  */
-public class SmileEnvelopeEvent implements Event
+public class SmileEnvelopeEvent implements StreamableEvent
 {
     /**
      * Main nominal character set is Latin-1 just because it is a
@@ -187,6 +190,24 @@ public class SmileEnvelopeEvent implements Event
         setEventPropertiesFromNode(root);
     }
 
+    /**
+     * Reset this event in place, e.g. when reused by SmileEnvelopeEventDeserializer#getNextEvent(Event).
+     * The event date time and granularity are extracted from the node.
+     *
+     * @param eventName name of the event
+     * @param node      event data
+     */
+    public void reset(final String eventName, final JsonNode node)
+    {
+        this.eventName = eventName;
+        this.root = node;
+        this.eventDateTime = null;
+        this.granularity = null;
+        this.serializedEvent = null;
+        this.isPlainJson = false;
+        setEventPropertiesFromNode(node);
+    }
+
     @Override
     public DateTime getEventDateTime()
     {
@@ -215,9 +236,19 @@ public class SmileEnvelopeEvent implements Event
     @Override
     public String getOutputDir(final String prefix)
     {
-        final GranularityPathMapper pathMapper = new GranularityPathMapper(String.format("%s/%s", prefix, eventName), granularity);
+        return appendOutputDir(new StringBuilder(64), prefix).toString();
+    }
 
-        return pathMapper.getPathForDateTime(getEventDateTime());
+    /**
+     * Same as getOutputDir, but append the path to a (reusable) buffer
+     *
+     * @param builder buffer to append to
+     * @param prefix  root path
+     * @return builder
+     */
+    public StringBuilder appendOutputDir(final StringBuilder builder, final String prefix)
+    {
+        return builder.append(prefix).append('/').append(eventName).append('/').append(granularity.getCachedRelativePathFor(getEventDateTime()));
     }
 
     /**
@@ -249,6 +280,49 @@ public class SmileEnvelopeEvent implements Event
         return serializedEvent;
     }
 
+    @Override
+    public int serializedSize()
+    {
+        final byte[] bytes = getSerializedEvent();
+        return bytes == null ? -1 : bytes.length;
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException
+    {
+        final byte[] bytes = serializedEvent;
+        if (bytes != null) {
+            out.write(bytes);
+            return;
+        }
+
+        // Nothing cached: stream the tree straight into the destination, instead of going through a byte array
+        final JsonGenerator generator = getObjectMapper().getJsonFactory().createJsonGenerator(out);
+        generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        try {
+            getObjectMapper().writeTree(generator, root);
+        }
+        finally {
+            generator.close();
+        }
+    }
+
+    @Override
+    public void writeTo(final ByteBuffer buffer) throws IOException
+    {
+        buffer.put(getSerializedBuffer());
+    }
+
+    @Override
+    public ByteBuffer getSerializedBuffer() throws IOException
+    {
+        final byte[] bytes = getSerializedEvent();
+        if (bytes == null) {
+            throw new IOException("Unable to serialize event " + eventName);
+        }
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
     /**
      * The object implements the writeExternal method to save its contents
      * by calling the methods of DataOutput for its primitive values or
@@ -271,12 +345,24 @@ public class SmileEnvelopeEvent implements Event
         out.writeInt(eventNameBytes.length);
         out.write(eventNameBytes);
 
-        final byte[] payloadBytes = getSerializedEvent();
-
-        // Size of Smile payload. Needed for deserialization, see below
-        out.writeInt(payloadBytes.length);
+        final byte[] payloadBytes = serializedEvent;
+        if (payloadBytes != null) {
+            // Size of Smile payload. Needed for deserialization, see below
+            out.writeInt(payloadBytes.length);
+            out.write(payloadBytes);
+            return;
+        }
 
-        out.write(payloadBytes);
+        // The size comes first, so the payload has to be buffered, but there is no need to copy it into an array
+        final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream();
+        writeTo(payloadBuffer);
+        out.writeInt(payloadBuffer.size());
+        if (out instanceof OutputStream) {
+            payloadBuffer.writeTo((OutputStream) out);
+        }
+        else {
+            out.write(payloadBuffer.toByteArray());
+        }
     }
 
     /**
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Records the sample rate of SmileEnvelopeEvents as an extra field of their payload. Other events are left untouched.
+ */
+public class SmileSampleRateRecorder implements SampleRateRecorder
+{
+    public static final String DEFAULT_FIELD_NAME = "sampleRate";
+
+    private final String fieldName;
+
+    public SmileSampleRateRecorder()
+    {
+        this(DEFAULT_FIELD_NAME);
+    }
+
+    /**
+     * @param fieldName name of the payload field holding the sample rate
+     */
+    public SmileSampleRateRecorder(final String fieldName)
+    {
+        this.fieldName = fieldName;
+    }
+
+    @Override
+    public Event record(final Event event, final double sampleRate)
+    {
+        if (!(event instanceof SmileEnvelopeEvent) || !(event.getData() instanceof ObjectNode)) {
+            return event;
+        }
+
+        final SmileEnvelopeEvent smileEvent = (SmileEnvelopeEvent) event;
+        // Shallow copy: the original fields are shared, only the top-level object is new
+        final ObjectNode payload = JsonNodeFactory.instance.objectNode();
+        payload.putAll((ObjectNode) smileEvent.getData());
+        payload.put(fieldName, sampleRate);
+        return new SmileEnvelopeEvent(smileEvent.getName(), smileEvent.getGranularity(), smileEvent.getEventDateTime(), payload);
+    }
+}
@@ -15,14 +15,17 @@
  */
 package com.ning.metrics.serialization.smile;
 
-import com.ning.metrics.serialization.event.EventDeserializer;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.ReusingEventDeserializer;
 import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+import com.ning.metrics.serialization.schema.SchemaProjection;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
 import com.fasterxml.jackson.dataformat.smile.SmileParser;
@@ -33,7 +36,7 @@ import java.io.PushbackInputStream;
 import java.util.LinkedList;
 import java.util.List;
 
-public class SmileEnvelopeEventDeserializer implements EventDeserializer
+public class SmileEnvelopeEventDeserializer implements ReusingEventDeserializer
 {
     protected static final SmileFactory smileFactory = new SmileFactory();
     protected static final JsonFactory jsonFactory = new JsonFactory();
@@ -52,6 +55,7 @@ public class SmileEnvelopeEventDeserializer implements EventDeserializer
 
     private final JsonParser parser;
     private final ObjectMapper mapper;
+    private final SchemaProjection projection;
 
     private boolean hasFailed = false;
 
@@ -69,6 +73,22 @@ public class SmileEnvelopeEventDeserializer implements EventDeserializer
      */
     public SmileEnvelopeEventDeserializer(final InputStream in, final boolean plainJson) throws IOException
     {
+        this(in, plainJson, null);
+    }
+
+    /**
+     * Same as above, but only decode some of the payload fields. Other fields are skipped at the token level and are
+     * not part of the events returned (the event date and granularity are always kept).
+     *
+     * @param in         InputStream containing events
+     * @param plainJson  whether the stream is in plain json (otherwise smile)
+     * @param projection payload fields to decode, null for all
+     * @throws IOException generic I/O exception
+     */
+    public SmileEnvelopeEventDeserializer(final InputStream in, final boolean plainJson, final SchemaProjection projection) throws IOException
+    {
+        this.projection = projection;
+
         // TODO bug when using pushbackInputStream like extractEvents does. very strange.
 
         if (!plainJson) {
@@ -141,7 +161,7 @@ public class SmileEnvelopeEventDeserializer implements EventDeserializer
             if (!_hasNextEvent()) {
                 return null;
             }
-            final JsonNode node = mapper.readValue(parser, JsonNode.class);
+            final JsonNode node = projection == null ? mapper.readValue(parser, JsonNode.class) : readProjectedEvent();
             nextToken = null; // reset nextToken
 
             return new SmileEnvelopeEvent(node);
@@ -153,6 +173,93 @@ public class SmileEnvelopeEventDeserializer implements EventDeserializer
         }
     }
 
+    /**
+     * Same as getNextEvent(), but reuse the event and its payload tree: the payload fields are decoded in place into
+     * the payload node of reuse (other envelope fields than eventName and payload are dropped).
+     *
+     * @param reuse event to reset in place, typically the one previously returned. If null, or if it doesn't
+     *              have an ObjectNode payload, a new event is created
+     * @return nextEvent. return null if it reaches the end of the list
+     * @throws IOException if there's a parsing issue
+     */
+    public SmileEnvelopeEvent getNextEvent(final Event reuse) throws IOException
+    {
+        if (!(reuse instanceof SmileEnvelopeEvent) || !(reuse.getData() instanceof ObjectNode)) {
+            return getNextEvent();
+        }
+
+        final SmileEnvelopeEvent event = (SmileEnvelopeEvent) reuse;
+        final ObjectNode payload = (ObjectNode) event.getData();
+        try {
+            if (!_hasNextEvent()) {
+                return null;
+            }
+
+            String eventName = null;
+            payload.removeAll();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if (token == JsonToken.START_OBJECT && "payload".equals(name)) {
+                    readPayload(payload);
+                }
+                else if (token == JsonToken.VALUE_STRING && "eventName".equals(name)) {
+                    eventName = parser.getText();
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+            nextToken = null; // reset nextToken
+
+            if (payload.size() == 0 || eventName == null || eventName.isEmpty()) {
+                throw new IOException("Cannot construct a SmileEnvelopeEvent without eventName and payload properties.");
+            }
+            event.reset(eventName, payload);
+
+            return event;
+        }
+        // make sure we don't return true for hasNextEvent after this
+        catch (IOException e) {
+            hasFailed = true;
+            throw e;
+        }
+    }
+
+    // Same as mapper.readValue(parser, JsonNode.class), but skipping payload fields outside of the projection
+    private JsonNode readProjectedEvent() throws IOException
+    {
+        final ObjectNode envelope = mapper.createObjectNode();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_OBJECT && "payload".equals(name)) {
+                readPayload(envelope.putObject(name));
+            }
+            else {
+                envelope.put(name, mapper.readValue(parser, JsonNode.class));
+            }
+        }
+        return envelope;
+    }
+
+    // Read the payload fields (in the projection, if any) into the specified node
+    private void readPayload(final ObjectNode payload) throws IOException
+    {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (projection == null ||
+                projection.containsName(fieldName) ||
+                SmileEnvelopeEvent.SMILE_EVENT_DATETIME_TOKEN_NAME.equals(fieldName) ||
+                SmileEnvelopeEvent.SMILE_EVENT_GRANULARITY_TOKEN_NAME.equals(fieldName)) {
+                payload.put(fieldName, mapper.readValue(parser, JsonNode.class));
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+    }
+
     /**
      * Extracts all events in the stream
      * Note: Stream must be formatted as an array of (serialized) SmileEnvelopeEvents.
@@ -26,10 +26,11 @@ import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
 import com.fasterxml.jackson.dataformat.smile.SmileParser;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
 
-public class SmileEnvelopeEventSerializer implements EventSerializer
+public class SmileEnvelopeEventSerializer implements EventSerializer, Flushable
 {
     JsonGenerator jsonGenerator;
     final boolean plainJson;
@@ -78,6 +79,12 @@ public class SmileEnvelopeEventSerializer implements EventSerializer
         smileEvent.writeToJsonGenerator(jsonGenerator);
     }
 
+    @Override
+    public void flush() throws IOException
+    {
+        jsonGenerator.flush();
+    }
+
     @Override
     public void close() throws IOException
     {
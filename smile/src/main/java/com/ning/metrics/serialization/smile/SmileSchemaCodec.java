@@ -0,0 +1,362 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.smile;
+
+import com.ning.metrics.serialization.event.Granularity;
+import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+import com.ning.metrics.serialization.schema.CompiledSchema;
+import com.ning.metrics.serialization.schema.SchemaField;
+import com.ning.metrics.serialization.schema.SchemaRecord;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.joda.time.ReadableInstant;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Schema-specific encoder and decoder for Smile (or Json) events, streaming SchemaRecord values directly to a
+ * JsonGenerator, and from a JsonParser, without building JsonNode trees.
+ * <p/>
+ * The codec is built once per schema: each field gets a pre-encoded name and a reader/writer specialized for its
+ * type. Codecs are cached by schema fingerprint and are thread safe.
+ * <p/>
+ * writeEnvelope writes the same layout as SmileEnvelopeEvent.writeToJsonGenerator, so the output can be read back with
+ * SmileEnvelopeEventDeserializer. When decoding, fields which are not in the schema, null, or of an unexpected
+ * type, are skipped.
+ */
+public final class SmileSchemaCodec
+{
+    private static final SerializableString EVENT_NAME = new SerializedString("eventName");
+    private static final SerializableString PAYLOAD = new SerializedString("payload");
+    private static final SerializableString EVENT_DATE = new SerializedString(SmileEnvelopeEvent.SMILE_EVENT_DATETIME_TOKEN_NAME);
+    private static final SerializableString EVENT_GRANULARITY = new SerializedString(SmileEnvelopeEvent.SMILE_EVENT_GRANULARITY_TOKEN_NAME);
+    private static final ConcurrentMap<Long, SmileSchemaCodec> codecs = new ConcurrentHashMap<Long, SmileSchemaCodec>();
+
+    private final CompiledSchema schema;
+    private final FieldCodec[] fieldCodecs;
+
+    public static SmileSchemaCodec forSchema(final CompiledSchema schema)
+    {
+        SmileSchemaCodec codec = codecs.get(schema.getFingerprint());
+        if (codec == null) {
+            codec = new SmileSchemaCodec(schema);
+            final SmileSchemaCodec existing = codecs.putIfAbsent(schema.getFingerprint(), codec);
+            if (existing != null) {
+                codec = existing;
+            }
+        }
+        return codec;
+    }
+
+    private SmileSchemaCodec(final CompiledSchema schema)
+    {
+        this.schema = schema;
+
+        fieldCodecs = new FieldCodec[schema.size()];
+        for (int index = 0; index < fieldCodecs.length; index++) {
+            fieldCodecs[index] = createFieldCodec(schema.getField(index), index);
+        }
+    }
+
+    public CompiledSchema getSchema()
+    {
+        return schema;
+    }
+
+    /**
+     * Write an event as {eventName:name, payload:{eventDate:..., eventGranularity:..., fields...}}
+     *
+     * @param generator     generator to write to
+     * @param eventName     name of the event
+     * @param eventDateTime event timestamp
+     * @param granularity   event granularity
+     * @param record        event data
+     * @throws IOException generic serialization exception
+     */
+    public void writeEnvelope(final JsonGenerator generator, final String eventName, final ReadableInstant eventDateTime, final Granularity granularity, final SchemaRecord record) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeFieldName(EVENT_NAME);
+        generator.writeString(eventName);
+        generator.writeFieldName(PAYLOAD);
+        generator.writeStartObject();
+        generator.writeFieldName(EVENT_DATE);
+        generator.writeNumber(eventDateTime.getMillis());
+        generator.writeFieldName(EVENT_GRANULARITY);
+        generator.writeString(granularity.toString());
+        writeFields(generator, record);
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Write the set fields of a record, as an object
+     *
+     * @param generator generator to write to
+     * @param record    record to write
+     * @throws IOException generic serialization exception
+     */
+    public void write(final JsonGenerator generator, final SchemaRecord record) throws IOException
+    {
+        generator.writeStartObject();
+        writeFields(generator, record);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Read an event written by writeEnvelope (or SmileEnvelopeEvent.writeToJsonGenerator). Payload fields which are
+     * not in the schema (e.g. eventDate, unless declared) are skipped.
+     *
+     * @param parser parser, on or before the START_OBJECT token of the event
+     * @param record record to fill (it is cleared first)
+     * @return the event name
+     * @throws IOException generic deserialization exception
+     */
+    public String readEnvelope(final JsonParser parser, final SchemaRecord record) throws IOException
+    {
+        record.clear();
+        startObject(parser);
+
+        String eventName = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("eventName".equals(name)) {
+                eventName = parser.getText();
+            }
+            else if ("payload".equals(name)) {
+                readFields(parser, record);
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+        return eventName;
+    }
+
+    /**
+     * Read an object into a record
+     *
+     * @param parser parser, on or before the START_OBJECT token
+     * @param record record to fill (it is cleared first)
+     * @throws IOException generic deserialization exception
+     */
+    public void read(final JsonParser parser, final SchemaRecord record) throws IOException
+    {
+        record.clear();
+        startObject(parser);
+        readFields(parser, record);
+    }
+
+    private void writeFields(final JsonGenerator generator, final SchemaRecord record) throws IOException
+    {
+        for (final FieldCodec fieldCodec : fieldCodecs) {
+            if (record.isSet(fieldCodec.index)) {
+                generator.writeFieldName(fieldCodec.name);
+                fieldCodec.write(generator, record);
+            }
+        }
+    }
+
+    private void readFields(final JsonParser parser, final SchemaRecord record) throws IOException
+    {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final int index = schema.getIndexByName(parser.getCurrentName());
+            final JsonToken token = parser.nextToken();
+            if (index != -1 && fieldCodecs[index].accepts(token)) {
+                fieldCodecs[index].read(parser, record);
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void startObject(final JsonParser parser) throws IOException
+    {
+        JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.START_OBJECT) {
+            token = parser.nextToken();
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new IOException("Expected JsonToken.START_OBJECT, got " + token);
+        }
+    }
+
+    private static FieldCodec createFieldCodec(final SchemaField schemaField, final int index)
+    {
+        final SerializableString name = new SerializedString(schemaField.getName());
+
+        switch (schemaField.getType()) {
+            case BOOLEAN:
+                return new FieldCodec(name, index)
+                {
+                    @Override
+                    boolean accepts(final JsonToken token)
+                    {
+                        return token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE;
+                    }
+
+                    @Override
+                    void write(final JsonGenerator generator, final SchemaRecord record) throws IOException
+                    {
+                        generator.writeBoolean(record.getBoolean(index));
+                    }
+
+                    @Override
+                    void read(final JsonParser parser, final SchemaRecord record) throws IOException
+                    {
+                        record.setBoolean(index, parser.getCurrentToken() == JsonToken.VALUE_TRUE);
+                    }
+                };
+            case BYTE:
+                return new FieldCodec(name, index)
+                {
+                    @Override
+                    void write(final JsonGenerator generator, final SchemaRecord record) throws IOException
+                    {
+                        generator.writeNumber(record.getByte(index));
+                    }
+
+                    @Override
+                    void read(final JsonParser parser, final SchemaRecord record) throws IOException
+                    {
+                        record.setByte(index, (byte) parser.getIntValue());
+                    }
+                };
+            case SHORT:
+                return new FieldCodec(name, index)
+                {
+                    @Override
+                    void write(final JsonGenerator generator, final SchemaRecord record) throws IOException
+                    {
+                        generator.writeNumber(record.getShort(index));
+                    }
+
+                    @Override
+                    void read(final JsonParser parser, final SchemaRecord record) throws IOException
+                    {
+                        record.setShort(index, (short) parser.getIntValue());
+                    }
+                };
+            case INTEGER:
+            case IP:
+                return new FieldCodec(name, index)
+                {
+                    @Override
+                    void write(final JsonGenerator generator, final SchemaRecord record) throws IOException
+                    {
+                        generator.writeNumber(record.getInt(index));
+                    }
+
+                    @Override
+                    void read(final JsonParser parser, final SchemaRecord record) throws IOException
+                    {
+                        record.setInt(index, parser.getIntValue());
+                    }
+                };
+            case LONG:
+            case DATE:
+                return new FieldCodec(name, index)
+                {
+                    @Override
+                    void write(final JsonGenerator generator, final SchemaRecord record) throws IOException
+                    {
+                        generator.writeNumber(record.getLong(index));
+                    }
+
+                    @Override
+                    void read(final JsonParser parser, final SchemaRecord record) throws IOException
+                    {
+                        record.setLong(index, parser.getLongValue());
+                    }
+                };
+            case DOUBLE:
+                return new FieldCodec(name, index)
+                {
+                    @Override
+                    boolean accepts(final JsonToken token)
+                    {
+                        return token == JsonToken.VALUE_NUMBER_FLOAT || token == JsonToken.VALUE_NUMBER_INT;
+                    }
+
+                    @Override
+                    void write(final JsonGenerator generator, final SchemaRecord record) throws IOException
+                    {
+                        generator.writeNumber(record.getDouble(index));
+                    }
+
+                    @Override
+                    void read(final JsonParser parser, final SchemaRecord record) throws IOException
+                    {
+                        record.setDouble(index, parser.getDoubleValue());
+                    }
+                };
+            case STRING:
+                return new FieldCodec(name, index)
+                {
+                    @Override
+                    boolean accepts(final JsonToken token)
+                    {
+                        return token == JsonToken.VALUE_STRING;
+                    }
+
+                    @Override
+                    void write(final JsonGenerator generator, final SchemaRecord record) throws IOException
+                    {
+                        generator.writeString(record.getString(index));
+                    }
+
+                    @Override
+                    void read(final JsonParser parser, final SchemaRecord record) throws IOException
+                    {
+                        record.setString(index, parser.getText());
+                    }
+                };
+            default:
+                throw new IllegalArgumentException(String.format("unsupported field type %s", schemaField.getType()));
+        }
+    }
+
+    private abstract static class FieldCodec
+    {
+        final SerializableString name;
+        final int index;
+
+        FieldCodec(final SerializableString name, final int index)
+        {
+            this.name = name;
+            this.index = index;
+        }
+
+        // Integral types by default
+        boolean accepts(final JsonToken token)
+        {
+            return token == JsonToken.VALUE_NUMBER_INT;
+        }
+
+        abstract void write(JsonGenerator generator, SchemaRecord record) throws IOException;
+
+        abstract void read(JsonParser parser, SchemaRecord record) throws IOException;
+    }
+}
@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 public class TestSmileEnvelopeEvent
@@ -85,6 +86,23 @@ public class TestSmileEnvelopeEvent
      *
      * @throws Exception generic serialization exception
      */
+    @Test(groups = "fast")
+    public void testSampleRateRecorder() throws Exception
+    {
+        final HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("foo", "bar");
+        final SmileEnvelopeEvent event = new SmileEnvelopeEvent(SCHEMA_NAME, eventGranularity, eventDateTime, map);
+
+        final Event sampledEvent = new SmileSampleRateRecorder().record(event, 0.25);
+        Assert.assertEquals(sampledEvent.getName(), SCHEMA_NAME);
+        Assert.assertEquals(sampledEvent.getGranularity(), eventGranularity);
+        Assert.assertEquals(sampledEvent.getEventDateTime().getMillis(), eventDateTime.getMillis());
+        Assert.assertEquals(((JsonNode) sampledEvent.getData()).get("foo").asText(), "bar");
+        Assert.assertEquals(((JsonNode) sampledEvent.getData()).get(SmileSampleRateRecorder.DEFAULT_FIELD_NAME).asDouble(), 0.25);
+        // The original event is left untouched
+        Assert.assertNull(((JsonNode) event.getData()).get(SmileSampleRateRecorder.DEFAULT_FIELD_NAME));
+    }
+
     @Test(groups = "fast")
     public void testBytesVsString() throws Exception
     {
@@ -188,6 +206,39 @@ public class TestSmileEnvelopeEvent
         Assert.assertEquals(((JsonNode) event.getData()).get("bleh").asInt(), 12);
     }
 
+    @Test(groups = "fast")
+    public void testWriteTo() throws Exception
+    {
+        final HashMap<String, Object> eventMap = new HashMap<String, Object>();
+        eventMap.put("foo", "bar");
+        eventMap.put("bleh", 12);
+
+        // Nothing cached yet
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        final StreamableEvent event = new SmileEnvelopeEvent("myEvent", eventDateTime, eventMap);
+        event.writeTo(streamed);
+
+        final byte[] serializedEvent = event.getSerializedEvent();
+        Assert.assertEquals(streamed.toByteArray(), serializedEvent);
+        Assert.assertEquals(event.serializedSize(), serializedEvent.length);
+
+        // From the cached bytes
+        final ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        event.writeTo(cached);
+        Assert.assertEquals(cached.toByteArray(), serializedEvent);
+
+        final ByteBuffer view = event.getSerializedBuffer();
+        Assert.assertTrue(view.isReadOnly());
+        Assert.assertEquals(view, ByteBuffer.wrap(serializedEvent));
+
+        final ByteBuffer buffer = ByteBuffer.allocate(serializedEvent.length + 2);
+        buffer.put((byte) 1);
+        event.writeTo(buffer);
+        Assert.assertEquals(buffer.position(), serializedEvent.length + 1);
+        buffer.flip().position(1);
+        Assert.assertEquals(buffer, ByteBuffer.wrap(serializedEvent));
+    }
+
     /*
    ///////////////////////////////////////////////////////////////////////
    // Helper methods
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.smile;
+
+import com.ning.metrics.serialization.event.Granularity;
+import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+import com.ning.metrics.serialization.schema.SchemaRecord;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.joda.time.DateTime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compare SmileEnvelopeEvent.writeToJsonGenerator (JsonNode trees) with SmileSchemaCodec.
+ * <p/>
+ * This is not run as part of the test suite, run it manually:
+ * java -cp ... com.ning.metrics.serialization.smile.SmileSchemaCodecBenchmark [records]
+ */
+public class SmileSchemaCodecBenchmark
+{
+    public static void main(final String[] args) throws IOException
+    {
+        final int records = args.length > 0 ? Integer.valueOf(args[0]) : 1000000;
+        final DateTime eventDateTime = new DateTime("2012-01-31T17:00:00.000Z");
+
+        final SmileSchemaCodec codec = SmileSchemaCodec.forSchema(TestSmileSchemaCodec.createSchema().compile());
+        final SchemaRecord record = TestSmileSchemaCodec.createRecord(codec.getSchema());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonGenerator generator = SmileEnvelopeEventSerializer.smileFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+
+        for (int i = 0; i < 3; i++) {
+            final boolean report = i == 2;
+
+            long startTime = System.nanoTime();
+            for (int j = 0; j < records; j++) {
+                out.reset();
+                // The tree is built from the values, as callers have to
+                final Map<String, Object> map = new HashMap<String, Object>();
+                map.put("bool", record.getBoolean(0));
+                map.put("byte", record.getByte(1));
+                map.put("short", record.getShort(2));
+                map.put("int", record.getInt(3));
+                map.put("date", record.getLong(4));
+                map.put("double", record.getDouble(5));
+                map.put("string", record.getString(7));
+                new SmileEnvelopeEvent("FuuEvent", Granularity.HOURLY, eventDateTime, map).writeToJsonGenerator(generator);
+                generator.flush();
+            }
+            report(report, "JsonNode", records, System.nanoTime() - startTime);
+
+            startTime = System.nanoTime();
+            for (int j = 0; j < records; j++) {
+                out.reset();
+                codec.writeEnvelope(generator, "FuuEvent", eventDateTime, Granularity.HOURLY, record);
+                generator.flush();
+            }
+            report(report, "codec", records, System.nanoTime() - startTime);
+        }
+    }
+
+    private static void report(final boolean report, final String name, final int records, final long elapsedNanos)
+    {
+        if (report) {
+            System.out.println(String.format("%-10s %8.1f ns/record %10.0f records/s", name, elapsedNanos / (double) records, records / (elapsedNanos / 1e9)));
+        }
+    }
+}
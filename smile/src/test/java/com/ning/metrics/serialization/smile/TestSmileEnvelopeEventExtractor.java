@@ -16,7 +16,10 @@
 package com.ning.metrics.serialization.smile;
 
 import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.Granularity;
 import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+import com.ning.metrics.serialization.schema.Schema;
+import com.ning.metrics.serialization.schema.SchemaFieldType;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -31,6 +34,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -103,6 +108,113 @@ public class TestSmileEnvelopeEventExtractor
         Assert.assertEquals(numExtracted, numEvents);
     }
 
+    @Test
+    public void testJsonProjection() throws IOException
+    {
+        testProjection(true);
+    }
+
+    @Test
+    public void testSmileProjection() throws IOException
+    {
+        testProjection(false);
+    }
+
+    private void testProjection(final boolean plainJson) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final SmileEnvelopeEventSerializer serializer = new SmileEnvelopeEventSerializer(plainJson);
+        serializer.open(out);
+        final int numEvents = 5;
+        for (int i = 0; i < numEvents; i++) {
+            final HashMap<String, Object> map = new HashMap<String, Object>();
+            // Shared (back-referenced) values, in skipped and projected fields
+            map.put("skipped", "shared" + (i % 2));
+            map.put("projected", "shared" + (i % 2));
+            map.put("skippedObject", Collections.singletonMap("nested", i));
+            map.put("number", i);
+            map.put(SmileEnvelopeEvent.SMILE_EVENT_DATETIME_TOKEN_NAME, 1000L * i);
+            serializer.serialize(SmileEnvelopeEvent.fromPOJO("sample", Granularity.HOURLY, new DateTime(1000L * i), map));
+        }
+        serializer.close();
+
+        final Schema schema = new Schema("sample");
+        schema.addSchemaField(SchemaFieldType.createSchemaField("skipped", "STRING", (short) 1));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("projected", "STRING", (short) 2));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("number", "INTEGER", (short) 3));
+
+        final InputStream in = new ByteArrayInputStream(out.toByteArray());
+        final SmileEnvelopeEventDeserializer deserializer = new SmileEnvelopeEventDeserializer(in, plainJson, schema.project(Arrays.asList("projected", "number")));
+
+        int numExtracted = 0;
+        while (deserializer.hasNextEvent()) {
+            final SmileEnvelopeEvent event = deserializer.getNextEvent();
+            Assert.assertEquals(event.getName(), "sample");
+            Assert.assertEquals(event.getEventDateTime().getMillis(), 1000L * numExtracted);
+
+            final JsonNode data = (JsonNode) event.getData();
+            Assert.assertEquals(data.get("projected").textValue(), "shared" + (numExtracted % 2));
+            Assert.assertEquals(data.get("number").intValue(), numExtracted);
+            Assert.assertNull(data.get("skipped"));
+            Assert.assertNull(data.get("skippedObject"));
+            numExtracted++;
+        }
+        Assert.assertEquals(numExtracted, numEvents);
+    }
+
+    @Test
+    public void testJsonReuse() throws IOException
+    {
+        testReuse(true);
+    }
+
+    @Test
+    public void testSmileReuse() throws IOException
+    {
+        testReuse(false);
+    }
+
+    private void testReuse(final boolean plainJson) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final SmileEnvelopeEventSerializer serializer = new SmileEnvelopeEventSerializer(plainJson);
+        serializer.open(out);
+        final int numEvents = 5;
+        for (int i = 0; i < numEvents; i++) {
+            final HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put("firstName", "joe-" + i);
+            if (i % 2 == 0) {
+                map.put("evenOnly", i);
+            }
+            serializer.serialize(new SmileEnvelopeEvent("sample-" + i, new DateTime(i * 1000L), map));
+        }
+        serializer.close();
+
+        final InputStream in = new ByteArrayInputStream(out.toByteArray());
+        final SmileEnvelopeEventDeserializer deserializer = new SmileEnvelopeEventDeserializer(in, plainJson);
+
+        final SmileEnvelopeEvent reused = deserializer.getNextEvent();
+        final JsonNode payload = (JsonNode) reused.getData();
+        Assert.assertEquals(payload.get("firstName").textValue(), "joe-0");
+        final byte[] firstSerializedEvent = reused.getSerializedEvent();
+
+        int numExtracted = 1;
+        while (deserializer.hasNextEvent()) {
+            Assert.assertSame(deserializer.getNextEvent(reused), reused);
+            Assert.assertSame(reused.getData(), payload);
+
+            Assert.assertEquals(reused.getName(), "sample-" + numExtracted);
+            Assert.assertEquals(reused.getEventDateTime().getMillis(), numExtracted * 1000L);
+            Assert.assertEquals(payload.get("firstName").textValue(), "joe-" + numExtracted);
+            Assert.assertEquals(payload.has("evenOnly"), numExtracted % 2 == 0);
+            Assert.assertFalse(Arrays.equals(reused.getSerializedEvent(), firstSerializedEvent));
+            numExtracted++;
+        }
+        Assert.assertEquals(numExtracted, numEvents);
+    }
+
     private void testExtractAll(final boolean plainJson) throws IOException
     {
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
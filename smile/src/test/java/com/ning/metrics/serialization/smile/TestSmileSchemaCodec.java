@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.smile;
+
+import com.ning.metrics.serialization.event.Granularity;
+import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+import com.ning.metrics.serialization.schema.CompiledSchema;
+import com.ning.metrics.serialization.schema.Schema;
+import com.ning.metrics.serialization.schema.SchemaFieldType;
+import com.ning.metrics.serialization.schema.SchemaRecord;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.joda.time.DateTime;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestSmileSchemaCodec
+{
+    private static final DateTime EVENT_DATE_TIME = new DateTime("2012-01-31T17:00:00.000Z");
+
+    @Test(groups = "fast")
+    public void testReadableBySmileEnvelopeEventDeserializer() throws Exception
+    {
+        final SmileSchemaCodec codec = SmileSchemaCodec.forSchema(createSchema().compile());
+        Assert.assertSame(SmileSchemaCodec.forSchema(createSchema().compile()), codec);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonGenerator generator = SmileEnvelopeEventSerializer.smileFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        generator.writeStartArray();
+        codec.writeEnvelope(generator, "FuuEvent", EVENT_DATE_TIME, Granularity.DAILY, createRecord(codec.getSchema()));
+        generator.writeEndArray();
+        generator.close();
+
+        final List<SmileEnvelopeEvent> events = SmileEnvelopeEventDeserializer.extractEvents(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(events.size(), 1);
+        Assert.assertEquals(events.get(0).getName(), "FuuEvent");
+        Assert.assertEquals(events.get(0).getEventDateTime().getMillis(), EVENT_DATE_TIME.getMillis());
+        Assert.assertEquals(events.get(0).getGranularity(), Granularity.DAILY);
+
+        final JsonNode payload = (JsonNode) events.get(0).getData();
+        Assert.assertEquals(payload.get("bool").booleanValue(), true);
+        Assert.assertEquals(payload.get("int").intValue(), 4);
+        Assert.assertEquals(payload.get("date").longValue(), 5L);
+        Assert.assertEquals(payload.get("double").doubleValue(), 6.5);
+        Assert.assertNull(payload.get("missing"));
+        Assert.assertEquals(payload.get("string").textValue(), "eight");
+    }
+
+    @Test(groups = "fast")
+    public void testReadSmileEnvelopeEvent() throws Exception
+    {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        map.put("bool", true);
+        map.put("byte", 2);
+        map.put("short", 3);
+        map.put("int", 4);
+        map.put("date", 5L);
+        map.put("double", 6.5);
+        map.put("string", "eight");
+        // Not in the schema
+        map.put("other", "nine");
+        // Wrong type
+        map.put("missing", 7);
+        final SmileEnvelopeEvent event = new SmileEnvelopeEvent("FuuEvent", EVENT_DATE_TIME, map);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonGenerator generator = SmileEnvelopeEventSerializer.smileFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        event.writeToJsonGenerator(generator);
+        generator.close();
+
+        final SmileSchemaCodec codec = SmileSchemaCodec.forSchema(createSchema().compile());
+        final SchemaRecord record = new SchemaRecord(codec.getSchema());
+        final JsonParser parser = SmileEnvelopeEventDeserializer.smileFactory.createJsonParser(out.toByteArray());
+        Assert.assertEquals(codec.readEnvelope(parser, record), "FuuEvent");
+        Assert.assertEquals(record.toString(), createRecord(codec.getSchema()).toString());
+    }
+
+    @Test(groups = "fast")
+    public void testJsonRoundTrip() throws Exception
+    {
+        final SmileSchemaCodec codec = SmileSchemaCodec.forSchema(createSchema().compile());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonGenerator generator = SmileEnvelopeEventSerializer.jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        codec.write(generator, createRecord(codec.getSchema()));
+        generator.close();
+        Assert.assertEquals(out.toString("UTF-8"), "{\"bool\":true,\"byte\":2,\"short\":3,\"int\":4,\"date\":5,\"double\":6.5,\"string\":\"eight\"}");
+
+        final SchemaRecord record = new SchemaRecord(codec.getSchema());
+        codec.read(SmileEnvelopeEventDeserializer.jsonFactory.createJsonParser(out.toByteArray()), record);
+        Assert.assertEquals(record.toString(), createRecord(codec.getSchema()).toString());
+    }
+
+    static Schema createSchema()
+    {
+        final Schema schema = new Schema("FuuEvent");
+        schema.addSchemaField(SchemaFieldType.createSchemaField("bool", "BOOLEAN", (short) 1));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("byte", "BYTE", (short) 2));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("short", "SHORT", (short) 3));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("int", "INTEGER", (short) 4));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("date", "DATE", (short) 5));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("double", "DOUBLE", (short) 6));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("missing", "STRING", (short) 7));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("string", "STRING", (short) 8));
+        return schema;
+    }
+
+    static SchemaRecord createRecord(final CompiledSchema schema)
+    {
+        final SchemaRecord record = new SchemaRecord(schema);
+        record.setBoolean(0, true);
+        record.setByte(1, (byte) 2);
+        record.setShort(2, (short) 3);
+        record.setInt(3, 4);
+        record.setLong(4, 5L);
+        record.setDouble(5, 6.5);
+        record.setString(7, "eight");
+        return record;
+    }
+}
@@ -23,21 +23,36 @@ import org.joda.time.DateTime;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
-public class ThriftEnvelopeEvent implements Event
+public class ThriftEnvelopeEvent implements StreamableEvent
 {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final Granularity[] GRANULARITIES = Granularity.values();
+    private static final byte[][] GRANULARITY_NAMES = new byte[GRANULARITIES.length][];
+
+    static {
+        for (int i = 0; i < GRANULARITIES.length; i++) {
+            GRANULARITY_NAMES[i] = GRANULARITIES[i].name().getBytes(CHARSET);
+        }
+    }
+
     private DateTime eventDateTime;
     private ThriftEnvelope thriftEnvelope;
     private Granularity granularity;
     private transient byte[] serializedBytes;
-    private final transient ThriftEnvelopeSerializer serializer = new ThriftEnvelopeSerializer();
-    private final transient ThriftEnvelopeDeserializer deserializer;
+    // Allocated lazily, most events are either only serialized or only deserialized
+    private transient ThriftEnvelopeSerializer serializer;
+    private transient ThriftEnvelopeDeserializer deserializer;
+    // Scratch buffer for the event date time and granularity
+    private transient byte[] header;
 
     /**
      * Public no-arg constructor, for deserialization
@@ -57,8 +72,6 @@ public class ThriftEnvelopeEvent implements Event
         this.eventDateTime = eventDateTime;
         this.thriftEnvelope = thriftEnvelope;
         this.granularity = granularity;
-
-        deserializer = new ThriftEnvelopeDeserializer();
     }
 
     /**
@@ -72,7 +85,21 @@ public class ThriftEnvelopeEvent implements Event
     public ThriftEnvelopeEvent(final InputStream in, final ThriftEnvelopeDeserializer deserializer) throws IOException
     {
         this.deserializer = deserializer;
-        deserializeFromStream(in);
+        deserializeFromStream(in, deserializer, null);
+    }
+
+    /**
+     * Reset this event in place with the next event from the specified stream (see ReusingEventDeserializer#getNextEvent(Event)).
+     * The envelope of this event is reused as well.
+     * This expects the stream to be open and won't close it. The specified deserializer should take care of this.
+     *
+     * @param in           inputstream to read
+     * @param deserializer deserializer responsible to open/close the stream
+     * @throws IOException generic I/O Exception
+     */
+    public void deserializeFromStream(final InputStream in, final ThriftEnvelopeDeserializer deserializer) throws IOException
+    {
+        deserializeFromStream(in, deserializer, thriftEnvelope);
     }
 
     @Override
@@ -102,9 +129,19 @@ public class ThriftEnvelopeEvent implements Event
     @Override
     public String getOutputDir(final String prefix)
     {
-        final GranularityPathMapper pathMapper = new GranularityPathMapper(String.format("%s/%s", prefix, thriftEnvelope.getTypeName()), granularity);
+        return appendOutputDir(new StringBuilder(64), prefix).toString();
+    }
 
-        return pathMapper.getPathForDateTime(getEventDateTime());
+    /**
+     * Same as getOutputDir, but append the path to a (reusable) buffer
+     *
+     * @param builder buffer to append to
+     * @param prefix  root path
+     * @return builder
+     */
+    public StringBuilder appendOutputDir(final StringBuilder builder, final String prefix)
+    {
+        return builder.append(prefix).append('/').append(thriftEnvelope.getTypeName()).append('/').append(granularity.getCachedRelativePathFor(getEventDateTime()));
     }
 
     @Override
@@ -125,6 +162,47 @@ public class ThriftEnvelopeEvent implements Event
         }
     }
 
+    @Override
+    public int serializedSize()
+    {
+        final byte[] bytes = getSerializedEvent();
+        return bytes == null ? -1 : bytes.length;
+    }
+
+    /**
+     * @return true if the serialized form of the event is cached, in which case writeTo(OutputStream) writes it as-is
+     *         and cannot fail half-way because of the event
+     */
+    public boolean isSerialized()
+    {
+        return serializedBytes != null;
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException
+    {
+        if (serializedBytes != null) {
+            out.write(serializedBytes);
+        }
+        else {
+            // Nothing cached: serialize straight into the destination, instead of going through a byte array
+            serializeTo(out);
+        }
+    }
+
+    @Override
+    public void writeTo(final ByteBuffer buffer) throws IOException
+    {
+        buffer.put(getSerializedBuffer());
+    }
+
+    @Override
+    public ByteBuffer getSerializedBuffer() throws IOException
+    {
+        toBytes();
+        return ByteBuffer.wrap(serializedBytes).asReadOnlyBuffer();
+    }
+
     @Override
     public void readExternal(final ObjectInput in) throws IOException, ClassNotFoundException
     {
@@ -134,8 +212,11 @@ public class ThriftEnvelopeEvent implements Event
 
         final ByteArrayInputStream inputBuffer = new ByteArrayInputStream(fullPayload, 0, fullPayload.length);
 
+        if (deserializer == null) {
+            deserializer = new ThriftEnvelopeDeserializer();
+        }
         deserializer.open(inputBuffer);
-        deserializeFromStream(inputBuffer);
+        deserializeFromStream(inputBuffer, deserializer, null);
         deserializer.close();
     }
 
@@ -144,49 +225,118 @@ public class ThriftEnvelopeEvent implements Event
      * the ThriftEnvelopeEvent.
      * This method expects the stream to be open and won't close it for you.
      *
-     * @param in InputStream to read
+     * @param in           InputStream to read
+     * @param deserializer deserializer for the envelope
+     * @param reuse        envelope to fill in place, null to create a new one
      * @throws IOException generic I/O Exception
      */
-    private void deserializeFromStream(final InputStream in) throws IOException
+    private void deserializeFromStream(final InputStream in, final ThriftEnvelopeDeserializer deserializer, final ThriftEnvelope reuse) throws IOException
     {
-        final byte[] dateTimeBytes = new byte[8];
-        in.read(dateTimeBytes, 0, 8);
-        eventDateTime = new DateTime(ByteBuffer.wrap(dateTimeBytes).getLong(0));
+        if (header == null) {
+            header = new byte[16];
+        }
 
-        final byte[] sizeGranularityInBytes = new byte[4];
-        in.read(sizeGranularityInBytes, 0, 4);
-        final byte[] granularityBytes = new byte[ByteBuffer.wrap(sizeGranularityInBytes).getInt(0)];
-        in.read(granularityBytes, 0, granularityBytes.length);
-        granularity = Granularity.valueOf(new String(granularityBytes, Charset.forName("UTF-8")));
+        readFully(in, header, 8 + 4);
+        final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        final long millis = headerBuffer.getLong(0);
+        final int granularityLength = headerBuffer.getInt(8);
 
-        thriftEnvelope = deserializer.deserialize(null);
+        if (granularityLength > header.length) {
+            header = new byte[granularityLength];
+        }
+        readFully(in, header, granularityLength);
+
+        eventDateTime = new DateTime(millis);
+        granularity = toGranularity(header, granularityLength);
+        thriftEnvelope = deserializer.deserialize(reuse);
+        serializedBytes = null;
+    }
+
+    private static void readFully(final InputStream in, final byte[] buffer, final int length) throws IOException
+    {
+        int offset = 0;
+        while (offset < length) {
+            final int read = in.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Truncated event header");
+            }
+            offset += read;
+        }
+    }
+
+    // Same as Granularity.valueOf(new String(bytes, UTF-8)), without the String
+    private static Granularity toGranularity(final byte[] bytes, final int length)
+    {
+        for (int i = 0; i < GRANULARITY_NAMES.length; i++) {
+            final byte[] name = GRANULARITY_NAMES[i];
+            if (name.length != length) {
+                continue;
+            }
+
+            int j = 0;
+            while (j < length && name[j] == bytes[j]) {
+                j++;
+            }
+            if (j == length) {
+                return GRANULARITIES[i];
+            }
+        }
+
+        return Granularity.valueOf(new String(bytes, 0, length, CHARSET));
     }
 
     @Override
     public void writeExternal(final ObjectOutput out) throws IOException
     {
-        toBytes();
-        out.writeInt(serializedBytes.length);
-        out.write(serializedBytes);
+        if (serializedBytes != null) {
+            out.writeInt(serializedBytes.length);
+            out.write(serializedBytes);
+            return;
+        }
+
+        // The length comes first, so the event has to be buffered, but there is no need to copy it into an array
+        final ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
+        serializeTo(outputBuffer);
+        out.writeInt(outputBuffer.size());
+        if (out instanceof OutputStream) {
+            outputBuffer.writeTo((OutputStream) out);
+        }
+        else {
+            out.write(outputBuffer.toByteArray());
+        }
     }
 
     private void toBytes() throws IOException
     {
         if (serializedBytes == null) {
             final ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
+            serializeTo(outputBuffer);
+            serializedBytes = outputBuffer.toByteArray();
+        }
+    }
 
-            outputBuffer.write(ByteBuffer.allocate(8).putLong(eventDateTime.getMillis()).array());
-
-            final byte[] granularityBytes = granularity.name().getBytes(Charset.forName("UTF-8"));
-            outputBuffer.write(ByteBuffer.allocate(4).putInt(granularityBytes.length).array());
-            outputBuffer.write(ByteBuffer.allocate(granularityBytes.length).put(granularityBytes).array());
-
-            serializer.open(outputBuffer);
-            serializer.serialize(thriftEnvelope);
-            serializer.close();
+    /**
+     * Write the eventDateTime, granularity and thriftEnvelope to the specified stream.
+     * This won't close the stream.
+     *
+     * @param out OutputStream to write to
+     * @throws IOException generic I/O Exception
+     */
+    private void serializeTo(final OutputStream out) throws IOException
+    {
+        final byte[] granularityBytes = granularity.name().getBytes(CHARSET);
+        out.write(ByteBuffer.allocate(8 + 4 + granularityBytes.length)
+            .putLong(eventDateTime.getMillis())
+            .putInt(granularityBytes.length)
+            .put(granularityBytes)
+            .array());
 
-            serializedBytes = outputBuffer.toByteArray();
+        // The serializer doesn't buffer anything, no need to close it
+        if (serializer == null) {
+            serializer = new ThriftEnvelopeSerializer();
         }
+        serializer.open(out);
+        serializer.serialize(thriftEnvelope);
     }
 
     @Override
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.event;
+
+import com.ning.metrics.serialization.thrift.ThriftEnvelope;
+import com.ning.metrics.serialization.thrift.ThriftField;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the sample rate of ThriftEnvelopeEvents as an extra double field of their payload. Other events are left
+ * untouched. The field id must not be used by the event schemas.
+ */
+public class ThriftSampleRateRecorder implements SampleRateRecorder
+{
+    private final short fieldId;
+
+    /**
+     * @param fieldId id of the payload field holding the sample rate
+     */
+    public ThriftSampleRateRecorder(final short fieldId)
+    {
+        this.fieldId = fieldId;
+    }
+
+    @Override
+    public Event record(final Event event, final double sampleRate)
+    {
+        if (!(event instanceof ThriftEnvelopeEvent)) {
+            return event;
+        }
+
+        final ThriftEnvelope envelope = (ThriftEnvelope) event.getData();
+        final List<ThriftField> payload = new ArrayList<ThriftField>(envelope.getPayload().size() + 1);
+        payload.addAll(envelope.getPayload());
+        payload.add(ThriftField.createThriftField(sampleRate, fieldId));
+        return new ThriftEnvelopeEvent(event.getEventDateTime(), new ThriftEnvelope(envelope.getTypeName(), envelope.getName(), payload), event.getGranularity());
+    }
+}
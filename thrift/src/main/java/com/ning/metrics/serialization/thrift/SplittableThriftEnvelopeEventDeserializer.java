@@ -0,0 +1,342 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.thrift;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.ReusingEventDeserializer;
+import com.ning.metrics.serialization.event.SplittableEventDeserializer;
+import com.ning.metrics.serialization.event.ThriftEnvelopeEvent;
+import org.apache.thrift.protocol.TType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * ThriftEnvelopeEventDeserializer over a file (or an in-memory buffer), which can be split at event boundaries to
+ * decode a large file in parallel (see Events#split).
+ * <p/>
+ * Offsets are longs, so a single deserializer can cover files larger than 2GB: the file is memory-mapped lazily, one
+ * window at a time, as the part is read. Each part maps its own windows.
+ * <p/>
+ * Events are framed by a '\n' separator only, and the separator can appear inside an event, so boundaries are found
+ * by skipping over events from the start of the part: only the envelope headers are read, the payloads are not
+ * decoded.
+ */
+public class SplittableThriftEnvelopeEventDeserializer implements SplittableEventDeserializer, ReusingEventDeserializer
+{
+    // Don't bother splitting parts smaller than that
+    private static final int DEFAULT_MIN_SPLIT_SIZE = 1024 * 1024;
+    // Size of the regions of the file mapped at a time
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final Window window;
+    private final long end;
+    private final int minSplitSize;
+    private final ThriftEnvelopeDeserializer deserializer = new ThriftEnvelopeDeserializer();
+    private final InputStream in;
+    private long position;
+
+    // We cannot successfully parse any events after failing once
+    private boolean hasFailed = false;
+
+    /**
+     * @param buffer serialized events, as written by ThriftEnvelopeEventSerializer, between its position and its
+     *               limit. The buffer itself is not modified.
+     * @throws IOException generic I/O Exception
+     */
+    public SplittableThriftEnvelopeEventDeserializer(final ByteBuffer buffer) throws IOException
+    {
+        this(buffer, DEFAULT_MIN_SPLIT_SIZE);
+    }
+
+    public SplittableThriftEnvelopeEventDeserializer(final ByteBuffer buffer, final int minSplitSize) throws IOException
+    {
+        this(new Window(buffer.slice()), 0, buffer.remaining(), minSplitSize);
+    }
+
+    /**
+     * @param channel file of serialized events, as written by ThriftEnvelopeEventSerializer. The channel is not
+     *                closed by the deserializer.
+     * @param start   offset of the first event
+     * @param end     offset right after the last event, typically the size of the file
+     * @throws IOException generic I/O Exception
+     */
+    public SplittableThriftEnvelopeEventDeserializer(final FileChannel channel, final long start, final long end) throws IOException
+    {
+        this(channel, start, end, DEFAULT_MIN_SPLIT_SIZE, DEFAULT_WINDOW_SIZE);
+    }
+
+    public SplittableThriftEnvelopeEventDeserializer(final FileChannel channel, final long start, final long end, final int minSplitSize, final int windowSize) throws IOException
+    {
+        this(new Window(channel, windowSize), start, end, minSplitSize);
+    }
+
+    private SplittableThriftEnvelopeEventDeserializer(final Window window, final long start, final long end, final int minSplitSize) throws IOException
+    {
+        this.window = window;
+        this.position = start;
+        this.end = end;
+        this.minSplitSize = minSplitSize;
+        this.in = new WindowInputStream();
+        deserializer.open(in);
+    }
+
+    @Override
+    public boolean hasNextEvent()
+    {
+        if (hasFailed || position >= end) {
+            return false;
+        }
+
+        try {
+            return window.get(position, end) == '\n';
+        }
+        catch (IOException e) {
+            hasFailed = true;
+            return false;
+        }
+    }
+
+    @Override
+    public ThriftEnvelopeEvent getNextEvent() throws IOException
+    {
+        return getNextEvent(null);
+    }
+
+    @Override
+    public ThriftEnvelopeEvent getNextEvent(final Event reuse) throws IOException
+    {
+        if (!hasNextEvent()) {
+            throw new IOException("Couldn't find any more events in the stream");
+        }
+
+        position++;
+        if (reuse instanceof ThriftEnvelopeEvent) {
+            final ThriftEnvelopeEvent event = (ThriftEnvelopeEvent) reuse;
+            event.deserializeFromStream(in, deserializer);
+            return event;
+        }
+        return new ThriftEnvelopeEvent(in, deserializer);
+    }
+
+    @Override
+    public SplittableThriftEnvelopeEventDeserializer trySplit()
+    {
+        final long start = position;
+        final long remaining = end - start;
+        if (hasFailed || remaining < 2L * minSplitSize) {
+            return null;
+        }
+
+        final long boundary;
+        try {
+            boundary = findEventBoundary(start + remaining / 2);
+        }
+        catch (IOException e) {
+            // Corrupted stream, let the sequential read report it
+            return null;
+        }
+        if (boundary >= end) {
+            return null;
+        }
+
+        try {
+            final SplittableThriftEnvelopeEventDeserializer prefix = new SplittableThriftEnvelopeEventDeserializer(window.copy(), start, boundary, minSplitSize);
+            position = boundary;
+            return prefix;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return number of bytes left to decode
+     */
+    @Override
+    public long estimateSize()
+    {
+        return end - position;
+    }
+
+    /**
+     * Find the start of the first event at or after the specified offset
+     *
+     * @param target offset in the file
+     * @return offset of the event separator, or the end of the part if there is no event after target
+     * @throws IOException if the stream is corrupted
+     */
+    private long findEventBoundary(final long target) throws IOException
+    {
+        long offset = position;
+        while (offset < target) {
+            offset = skipEvent(offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Skip an event, see ThriftEnvelopeEvent#serializeTo and ThriftEnvelopeSerializer for the format
+     *
+     * @param start offset of the event separator
+     * @return offset of the next event separator
+     * @throws IOException if the stream is corrupted
+     */
+    private long skipEvent(final long start) throws IOException
+    {
+        if (window.get(start, end) != '\n') {
+            throw new IOException("Missing event separator at offset " + start);
+        }
+
+        // Separator, event date time
+        long offset = start + 1 + 8;
+        // Granularity
+        offset = skipBytes(offset);
+
+        // Envelope: a struct with string fields only (type name, name and payload)
+        byte type = window.get(offset, end);
+        while (type != TType.STOP) {
+            if (type != TType.STRING) {
+                throw new IOException(String.format("Unexpected field type %d in envelope at offset %d", type, offset));
+            }
+            // Type, id
+            offset = skipBytes(offset + 1 + 2);
+            type = window.get(offset, end);
+        }
+
+        return offset + 1;
+    }
+
+    /**
+     * @param offset offset of a length-prefixed byte array
+     * @return offset right after the array
+     * @throws IOException if the length is invalid
+     */
+    private long skipBytes(final long offset) throws IOException
+    {
+        // Big endian, the int may straddle two windows
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            length = (length << 8) | (window.get(offset + i, end) & 0xff);
+        }
+        if (length < 0) {
+            throw new IOException(String.format("Invalid length %d at offset %d", length, offset));
+        }
+        return offset + 4 + length;
+    }
+
+    /**
+     * Mapped region of the file around the offsets being read. For an in-memory buffer, the whole buffer is the window.
+     * Not thread-safe: each part has its own.
+     */
+    private static final class Window
+    {
+        private final FileChannel channel;
+        private final int windowSize;
+        private ByteBuffer buffer;
+        private long bufferStart = 0;
+
+        private Window(final ByteBuffer buffer)
+        {
+            this.channel = null;
+            this.windowSize = buffer.remaining();
+            this.buffer = buffer;
+        }
+
+        private Window(final FileChannel channel, final int windowSize)
+        {
+            this.channel = channel;
+            this.windowSize = windowSize;
+        }
+
+        private Window copy()
+        {
+            return channel == null ? new Window(buffer.duplicate()) : new Window(channel, windowSize);
+        }
+
+        private byte get(final long offset, final long end) throws IOException
+        {
+            moveTo(offset, end);
+            return buffer.get((int) (offset - bufferStart));
+        }
+
+        /**
+         * Read bytes up to the end of the current window
+         *
+         * @return number of bytes read, at least 1
+         */
+        private int read(final long offset, final long end, final byte[] b, final int off, final int len) throws IOException
+        {
+            moveTo(offset, end);
+            buffer.position((int) (offset - bufferStart));
+            final int length = Math.min(len, buffer.remaining());
+            buffer.get(b, off, length);
+            return length;
+        }
+
+        private void moveTo(final long offset, final long end) throws IOException
+        {
+            if (offset >= end) {
+                throw new IOException("Truncated event at offset " + offset);
+            }
+            if (buffer != null && offset >= bufferStart && offset < bufferStart + buffer.limit()) {
+                return;
+            }
+            if (channel == null) {
+                throw new IOException("Truncated event at offset " + offset);
+            }
+
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(windowSize, end - offset));
+            bufferStart = offset;
+        }
+    }
+
+    private final class WindowInputStream extends InputStream
+    {
+        @Override
+        public int read() throws IOException
+        {
+            if (position >= end) {
+                return -1;
+            }
+            return window.get(position++, end) & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+
+            final int length = window.read(position, end, b, off, (int) Math.min(len, end - position));
+            position += length;
+            return length;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
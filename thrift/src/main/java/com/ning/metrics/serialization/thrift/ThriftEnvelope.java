@@ -96,6 +96,13 @@ public class ThriftEnvelope
         this.payload.addAll(thriftEnvelope.payload);
     }
 
+    // used by ThriftEnvelopeDeserializer to fill an envelope in place
+    void setNames(final String typeName, final String name)
+    {
+        this.typeName = typeName;
+        this.name = name;
+    }
+
     public List<ThriftField> getPayload()
     {
         return payload;
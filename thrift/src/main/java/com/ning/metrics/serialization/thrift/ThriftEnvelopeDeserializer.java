@@ -16,6 +16,7 @@
 
 package com.ning.metrics.serialization.thrift;
 
+import com.ning.metrics.serialization.schema.SchemaProjection;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TField;
@@ -25,24 +26,45 @@ import org.apache.thrift.transport.TIOStreamTransport;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.List;
 
 public class ThriftEnvelopeDeserializer
 {
     private TProtocol protocol;
-    private final ThriftFieldListDeserializer payloadDeserializer = new ThriftFieldListDeserializer();
+    private final ThriftFieldListDeserializer payloadDeserializer;
+
+    public ThriftEnvelopeDeserializer()
+    {
+        this(null);
+    }
+
+    /**
+     * @param projection payload fields to decode, null for all (see ThriftFieldListDeserializer)
+     */
+    public ThriftEnvelopeDeserializer(final SchemaProjection projection)
+    {
+        payloadDeserializer = new ThriftFieldListDeserializer(projection);
+    }
 
     public void open(final InputStream in) throws IOException
     {
         protocol = new TBinaryProtocol(new TIOStreamTransport(in));
     }
 
+    /**
+     * Read the next envelope from the stream
+     *
+     * @param thriftEnvelope envelope to reset in place (e.g. for hadoop, which reuses objects), null to create a new one
+     * @return the envelope read, thriftEnvelope itself if not null
+     * @throws IOException generic I/O exception
+     */
     public ThriftEnvelope deserialize(final ThriftEnvelope thriftEnvelope) throws IOException
     {
         String typeName = null;
         String name = null;
-        final List<ThriftField> thriftFieldList = new ArrayList<ThriftField>();
+        final ThriftEnvelope nextThriftEnvelope = thriftEnvelope == null ? new ThriftEnvelope(null) : thriftEnvelope;
+        final List<ThriftField> thriftFieldList = nextThriftEnvelope.getPayload();
+        thriftFieldList.clear();
 
         try {
             protocol.readStructBegin();
@@ -54,7 +76,7 @@ public class ThriftEnvelopeDeserializer
                         typeName = protocol.readString();
                         break;
                     case ThriftEnvelopeSerialization.PAYLOAD_ID:
-                        thriftFieldList.addAll(payloadDeserializer.readPayload(protocol.readBinary().array()));
+                        payloadDeserializer.readPayload(protocol.readBinary().array(), thriftFieldList);
                         break;
                     case ThriftEnvelopeSerialization.NAME_ID:
                         name = protocol.readString();
@@ -80,11 +102,7 @@ public class ThriftEnvelopeDeserializer
             name = typeName;
         }
 
-        final ThriftEnvelope nextThriftEnvelope = new ThriftEnvelope(typeName, name, thriftFieldList);
-
-        if (thriftEnvelope != null) {
-            thriftEnvelope.replaceWith(nextThriftEnvelope);
-        }
+        nextThriftEnvelope.setNames(typeName, name);
 
         return nextThriftEnvelope;
     }
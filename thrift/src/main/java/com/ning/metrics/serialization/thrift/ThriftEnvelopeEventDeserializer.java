@@ -15,14 +15,15 @@
  */
 package com.ning.metrics.serialization.thrift;
 
-import com.ning.metrics.serialization.event.EventDeserializer;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.ReusingEventDeserializer;
 import com.ning.metrics.serialization.event.ThriftEnvelopeEvent;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
 
-public class ThriftEnvelopeEventDeserializer implements EventDeserializer
+public class ThriftEnvelopeEventDeserializer implements ReusingEventDeserializer
 {
     private final ThriftEnvelopeDeserializer deserializer = new ThriftEnvelopeDeserializer();
     private final PushbackInputStream in;
@@ -60,9 +61,19 @@ public class ThriftEnvelopeEventDeserializer implements EventDeserializer
     }
 
     public ThriftEnvelopeEvent getNextEvent() throws IOException
+    {
+        return getNextEvent(null);
+    }
+
+    public ThriftEnvelopeEvent getNextEvent(final Event reuse) throws IOException
     {
         try {
             if (hasNextEvent() && (byte) in.read() == '\n') {
+                if (reuse instanceof ThriftEnvelopeEvent) {
+                    final ThriftEnvelopeEvent event = (ThriftEnvelopeEvent) reuse;
+                    event.deserializeFromStream(in, deserializer);
+                    return event;
+                }
                 return new ThriftEnvelopeEvent(in, deserializer);
             }
             else {
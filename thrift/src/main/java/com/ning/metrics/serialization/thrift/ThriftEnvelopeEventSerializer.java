@@ -19,12 +19,19 @@ import com.ning.metrics.serialization.event.Event;
 import com.ning.metrics.serialization.event.EventSerializer;
 import com.ning.metrics.serialization.event.ThriftEnvelopeEvent;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
 
-public class ThriftEnvelopeEventSerializer implements EventSerializer
+public class ThriftEnvelopeEventSerializer implements EventSerializer, Flushable
 {
+    // Don't hold on to the scratch buffer of an unusually large event
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 1024 * 1024;
+
     OutputStream out;
+    // Reused across events, see serialize
+    private ByteArrayOutputStream scratch = new ByteArrayOutputStream();
 
     @Override
     public void open(final OutputStream out) throws IOException
@@ -39,8 +46,27 @@ public class ThriftEnvelopeEventSerializer implements EventSerializer
             throw new IllegalArgumentException("ThriftEnvelopeEventSerializer can only serialize ThriftEnvelopeEvents");
         }
 
+        final ThriftEnvelopeEvent thriftEvent = (ThriftEnvelopeEvent) event;
+        if (thriftEvent.isSerialized()) {
+            out.write('\n');
+            thriftEvent.writeTo(out);
+            return;
+        }
+
+        // Serialize into the scratch buffer first, so that a failure doesn't leave a partial record in the stream
+        scratch.reset();
+        thriftEvent.writeTo(scratch);
         out.write('\n');
-        out.write(event.getSerializedEvent());
+        scratch.writeTo(out);
+        if (scratch.size() > MAX_RETAINED_SCRATCH_SIZE) {
+            scratch = new ByteArrayOutputStream();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
     }
 
     @Override
@@ -16,29 +16,59 @@
 
 package com.ning.metrics.serialization.thrift;
 
+import com.ning.metrics.serialization.schema.SchemaProjection;
 import com.ning.metrics.serialization.thrift.item.DataItem;
 import com.ning.metrics.serialization.thrift.item.DataItemDeserializer;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TField;
 import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
 import org.apache.thrift.protocol.TType;
-import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
 
-import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 public class ThriftFieldListDeserializer
 {
     private final DataItemDeserializer dataItemDeserializer = new DataItemDeserializer();
+    private final SchemaProjection projection;
+
+    public ThriftFieldListDeserializer()
+    {
+        this(null);
+    }
+
+    /**
+     * Fields outside of the projection are skipped without being decoded. They are still part of the returned list,
+     * as fields without data, so that positions are preserved.
+     *
+     * @param projection fields to decode, null for all
+     */
+    public ThriftFieldListDeserializer(final SchemaProjection projection)
+    {
+        this.projection = projection;
+    }
 
     public List<ThriftField> readPayload(final byte[] payload) throws TException
     {
         final List<ThriftField> thriftFieldList = new ArrayList<ThriftField>();
+        readPayload(payload, thriftFieldList);
+        return thriftFieldList;
+    }
 
-        final ByteArrayInputStream payloadInputStream = new ByteArrayInputStream(payload);
-        final TProtocol payloadProtocol = new TBinaryProtocol(new TIOStreamTransport(payloadInputStream));
+    /**
+     * Same as above, but append the fields to an existing (reusable) list
+     *
+     * @param payload         serialized payload
+     * @param thriftFieldList list to append the fields to
+     * @throws TException if the payload is invalid
+     */
+    public void readPayload(final byte[] payload, final List<ThriftField> thriftFieldList) throws TException
+    {
+        // TMemoryInputTransport lets TBinaryProtocol read (and skip) strings from the array directly
+        final TProtocol payloadProtocol = new TBinaryProtocol(new TMemoryInputTransport(payload));
         payloadProtocol.readStructBegin();
 
         TField payloadField = payloadProtocol.readFieldBegin();
@@ -51,8 +81,14 @@ public class ThriftFieldListDeserializer
                 thriftFieldList.add(new ThriftFieldImpl(null, expectedFieldNb));
             }
             else {
-                final DataItem dataItem = dataItemDeserializer.fromThrift(payloadProtocol, payloadField);
-                thriftFieldList.add(new ThriftFieldImpl(dataItem, payloadField));
+                if (projection == null || projection.containsId(payloadField.id)) {
+                    final DataItem dataItem = dataItemDeserializer.fromThrift(payloadProtocol, payloadField);
+                    thriftFieldList.add(new ThriftFieldImpl(dataItem, payloadField));
+                }
+                else {
+                    TProtocolUtil.skip(payloadProtocol, payloadField.type);
+                    thriftFieldList.add(new ThriftFieldImpl(null, payloadField.id));
+                }
                 payloadProtocol.readFieldEnd();
                 payloadField = payloadProtocol.readFieldBegin();
             }
@@ -61,7 +97,5 @@ public class ThriftFieldListDeserializer
 
         payloadProtocol.readStructEnd();
         payloadProtocol.getTransport().close();
-
-        return thriftFieldList;
     }
 }
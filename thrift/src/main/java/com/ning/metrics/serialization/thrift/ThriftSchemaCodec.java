@@ -0,0 +1,279 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.thrift;
+
+import com.ning.metrics.serialization.schema.CompiledSchema;
+import com.ning.metrics.serialization.schema.SchemaField;
+import com.ning.metrics.serialization.schema.SchemaRecord;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Schema-specific encoder and decoder for the Thrift field list format (see ThriftFieldListSerializer and
+ * ThriftFieldListDeserializer), reading and writing SchemaRecord values directly.
+ * <p/>
+ * The codec is built once per schema: each field gets a pre-built TField and a reader/writer specialized for its
+ * type, so that no ThriftField or DataItem is created, and types are not dispatched on for each value. Codecs are
+ * cached by schema fingerprint and are thread safe.
+ * <p/>
+ * When decoding, fields which are not in the schema, or whose type doesn't match, are skipped.
+ */
+public final class ThriftSchemaCodec
+{
+    private static final TStruct STRUCT = new TStruct("ThriftFieldList");
+    private static final ConcurrentMap<Long, ThriftSchemaCodec> codecs = new ConcurrentHashMap<Long, ThriftSchemaCodec>();
+
+    private final CompiledSchema schema;
+    private final FieldCodec[] fieldCodecs;
+
+    public static ThriftSchemaCodec forSchema(final CompiledSchema schema)
+    {
+        ThriftSchemaCodec codec = codecs.get(schema.getFingerprint());
+        if (codec == null) {
+            codec = new ThriftSchemaCodec(schema);
+            final ThriftSchemaCodec existing = codecs.putIfAbsent(schema.getFingerprint(), codec);
+            if (existing != null) {
+                codec = existing;
+            }
+        }
+        return codec;
+    }
+
+    private ThriftSchemaCodec(final CompiledSchema schema)
+    {
+        this.schema = schema;
+
+        fieldCodecs = new FieldCodec[schema.size()];
+        for (int index = 0; index < fieldCodecs.length; index++) {
+            fieldCodecs[index] = createFieldCodec(schema.getField(index), index);
+        }
+    }
+
+    public CompiledSchema getSchema()
+    {
+        return schema;
+    }
+
+    public byte[] createPayload(final SchemaRecord record) throws TException
+    {
+        final ByteArrayOutputStream payloadOutputStream = new ByteArrayOutputStream();
+        final TProtocol payloadProtocol = new TBinaryProtocol(new TIOStreamTransport(payloadOutputStream));
+
+        write(payloadProtocol, record);
+        payloadProtocol.getTransport().close();
+
+        return payloadOutputStream.toByteArray();
+    }
+
+    /**
+     * Write the set fields of a record, in id order
+     *
+     * @param protocol protocol to write to
+     * @param record   record to write
+     * @throws TException generic serialization exception
+     */
+    public void write(final TProtocol protocol, final SchemaRecord record) throws TException
+    {
+        protocol.writeStructBegin(STRUCT);
+        for (final FieldCodec fieldCodec : fieldCodecs) {
+            if (record.isSet(fieldCodec.index)) {
+                protocol.writeFieldBegin(fieldCodec.field);
+                fieldCodec.write(protocol, record);
+                protocol.writeFieldEnd();
+            }
+        }
+        protocol.writeFieldStop();
+        protocol.writeStructEnd();
+    }
+
+    public void readPayload(final byte[] payload, final SchemaRecord record) throws TException
+    {
+        // TMemoryInputTransport lets TBinaryProtocol read from the array directly
+        final TProtocol payloadProtocol = new TBinaryProtocol(new TMemoryInputTransport(payload));
+        read(payloadProtocol, record);
+        payloadProtocol.getTransport().close();
+    }
+
+    /**
+     * Read a field list into a record. The record is cleared first.
+     *
+     * @param protocol protocol to read from
+     * @param record   record to fill
+     * @throws TException generic deserialization exception
+     */
+    public void read(final TProtocol protocol, final SchemaRecord record) throws TException
+    {
+        record.clear();
+
+        protocol.readStructBegin();
+        TField field = protocol.readFieldBegin();
+        while (field.type != TType.STOP) {
+            final int index = schema.getIndexById(field.id);
+            if (index != -1 && fieldCodecs[index].field.type == field.type) {
+                fieldCodecs[index].read(protocol, record);
+            }
+            else {
+                TProtocolUtil.skip(protocol, field.type);
+            }
+            protocol.readFieldEnd();
+            field = protocol.readFieldBegin();
+        }
+        protocol.readStructEnd();
+    }
+
+    private static FieldCodec createFieldCodec(final SchemaField schemaField, final int index)
+    {
+        final TField field = new TField(schemaField.getName(), schemaField.getType().getThriftType(), schemaField.getId());
+
+        switch (field.type) {
+            case TType.BOOL:
+                return new FieldCodec(field, index)
+                {
+                    @Override
+                    void write(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        protocol.writeBool(record.getBoolean(index));
+                    }
+
+                    @Override
+                    void read(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        record.setBoolean(index, protocol.readBool());
+                    }
+                };
+            case TType.BYTE:
+                return new FieldCodec(field, index)
+                {
+                    @Override
+                    void write(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        protocol.writeByte(record.getByte(index));
+                    }
+
+                    @Override
+                    void read(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        record.setByte(index, protocol.readByte());
+                    }
+                };
+            case TType.I16:
+                return new FieldCodec(field, index)
+                {
+                    @Override
+                    void write(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        protocol.writeI16(record.getShort(index));
+                    }
+
+                    @Override
+                    void read(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        record.setShort(index, protocol.readI16());
+                    }
+                };
+            case TType.I32:
+                return new FieldCodec(field, index)
+                {
+                    @Override
+                    void write(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        protocol.writeI32(record.getInt(index));
+                    }
+
+                    @Override
+                    void read(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        record.setInt(index, protocol.readI32());
+                    }
+                };
+            case TType.I64:
+                return new FieldCodec(field, index)
+                {
+                    @Override
+                    void write(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        protocol.writeI64(record.getLong(index));
+                    }
+
+                    @Override
+                    void read(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        record.setLong(index, protocol.readI64());
+                    }
+                };
+            case TType.DOUBLE:
+                return new FieldCodec(field, index)
+                {
+                    @Override
+                    void write(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        protocol.writeDouble(record.getDouble(index));
+                    }
+
+                    @Override
+                    void read(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        record.setDouble(index, protocol.readDouble());
+                    }
+                };
+            case TType.STRING:
+                return new FieldCodec(field, index)
+                {
+                    @Override
+                    void write(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        protocol.writeString(record.getString(index));
+                    }
+
+                    @Override
+                    void read(final TProtocol protocol, final SchemaRecord record) throws TException
+                    {
+                        record.setString(index, protocol.readString());
+                    }
+                };
+            default:
+                throw new IllegalArgumentException(String.format("unsupported thrift type %s", field.type));
+        }
+    }
+
+    private abstract static class FieldCodec
+    {
+        final TField field;
+        final int index;
+
+        FieldCodec(final TField field, final int index)
+        {
+            this.field = field;
+            this.index = index;
+        }
+
+        abstract void write(TProtocol protocol, SchemaRecord record) throws TException;
+
+        abstract void read(TProtocol protocol, SchemaRecord record) throws TException;
+    }
+}
@@ -28,6 +28,8 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 public class TestThriftEnvelopeEvent
 {
@@ -45,6 +47,25 @@ public class TestThriftEnvelopeEvent
         Assert.assertEquals(event.getOutputDir("/events/ning"), String.format("/events/ning/%s/2009/01/01/02", eventType));
     }
 
+    @Test(groups = "fast")
+    public void testSampleRateRecorder() throws Exception
+    {
+        final ThriftEnvelope thriftEnvelope = new ThriftEnvelope(eventType);
+        thriftEnvelope.getPayload().add(ThriftField.createThriftField("fuuness", (short) 0));
+        final ThriftEnvelopeEvent event = new ThriftEnvelopeEvent(new DateTime("2009-01-01T02:03:04"), thriftEnvelope, Granularity.DAILY);
+
+        final Event sampledEvent = new ThriftSampleRateRecorder((short) 100).record(event, 0.25);
+        Assert.assertEquals(sampledEvent.getName(), eventType);
+        Assert.assertEquals(sampledEvent.getGranularity(), Granularity.DAILY);
+        Assert.assertEquals(sampledEvent.getEventDateTime(), event.getEventDateTime());
+        final ThriftEnvelope sampledEnvelope = (ThriftEnvelope) sampledEvent.getData();
+        Assert.assertEquals(sampledEnvelope.getPayload().size(), 2);
+        Assert.assertEquals(sampledEnvelope.getPayload().get(1).getId(), 100);
+        Assert.assertEquals(sampledEnvelope.getPayload().get(1).getDataItem().getDouble(), 0.25);
+        // The original event is left untouched
+        Assert.assertEquals(thriftEnvelope.getPayload().size(), 1);
+    }
+
     @Test(groups = "fast")
     public void testSerialization() throws Exception
     {
@@ -91,4 +112,46 @@ public class TestThriftEnvelopeEvent
 
         Assert.assertEquals(event.getVersion(), "1.4");
     }
+
+    @Test(groups = "fast")
+    public void testWriteTo() throws Exception
+    {
+        final ThriftEnvelope thriftEnvelope = new ThriftEnvelope(eventType);
+        thriftEnvelope.getPayload().add(ThriftField.createThriftField("fuuness", (short) 0));
+        thriftEnvelope.getPayload().add(ThriftField.createThriftField(100L, (short) 1));
+
+        // Nothing cached yet
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        final ThriftEnvelopeEvent event = new ThriftEnvelopeEvent(new DateTime("2009-01-01T02:03:04"), thriftEnvelope);
+        event.writeTo(streamed);
+        Assert.assertFalse(event.isSerialized());
+
+        final byte[] serializedEvent = event.getSerializedEvent();
+        Assert.assertEquals(streamed.toByteArray(), serializedEvent);
+        Assert.assertEquals(event.serializedSize(), serializedEvent.length);
+
+        // From the cached bytes
+        final ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        event.writeTo(cached);
+        Assert.assertEquals(cached.toByteArray(), serializedEvent);
+
+        // Read-only view of the cached bytes
+        final ByteBuffer view = event.getSerializedBuffer();
+        Assert.assertTrue(view.isReadOnly());
+        Assert.assertEquals(view, ByteBuffer.wrap(serializedEvent));
+
+        final ByteBuffer buffer = ByteBuffer.allocate(serializedEvent.length);
+        event.writeTo(buffer);
+        Assert.assertEquals(buffer.array(), serializedEvent);
+
+        // Nothing is written if the buffer is too small
+        final ByteBuffer smallBuffer = ByteBuffer.allocate(serializedEvent.length - 1);
+        try {
+            event.writeTo(smallBuffer);
+            Assert.fail();
+        }
+        catch (BufferOverflowException e) {
+            Assert.assertEquals(smallBuffer.position(), 0);
+        }
+    }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.thrift;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventConsumer;
+import com.ning.metrics.serialization.event.Events;
+import com.ning.metrics.serialization.event.SplittableEventDeserializer;
+import com.ning.metrics.serialization.event.ThriftEnvelopeEvent;
+import org.joda.time.DateTime;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestSplittableThriftEnvelopeEventDeserializer
+{
+    private final List<ThriftEnvelopeEvent> events = new ArrayList<ThriftEnvelopeEvent>();
+    private ByteBuffer buffer;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        events.clear();
+        for (int i = 0; i < 1000; i++) {
+            final ThriftEnvelope envelope = new ThriftEnvelope("FuuEvent");
+            // Separators inside events shouldn't be mistaken for event boundaries
+            envelope.getPayload().add(ThriftField.createThriftField("fuu\n\n\nness-" + i, (short) 1));
+            envelope.getPayload().add(ThriftField.createThriftField((long) '\n' * i, (short) 2));
+            events.add(new ThriftEnvelopeEvent(new DateTime(0x0A0A0A0A0AL + i), envelope));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ThriftEnvelopeEventSerializer serializer = new ThriftEnvelopeEventSerializer();
+        serializer.open(out);
+        for (final ThriftEnvelopeEvent event : events) {
+            serializer.serialize(event);
+        }
+        serializer.close();
+
+        buffer = ByteBuffer.wrap(out.toByteArray());
+    }
+
+    @Test(groups = "fast")
+    public void testSplit() throws Exception
+    {
+        final List<SplittableEventDeserializer> parts = Events.split(new SplittableThriftEnvelopeEventDeserializer(buffer, 1024), 8);
+        Assert.assertEquals(parts.size(), 8);
+
+        final List<Event> decodedEvents = new ArrayList<Event>();
+        for (final SplittableEventDeserializer part : parts) {
+            Assert.assertTrue(part.hasNextEvent());
+            while (part.hasNextEvent()) {
+                decodedEvents.add(part.getNextEvent());
+            }
+        }
+        assertEvents(decodedEvents);
+
+        // The original buffer is left untouched
+        Assert.assertEquals(buffer.position(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testParallelDecoding() throws Exception
+    {
+        final List<PartConsumer> consumers = new ArrayList<PartConsumer>();
+        for (int i = 0; i < 4; i++) {
+            consumers.add(new PartConsumer());
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Assert.assertEquals(Events.fromDeserializer(new SplittableThriftEnvelopeEventDeserializer(buffer, 1024), executor, consumers), 4);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        final List<Event> decodedEvents = new ArrayList<Event>();
+        for (final PartConsumer consumer : consumers) {
+            Assert.assertFalse(consumer.events.isEmpty());
+            decodedEvents.addAll(consumer.events);
+        }
+        assertEvents(decodedEvents);
+    }
+
+    @Test(groups = "fast")
+    public void testFileChannel() throws Exception
+    {
+        final File file = File.createTempFile("splittablethriftenvelopeeventdeserializer", ".thrift");
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // Leading garbage, to check offsets
+            randomAccessFile.write(new byte[]{1, 2, 3});
+            randomAccessFile.getChannel().write(buffer.duplicate());
+            final FileChannel channel = randomAccessFile.getChannel();
+
+            // Windows much smaller than the events, so that events and length prefixes straddle windows
+            final SplittableThriftEnvelopeEventDeserializer deserializer = new SplittableThriftEnvelopeEventDeserializer(channel, 3, channel.size(), 1024, 7);
+            Assert.assertEquals(deserializer.estimateSize(), buffer.remaining());
+
+            final List<SplittableEventDeserializer> parts = Events.split(deserializer, 8);
+            Assert.assertEquals(parts.size(), 8);
+
+            final List<Event> decodedEvents = new ArrayList<Event>();
+            for (final SplittableEventDeserializer part : parts) {
+                while (part.hasNextEvent()) {
+                    decodedEvents.add(part.getNextEvent());
+                }
+            }
+            assertEvents(decodedEvents);
+        }
+        finally {
+            randomAccessFile.close();
+            file.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTooSmallToSplit() throws Exception
+    {
+        final SplittableThriftEnvelopeEventDeserializer deserializer = new SplittableThriftEnvelopeEventDeserializer(buffer);
+        Assert.assertNull(deserializer.trySplit());
+        Assert.assertEquals(deserializer.estimateSize(), buffer.remaining());
+        Assert.assertEquals(Events.split(deserializer, 8).size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testSplitAfterPartialRead() throws Exception
+    {
+        final SplittableThriftEnvelopeEventDeserializer deserializer = new SplittableThriftEnvelopeEventDeserializer(buffer, 1024);
+        final List<Event> decodedEvents = new ArrayList<Event>();
+        for (int i = 0; i < 10; i++) {
+            decodedEvents.add(deserializer.getNextEvent());
+        }
+
+        final SplittableThriftEnvelopeEventDeserializer prefix = deserializer.trySplit();
+        Assert.assertNotNull(prefix);
+        while (prefix.hasNextEvent()) {
+            decodedEvents.add(prefix.getNextEvent());
+        }
+        while (deserializer.hasNextEvent()) {
+            decodedEvents.add(deserializer.getNextEvent());
+        }
+        assertEvents(decodedEvents);
+    }
+
+    @Test(groups = "fast")
+    public void testReuse() throws Exception
+    {
+        final SplittableThriftEnvelopeEventDeserializer splittableDeserializer = new SplittableThriftEnvelopeEventDeserializer(buffer);
+        final ThriftEnvelopeEventDeserializer streamDeserializer = new ThriftEnvelopeEventDeserializer(new ByteArrayInputStream(buffer.array()));
+
+        final ThriftEnvelopeEvent reused = splittableDeserializer.getNextEvent();
+        final ThriftEnvelope envelope = (ThriftEnvelope) reused.getData();
+        ThriftEnvelopeEvent streamReused = null;
+
+        final List<Event> decodedEvents = new ArrayList<Event>();
+        final List<Event> streamDecodedEvents = new ArrayList<Event>();
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                Assert.assertSame(splittableDeserializer.getNextEvent(reused), reused);
+                Assert.assertSame(reused.getData(), envelope);
+            }
+            Assert.assertEquals(reused.getSerializedEvent(), events.get(i).getSerializedEvent());
+            decodedEvents.add(new ThriftEnvelopeEvent(reused.getEventDateTime(), new ThriftEnvelope(envelope.getTypeName(), envelope.getPayload())));
+
+            streamReused = streamDeserializer.getNextEvent(streamReused);
+            streamDecodedEvents.add(new ThriftEnvelopeEvent(streamReused.getEventDateTime(), new ThriftEnvelope(envelope.getTypeName(), ((ThriftEnvelope) streamReused.getData()).getPayload())));
+        }
+        Assert.assertFalse(splittableDeserializer.hasNextEvent());
+        Assert.assertFalse(streamDeserializer.hasNextEvent());
+
+        assertEvents(decodedEvents);
+        assertEvents(streamDecodedEvents);
+    }
+
+    private static final class PartConsumer implements EventConsumer
+    {
+        private final List<Event> events = new ArrayList<Event>();
+
+        @Override
+        public void consume(final Event event)
+        {
+            events.add(event);
+        }
+    }
+
+    private void assertEvents(final List<Event> decodedEvents)
+    {
+        Assert.assertEquals(decodedEvents.size(), events.size());
+        for (int i = 0; i < events.size(); i++) {
+            Assert.assertEquals(decodedEvents.get(i).getEventDateTime().getMillis(), events.get(i).getEventDateTime().getMillis());
+            Assert.assertEquals(decodedEvents.get(i).getData(), events.get(i).getData());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.thrift;
+
+import com.ning.metrics.serialization.schema.CompiledSchema;
+import com.ning.metrics.serialization.schema.Schema;
+import com.ning.metrics.serialization.schema.SchemaFieldType;
+import com.ning.metrics.serialization.schema.SchemaRecord;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestThriftSchemaCodec
+{
+    @Test(groups = "fast")
+    public void testRoundTrip() throws Exception
+    {
+        final ThriftSchemaCodec codec = ThriftSchemaCodec.forSchema(createSchema().compile());
+        Assert.assertSame(ThriftSchemaCodec.forSchema(createSchema().compile()), codec);
+
+        final SchemaRecord record = createRecord(codec.getSchema());
+        final SchemaRecord result = new SchemaRecord(codec.getSchema());
+        result.setString(6, "stale value");
+        codec.readPayload(codec.createPayload(record), result);
+
+        Assert.assertEquals(result.toString(), record.toString());
+        Assert.assertTrue(result.getBoolean(0));
+        Assert.assertEquals(result.getByte(1), (byte) 2);
+        Assert.assertEquals(result.getShort(2), (short) 3);
+        Assert.assertEquals(result.getInt(3), 4);
+        Assert.assertEquals(result.getLong(4), 5L);
+        Assert.assertEquals(result.getDouble(5), 6.5);
+        Assert.assertFalse(result.isSet(6));
+        Assert.assertEquals(result.getString(7), "eight");
+    }
+
+    @Test(groups = "fast")
+    public void testCompatibleWithThriftFieldList() throws Exception
+    {
+        final ThriftSchemaCodec codec = ThriftSchemaCodec.forSchema(createSchema().compile());
+        final SchemaRecord record = createRecord(codec.getSchema());
+        record.setString(6, "seven");
+
+        final List<ThriftField> fields = new ThriftFieldListDeserializer().readPayload(codec.createPayload(record));
+        final List<ThriftField> expected = new ArrayList<ThriftField>();
+        expected.add(ThriftField.createThriftField(true, (short) 1));
+        expected.add(ThriftField.createThriftField((byte) 2, (short) 2));
+        expected.add(ThriftField.createThriftField((short) 3, (short) 3));
+        expected.add(ThriftField.createThriftField(4, (short) 4));
+        expected.add(ThriftField.createThriftField(5L, (short) 5));
+        expected.add(ThriftField.createThriftField(6.5, (short) 6));
+        expected.add(ThriftField.createThriftField("seven", (short) 7));
+        expected.add(ThriftField.createThriftField("eight", (short) 8));
+        Assert.assertEquals(fields.size(), expected.size());
+        for (int i = 0; i < fields.size(); i++) {
+            Assert.assertEquals(fields.get(i).getId(), expected.get(i).getId());
+            Assert.assertEquals(fields.get(i).getDataItem(), expected.get(i).getDataItem());
+        }
+
+        // And the other way around
+        final SchemaRecord result = new SchemaRecord(codec.getSchema());
+        codec.readPayload(new ThriftFieldListSerializer().createPayload(expected), result);
+        Assert.assertEquals(result.toString(), record.toString());
+    }
+
+    @Test(groups = "fast")
+    public void testSkipUnknownFields() throws Exception
+    {
+        final List<ThriftField> fields = new ArrayList<ThriftField>();
+        fields.add(ThriftField.createThriftField(true, (short) 1));
+        // Wrong type
+        fields.add(ThriftField.createThriftField("two", (short) 2));
+        fields.add(ThriftField.createThriftField(4, (short) 4));
+        // Not in the schema
+        fields.add(ThriftField.createThriftField("nine", (short) 9));
+        fields.add(ThriftField.createThriftField(10L, (short) 10));
+
+        final ThriftSchemaCodec codec = ThriftSchemaCodec.forSchema(createSchema().compile());
+        final SchemaRecord result = new SchemaRecord(codec.getSchema());
+        codec.readPayload(new ThriftFieldListSerializer().createPayload(fields), result);
+
+        Assert.assertEquals(result.toString(), "SchemaRecord{bool=true, int=4}");
+    }
+
+    static Schema createSchema()
+    {
+        final Schema schema = new Schema("FuuEvent");
+        schema.addSchemaField(SchemaFieldType.createSchemaField("bool", "BOOLEAN", (short) 1));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("byte", "BYTE", (short) 2));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("short", "SHORT", (short) 3));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("int", "INTEGER", (short) 4));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("date", "DATE", (short) 5));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("double", "DOUBLE", (short) 6));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("missing", "STRING", (short) 7));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("string", "STRING", (short) 8));
+        return schema;
+    }
+
+    static SchemaRecord createRecord(final CompiledSchema schema)
+    {
+        final SchemaRecord record = new SchemaRecord(schema);
+        record.setBoolean(0, true);
+        record.setByte(1, (byte) 2);
+        record.setShort(2, (short) 3);
+        record.setInt(3, 4);
+        record.setLong(4, 5L);
+        record.setDouble(5, 6.5);
+        record.setString(7, "eight");
+        return record;
+    }
+}
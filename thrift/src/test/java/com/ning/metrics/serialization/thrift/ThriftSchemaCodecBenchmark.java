@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.thrift;
+
+import com.ning.metrics.serialization.schema.SchemaRecord;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compare ThriftFieldListSerializer/ThriftFieldListDeserializer with ThriftSchemaCodec.
+ * <p/>
+ * This is not run as part of the test suite, run it manually:
+ * java -cp ... com.ning.metrics.serialization.thrift.ThriftSchemaCodecBenchmark [records]
+ */
+public class ThriftSchemaCodecBenchmark
+{
+    public static void main(final String[] args) throws TException
+    {
+        final int records = args.length > 0 ? Integer.valueOf(args[0]) : 2000000;
+
+        final ThriftSchemaCodec codec = ThriftSchemaCodec.forSchema(TestThriftSchemaCodec.createSchema().compile());
+        final SchemaRecord record = TestThriftSchemaCodec.createRecord(codec.getSchema());
+        final byte[] payload = codec.createPayload(record);
+
+        final ThriftFieldListSerializer serializer = new ThriftFieldListSerializer();
+        final ThriftFieldListDeserializer deserializer = new ThriftFieldListDeserializer();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final TProtocol protocol = new TBinaryProtocol(new TIOStreamTransport(out));
+
+        for (int i = 0; i < 3; i++) {
+            final boolean report = i == 2;
+
+            long startTime = System.nanoTime();
+            for (int j = 0; j < records; j++) {
+                out.reset();
+                // The field list is built from the values, as callers have to
+                final List<ThriftField> fields = new ArrayList<ThriftField>(7);
+                fields.add(ThriftField.createThriftField(record.getBoolean(0), (short) 1));
+                fields.add(ThriftField.createThriftField(record.getByte(1), (short) 2));
+                fields.add(ThriftField.createThriftField(record.getShort(2), (short) 3));
+                fields.add(ThriftField.createThriftField(record.getInt(3), (short) 4));
+                fields.add(ThriftField.createThriftField(record.getLong(4), (short) 5));
+                fields.add(ThriftField.createThriftField(record.getDouble(5), (short) 6));
+                fields.add(ThriftField.createThriftField(record.getString(7), (short) 8));
+                serializer.serialize(protocol, fields);
+            }
+            report(report, "write, field list", records, System.nanoTime() - startTime);
+
+            startTime = System.nanoTime();
+            for (int j = 0; j < records; j++) {
+                out.reset();
+                codec.write(protocol, record);
+            }
+            report(report, "write, codec", records, System.nanoTime() - startTime);
+
+            startTime = System.nanoTime();
+            for (int j = 0; j < records; j++) {
+                deserializer.readPayload(payload);
+            }
+            report(report, "read, field list", records, System.nanoTime() - startTime);
+
+            startTime = System.nanoTime();
+            for (int j = 0; j < records; j++) {
+                codec.readPayload(payload, record);
+            }
+            report(report, "read, codec", records, System.nanoTime() - startTime);
+        }
+    }
+
+    private static void report(final boolean report, final String name, final int records, final long elapsedNanos)
+    {
+        if (report) {
+            System.out.println(String.format("%-18s %8.1f ns/record %10.0f records/s", name, elapsedNanos / (double) records, records / (elapsedNanos / 1e9)));
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.ning.metrics.serialization.thrift.item;
 
+import com.ning.metrics.serialization.schema.Schema;
+import com.ning.metrics.serialization.schema.SchemaFieldType;
 import com.ning.metrics.serialization.thrift.ThriftField;
 import com.ning.metrics.serialization.thrift.ThriftFieldImpl;
 import com.ning.metrics.serialization.thrift.ThriftFieldListDeserializer;
@@ -24,6 +26,7 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class TestThriftFieldListDeserializer
@@ -48,4 +51,31 @@ public class TestThriftFieldListDeserializer
         Assert.assertEquals(actualFields.get(1), new ThriftFieldImpl(null, (short) 2));
         Assert.assertEquals(actualFields.get(2), thirdField);
     }
+
+    @Test(groups = "fast")
+    public void testProjection() throws Exception
+    {
+        final List<ThriftField> fields = new ArrayList<ThriftField>();
+        fields.add(new ThriftFieldImpl(new StringDataItem("one"), (short) 1));
+        fields.add(new ThriftFieldImpl(new LongDataItem(2L), (short) 2));
+        fields.add(new ThriftFieldImpl(new StringDataItem("three"), (short) 3));
+        fields.add(new ThriftFieldImpl(new IntegerDataItem(4), (short) 4));
+        final byte[] payload = new ThriftFieldListSerializer().createPayload(fields);
+
+        final Schema schema = new Schema("FuuEvent");
+        schema.addSchemaField(SchemaFieldType.createSchemaField("one", "STRING", (short) 1));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("two", "LONG", (short) 2));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("three", "STRING", (short) 3));
+        schema.addSchemaField(SchemaFieldType.createSchemaField("four", "INTEGER", (short) 4));
+
+        final ThriftFieldListDeserializer deserializer = new ThriftFieldListDeserializer(schema.project(Arrays.asList("two", "four")));
+        final List<ThriftField> actualFields = deserializer.readPayload(payload);
+
+        // Positions are preserved
+        Assert.assertEquals(actualFields.size(), 4);
+        Assert.assertEquals(actualFields.get(0), new ThriftFieldImpl(null, (short) 1));
+        Assert.assertEquals(actualFields.get(1).getDataItem(), new LongDataItem(2L));
+        Assert.assertEquals(actualFields.get(2), new ThriftFieldImpl(null, (short) 3));
+        Assert.assertEquals(actualFields.get(3).getDataItem(), new IntegerDataItem(4));
+    }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Destination receiving spool files in chunks, see ResumableEventHandler.
+ * <p/>
+ * Chunks of a file are sent in order, and a chunk may be sent again after a failure or a restart: implementations
+ * should treat a chunk at an offset they already have as a replacement (e.g. HTTP range uploads, multipart uploads).
+ */
+public interface ChunkedEventHandler
+{
+    /**
+     * Send a chunk. Returning normally acknowledges it: it won't be sent again.
+     *
+     * @param file      spool file the chunk belongs to
+     * @param offset    offset of the chunk in the file
+     * @param data      buffer holding the chunk, only valid during the call
+     * @param length    length of the chunk in data (0 for an empty file)
+     * @param lastChunk true for the last chunk of the file
+     * @throws IOException if the chunk could not be sent, it will be retried
+     */
+    public void handleChunk(File file, long offset, byte[] data, int length, boolean lastChunk) throws IOException;
+}
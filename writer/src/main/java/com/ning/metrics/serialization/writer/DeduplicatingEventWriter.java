@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wrapper around another delegate writer, dropping likely duplicates (e.g. caused by client retries).
+ * <p/>
+ * Events are fingerprinted with a 128 bits hash of their name and serialized form. Fingerprints are kept in a rotating
+ * Bloom filter, so duplicates are detected within one to two windows, with bounded memory. Duplicates are dropped with
+ * a probability of 1, unique events are wrongly dropped with a probability of falsePositiveRate at most (as long as
+ * the number of events per window doesn't exceed expectedEventsPerWindow, the filter rotates early otherwise).
+ * <p/>
+ * Events without serialized form (see Event.getSerializedEvent()) are always written.
+ */
+public class DeduplicatingEventWriter implements EventWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(DeduplicatingEventWriter.class);
+
+    private final EventWriter delegate;
+    private final RotatingBloomFilter filter;
+    private final double falsePositiveRate;
+    private final long windowInSeconds;
+    private final long[] fingerprint = new long[2];
+    private final AtomicLong checkedEvents = new AtomicLong(0);
+    private final AtomicLong duplicateEvents = new AtomicLong(0);
+    private final AtomicLong unfingerprintedEvents = new AtomicLong(0);
+
+    private boolean acceptsEvents;
+
+    /**
+     * @param delegate                writer for the unique events
+     * @param expectedEventsPerWindow max number of unique events per window the filter is sized for
+     * @param falsePositiveRate       max probability to drop a unique event
+     * @param windowInSeconds         time during which duplicates are detected
+     */
+    public DeduplicatingEventWriter(final EventWriter delegate, final long expectedEventsPerWindow, final double falsePositiveRate, final long windowInSeconds)
+    {
+        this.delegate = delegate;
+        this.falsePositiveRate = falsePositiveRate;
+        this.windowInSeconds = windowInSeconds;
+        this.filter = new RotatingBloomFilter(expectedEventsPerWindow, falsePositiveRate, TimeUnit.SECONDS.toMillis(windowInSeconds), getNow());
+
+        log.info("Deduplicating events with a {} KB Bloom filter ({} hash functions)", filter.getSizeInBytes() / 1024, filter.getNumHashFunctions());
+        acceptsEvents = true;
+    }
+
+    /**
+     * Write an Event via the delegate writer, unless it is likely a duplicate
+     *
+     * @param event the Event to write
+     * @throws IOException as thrown by the delegate writer
+     */
+    @Override
+    public synchronized void write(final Event event) throws IOException
+    {
+        if (!acceptsEvents) {
+            log.warn("Writer not ready, discarding event: {}", event);
+            return;
+        }
+
+        final byte[] serializedEvent = event.getSerializedEvent();
+        if (serializedEvent == null) {
+            unfingerprintedEvents.incrementAndGet();
+            delegate.write(event);
+            return;
+        }
+
+        final String name = event.getName();
+        RotatingBloomFilter.murmurHash3(serializedEvent, name == null ? 0 : name.hashCode(), fingerprint);
+        checkedEvents.incrementAndGet();
+
+        if (filter.checkAndAdd(fingerprint[0], fingerprint[1], getNow())) {
+            log.debug("Dropping likely duplicate event: {}", event);
+            duplicateEvents.incrementAndGet();
+            return;
+        }
+
+        delegate.write(event);
+    }
+
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        delegate.commit();
+    }
+
+    @Override
+    public synchronized void forceCommit() throws IOException
+    {
+        delegate.forceCommit();
+    }
+
+    @Override
+    public synchronized void rollback() throws IOException
+    {
+        delegate.rollback();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        delegate.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        acceptsEvents = false;
+        delegate.close();
+    }
+
+    /**
+     * @return local spool path used by the writer
+     */
+    @Override
+    public String getSpoolPath()
+    {
+        return delegate.getSpoolPath();
+    }
+
+    //hook for unit testing
+    protected long getNow()
+    {
+        return System.currentTimeMillis();
+    }
+
+    @Managed(description = "number of events checked for duplicates")
+    public long getCheckedEventCount()
+    {
+        return checkedEvents.get();
+    }
+
+    @Managed(description = "number of likely duplicates dropped")
+    public long getDuplicateEventCount()
+    {
+        return duplicateEvents.get();
+    }
+
+    @Managed(description = "number of events written without check, as they have no serialized form")
+    public long getUnfingerprintedEventCount()
+    {
+        return unfingerprintedEvents.get();
+    }
+
+    @Managed(description = "max probability to drop a unique event")
+    public double getFalsePositiveRate()
+    {
+        return falsePositiveRate;
+    }
+
+    @Managed(description = "time in seconds during which duplicates are detected")
+    public long getWindowInSeconds()
+    {
+        return windowInSeconds;
+    }
+
+    @Managed(description = "memory used by the duplicates filter, in kilobytes")
+    public long getFilterSize()
+    {
+        return filter.getSizeInBytes() / 1024;
+    }
+}
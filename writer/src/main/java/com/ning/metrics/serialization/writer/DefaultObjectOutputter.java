@@ -18,18 +18,22 @@ package com.ning.metrics.serialization.writer;
 
 import com.ning.metrics.serialization.event.Event;
 import com.ning.metrics.serialization.event.EventSerializer;
+import org.apache.commons.io.output.CountingOutputStream;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
 
 class DefaultObjectOutputter implements ObjectOutputter
 {
     protected final EventSerializer eventSerializer;
+    private final CountingOutputStream countingOut;
 
     public DefaultObjectOutputter(final OutputStream out, final EventSerializer eventSerializer) throws IOException
     {
         this.eventSerializer = eventSerializer;
-        eventSerializer.open(out);
+        this.countingOut = new CountingOutputStream(out);
+        eventSerializer.open(countingOut);
     }
 
     @Override
@@ -38,6 +42,22 @@ class DefaultObjectOutputter implements ObjectOutputter
         eventSerializer.serialize(event);
     }
 
+    @Override
+    public long getBytesWritten()
+    {
+        return countingOut.getByteCount();
+    }
+
+    @Override
+    public boolean flushSerializer() throws IOException
+    {
+        if (eventSerializer instanceof Flushable) {
+            ((Flushable) eventSerializer).flush();
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void close() throws IOException
     {
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import java.io.File;
+
+/**
+ * Optional interface for the EventHandler of a DiskSpoolEventWriter, to be told about spool files deleted without
+ * being flushed, e.g. evicted from an over capacity quarantine. Implementations can drop the state they keep about
+ * such files (acknowledgements, checkpoints, ...), as the files won't be handed to them again.
+ */
+public interface DiscardedFileListener
+{
+    /**
+     * @param file file which has been deleted
+     */
+    public void discarded(File file);
+}
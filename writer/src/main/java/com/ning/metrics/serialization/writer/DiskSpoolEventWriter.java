@@ -19,6 +19,7 @@ package com.ning.metrics.serialization.writer;
 import com.ning.metrics.serialization.event.Event;
 import com.ning.metrics.serialization.event.EventSerializer;
 
+import com.mogwee.executors.Executors;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.Timer;
@@ -27,15 +28,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weakref.jmx.Managed;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -53,15 +69,49 @@ import java.util.concurrent.atomic.AtomicLong;
  * There are also JMX knobs available.
  * <p/>
  * Periodically, events in the final spool area will be flushed to the specified EventHandler. On failure, files are moved
- * to a quarantine area. Quarantined files are never retried, except on startup.
+ * to a quarantine area, along with the failure reason and the number of attempts. Quarantined files are only retried
+ * on demand (see processQuarantinedFiles), in bounded waves, oldest first. The quarantine can be capped in size and age,
+ * in which case the oldest files are deleted first (EventHandlers implementing DiscardedFileListener are told about them).
+ * <p/>
+ * The rate at which files are handed to the EventHandler can be capped (in bytes and files per second) with a
+ * FlushRateLimiter, e.g. to avoid starving live traffic while a large backlog drains.
  * <p/>
  * The rollback operation moves the current open file to the quarantine area.
+ * <p/>
+ * For very large backlogs, the SHARDED layout spreads files in the final spool, locked and quarantine areas over a tree
+ * of subdirectories (see SpoolLayout). Files written with another layout are migrated on startup.
+ * <p/>
+ * The spool is listed on startup only: files committed and flushed since are tracked in memory. Shared spools are
+ * listed on each flush, to pick up the files committed by the other writers.
+ * <p/>
+ * Several writers, possibly in different processes, can share a spool directory (sharedSpool): file names are then
+ * unique across writers and writers take turns flushing, coordinated by file locks (see SharedSpoolCoordinator). Each
+ * writer locks the files it flushes in its own area, _lock/[writer tag], and the files of dead writers are recovered by
+ * the writer flushing.
+ * <p/>
+ * On startup, files left in the temporary spool area and being flushed by a previous run are moved back to the final
+ * spool area in the background (see awaitRecovery): events are accepted right away.
+ * <p/>
+ * Downstream jobs can be told when all events of an event time bucket (e.g. an hour) have been flushed, see
+ * WatermarkTracker.
+ * <p/>
+ * Files can be shipped to several destinations, each with its own EventHandler, without spooling the events twice: see
+ * FanOutEventHandler. A file is deleted once all destinations have acknowledged it.
+ * <p/>
+ * Record boundaries (offsets in a spool file which fall between two events) can be recorded while writing, every
+ * recordBoundaryIntervalInBytes, and handed to EventHandlers implementing RecordBoundaryHandler, e.g. to split files
+ * without cutting events in two. They are kept under _records, and need a Flushable EventSerializer and a codec which
+ * doesn't compress (NoCompressionCodec, PreallocatingCodec).
+ * <p/>
+ * Use a Builder to combine these options.
  *
  * @see com.ning.metrics.serialization.writer.SyncType
  */
 public class DiskSpoolEventWriter implements EventWriter
 {
     private static final Logger log = LoggerFactory.getLogger(DiskSpoolEventWriter.class);
+    private static final int RECOVERY_THREADS = 4;
+    private static final int MAX_EVENT_TYPES = 1000;
 
     private final AtomicLong fileId = new AtomicLong(System.currentTimeMillis() * 1000000);
     private final AtomicBoolean flushEnabled;
@@ -73,16 +123,45 @@ public class DiskSpoolEventWriter implements EventWriter
     private final ScheduledExecutorService executor;
     private final File tmpSpoolDirectory;
     private final File quarantineDirectory;
+    // _lock, or, in a shared spool, _lock/[writer tag]
     private final File lockDirectory;
+    private final File lockRootDirectory;
     private final AtomicBoolean currentlyFlushing = new AtomicBoolean(false);
+    private final AtomicBoolean currentlyReprocessing = new AtomicBoolean(false);
+    private final AtomicLong quarantineReprocessingBatchSize = new AtomicLong(100);
+    private final AtomicLong quarantineReprocessingIntervalInSeconds = new AtomicLong(60);
+    private final ExecutorService recoveryExecutor;
+    private final AtomicLong filesToRecover = new AtomicLong(0);
+    private final AtomicLong recoveredFiles = new AtomicLong(0);
+    // Files in the spool directory, by name (i.e. oldest first). Kept in memory: listing a SHARDED spool is costly
+    private final ConcurrentSkipListMap<String, File> spooledFiles = new ConcurrentSkipListMap<String, File>();
+    private final AtomicLong spooledBytes = new AtomicLong(0);
+    private final CountDownLatch recoveryDone = new CountDownLatch(1);
+    private final SpoolQuarantine quarantine;
     private final AtomicLong eventSerializationFailures = new AtomicLong(0);
+    private final EventTypeCounters eventTypeCounters;
     private final CompressionCodec codec;
     private final EventSerializer eventSerializer;
     private final MetricName writeTimerName;
     private final Timer writeTimer;
+    private final FlushRateLimiter flushRateLimiter;
+    private final SpoolLayout layout;
+    private final WatermarkTracker watermarkTracker;
+    // Null if the spool is not shared
+    private final SharedSpoolCoordinator coordinator;
+    private final MetricName throttleTimerName;
+    private final Timer throttleTimer;
+    private final File recordsDirectory;
+    // 0 if record boundaries are not recorded
+    private final long recordBoundaryIntervalInBytes;
 
     private volatile ObjectOutputter currentOutputter;
     private volatile File currentOutputFile;
+    // Bytes of the current file already attributed to an event type, and type of the last event written to it
+    private long currentOutputBytes = 0;
+    private String currentOutputEventName = null;
+    // Record boundaries of the current file
+    private final List<Long> currentRecordBoundaries = new ArrayList<Long>();
 
     private boolean acceptsEvents = false;
 
@@ -111,35 +190,138 @@ public class DiskSpoolEventWriter implements EventWriter
         final EventSerializer eventSerializer
     )
     {
+        this(new Builder(spoolPath, executor)
+            .withEventHandler(eventHandler)
+            .withFlushEnabled(flushEnabled)
+            .withFlushIntervalInSeconds(flushIntervalInSeconds)
+            .withSyncType(syncType, syncBatchSize)
+            .withCodec(codec)
+            .withEventSerializer(eventSerializer));
+    }
+
+    /**
+     * @param builder configuration of the writer, see Builder
+     */
+    protected DiskSpoolEventWriter(final Builder builder)
+    {
+        final EventHandler eventHandler = builder.getEventHandler();
+        final String spoolPath = builder.spoolPath;
+        final boolean flushEnabled = builder.flushEnabled;
+        final long flushIntervalInSeconds = builder.flushIntervalInSeconds;
+        final ScheduledExecutorService executor = builder.executor;
+        final SyncType syncType = builder.syncType;
+        final int syncBatchSize = builder.syncBatchSize;
+        final CompressionCodec codec = builder.codec;
+        final EventSerializer eventSerializer = builder.eventSerializer;
+        final FlushRateLimiter flushRateLimiter = builder.flushRateLimiter;
+        final SpoolLayout layout = builder.layout;
+        final boolean sharedSpool = builder.sharedSpool;
+        final WatermarkTracker watermarkTracker = builder.watermarkTracker;
+        // Boundaries are offsets of the serialized stream: they only match the file if it is not compressed
+        final boolean uncompressed = codec instanceof NoCompressionCodec || codec instanceof PreallocatingCodec;
+        this.recordBoundaryIntervalInBytes = uncompressed ? builder.recordBoundaryIntervalInBytes : 0;
+        if (builder.recordBoundaryIntervalInBytes > 0 && !uncompressed) {
+            log.warn("Record boundaries can't be recorded with codec {}, ignoring", codec);
+        }
+
         this.eventHandler = eventHandler;
+        this.watermarkTracker = watermarkTracker;
         this.syncType = syncType;
         this.syncBatchSize = syncBatchSize;
         this.spoolDirectory = new File(spoolPath);
         this.executor = executor;
         this.tmpSpoolDirectory = new File(spoolDirectory, "_tmp");
         this.quarantineDirectory = new File(spoolDirectory, "_quarantine");
-        this.lockDirectory = new File(spoolDirectory, "_lock");
+        this.lockRootDirectory = new File(spoolDirectory, "_lock");
+        if (sharedSpool) {
+            try {
+                coordinator = new SharedSpoolCoordinator(spoolDirectory);
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException("Eventwriter misconfigured - couldn't lock the shared spool directory", e);
+            }
+            // Files being flushed are tagged by their flusher: those of dead writers can be recovered at any time
+            this.lockDirectory = new File(lockRootDirectory, coordinator.getTag());
+        }
+        else {
+            coordinator = null;
+            this.lockDirectory = lockRootDirectory;
+        }
+        this.recordsDirectory = new File(spoolDirectory, "_records");
         this.flushEnabled = new AtomicBoolean(flushEnabled);
         this.flushIntervalInSeconds = new AtomicLong(flushIntervalInSeconds);
         this.codec = codec;
         this.eventSerializer = eventSerializer;
         writeTimerName = new MetricName(DiskSpoolEventWriter.class, spoolPath);
         writeTimer = Metrics.newTimer(writeTimerName, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        this.flushRateLimiter = flushRateLimiter;
+        this.layout = layout;
+        throttleTimerName = new MetricName(DiskSpoolEventWriter.class, spoolPath, "throttled");
+        throttleTimer = Metrics.newTimer(throttleTimerName, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        eventTypeCounters = new EventTypeCounters(DiskSpoolEventWriter.class, spoolPath, MAX_EVENT_TYPES);
 
         createSpoolDir(spoolDirectory);
         createSpoolDir(tmpSpoolDirectory);
         createSpoolDir(quarantineDirectory);
         createSpoolDir(lockDirectory);
+        if (recordBoundaryIntervalInBytes > 0) {
+            createSpoolDir(recordsDirectory);
+        }
 
         // Fail early
         if (!spoolDirectory.exists() || !tmpSpoolDirectory.exists() || !quarantineDirectory.exists() || !lockDirectory.exists()) {
             throw new IllegalArgumentException("Eventwriter misconfigured - couldn't create the spool directories");
         }
 
+        layout.prepare(spoolDirectory);
+        layout.prepare(quarantineDirectory);
+        layout.prepare(lockDirectory);
+
+        quarantine = new SpoolQuarantine(quarantineDirectory, layout, new DiscardedFileListener()
+        {
+            @Override
+            public void discarded(final File file)
+            {
+                deleteRecordBoundaries(file.getName());
+                if (watermarkTracker != null) {
+                    watermarkTracker.discarded(file.getName());
+                }
+                if (eventHandler instanceof DiscardedFileListener) {
+                    ((DiscardedFileListener) eventHandler).discarded(file);
+                }
+            }
+        });
+        recoveryExecutor = Executors.newFixedThreadPool(RECOVERY_THREADS, "DiskSpoolEventWriter-recovery");
+
         scheduleFlush();
-        recoverFiles();
 
+        // Don't wait for the recovery to accept events: new files can't collide with the recovered ones
+        final List<File> leftoverFiles = listFilesToRecover();
+        final List<File> filesInSpool = listSpooledFiles();
+        resyncSpooledFiles(filesInSpool);
+        if (watermarkTracker != null) {
+            final List<String> fileNames = new ArrayList<String>();
+            for (final File file : leftoverFiles) {
+                fileNames.add(file.getName());
+            }
+            for (final File file : filesInSpool) {
+                fileNames.add(file.getName());
+            }
+            watermarkTracker.filesFoundOnStartup(fileNames);
+        }
         acceptsEvents = true;
+        recoverFiles(leftoverFiles);
+    }
+
+    private void recoverPreallocatedFile(final File file)
+    {
+        try {
+            // Strip the zero padding, if the file was not closed
+            PreallocatedFileOutputStream.recover(file);
+        }
+        catch (IOException e) {
+            log.warn(String.format("Unable to truncate preallocated file %s", file), e);
+        }
     }
 
     private void createSpoolDir(final File dir)
@@ -149,12 +331,133 @@ public class DiskSpoolEventWriter implements EventWriter
         }
     }
 
-    private void recoverFiles()
+    private List<File> listFilesToRecover()
     {
-        // Only called on startup
+        // Only called on startup: files left in _tmp (not committed) and _lock (being flushed) by a previous run, and
+        // committed files written with another layout. They are listed before accepting events, so that files written or
+        // flushed from now on are left alone.
+        final List<File> files = new ArrayList<File>();
         for (final File file : tmpSpoolDirectory.listFiles()) {
-            renameFile(file, spoolDirectory);
+            // Recovered along with their data file, see PreallocatedFileOutputStream
+            if (PreallocatedFileOutputStream.isLengthFile(file)) {
+                continue;
+            }
+            // In a shared spool, live writers are still writing their files
+            if (coordinator == null || !coordinator.isOwnedByLiveWriter(file)) {
+                files.add(file);
+            }
         }
+        // In a shared spool, live writers may be flushing files locked without tag (by a previous version). Those are
+        // recovered by the first writer to start, the tagged ones by the flusher, see recoverFilesOfDeadWriters.
+        if (coordinator == null || !coordinator.hasOtherLiveWriters()) {
+            // Listing a SHARDED directory includes the unmigrated files
+            final Set<File> lockedFiles = new LinkedHashSet<File>(layout.listFiles(lockRootDirectory));
+            lockedFiles.addAll(layout.listUnmigratedFiles(lockRootDirectory));
+            files.addAll(lockedFiles);
+        }
+        files.addAll(layout.listUnmigratedFiles(spoolDirectory));
+        return files;
+    }
+
+    private void recoverFiles(final List<File> files)
+    {
+        filesToRecover.set(files.size());
+        if (files.isEmpty()) {
+            recoveryExecutor.shutdown();
+            recoveryDone.countDown();
+            return;
+        }
+
+        log.info("Recovering {} files from {} in the background", files.size(), spoolDirectory);
+        final int filesPerThread = (files.size() + RECOVERY_THREADS - 1) / RECOVERY_THREADS;
+        final AtomicInteger remainingTasks = new AtomicInteger((files.size() + filesPerThread - 1) / filesPerThread);
+        for (int i = 0; i < files.size(); i += filesPerThread) {
+            final List<File> filesForThread = files.subList(i, Math.min(files.size(), i + filesPerThread));
+            recoveryExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        for (final File file : filesForThread) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                // We've been asked to shutdown, the remaining files will be recovered on next startup
+                                return;
+                            }
+
+                            recoverPreallocatedFile(file);
+                            spooled(renameFile(file, spoolDirectory));
+                            recoveredFiles.incrementAndGet();
+                            filesToRecover.decrementAndGet();
+                        }
+                    }
+                    finally {
+                        if (remainingTasks.decrementAndGet() == 0) {
+                            log.info("Done recovering files from {}", spoolDirectory);
+                            recoveryExecutor.shutdown();
+                            recoveryDone.countDown();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * In a shared spool, move back to the spool area the files of the writers which are gone: files they were flushing
+     * (in their locked area) or writing. Only called by the holder of the flusher lock, once the startup recovery is
+     * done.
+     */
+    private void recoverFilesOfDeadWriters()
+    {
+        if (coordinator == null || recoveryDone.getCount() > 0) {
+            return;
+        }
+
+        coordinator.deleteDeadWriterLocks();
+
+        final File[] lockDirectories = lockRootDirectory.listFiles();
+        if (lockDirectories != null) {
+            for (final File directory : lockDirectories) {
+                if (!directory.isDirectory() || !SharedSpoolCoordinator.isTag(directory.getName()) || coordinator.isAlive(directory.getName())) {
+                    continue;
+                }
+
+                final Set<File> lockedFiles = new LinkedHashSet<File>(layout.listFiles(directory));
+                lockedFiles.addAll(layout.listUnmigratedFiles(directory));
+                for (final File file : lockedFiles) {
+                    spooled(renameFile(file, spoolDirectory));
+                    recoveredFiles.incrementAndGet();
+                }
+                log.info("Recovered {} files being flushed by dead writer {}", lockedFiles.size(), directory.getName());
+                FileUtils.deleteQuietly(directory);
+            }
+        }
+
+        for (final File file : tmpSpoolDirectory.listFiles()) {
+            final String writerTag = coordinator.getWriterTag(file);
+            if (PreallocatedFileOutputStream.isLengthFile(file) || writerTag == null || coordinator.isAlive(writerTag)) {
+                continue;
+            }
+
+            log.info("Recovering {}, left by dead writer {}", file, writerTag);
+            recoverPreallocatedFile(file);
+            spooled(renameFile(file, spoolDirectory));
+            recoveredFiles.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait for the files left by a previous run to be moved back to the spool area
+     *
+     * @param timeout max time to wait
+     * @param unit    unit of timeout
+     * @return true if the recovery is done, false if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitRecovery(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return recoveryDone.await(timeout, unit);
     }
 
     private void scheduleFlush()
@@ -190,17 +493,46 @@ public class DiskSpoolEventWriter implements EventWriter
 
     //protected for overriding during unit tests
 
+    /**
+     * @return the spooled files to flush, oldest first, from the in-memory index (see getSpooledFilesOldestFirst)
+     */
     protected List<File> getSpooledFileList()
     {
-        final List<File> spooledFileList = new ArrayList<File>();
+        // File names are increasing ids
+        return new ArrayList<File>(spooledFiles.values());
+    }
 
-        for (final File file : spoolDirectory.listFiles()) {
-            if (file.isFile()) {
-                spooledFileList.add(file);
-            }
+    private List<File> listSpooledFiles()
+    {
+        return layout.listFiles(spoolDirectory);
+    }
+
+    private void spooled(final File file)
+    {
+        if (file.exists() && spooledFiles.put(file.getName(), file) == null) {
+            spooledBytes.addAndGet(file.length());
+        }
+    }
+
+    // Call before moving the file out of the spool
+    private void unspooled(final File file)
+    {
+        if (spooledFiles.remove(file.getName()) != null) {
+            spooledBytes.addAndGet(-file.length());
         }
+    }
 
-        return spooledFileList;
+    private void resyncSpooledFiles(final List<File> filesInSpool)
+    {
+        final Map<String, File> files = new HashMap<String, File>();
+        long size = 0;
+        for (final File file : filesInSpool) {
+            files.put(file.getName(), file);
+            size += file.length();
+        }
+        spooledFiles.keySet().retainAll(files.keySet());
+        spooledFiles.putAll(files);
+        spooledBytes.set(size);
     }
 
     @Override
@@ -208,11 +540,13 @@ public class DiskSpoolEventWriter implements EventWriter
     {
         if (!acceptsEvents) {
             log.warn("Writer not ready, discarding event: {}", event);
+            eventTypeCounters.dropped(event.getName());
             return;
         }
 
         if (currentOutputter == null) {
-            currentOutputFile = new File(tmpSpoolDirectory, String.format("%d.bin", fileId.incrementAndGet()));
+            final String fileName = coordinator == null ? String.format("%d.bin", fileId.incrementAndGet()) : coordinator.getFileName(fileId.incrementAndGet());
+            currentOutputFile = new File(tmpSpoolDirectory, fileName);
 
             final FileOutputStream outputStream = codec.getFileOutputStream(currentOutputFile);
             if (eventSerializer == null) {
@@ -227,14 +561,35 @@ public class DiskSpoolEventWriter implements EventWriter
             final long startTime = System.nanoTime();
             currentOutputter.writeObject(event);
             writeTimer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+
+            // Serializers buffer: bytes are attributed to the event being written when they reach the file, which is
+            // accurate per event type over time
+            final long bytesWritten = currentOutputter.getBytesWritten();
+            currentOutputEventName = event.getName();
+            eventTypeCounters.written(currentOutputEventName, bytesWritten - currentOutputBytes);
+            currentOutputBytes = bytesWritten;
+
+            final long lastRecordBoundary = currentRecordBoundaries.isEmpty() ? 0 : currentRecordBoundaries.get(currentRecordBoundaries.size() - 1);
+            if (recordBoundaryIntervalInBytes > 0 && bytesWritten - lastRecordBoundary >= recordBoundaryIntervalInBytes && currentOutputter.flushSerializer()) {
+                final long recordBoundary = currentOutputter.getBytesWritten();
+                eventTypeCounters.bytesWritten(currentOutputEventName, recordBoundary - currentOutputBytes);
+                currentOutputBytes = recordBoundary;
+                currentRecordBoundaries.add(recordBoundary);
+            }
+
+            if (watermarkTracker != null) {
+                watermarkTracker.written(currentOutputFile.getName(), event);
+            }
         }
         catch (RuntimeException e) {
             eventSerializationFailures.incrementAndGet();
+            eventTypeCounters.serializationFailed(event.getName());
             //noinspection AccessToStaticFieldLockedOnInstance
             throw new IOException("unable to serialize event", e);
         }
         catch (IOException e) {
             eventSerializationFailures.incrementAndGet();
+            eventTypeCounters.serializationFailed(event.getName());
             // If we got bad data, the stream may be in a bad state (i.e. jackson might be unable to append more data).
             // It's safer to close the stream and reopen a new one.
             try {
@@ -260,14 +615,21 @@ public class DiskSpoolEventWriter implements EventWriter
         if (currentOutputFile != null) {
             try {
                 currentOutputter.close();
+                // Bytes still buffered by the serializer when the last event was written
+                if (currentOutputEventName != null) {
+                    eventTypeCounters.bytesWritten(currentOutputEventName, currentOutputter.getBytesWritten() - currentOutputBytes);
+                }
             }
             finally {
                 // The above can blow away because the stream is in a bad state.
                 // Either way - make sure to close the file
-                renameFile(currentOutputFile, spoolDirectory);
+                writeRecordBoundaries();
+                spooled(renameFile(currentOutputFile, spoolDirectory));
 
                 currentOutputFile = null;
                 currentOutputter = null;
+                currentOutputBytes = 0;
+                currentOutputEventName = null;
             }
         }
     }
@@ -278,10 +640,13 @@ public class DiskSpoolEventWriter implements EventWriter
         if (currentOutputFile != null) {
             currentOutputter.close();
 
-            renameFile(currentOutputFile, quarantineDirectory);
+            writeRecordBoundaries();
+            quarantineFile(currentOutputFile, "rollback");
 
             currentOutputFile = null;
             currentOutputter = null;
+            currentOutputBytes = 0;
+            currentOutputEventName = null;
         }
     }
 
@@ -299,13 +664,23 @@ public class DiskSpoolEventWriter implements EventWriter
             Thread.currentThread().interrupt();
         }
         executor.shutdownNow();
+        recoveryExecutor.shutdownNow();
 
         // Cleanup the current state
         forceCommit();
         flush();
 
-        // Unregister the timer to avoid leaks
+        // Unregister the timers to avoid leaks
         Metrics.defaultRegistry().removeMetric(writeTimerName);
+        Metrics.defaultRegistry().removeMetric(throttleTimerName);
+        eventTypeCounters.unregister();
+
+        if (coordinator != null) {
+            coordinator.close();
+        }
+        if (eventHandler instanceof FanOutEventHandler) {
+            ((FanOutEventHandler) eventHandler).close();
+        }
     }
 
     /**
@@ -324,52 +699,239 @@ public class DiskSpoolEventWriter implements EventWriter
             return;
         }
 
-        for (final File file : getSpooledFileList()) {
-            if (flushEnabled.get()) {
-                // Move files aside, to avoid sending dups (the handler can take longer than the flushing period)
-                final File lockedFile = renameFile(file, lockDirectory);
-                final CallbackHandler callbackHandler = new CallbackHandler()
-                {
-                    @Override
-                    public synchronized void onError(final Throwable t, final File file)
-                    {
-                        log.warn("Error trying to flush file {}: {}", file, t.getLocalizedMessage());
+        if (!lockSharedSpool()) {
+            currentlyFlushing.set(false);
+            return;
+        }
 
-                        if (file != null && file.exists()) {
-                            quarantineFile(lockedFile);
-                        }
-                    }
+        try {
+            recoverFilesOfDeadWriters();
+            for (final File file : getSpooledFilesOldestFirst()) {
+                if (flushEnabled.get()) {
+                    handleFile(file);
+                }
+            }
+            publishWatermarks();
+        }
+        finally {
+            unlockSharedSpool();
+            currentlyFlushing.set(false);
+        }
+    }
 
-                    @Override
-                    public void onSuccess(final File file)
-                    {
-                        // Delete the file
-                        if (!file.exists()) {
-                            log.warn("Trying to delete a file that does not exist: {}", file);
-                        }
-                        else if (!file.delete()) {
-                            log.warn("Unable to delete file {}", file);
-                        }
-                        log.debug("Deleted [{}]", file);
-                    }
-                };
+    /**
+     * Hand up to maxFiles spooled files to the EventHandler, taken from a snapshot of the spool (see
+     * getSpooledFilesOldestFirst). Files consumed from the snapshot but already picked up, e.g. by a concurrent flush,
+     * are skipped and not counted. Unlike flush(), this ignores the flushEnabled flag: it is meant for owners driving
+     * the flush themselves, see PrioritizedDiskSpoolEventWriter.
+     *
+     * @param files    snapshot of the spooled files, consumed as files are handed off
+     * @param maxFiles max number of files to flush
+     * @return number of files handed to the EventHandler, 0 if another flush is in progress
+     */
+    public int flushOldest(final Iterator<File> files, final int maxFiles)
+    {
+        if (!currentlyFlushing.compareAndSet(false, true)) {
+            return 0;
+        }
 
-                try {
-                    eventHandler.handle(lockedFile, callbackHandler);
+        if (!lockSharedSpool()) {
+            currentlyFlushing.set(false);
+            return 0;
+        }
+
+        try {
+            recoverFilesOfDeadWriters();
+            int count = 0;
+            while (count < maxFiles && files.hasNext()) {
+                if (handleFile(files.next())) {
+                    count++;
                 }
-                catch (RuntimeException e) {
-                    log.warn(String.format("Unknown error transferring events from local disk spool to flusher. Quarantining local file %s to directory %s", file, quarantineDirectory), e);
-                    callbackHandler.onError(e, lockedFile);
+            }
+            publishWatermarks();
+            return count;
+        }
+        finally {
+            unlockSharedSpool();
+            currentlyFlushing.set(false);
+        }
+    }
+
+    private boolean lockSharedSpool()
+    {
+        if (coordinator == null) {
+            return true;
+        }
+
+        if (!coordinator.tryLockFlusher()) {
+            log.debug("Another writer is flushing {}", spoolDirectory);
+            return false;
+        }
+        return true;
+    }
+
+    private void unlockSharedSpool()
+    {
+        if (coordinator != null) {
+            coordinator.unlockFlusher();
+        }
+    }
+
+    /**
+     * @return the files currently spooled, oldest first
+     */
+    public List<File> getSpooledFilesOldestFirst()
+    {
+        if (coordinator != null) {
+            // Pick up the files committed by the other writers
+            resyncSpooledFiles(listSpooledFiles());
+        }
+        return getSpooledFileList();
+    }
+
+    /**
+     * @return true if the file was handed to the EventHandler, false if it was already picked up
+     */
+    private boolean handleFile(final File file)
+    {
+        final long throttledNanos = flushRateLimiter.acquire(file.length());
+        if (throttledNanos > 0) {
+            throttleTimer.update(throttledNanos, TimeUnit.NANOSECONDS);
+        }
+
+        // Move files aside, to avoid sending dups (the handler can take longer than the flushing period)
+        unspooled(file);
+        final File lockedFile = renameFile(file, lockDirectory);
+        if (!lockedFile.exists()) {
+            // Already picked up (e.g. migrated to another location on startup), or the rename failed
+            return false;
+        }
+        final CallbackHandler callbackHandler = new CallbackHandler()
+        {
+            @Override
+            public synchronized void onError(final Throwable t, final File file)
+            {
+                log.warn("Error trying to flush file {}: {}", file, t.getLocalizedMessage());
+
+                if (file != null && file.exists()) {
+                    quarantineFile(lockedFile, String.valueOf(t));
+                }
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+                // Delete the file
+                if (!file.exists()) {
+                    log.warn("Trying to delete a file that does not exist: {}", file);
+                }
+                else if (!file.delete()) {
+                    log.warn("Unable to delete file {}", file);
+                }
+                log.debug("Deleted [{}]", file);
+
+                quarantine.flushed(file.getName());
+                deleteRecordBoundaries(file.getName());
+                if (watermarkTracker != null) {
+                    watermarkTracker.flushed(file.getName());
+                }
+            }
+        };
+
+        try {
+            if (eventHandler instanceof RecordBoundaryHandler) {
+                ((RecordBoundaryHandler) eventHandler).handle(lockedFile, readRecordBoundaries(lockedFile.getName()), callbackHandler);
+            }
+            else {
+                eventHandler.handle(lockedFile, callbackHandler);
+            }
+        }
+        catch (RuntimeException e) {
+            log.warn(String.format("Unknown error transferring events from local disk spool to flusher. Quarantining local file %s to directory %s", file, quarantineDirectory), e);
+            callbackHandler.onError(e, lockedFile);
+        }
+        return true;
+    }
+
+    /**
+     * Save the record boundaries of the current file, if any, and forget them
+     */
+    private void writeRecordBoundaries()
+    {
+        if (currentRecordBoundaries.isEmpty()) {
+            return;
+        }
+
+        final File boundariesFile = new File(recordsDirectory, currentOutputFile.getName());
+        try {
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(boundariesFile)));
+            try {
+                for (final Long boundary : currentRecordBoundaries) {
+                    output.writeLong(boundary);
+                }
+            }
+            finally {
+                output.close();
+            }
+        }
+        catch (IOException e) {
+            // The file is then handled as if its boundaries were unknown
+            log.warn(String.format("Unable to save the record boundaries of %s", currentOutputFile), e);
+        }
+        finally {
+            currentRecordBoundaries.clear();
+        }
+    }
+
+    /**
+     * @return the record boundaries of a spool file, empty if unknown
+     */
+    private long[] readRecordBoundaries(final String fileName)
+    {
+        final File boundariesFile = new File(recordsDirectory, fileName);
+        if (!boundariesFile.exists()) {
+            return new long[0];
+        }
+
+        try {
+            final long[] boundaries = new long[(int) (boundariesFile.length() / 8)];
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(boundariesFile)));
+            try {
+                for (int i = 0; i < boundaries.length; i++) {
+                    boundaries[i] = input.readLong();
                 }
             }
+            finally {
+                input.close();
+            }
+            return boundaries;
+        }
+        catch (IOException e) {
+            log.warn(String.format("Unable to read the record boundaries of %s", fileName), e);
+            return new long[0];
+        }
+    }
+
+    private void deleteRecordBoundaries(final String fileName)
+    {
+        final File boundariesFile = new File(recordsDirectory, fileName);
+        if (boundariesFile.exists() && !boundariesFile.delete()) {
+            log.warn("Unable to delete the record boundaries {}", boundariesFile);
         }
+    }
 
-        currentlyFlushing.set(false);
+    private void quarantineFile(final File file, final String reason)
+    {
+        final File quarantinedFile = renameFile(file, quarantineDirectory);
+        // The events stay pending for the WatermarkTracker until the file is flushed, or discarded
+        quarantine.quarantined(quarantinedFile, reason);
     }
 
-    private void quarantineFile(final File file)
+    private void publishWatermarks()
     {
-        renameFile(file, quarantineDirectory);
+        if (watermarkTracker != null) {
+            watermarkTracker.publish();
+        }
     }
 
     @Managed(description = "enable/disable flushing to hdfs")
@@ -398,38 +960,275 @@ public class DiskSpoolEventWriter implements EventWriter
         return flushIntervalInSeconds.get();
     }
 
+    @Managed(description = "set the max number of bytes per second sent to hdfs (0 for unlimited)")
+    public void setMaxFlushBytesPerSecond(final long maxBytesPerSecond)
+    {
+        flushRateLimiter.setMaxBytesPerSecond(maxBytesPerSecond);
+    }
+
+    @Managed(description = "get the max number of bytes per second sent to hdfs (0 for unlimited)")
+    public long getMaxFlushBytesPerSecond()
+    {
+        return flushRateLimiter.getMaxBytesPerSecond();
+    }
+
+    @Managed(description = "set the max number of files per second sent to hdfs (0 for unlimited)")
+    public void setMaxFlushFilesPerSecond(final long maxFilesPerSecond)
+    {
+        flushRateLimiter.setMaxFilesPerSecond(maxFilesPerSecond);
+    }
+
+    @Managed(description = "get the max number of files per second sent to hdfs (0 for unlimited)")
+    public long getMaxFlushFilesPerSecond()
+    {
+        return flushRateLimiter.getMaxFilesPerSecond();
+    }
+
+    @Managed(description = "set the number of seconds of unused flush bandwidth which can be used in a burst")
+    public void setFlushBurstInSeconds(final long burstInSeconds)
+    {
+        flushRateLimiter.setBurstInSeconds(burstInSeconds);
+    }
+
+    @Managed(description = "get the number of seconds of unused flush bandwidth which can be used in a burst")
+    public long getFlushBurstInSeconds()
+    {
+        return flushRateLimiter.getBurstInSeconds();
+    }
+
+    @Managed(description = "total time in milliseconds flushes were throttled (across all writers sharing the rate limiter)")
+    public long getFlushThrottledTimeInMillis()
+    {
+        return flushRateLimiter.getThrottledTimeInMillis();
+    }
+
+    /**
+     * The spool is not listed: this is cheap enough to be called on the write path (see SamplingEventWriter). In a
+     * shared spool, the files committed by the other writers are accounted for as of the last flush.
+     *
+     * @return size in kilobytes of disk spool queue not yet written to hdfs
+     */
     @Managed(description = "size in kilobytes of disk spool queue not yet written to hdfs")
     public long getDiskSpoolSize()
     {
-        long size = 0;
+        return spooledBytes.get() / 1024;
+    }
 
-        for (final File file : getSpooledFileList()) {
-            size += file.length();
+    @Managed(description = "number of files in the disk spool queue not yet written to hdfs")
+    public long getSpooledFileCount()
+    {
+        return spooledFiles.size();
+    }
+
+    @Managed(description = "age in seconds of the oldest file not yet written to hdfs (0 if none)")
+    public long getOldestSpooledFileAgeInSeconds()
+    {
+        final Map.Entry<String, File> oldest = spooledFiles.firstEntry();
+        if (oldest == null) {
+            return 0;
         }
+        return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(getNow() - oldest.getValue().lastModified()));
+    }
 
-        return size / 1024;
+    //hook for unit testing
+    protected long getNow()
+    {
+        return System.currentTimeMillis();
+    }
+
+    @Managed(description = "number of files left by a previous run still to be moved back to the spool area")
+    public long getFilesToRecoverCount()
+    {
+        return filesToRecover.get();
+    }
+
+    @Managed(description = "number of files left by a previous run moved back to the spool area")
+    public long getRecoveredFileCount()
+    {
+        return recoveredFiles.get();
+    }
+
+    @Managed(description = "check if files left by a previous run are being recovered")
+    public boolean isRecovering()
+    {
+        return recoveryDone.getCount() > 0;
     }
 
     @Managed(description = "size in kilobytes of quarantined data that could not be written to hdfs")
     public long getQuarantineSize()
     {
-        long size = 0;
+        return quarantine.getSizeInBytes() / 1024;
+    }
 
-        for (final File file : quarantineDirectory.listFiles()) {
-            size += file.length();
-        }
+    @Managed(description = "number of quarantined files that could not be written to hdfs")
+    public long getQuarantinedFileCount()
+    {
+        return quarantine.getFileCount();
+    }
+
+    @Managed(description = "number of quarantined files deleted because the quarantine was over capacity")
+    public long getQuarantineEvictedFileCount()
+    {
+        return quarantine.getEvictedFileCount();
+    }
+
+    /**
+     * @return metadata (failure reason, number of attempts, ...) of all quarantined files, oldest first
+     */
+    public List<QuarantinedFile> getQuarantinedFiles()
+    {
+        return quarantine.getQuarantinedFiles();
+    }
+
+    @Managed(description = "set the max size in kilobytes of the quarantine (0 for unlimited), oldest files are deleted first")
+    public void setMaxQuarantineSize(final long sizeInKilobytes)
+    {
+        log.info("Setting max quarantine size to {} KB", sizeInKilobytes);
+        quarantine.setMaxSizeInBytes(sizeInKilobytes * 1024);
+    }
+
+    @Managed(description = "get the max size in kilobytes of the quarantine (0 for unlimited)")
+    public long getMaxQuarantineSize()
+    {
+        return quarantine.getMaxSizeInBytes() / 1024;
+    }
+
+    @Managed(description = "set the max age in seconds of quarantined files (0 for unlimited), older files are deleted")
+    public void setMaxQuarantineAgeInSeconds(final long seconds)
+    {
+        log.info("Setting max quarantine age to {} seconds", seconds);
+        quarantine.setMaxAgeInMillis(seconds * 1000);
+    }
+
+    @Managed(description = "get the max age in seconds of quarantined files (0 for unlimited)")
+    public long getMaxQuarantineAgeInSeconds()
+    {
+        return quarantine.getMaxAgeInMillis() / 1000;
+    }
+
+    @Managed(description = "set the max number of quarantined files to reprocess at once")
+    public void setQuarantineReprocessingBatchSize(final long batchSize)
+    {
+        quarantineReprocessingBatchSize.set(batchSize);
+    }
+
+    @Managed(description = "get the max number of quarantined files to reprocess at once")
+    public long getQuarantineReprocessingBatchSize()
+    {
+        return quarantineReprocessingBatchSize.get();
+    }
+
+    @Managed(description = "set the delay in seconds between two batches of quarantined files to reprocess")
+    public void setQuarantineReprocessingIntervalInSeconds(final long seconds)
+    {
+        quarantineReprocessingIntervalInSeconds.set(seconds);
+    }
+
+    @Managed(description = "get the delay in seconds between two batches of quarantined files to reprocess")
+    public long getQuarantineReprocessingIntervalInSeconds()
+    {
+        return quarantineReprocessingIntervalInSeconds.get();
+    }
+
+    @Managed(description = "check if quarantined files are being reprocessed")
+    public boolean isReprocessingQuarantinedFiles()
+    {
+        return currentlyReprocessing.get();
+    }
+
+    @Managed(description = "set the time in seconds after which a quarantined file retry without outcome is forgotten")
+    public void setQuarantineRetryTimeoutInSeconds(final long seconds)
+    {
+        quarantine.setRetryTimeoutInMillis(seconds * 1000);
+    }
 
-        return size / 1024;
+    @Managed(description = "get the time in seconds after which a quarantined file retry without outcome is forgotten")
+    public long getQuarantineRetryTimeoutInSeconds()
+    {
+        return quarantine.getRetryTimeoutInMillis() / 1000;
     }
 
+    @Managed(description = "count of quarantined file retries forgotten because the handler never reported on them")
+    public long getExpiredQuarantineRetryCount()
+    {
+        return quarantine.getExpiredRetryCount();
+    }
+
+    /**
+     * Send quarantined files back to the EventHandler, oldest first. Files are sent from the flusher thread, by batches
+     * of quarantineReprocessingBatchSize files, every quarantineReprocessingIntervalInSeconds seconds, until all files
+     * quarantined before this call have been retried once. This call returns immediately.
+     */
     @Managed(description = "attempt to process quarantined files")
-    public synchronized void processQuarantinedFiles()
+    public void processQuarantinedFiles()
+    {
+        if (!currentlyReprocessing.compareAndSet(false, true)) {
+            log.info("Quarantined files are already being reprocessed");
+            return;
+        }
+
+        scheduleReprocessing(quarantine.getFailureSequence(), 0);
+    }
+
+    private void scheduleReprocessing(final long quarantinedBefore, final long delayInSeconds)
     {
-        for (final File file : quarantineDirectory.listFiles()) {
-            if (file.isFile()) {
-                renameFile(file, spoolDirectory);
+        try {
+            executor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    reprocessQuarantinedFiles(quarantinedBefore);
+                }
+            }, delayInSeconds, TimeUnit.SECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // We've been asked to shutdown
+            currentlyReprocessing.set(false);
+        }
+    }
+
+    private void reprocessQuarantinedFiles(final long quarantinedBefore)
+    {
+        // Keep the EventHandler single-threaded: wait for the current flush, if any (and, in a shared spool, our turn)
+        if (!currentlyFlushing.compareAndSet(false, true)) {
+            scheduleReprocessing(quarantinedBefore, flushIntervalInSeconds.get());
+            return;
+        }
+
+        try {
+            if (!lockSharedSpool()) {
+                scheduleReprocessing(quarantinedBefore, flushIntervalInSeconds.get());
+                return;
+            }
+
+            try {
+                final List<File> files = quarantine.takeOldest((int) quarantineReprocessingBatchSize.get(), quarantinedBefore);
+                if (files.isEmpty()) {
+                    log.info("Done reprocessing quarantined files");
+                    currentlyReprocessing.set(false);
+                    return;
+                }
+
+                log.info("Reprocessing {} quarantined files", files.size());
+                for (final File file : files) {
+                    handleFile(file);
+                }
             }
+            finally {
+                unlockSharedSpool();
+            }
+        }
+        catch (RuntimeException e) {
+            log.warn("Error reprocessing quarantined files", e);
+            currentlyReprocessing.set(false);
+            return;
+        }
+        finally {
+            currentlyFlushing.set(false);
         }
+
+        scheduleReprocessing(quarantinedBefore, quarantineReprocessingIntervalInSeconds.get());
     }
 
     @Managed(description = "count of events that could not be serialized from memory to disk")
@@ -438,9 +1237,23 @@ public class DiskSpoolEventWriter implements EventWriter
         return eventSerializationFailures.get();
     }
 
+    @Managed(description = "events written, bytes written, serialization failures and events dropped, by event type")
+    public String getEventTypeStats()
+    {
+        return eventTypeCounters.toString();
+    }
+
+    /**
+     * @return counters by event type
+     */
+    public EventTypeCounters getEventTypeCounters()
+    {
+        return eventTypeCounters;
+    }
+
     private File renameFile(final File srcFile, final File destDir)
     {
-        final File destinationOutputFile = new File(destDir, srcFile.getName());
+        final File destinationOutputFile = layout.getFile(destDir, srcFile.getName());
 
         try {
             FileUtils.moveFile(srcFile, destinationOutputFile);
@@ -452,4 +1265,185 @@ public class DiskSpoolEventWriter implements EventWriter
 
         return destinationOutputFile;
     }
+
+    /**
+     * Configuration of a DiskSpoolEventWriter. Only the spool path, the executor and the EventHandler (or the
+     * EventHandlers of a fan-out) are required.
+     */
+    public static class Builder
+    {
+        private final String spoolPath;
+        private final ScheduledExecutorService executor;
+
+        private EventHandler eventHandler = null;
+        private Map<String, EventHandler> eventHandlers = null;
+        private boolean flushEnabled = true;
+        private long flushIntervalInSeconds = 60;
+        private SyncType syncType = SyncType.NONE;
+        private int syncBatchSize = 1;
+        private CompressionCodec codec = new NoCompressionCodec();
+        private EventSerializer eventSerializer = null;
+        private FlushRateLimiter flushRateLimiter = new FlushRateLimiter();
+        private SpoolLayout layout = SpoolLayout.FLAT;
+        private boolean sharedSpool = false;
+        private WatermarkTracker watermarkTracker = null;
+        private long recordBoundaryIntervalInBytes = 0;
+
+        /**
+         * @param spoolPath directory for the spool
+         * @param executor  executor for the flusher
+         */
+        public Builder(final String spoolPath, final ScheduledExecutorService executor)
+        {
+            this.spoolPath = spoolPath;
+            this.executor = executor;
+        }
+
+        /**
+         * @param eventHandler EventHandler receiving the spooled files
+         * @return this builder
+         */
+        public Builder withEventHandler(final EventHandler eventHandler)
+        {
+            this.eventHandler = eventHandler;
+            this.eventHandlers = null;
+            return this;
+        }
+
+        /**
+         * @param eventHandlers EventHandler of each destination, by destination name. Each file is sent to all
+         *                      destinations, and deleted once all of them have acknowledged it (see FanOutEventHandler)
+         * @return this builder
+         */
+        public Builder withEventHandlers(final Map<String, EventHandler> eventHandlers)
+        {
+            this.eventHandlers = eventHandlers;
+            this.eventHandler = null;
+            return this;
+        }
+
+        /**
+         * @param flushEnabled whether spooled files are handed to the EventHandler (default true)
+         * @return this builder
+         */
+        public Builder withFlushEnabled(final boolean flushEnabled)
+        {
+            this.flushEnabled = flushEnabled;
+            return this;
+        }
+
+        /**
+         * @param flushIntervalInSeconds delay between flushes (default 60)
+         * @return this builder
+         */
+        public Builder withFlushIntervalInSeconds(final long flushIntervalInSeconds)
+        {
+            this.flushIntervalInSeconds = flushIntervalInSeconds;
+            return this;
+        }
+
+        /**
+         * @param syncType      type of writes (default NONE)
+         * @param syncBatchSize number of events between two flushes or syncs
+         * @return this builder
+         */
+        public Builder withSyncType(final SyncType syncType, final int syncBatchSize)
+        {
+            this.syncType = syncType;
+            this.syncBatchSize = syncBatchSize;
+            return this;
+        }
+
+        /**
+         * @param codec compression of the spool files (default none)
+         * @return this builder
+         */
+        public Builder withCodec(final CompressionCodec codec)
+        {
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * @param eventSerializer event serializer, ObjectOutputEventSerializer if null (default)
+         * @return this builder
+         */
+        public Builder withEventSerializer(final EventSerializer eventSerializer)
+        {
+            this.eventSerializer = eventSerializer;
+            return this;
+        }
+
+        /**
+         * @param flushRateLimiter limits the rate at which spooled files are handed to the EventHandler. It can be
+         *                         shared between writers to cap the total bandwidth (default unlimited)
+         * @return this builder
+         */
+        public Builder withFlushRateLimiter(final FlushRateLimiter flushRateLimiter)
+        {
+            this.flushRateLimiter = flushRateLimiter;
+            return this;
+        }
+
+        /**
+         * @param layout layout of the spool, locked and quarantine directories (default FLAT). Files written with
+         *               another layout are migrated on startup
+         * @return this builder
+         */
+        public Builder withLayout(final SpoolLayout layout)
+        {
+            this.layout = layout;
+            return this;
+        }
+
+        /**
+         * @param sharedSpool true if the spool directory is shared with other writers, typically in other processes
+         *                    (default false). File names are made unique across writers, only one writer flushes at a
+         *                    time and files of live writers are left alone on startup
+         * @return this builder
+         */
+        public Builder withSharedSpool(final boolean sharedSpool)
+        {
+            this.sharedSpool = sharedSpool;
+            return this;
+        }
+
+        /**
+         * @param watermarkTracker tracks the completeness of each event time bucket (see WatermarkTracker), may be null
+         *                         (default)
+         * @return this builder
+         */
+        public Builder withWatermarkTracker(final WatermarkTracker watermarkTracker)
+        {
+            this.watermarkTracker = watermarkTracker;
+            return this;
+        }
+
+        /**
+         * @param recordBoundaryIntervalInBytes approximate number of bytes between two record boundaries, handed to
+         *                                      EventHandlers implementing RecordBoundaryHandler (default 0: none)
+         * @return this builder
+         */
+        public Builder withRecordBoundaryIntervalInBytes(final long recordBoundaryIntervalInBytes)
+        {
+            this.recordBoundaryIntervalInBytes = recordBoundaryIntervalInBytes;
+            return this;
+        }
+
+        public DiskSpoolEventWriter build()
+        {
+            return new DiskSpoolEventWriter(this);
+        }
+
+        private EventHandler getEventHandler()
+        {
+            if (eventHandlers != null) {
+                return new FanOutEventHandler(eventHandlers, new File(spoolPath, "_acks"));
+            }
+            if (eventHandler == null) {
+                throw new IllegalArgumentException("Eventwriter misconfigured - no EventHandler specified");
+            }
+            return eventHandler;
+        }
+    }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sink for batches of in-memory events, see HybridEventWriter.
+ */
+public interface EventBatchHandler
+{
+    /**
+     * Ship a batch of events. On failure, the caller is responsible for retrying the events.
+     *
+     * @param events events to ship
+     * @throws IOException if the batch could not be shipped
+     */
+    public void handle(List<Event> events) throws IOException;
+}
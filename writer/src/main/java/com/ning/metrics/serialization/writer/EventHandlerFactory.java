@@ -0,0 +1,29 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+/**
+ * Creates EventHandlers for writers spooling to several directories, one handler per directory
+ */
+public interface EventHandlerFactory
+{
+    /**
+     * @param spoolPath spool directory whose files the handler will get
+     * @return a new EventHandler, only used by the writer for spoolPath
+     */
+    public EventHandler createEventHandler(String spoolPath);
+}
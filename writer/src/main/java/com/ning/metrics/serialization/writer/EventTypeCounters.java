@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per event type (see Event.getName()) counters of events written, bytes written, serialization failures and events
+ * dropped. Counters are yammer Counters, registered in the default metrics registry (scope: event type), and updated
+ * without locking.
+ * <p/>
+ * To bound memory and the number of metrics, at most maxEventTypes event types are tracked: the others are counted
+ * together, under OTHER.
+ */
+public class EventTypeCounters
+{
+    public static final String OTHER = "_other";
+
+    private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+    private final Class<?> owner;
+    private final String prefix;
+    private final int maxEventTypes;
+
+    /**
+     * @param owner         class the metrics are registered under
+     * @param prefix        prefix of the metric names, e.g. the spool path
+     * @param maxEventTypes max number of event types tracked individually
+     */
+    public EventTypeCounters(final Class<?> owner, final String prefix, final int maxEventTypes)
+    {
+        this.owner = owner;
+        this.prefix = prefix;
+        this.maxEventTypes = maxEventTypes;
+    }
+
+    public void written(final String eventName, final long bytes)
+    {
+        final Counters eventCounters = getCounters(eventName);
+        eventCounters.eventsWritten.inc();
+        eventCounters.bytesWritten.inc(bytes);
+    }
+
+    /**
+     * Attribute bytes to an event type, without counting an event
+     */
+    public void bytesWritten(final String eventName, final long bytes)
+    {
+        getCounters(eventName).bytesWritten.inc(bytes);
+    }
+
+    public void serializationFailed(final String eventName)
+    {
+        getCounters(eventName).serializationFailures.inc();
+    }
+
+    public void dropped(final String eventName)
+    {
+        getCounters(eventName).eventsDropped.inc();
+    }
+
+    /**
+     * @return counters of each event type tracked: events written, bytes written, serialization failures, events dropped
+     */
+    public Map<String, long[]> getSnapshot()
+    {
+        final Map<String, long[]> snapshot = new TreeMap<String, long[]>();
+        for (final Map.Entry<String, Counters> entry : counters.entrySet()) {
+            final Counters eventCounters = entry.getValue();
+            snapshot.put(entry.getKey(), new long[]{
+                eventCounters.eventsWritten.count(),
+                eventCounters.bytesWritten.count(),
+                eventCounters.serializationFailures.count(),
+                eventCounters.eventsDropped.count()
+            });
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (final Map.Entry<String, long[]> entry : getSnapshot().entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            final long[] values = entry.getValue();
+            builder.append(String.format("%s: %d events (%d bytes), %d failures, %d dropped", entry.getKey(), values[0], values[1], values[2], values[3]));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Remove all metrics from the registry
+     */
+    public void unregister()
+    {
+        for (final Counters eventCounters : counters.values()) {
+            for (final MetricName name : eventCounters.names) {
+                Metrics.defaultRegistry().removeMetric(name);
+            }
+        }
+        counters.clear();
+    }
+
+    private Counters getCounters(final String eventName)
+    {
+        String key = eventName == null ? OTHER : eventName;
+        Counters eventCounters = counters.get(key);
+        if (eventCounters != null) {
+            return eventCounters;
+        }
+
+        // The size check is racy: a few more types than maxEventTypes may be tracked
+        if (counters.size() >= maxEventTypes) {
+            key = OTHER;
+            eventCounters = counters.get(key);
+            if (eventCounters != null) {
+                return eventCounters;
+            }
+        }
+
+        // The registry returns the existing counters if another thread created them concurrently
+        eventCounters = new Counters(key);
+        final Counters existing = counters.putIfAbsent(key, eventCounters);
+        return existing == null ? eventCounters : existing;
+    }
+
+    private final class Counters
+    {
+        private final List<MetricName> names = new ArrayList<MetricName>();
+        private final Counter eventsWritten;
+        private final Counter bytesWritten;
+        private final Counter serializationFailures;
+        private final Counter eventsDropped;
+
+        private Counters(final String eventName)
+        {
+            eventsWritten = newCounter("eventsWritten", eventName);
+            bytesWritten = newCounter("bytesWritten", eventName);
+            serializationFailures = newCounter("serializationFailures", eventName);
+            eventsDropped = newCounter("eventsDropped", eventName);
+        }
+
+        private Counter newCounter(final String counter, final String eventName)
+        {
+            final MetricName name = new MetricName(owner, String.format("%s-%s", prefix, counter), eventName);
+            names.add(name);
+            return Metrics.newCounter(name);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.flow.Subscriber;
+import com.ning.metrics.serialization.flow.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscriber writing the events it receives to an EventWriter, with demand-based backpressure.
+ * <p/>
+ * Events are requested by batches of commitBatchSize: once a batch has been written, it is committed and the next one
+ * is requested. If the spool (optional) is larger than maxSpoolSizeInKB, no more events are requested until it drains
+ * below the threshold: the spool size is re-checked every pressureRecheckIntervalInMillis on the given executor.
+ * <p/>
+ * On completion or error of the Publisher, pending events are force committed. If the writer fails, the subscription
+ * is cancelled and pending events are rolled back.
+ */
+public class EventWriterSubscriber implements Subscriber<Event>
+{
+    private static final Logger log = LoggerFactory.getLogger(EventWriterSubscriber.class);
+
+    private final EventWriter writer;
+    private final DiskSpoolEventWriter spool;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong commitBatchSize;
+    private final AtomicLong maxSpoolSizeInKB;
+    private final AtomicLong pressureRecheckIntervalInMillis = new AtomicLong(1000);
+    private final AtomicLong writtenEvents = new AtomicLong(0);
+    private final AtomicLong pressurePauses = new AtomicLong(0);
+
+    private Subscription subscription = null;
+    private long uncommittedEvents = 0;
+    // Size of the batch requested last: commitBatchSize may change while it is in flight
+    private long requestedEvents = 0;
+    private boolean paused = false;
+    private boolean done = false;
+
+    private final Runnable resumeTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            resume();
+        }
+    };
+
+    /**
+     * @param writer           writer for the events received
+     * @param spool            spool to monitor for pressure, may be null
+     * @param executor         executor used to re-check the spool size when paused, may be null if spool is null
+     * @param commitBatchSize  number of events requested, and written, before each commit
+     * @param maxSpoolSizeInKB max spool size before pausing demand (0 for unlimited)
+     */
+    public EventWriterSubscriber(
+        final EventWriter writer,
+        final DiskSpoolEventWriter spool,
+        final ScheduledExecutorService executor,
+        final long commitBatchSize,
+        final long maxSpoolSizeInKB
+    )
+    {
+        if (commitBatchSize <= 0) {
+            throw new IllegalArgumentException("commitBatchSize must be positive");
+        }
+        if (spool != null && executor == null) {
+            throw new IllegalArgumentException("An executor is required to monitor the spool");
+        }
+
+        this.writer = writer;
+        this.spool = spool;
+        this.executor = executor;
+        this.commitBatchSize = new AtomicLong(commitBatchSize);
+        this.maxSpoolSizeInKB = new AtomicLong(maxSpoolSizeInKB);
+    }
+
+    public EventWriterSubscriber(final EventWriter writer, final long commitBatchSize)
+    {
+        this(writer, null, null, commitBatchSize, 0);
+    }
+
+    @Override
+    public synchronized void onSubscribe(final Subscription subscription)
+    {
+        if (this.subscription != null) {
+            log.warn("EventWriterSubscriber already subscribed, cancelling new subscription");
+            subscription.cancel();
+            return;
+        }
+
+        this.subscription = subscription;
+        requestMore();
+    }
+
+    @Override
+    public synchronized void onNext(final Event event)
+    {
+        if (done) {
+            return;
+        }
+
+        try {
+            writer.write(event);
+            writtenEvents.incrementAndGet();
+            uncommittedEvents++;
+
+            if (uncommittedEvents >= requestedEvents) {
+                writer.commit();
+                uncommittedEvents = 0;
+                requestMore();
+            }
+        }
+        catch (IOException e) {
+            log.error("Unable to write event, cancelling subscription", e);
+            done = true;
+            subscription.cancel();
+            rollback();
+        }
+    }
+
+    @Override
+    public synchronized void onError(final Throwable throwable)
+    {
+        log.warn("Publisher failed, committing pending events", throwable);
+        terminate();
+    }
+
+    @Override
+    public synchronized void onComplete()
+    {
+        terminate();
+    }
+
+    private void terminate()
+    {
+        if (done) {
+            return;
+        }
+        done = true;
+
+        try {
+            writer.forceCommit();
+            uncommittedEvents = 0;
+        }
+        catch (IOException e) {
+            log.error("Unable to commit pending events", e);
+            rollback();
+        }
+    }
+
+    private void rollback()
+    {
+        try {
+            writer.rollback();
+        }
+        catch (IOException e) {
+            log.warn("Unable to rollback pending events", e);
+        }
+        uncommittedEvents = 0;
+    }
+
+    private synchronized void resume()
+    {
+        if (!paused) {
+            return;
+        }
+        requestMore();
+    }
+
+    private void requestMore()
+    {
+        if (done) {
+            return;
+        }
+
+        final long maxSize = maxSpoolSizeInKB.get();
+        if (spool != null && maxSize > 0 && getSpoolSizeInKB() > maxSize) {
+            if (!paused) {
+                log.info("Spool is above {} KB, pausing demand", maxSize);
+                pressurePauses.incrementAndGet();
+            }
+            paused = true;
+            executor.schedule(resumeTask, pressureRecheckIntervalInMillis.get(), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        if (paused) {
+            log.info("Spool is below {} KB, resuming demand", maxSize);
+            paused = false;
+        }
+        requestedEvents = commitBatchSize.get();
+        subscription.request(requestedEvents);
+    }
+
+    //hook for unit testing
+    protected long getSpoolSizeInKB()
+    {
+        return spool.getDiskSpoolSize();
+    }
+
+    @Managed(description = "number of events written")
+    public long getWrittenEventCount()
+    {
+        return writtenEvents.get();
+    }
+
+    @Managed(description = "number of times demand was paused because of spool pressure")
+    public long getPressurePauseCount()
+    {
+        return pressurePauses.get();
+    }
+
+    @Managed(description = "whether demand is paused because of spool pressure")
+    public synchronized boolean isPaused()
+    {
+        return paused;
+    }
+
+    @Managed(description = "set the number of events requested before each commit, from the next batch on")
+    public void setCommitBatchSize(final long size)
+    {
+        if (size > 0) {
+            commitBatchSize.set(size);
+        }
+    }
+
+    @Managed(description = "the number of events requested before each commit")
+    public long getCommitBatchSize()
+    {
+        return commitBatchSize.get();
+    }
+
+    @Managed(description = "set the max spool size before pausing demand (0 for unlimited)")
+    public void setMaxSpoolSizeInKB(final long size)
+    {
+        maxSpoolSizeInKB.set(size);
+    }
+
+    @Managed(description = "the max spool size before pausing demand")
+    public long getMaxSpoolSizeInKB()
+    {
+        return maxSpoolSizeInKB.get();
+    }
+
+    @Managed(description = "set the delay in milliseconds between spool size checks while paused")
+    public void setPressureRecheckIntervalInMillis(final long millis)
+    {
+        pressureRecheckIntervalInMillis.set(millis);
+    }
+
+    @Managed(description = "the delay in milliseconds between spool size checks while paused")
+    public long getPressureRecheckIntervalInMillis()
+    {
+        return pressureRecheckIntervalInMillis.get();
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * EventHandler sending each spooled file to several destinations, each with its own EventHandler, so that the events
+ * are serialized and spooled only once.
+ * <p/>
+ * Files are reference counted: success is reported to the DiskSpoolEventWriter (which then deletes the file) only once
+ * every destination has acknowledged it. If any destination fails, the file is reported as failed and quarantined; when
+ * it is reprocessed, it is only sent to the destinations which did not acknowledge it yet.
+ * <p/>
+ * Acknowledgements are journaled, one file per destination under the acks directory, so that destinations are not
+ * sent duplicates after a restart. Journals are compacted on startup, once mostly made of files which are gone, and
+ * when a partially acknowledged file is evicted from the quarantine (see DiscardedFileListener). Evictions are also
+ * forwarded to the destinations implementing DiscardedFileListener, and record boundaries to the destinations
+ * implementing RecordBoundaryHandler.
+ */
+public class FanOutEventHandler implements EventHandler, RecordBoundaryHandler, DiscardedFileListener
+{
+    private static final Logger log = LoggerFactory.getLogger(FanOutEventHandler.class);
+    private static final String JOURNAL_SUFFIX = ".acks";
+    // Min number of journaled acknowledgements before compacting the journals
+    private static final int COMPACTION_THRESHOLD = 10000;
+
+    private final File acksDirectory;
+    private final List<Destination> destinations = new ArrayList<Destination>();
+    // File name -> destinations which acknowledged it, for files not acknowledged by all destinations yet
+    private final Map<String, Set<String>> acks = new HashMap<String, Set<String>>();
+
+    // Number of entries across all journals
+    private long journalEntries = 0;
+
+    /**
+     * @param eventHandlers  EventHandler of each destination, by destination name
+     * @param acksDirectory  directory for the acknowledgement journals
+     */
+    public FanOutEventHandler(final Map<String, EventHandler> eventHandlers, final File acksDirectory)
+    {
+        if (eventHandlers.isEmpty()) {
+            throw new IllegalArgumentException("Eventwriter misconfigured - no destination specified");
+        }
+        if (!acksDirectory.exists() && !acksDirectory.mkdirs()) {
+            throw new IllegalArgumentException(String.format("Eventwriter misconfigured - couldn't create %s", acksDirectory));
+        }
+
+        this.acksDirectory = acksDirectory;
+        for (final Map.Entry<String, EventHandler> entry : eventHandlers.entrySet()) {
+            destinations.add(new Destination(entry.getKey(), entry.getValue()));
+        }
+
+        loadJournals();
+    }
+
+    @Override
+    public void handle(final File file, final CallbackHandler handler)
+    {
+        handle(file, new long[0], handler);
+    }
+
+    @Override
+    public void handle(final File file, final long[] recordBoundaries, final CallbackHandler handler)
+    {
+        final String fileName = file.getName();
+        final List<Destination> pendingDestinations = new ArrayList<Destination>();
+        synchronized (this) {
+            final Set<String> acknowledged = acks.get(fileName);
+            for (final Destination destination : destinations) {
+                if (acknowledged == null || !acknowledged.contains(destination.name)) {
+                    pendingDestinations.add(destination);
+                }
+            }
+        }
+
+        if (pendingDestinations.isEmpty()) {
+            // All acknowledged before a restart
+            forget(fileName);
+            handler.onSuccess(file);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(pendingDestinations.size());
+        final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+        for (final Destination destination : pendingDestinations) {
+            final CallbackHandler destinationHandler = new CallbackHandler()
+            {
+                @Override
+                public void onError(final Throwable t, final File obj)
+                {
+                    log.warn("Error trying to flush file {} to {}: {}", new Object[]{file, destination.name, t.getLocalizedMessage()});
+                    destination.failures.incrementAndGet();
+                    firstError.compareAndSet(null, t);
+                    done();
+                }
+
+                @Override
+                public void onSuccess(final File obj)
+                {
+                    destination.handled.incrementAndGet();
+                    acknowledge(destination, fileName);
+                    done();
+                }
+
+                private void done()
+                {
+                    if (remaining.decrementAndGet() > 0) {
+                        return;
+                    }
+
+                    if (firstError.get() == null) {
+                        forget(fileName);
+                        handler.onSuccess(file);
+                    }
+                    else {
+                        handler.onError(firstError.get(), file);
+                    }
+                }
+            };
+
+            try {
+                if (destination.eventHandler instanceof RecordBoundaryHandler) {
+                    ((RecordBoundaryHandler) destination.eventHandler).handle(file, recordBoundaries, destinationHandler);
+                }
+                else {
+                    destination.eventHandler.handle(file, destinationHandler);
+                }
+            }
+            catch (RuntimeException e) {
+                destinationHandler.onError(e, file);
+            }
+        }
+    }
+
+    private synchronized void acknowledge(final Destination destination, final String fileName)
+    {
+        Set<String> acknowledged = acks.get(fileName);
+        if (acknowledged == null) {
+            acknowledged = new HashSet<String>();
+            acks.put(fileName, acknowledged);
+        }
+        acknowledged.add(destination.name);
+
+        try {
+            destination.journal.write((fileName + "\n").getBytes("UTF-8"));
+            destination.journal.flush();
+            journalEntries++;
+        }
+        catch (IOException e) {
+            // Worst case, the file is sent again to this destination after a restart
+            log.warn(String.format("Unable to journal acknowledgement of %s by %s", fileName, destination.name), e);
+        }
+    }
+
+    private synchronized void forget(final String fileName)
+    {
+        acks.remove(fileName);
+
+        if (journalEntries >= COMPACTION_THRESHOLD && journalEntries > 2 * acks.size()) {
+            try {
+                compactJournals();
+            }
+            catch (IOException e) {
+                log.warn("Unable to compact the acknowledgement journals", e);
+            }
+        }
+    }
+
+    /**
+     * Drop the acknowledgements of a file which won't be handed to us again
+     *
+     * @param file file which has been deleted
+     */
+    @Override
+    public void discarded(final File file)
+    {
+        synchronized (this) {
+            if (acks.remove(file.getName()) != null) {
+                try {
+                    compactJournals();
+                }
+                catch (IOException e) {
+                    log.warn("Unable to compact the acknowledgement journals", e);
+                }
+            }
+        }
+
+        for (final Destination destination : destinations) {
+            if (destination.eventHandler instanceof DiscardedFileListener) {
+                ((DiscardedFileListener) destination.eventHandler).discarded(file);
+            }
+        }
+    }
+
+    /**
+     * Load the acknowledgements of files still in flight, and rewrite the journals without the others
+     */
+    private synchronized void loadJournals()
+    {
+        for (final Destination destination : destinations) {
+            final File journal = getJournal(destination);
+            if (!journal.exists()) {
+                continue;
+            }
+
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(journal));
+                String fileName;
+                while ((fileName = reader.readLine()) != null) {
+                    if (fileName.length() == 0) {
+                        continue;
+                    }
+                    Set<String> acknowledged = acks.get(fileName);
+                    if (acknowledged == null) {
+                        acknowledged = new HashSet<String>();
+                        acks.put(fileName, acknowledged);
+                    }
+                    acknowledged.add(destination.name);
+                }
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to read journal %s", journal), e);
+            }
+            finally {
+                IOUtils.closeQuietly(reader);
+            }
+        }
+
+        // Files acknowledged by all destinations have been deleted
+        final List<String> fileNames = new ArrayList<String>(acks.keySet());
+        for (final String fileName : fileNames) {
+            if (acks.get(fileName).size() >= destinations.size()) {
+                acks.remove(fileName);
+            }
+        }
+
+        try {
+            compactJournals();
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Eventwriter misconfigured - couldn't write the acknowledgement journals", e);
+        }
+    }
+
+    /**
+     * Rewrite the journals with the acknowledgements of the files still in flight only
+     */
+    private void compactJournals() throws IOException
+    {
+        journalEntries = 0;
+        for (final Destination destination : destinations) {
+            IOUtils.closeQuietly(destination.journal);
+
+            final OutputStream journal = new FileOutputStream(getJournal(destination));
+            for (final Map.Entry<String, Set<String>> entry : acks.entrySet()) {
+                if (entry.getValue().contains(destination.name)) {
+                    journal.write((entry.getKey() + "\n").getBytes("UTF-8"));
+                    journalEntries++;
+                }
+            }
+            journal.flush();
+            destination.journal = journal;
+        }
+    }
+
+    private File getJournal(final Destination destination)
+    {
+        return new File(acksDirectory, destination.name + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Close the acknowledgement journals
+     */
+    public synchronized void close()
+    {
+        for (final Destination destination : destinations) {
+            IOUtils.closeQuietly(destination.journal);
+        }
+    }
+
+    @Managed(description = "number of files acknowledged by some destinations but not all")
+    public synchronized int getPartiallyAcknowledgedFileCount()
+    {
+        return acks.size();
+    }
+
+    @Managed(description = "number of files handled and failures, by destination")
+    public String getDestinationStats()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (final Destination destination : destinations) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(String.format("%s: %d files (%d failures)", destination.name, destination.handled.get(), destination.failures.get()));
+        }
+        return builder.toString();
+    }
+
+    private static final class Destination
+    {
+        private final String name;
+        private final EventHandler eventHandler;
+        private final AtomicLong handled = new AtomicLong(0);
+        private final AtomicLong failures = new AtomicLong(0);
+        // Guarded by the FanOutEventHandler lock
+        private OutputStream journal;
+
+        private Destination(final String name, final EventHandler eventHandler)
+        {
+            this.name = name;
+            this.eventHandler = eventHandler;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Priority class for spooled events, see PrioritizedDiskSpoolEventWriter.
+ */
+public class FlushLane
+{
+    private final String name;
+    private final int weight;
+    private final Set<String> eventNames;
+
+    /**
+     * @param name       name of the lane, used as spool subdirectory
+     * @param weight     max number of files flushed for this lane in each flush round
+     * @param eventNames names of the events (see Event.getName()) going to this lane
+     */
+    public FlushLane(final String name, final int weight, final Set<String> eventNames)
+    {
+        if (weight <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid weight for lane %s: %d", name, weight));
+        }
+
+        this.name = name;
+        this.weight = weight;
+        this.eventNames = Collections.unmodifiableSet(new HashSet<String>(eventNames));
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    public Set<String> getEventNames()
+    {
+        return eventNames;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FlushLane{" +
+            "name='" + name + '\'' +
+            ", weight=" + weight +
+            ", eventNames=" + eventNames +
+            '}';
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the rate at which spooled files are handed to the EventHandler, both in bytes and files per
+ * second. Up to burstInSeconds worth of unused tokens can be accumulated, so that a flush after an idle period can go
+ * at full speed for a little while.
+ * <p/>
+ * A rate of 0 means unlimited. The same limiter can be shared by several DiskSpoolEventWriter, to cap the total
+ * bandwidth used on the host.
+ */
+public class FlushRateLimiter
+{
+    private static final Logger log = LoggerFactory.getLogger(FlushRateLimiter.class);
+
+    private final AtomicLong throttledNanos = new AtomicLong(0);
+    private final AtomicLong throttledFiles = new AtomicLong(0);
+
+    // Guarded by this
+    private long maxBytesPerSecond;
+    private long maxFilesPerSecond;
+    private long burstInSeconds;
+    private double availableBytes;
+    private double availableFiles;
+    private long lastRefillNanos;
+
+    /**
+     * Unlimited rate limiter
+     */
+    public FlushRateLimiter()
+    {
+        this(0, 0, 1);
+    }
+
+    public FlushRateLimiter(final long maxBytesPerSecond, final long maxFilesPerSecond, final long burstInSeconds)
+    {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.maxFilesPerSecond = maxFilesPerSecond;
+        this.burstInSeconds = burstInSeconds;
+
+        // Start with a full bucket
+        this.availableBytes = maxBytesPerSecond * burstInSeconds;
+        this.availableFiles = maxFilesPerSecond * burstInSeconds;
+        this.lastRefillNanos = getNanos();
+    }
+
+    /**
+     * Wait until a file of the given size can be sent
+     *
+     * @param sizeInBytes size of the file to send
+     * @return time waited, in nanoseconds
+     */
+    public long acquire(final long sizeInBytes)
+    {
+        final long waitNanos = reserve(sizeInBytes);
+        if (waitNanos <= 0) {
+            return 0;
+        }
+
+        log.debug("Throttling flush for {} ms", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        throttledNanos.addAndGet(waitNanos);
+        throttledFiles.incrementAndGet();
+
+        try {
+            sleep(waitNanos);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return waitNanos;
+    }
+
+    private synchronized long reserve(final long sizeInBytes)
+    {
+        refill();
+
+        // Go into debt if needed: the caller waits for the tokens to be refilled, callers after it will wait longer
+        long waitNanos = 0;
+        if (maxBytesPerSecond > 0) {
+            availableBytes -= sizeInBytes;
+            waitNanos = Math.max(waitNanos, nanosToWait(availableBytes, maxBytesPerSecond));
+        }
+        if (maxFilesPerSecond > 0) {
+            availableFiles -= 1;
+            waitNanos = Math.max(waitNanos, nanosToWait(availableFiles, maxFilesPerSecond));
+        }
+
+        return waitNanos;
+    }
+
+    private static long nanosToWait(final double available, final long ratePerSecond)
+    {
+        return available >= 0 ? 0 : (long) (-available * TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+    }
+
+    private void refill()
+    {
+        final long now = getNanos();
+        final double elapsedSeconds = (double) (now - lastRefillNanos) / TimeUnit.SECONDS.toNanos(1);
+        lastRefillNanos = now;
+
+        availableBytes = Math.min(maxBytesPerSecond * burstInSeconds, availableBytes + elapsedSeconds * maxBytesPerSecond);
+        availableFiles = Math.min(maxFilesPerSecond * burstInSeconds, availableFiles + elapsedSeconds * maxFilesPerSecond);
+    }
+
+    /**
+     * Get the current nanoTime. This is a unit testing hook.
+     *
+     * @return the current nanoTime
+     */
+    protected long getNanos()
+    {
+        return System.nanoTime();
+    }
+
+    //hook for unit testing
+    protected void sleep(final long nanos) throws InterruptedException
+    {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+
+    @Managed(description = "set the max number of bytes flushed per second (0 for unlimited)")
+    public synchronized void setMaxBytesPerSecond(final long maxBytesPerSecond)
+    {
+        log.info("Setting max flush rate to {} bytes/s", maxBytesPerSecond);
+        refill();
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.availableBytes = Math.min(availableBytes, maxBytesPerSecond * burstInSeconds);
+    }
+
+    @Managed(description = "get the max number of bytes flushed per second (0 for unlimited)")
+    public synchronized long getMaxBytesPerSecond()
+    {
+        return maxBytesPerSecond;
+    }
+
+    @Managed(description = "set the max number of files flushed per second (0 for unlimited)")
+    public synchronized void setMaxFilesPerSecond(final long maxFilesPerSecond)
+    {
+        log.info("Setting max flush rate to {} files/s", maxFilesPerSecond);
+        refill();
+        this.maxFilesPerSecond = maxFilesPerSecond;
+        this.availableFiles = Math.min(availableFiles, maxFilesPerSecond * burstInSeconds);
+    }
+
+    @Managed(description = "get the max number of files flushed per second (0 for unlimited)")
+    public synchronized long getMaxFilesPerSecond()
+    {
+        return maxFilesPerSecond;
+    }
+
+    @Managed(description = "set the number of seconds of unused bandwidth which can be used in a burst")
+    public synchronized void setBurstInSeconds(final long burstInSeconds)
+    {
+        refill();
+        this.burstInSeconds = burstInSeconds;
+        this.availableBytes = Math.min(availableBytes, maxBytesPerSecond * burstInSeconds);
+        this.availableFiles = Math.min(availableFiles, maxFilesPerSecond * burstInSeconds);
+    }
+
+    @Managed(description = "get the number of seconds of unused bandwidth which can be used in a burst")
+    public synchronized long getBurstInSeconds()
+    {
+        return burstInSeconds;
+    }
+
+    @Managed(description = "total time in milliseconds spent waiting for the flush rate limits")
+    public long getThrottledTimeInMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    @Managed(description = "number of files whose flush was delayed by the rate limits")
+    public long getThrottledFileCount()
+    {
+        return throttledFiles.get();
+    }
+}
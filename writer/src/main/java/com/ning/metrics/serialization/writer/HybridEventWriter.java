@@ -0,0 +1,393 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.mogwee.executors.Executors;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.StreamableEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory-first writer. Events are buffered in memory and handed by batches to an EventBatchHandler, without touching
+ * the disk. A delegate writer (typically a DiskSpoolEventWriter) is used as a safety net: events are spilled to it when
+ * <ul>
+ * <li>the memory budget (size of the serialized events buffered or being shipped) is exceeded
+ * <li>the sink is too slow (too many batches waiting to be shipped)
+ * <li>the sink fails to ship a batch
+ * <li>the writer is rolled back or closed
+ * </ul>
+ * <p/>
+ * Like the DiskSpoolEventWriter, this writer never hands off batches automatically: the current batch is shipped when
+ * it is full or on commit. To control this behavior programmatically, use ThresholdEventWriter.
+ * <p/>
+ * Events spilled because a committed batch failed to ship are committed to the delegate writer right away. On rollback,
+ * the current batch and the batches still waiting for the sender are rolled back with the delegate writer. A batch the
+ * sink is already shipping can't be recalled: if the sink succeeds, its events are delivered; if it fails, they are
+ * spilled and follow the next commit or rollback.
+ */
+public class HybridEventWriter implements EventWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(HybridEventWriter.class);
+    private static final int MAX_PENDING_BATCHES = 2;
+
+    private final EventBatchHandler sink;
+    private final EventWriter spoolWriter;
+    private final ExecutorService sender;
+    private final BlockingQueue<Batch> pendingBatches = new ArrayBlockingQueue<Batch>(MAX_PENDING_BATCHES);
+    private final AtomicLong maxBufferedBytes;
+    private final AtomicLong maxBatchSize;
+    private final AtomicLong bufferedBytes = new AtomicLong(0);
+    private final AtomicLong eventsHandedOff = new AtomicLong(0);
+    private final AtomicLong eventsSpilled = new AtomicLong(0);
+    private final AtomicLong failedBatches = new AtomicLong(0);
+
+    private Batch currentBatch = new Batch(0);
+    private boolean acceptsEvents;
+    // Incremented on each commit, to tell committed batches apart
+    private long commitCount = 0;
+
+    public HybridEventWriter(final EventBatchHandler sink, final EventWriter spoolWriter, final long maxBufferedBytes, final long maxBatchSize)
+    {
+        this(sink, spoolWriter, Executors.newSingleThreadExecutor("HybridEventWriter-sender"), maxBufferedBytes, maxBatchSize);
+    }
+
+    public HybridEventWriter(
+        final EventBatchHandler sink,
+        final EventWriter spoolWriter,
+        final ExecutorService sender,
+        final long maxBufferedBytes,
+        final long maxBatchSize
+    )
+    {
+        this.sink = sink;
+        this.spoolWriter = spoolWriter;
+        this.sender = sender;
+        this.maxBufferedBytes = new AtomicLong(maxBufferedBytes);
+        this.maxBatchSize = new AtomicLong(maxBatchSize);
+
+        acceptsEvents = true;
+    }
+
+    @Override
+    public synchronized void write(final Event event) throws IOException
+    {
+        if (!acceptsEvents) {
+            log.warn("Writer not ready, discarding event: {}", event);
+            return;
+        }
+
+        final long size = sizeOf(event);
+        if (bufferedBytes.get() + size > maxBufferedBytes.get()) {
+            spoolWriter.write(event);
+            eventsSpilled.incrementAndGet();
+            return;
+        }
+
+        currentBatch.add(event, size);
+        bufferedBytes.addAndGet(size);
+
+        if (currentBatch.size() >= maxBatchSize.get()) {
+            handOff();
+        }
+    }
+
+    /**
+     * Hand off the current batch to the sink and commit the spool writer
+     *
+     * @throws IOException as thrown by the spool writer
+     */
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        handOff();
+        commitCount++;
+        spoolWriter.commit();
+    }
+
+    @Override
+    public synchronized void forceCommit() throws IOException
+    {
+        handOff();
+        commitCount++;
+        spoolWriter.forceCommit();
+    }
+
+    /**
+     * Flush events spilled to disk
+     *
+     * @throws IOException as thrown by the spool writer
+     */
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        spoolWriter.flush();
+    }
+
+    /**
+     * Spill the uncommitted batches not shipped yet to disk and rollback the spool writer (i.e. move the events to
+     * quarantine)
+     *
+     * @throws IOException as thrown by the spool writer
+     */
+    @Override
+    public synchronized void rollback() throws IOException
+    {
+        final List<Batch> uncommittedBatches = new ArrayList<Batch>();
+        for (final Batch batch : pendingBatches) {
+            if (!isCommitted(batch) && pendingBatches.remove(batch)) {
+                uncommittedBatches.add(batch);
+            }
+        }
+        uncommittedBatches.add(currentBatch);
+        currentBatch = new Batch(commitCount);
+        for (final Batch batch : uncommittedBatches) {
+            spill(batch);
+        }
+
+        spoolWriter.rollback();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this) {
+            acceptsEvents = false;
+        }
+
+        // Stop the sender. Don't hold the lock: a failing batch needs it to be spilled
+        sender.shutdown();
+        try {
+            sender.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        sender.shutdownNow();
+
+        synchronized (this) {
+            // Whatever has not been shipped goes to disk
+            final List<Batch> remainingBatches = new ArrayList<Batch>();
+            pendingBatches.drainTo(remainingBatches);
+            remainingBatches.add(currentBatch);
+            currentBatch = new Batch(commitCount);
+            for (final Batch batch : remainingBatches) {
+                spill(batch);
+            }
+
+            spoolWriter.close();
+        }
+    }
+
+    /**
+     * @return local spool path used by the spool writer
+     */
+    @Override
+    public String getSpoolPath()
+    {
+        return spoolWriter.getSpoolPath();
+    }
+
+    private void handOff() throws IOException
+    {
+        if (currentBatch.size() == 0) {
+            return;
+        }
+
+        final Batch batch = currentBatch;
+        currentBatch = new Batch(commitCount);
+
+        // If the sink can't keep up, don't queue more batches in memory
+        if (!pendingBatches.offer(batch)) {
+            log.debug("Sink is too slow, spilling {} events to disk", batch.size());
+            spill(batch);
+            return;
+        }
+
+        try {
+            sender.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final Batch nextBatch = pendingBatches.poll();
+                    if (nextBatch != null) {
+                        ship(nextBatch);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            if (pendingBatches.remove(batch)) {
+                spill(batch);
+            }
+        }
+    }
+
+    private void ship(final Batch batch)
+    {
+        try {
+            sink.handle(batch.getEvents());
+            bufferedBytes.addAndGet(-batch.getSizeInBytes());
+            eventsHandedOff.addAndGet(batch.size());
+        }
+        catch (Exception e) {
+            log.warn(String.format("Unable to ship %d events, spilling them to disk", batch.size()), e);
+            failedBatches.incrementAndGet();
+            synchronized (this) {
+                try {
+                    spill(batch);
+                    // The application won't commit these events again
+                    if (isCommitted(batch)) {
+                        spoolWriter.commit();
+                    }
+                }
+                catch (IOException spillException) {
+                    log.warn("Unable to spill events to disk", spillException);
+                }
+            }
+        }
+    }
+
+    private boolean isCommitted(final Batch batch)
+    {
+        return commitCount > batch.getCommitCount();
+    }
+
+    private void spill(final Batch batch) throws IOException
+    {
+        try {
+            for (final Event event : batch.getEvents()) {
+                spoolWriter.write(event);
+                eventsSpilled.incrementAndGet();
+            }
+        }
+        finally {
+            bufferedBytes.addAndGet(-batch.getSizeInBytes());
+        }
+    }
+
+    private static long sizeOf(final Event event)
+    {
+        if (event instanceof StreamableEvent) {
+            return Math.max(0, ((StreamableEvent) event).serializedSize());
+        }
+
+        final byte[] serializedEvent = event.getSerializedEvent();
+        return serializedEvent == null ? 0 : serializedEvent.length;
+    }
+
+    @Managed(description = "size in bytes of the events buffered in memory, or being shipped")
+    public long getBufferedBytes()
+    {
+        return bufferedBytes.get();
+    }
+
+    @Managed(description = "set the max size in bytes of the events kept in memory")
+    public void setMaxBufferedBytes(final long maxBufferedBytes)
+    {
+        this.maxBufferedBytes.set(maxBufferedBytes);
+    }
+
+    @Managed(description = "the max size in bytes of the events kept in memory")
+    public long getMaxBufferedBytes()
+    {
+        return maxBufferedBytes.get();
+    }
+
+    @Managed(description = "set the max number of events in a batch")
+    public void setMaxBatchSize(final long maxBatchSize)
+    {
+        this.maxBatchSize.set(maxBatchSize);
+    }
+
+    @Managed(description = "the max number of events in a batch")
+    public long getMaxBatchSize()
+    {
+        return maxBatchSize.get();
+    }
+
+    @Managed(description = "number of events shipped directly from memory")
+    public long getHandedOffEventCount()
+    {
+        return eventsHandedOff.get();
+    }
+
+    @Managed(description = "number of events spilled to disk")
+    public long getSpilledEventCount()
+    {
+        return eventsSpilled.get();
+    }
+
+    @Managed(description = "number of batches the sink failed to ship")
+    public long getFailedBatchCount()
+    {
+        return failedBatches.get();
+    }
+
+    private static final class Batch
+    {
+        private final List<Event> events = new ArrayList<Event>();
+        private final long commitCount;
+        private long sizeInBytes = 0;
+
+        public Batch(final long commitCount)
+        {
+            this.commitCount = commitCount;
+        }
+
+        /**
+         * @return number of commits done before this batch was started
+         */
+        public long getCommitCount()
+        {
+            return commitCount;
+        }
+
+        public void add(final Event event, final long size)
+        {
+            events.add(event);
+            sizeInBytes += size;
+        }
+
+        public List<Event> getEvents()
+        {
+            return events;
+        }
+
+        public long getSizeInBytes()
+        {
+            return sizeInBytes;
+        }
+
+        public int size()
+        {
+            return events.size();
+        }
+    }
+}
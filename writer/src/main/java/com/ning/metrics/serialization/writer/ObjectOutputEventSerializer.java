@@ -18,11 +18,12 @@ package com.ning.metrics.serialization.writer;
 import com.ning.metrics.serialization.event.Event;
 import com.ning.metrics.serialization.event.EventSerializer;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 
-public class ObjectOutputEventSerializer implements EventSerializer
+public class ObjectOutputEventSerializer implements EventSerializer, Flushable
 {
     private ObjectOutputStream objectOut;
 
@@ -39,6 +40,12 @@ public class ObjectOutputEventSerializer implements EventSerializer
         objectOut.writeObject(obj);
     }
 
+    @Override
+    public void flush() throws IOException
+    {
+        objectOut.flush();
+    }
+
     @Override
     public void close() throws IOException
     {
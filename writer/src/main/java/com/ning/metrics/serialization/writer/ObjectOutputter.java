@@ -24,5 +24,18 @@ interface ObjectOutputter
 {
     public void writeObject(Event event) throws IOException;
 
+    /**
+     * @return number of bytes handed by the serializer to the underlying stream so far
+     */
+    public long getBytesWritten();
+
+    /**
+     * Push the bytes buffered by the serializer to the underlying stream, if the serializer is Flushable
+     *
+     * @return true if getBytesWritten is now the exact end of the last event written
+     * @throws IOException generic I/O exception
+     */
+    public boolean flushSerializer() throws IOException;
+
     public void close() throws IOException;
 }
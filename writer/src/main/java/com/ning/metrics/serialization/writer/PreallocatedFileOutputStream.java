@@ -0,0 +1,280 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileOutputStream which allocates the file up front, by writing zeros up to its expected size, instead of growing it
+ * on each append, and only issues writes of whole, aligned, blocks. On flush, the current (partial) block is written in
+ * place and will be rewritten once full. The file is truncated to the size of the data on close.
+ * <p/>
+ * Until the stream is closed, the size of the data is kept in a small file next to it (same name, with the
+ * LENGTH_SUFFIX extension). If the process dies before the stream is closed, use recover() to strip the zero padding.
+ */
+class PreallocatedFileOutputStream extends FileOutputStream
+{
+    static final String LENGTH_SUFFIX = ".length";
+
+    private final FileChannel channel;
+    private final File lengthFile;
+    private final RandomAccessFile length;
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+    private final long preallocationSize;
+    private final ByteBuffer block;
+    private final ByteBuffer zeros;
+
+    // Offset in the file of the current block
+    private long blockOffset = 0;
+    private long allocatedSize = 0;
+    private boolean closed = false;
+
+    public PreallocatedFileOutputStream(final File file, final long preallocationSize, final int blockSize) throws FileNotFoundException
+    {
+        super(file);
+        this.channel = getChannel();
+        this.lengthFile = getLengthFile(file);
+        this.preallocationSize = preallocationSize;
+        this.block = ByteBuffer.allocateDirect(blockSize);
+        this.zeros = ByteBuffer.allocateDirect(blockSize);
+
+        try {
+            this.length = new RandomAccessFile(lengthFile, "rw");
+            writeLength(0);
+        }
+        catch (IOException e) {
+            try {
+                closeStreams();
+            }
+            catch (IOException ignored) {
+                // Reporting the original failure
+            }
+            final FileNotFoundException exception = new FileNotFoundException(String.format("Unable to create %s", lengthFile));
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /**
+     * Strip the zero padding of a file whose stream was not closed, i.e. truncate it to the size of the data written
+     * so far. This is a no-op for files which were not written by this stream, or which were closed properly.
+     *
+     * @param file file left by a previous run
+     * @throws IOException if the file cannot be truncated
+     */
+    static void recover(final File file) throws IOException
+    {
+        final File lengthFile = getLengthFile(file);
+        if (!lengthFile.exists()) {
+            return;
+        }
+
+        final RandomAccessFile length = new RandomAccessFile(lengthFile, "r");
+        final long size;
+        try {
+            size = length.length() < 8 ? 0 : length.readLong();
+        }
+        finally {
+            length.close();
+        }
+
+        final RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            if (data.length() > size) {
+                data.setLength(size);
+            }
+        }
+        finally {
+            data.close();
+        }
+
+        if (!lengthFile.delete()) {
+            throw new IOException(String.format("Unable to delete %s", lengthFile));
+        }
+    }
+
+    /**
+     * @param file any file
+     * @return true if the file holds the size of the data of a preallocated file
+     */
+    static boolean isLengthFile(final File file)
+    {
+        return file.getName().endsWith(LENGTH_SUFFIX);
+    }
+
+    static File getLengthFile(final File file)
+    {
+        return new File(file.getParentFile(), file.getName() + LENGTH_SUFFIX);
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        block.put((byte) b);
+        if (!block.hasRemaining()) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(final byte[] b) throws IOException
+    {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            final int length = Math.min(remaining, block.remaining());
+            block.put(b, offset, length);
+            offset += length;
+            remaining -= length;
+
+            if (!block.hasRemaining()) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Write the current, partial, block to the file. It will be written again once full.
+     *
+     * @throws IOException generic I/O exception
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if (block.position() == 0) {
+            return;
+        }
+
+        final ByteBuffer partialBlock = block.duplicate();
+        partialBlock.flip();
+        writeFully(partialBlock, blockOffset);
+        writeLength(getSize());
+    }
+
+    /**
+     * Flush, then sync the data and its size to disk
+     *
+     * @throws IOException generic I/O exception
+     */
+    public void sync() throws IOException
+    {
+        flush();
+        getFD().sync();
+        length.getChannel().force(false);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            flush();
+            channel.truncate(blockOffset + block.position());
+        }
+        finally {
+            closeStreams();
+        }
+
+        if (lengthFile.exists() && !lengthFile.delete()) {
+            throw new IOException(String.format("Unable to delete %s", lengthFile));
+        }
+    }
+
+    private void closeStreams() throws IOException
+    {
+        try {
+            if (length != null) {
+                length.close();
+            }
+        }
+        finally {
+            super.close();
+        }
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    public long getSize()
+    {
+        return blockOffset + block.position();
+    }
+
+    private void writeBlock() throws IOException
+    {
+        block.flip();
+        writeFully(block, blockOffset);
+        blockOffset += block.capacity();
+        block.clear();
+        writeLength(blockOffset);
+    }
+
+    private void writeLength(final long size) throws IOException
+    {
+        lengthBuffer.clear();
+        lengthBuffer.putLong(size);
+        lengthBuffer.flip();
+        while (lengthBuffer.hasRemaining()) {
+            length.getChannel().write(lengthBuffer, lengthBuffer.position());
+        }
+    }
+
+    private void writeFully(final ByteBuffer buffer, final long offset) throws IOException
+    {
+        final long end = offset + buffer.remaining();
+        if (end > allocatedSize) {
+            allocate(end);
+        }
+
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void allocate(final long minSize) throws IOException
+    {
+        final long size = Math.max(minSize, allocatedSize + preallocationSize);
+
+        // Write the zeros, rather than extending the file: a sparse file wouldn't have its blocks reserved
+        long position = allocatedSize;
+        while (position < size) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), size - position));
+            while (zeros.hasRemaining()) {
+                position += channel.write(zeros, position);
+            }
+        }
+        allocatedSize = size;
+    }
+}
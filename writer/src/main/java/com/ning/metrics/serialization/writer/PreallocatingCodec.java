@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * Codec which preallocates spool files, instead of growing them by small appends, to limit fragmentation and the
+ * number of metadata updates journaled on sync. Data is written by aligned blocks and files are truncated on close.
+ * Preallocating means writing zeros: each byte of the spool is written twice, once as padding and once as data.
+ *
+ * @see PreallocatedFileOutputStream
+ */
+public class PreallocatingCodec implements CompressionCodec
+{
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private final long preallocationSizeInBytes;
+    private final int blockSizeInBytes;
+
+    /**
+     * @param preallocationSizeInBytes expected size of a spool file, the file is extended by this amount when full
+     */
+    public PreallocatingCodec(final long preallocationSizeInBytes)
+    {
+        this(preallocationSizeInBytes, DEFAULT_BLOCK_SIZE);
+    }
+
+    public PreallocatingCodec(final long preallocationSizeInBytes, final int blockSizeInBytes)
+    {
+        if (preallocationSizeInBytes <= 0 || blockSizeInBytes <= 0) {
+            throw new IllegalArgumentException("Preallocation and block sizes must be positive");
+        }
+
+        this.preallocationSizeInBytes = preallocationSizeInBytes;
+        this.blockSizeInBytes = blockSizeInBytes;
+    }
+
+    @Override
+    public FileOutputStream getFileOutputStream(final File file) throws FileNotFoundException
+    {
+        return new PreallocatedFileOutputStream(file, preallocationSizeInBytes, blockSizeInBytes);
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.mogwee.executors.FailsafeScheduledExecutor;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk-backed persistent queue with priority lanes. Events are routed by name (see Event.getName()) to a lane, each
+ * lane being spooled by its own DiskSpoolEventWriter in a subdirectory of the spool path. Events whose name is not
+ * associated with any lane go to the last one.
+ * <p/>
+ * Lanes are flushed in weighted-fair rounds: in each round, lanes are visited in order and up to weight files (oldest
+ * first) are handed to the EventHandler for each lane. Rounds are repeated until all lanes are drained. A large backlog
+ * in a low priority lane thus only delays higher priority lanes by one round. Lanes are listed again at the start of
+ * every round as long as a lower priority lane is still draining, so that files spooled meanwhile don't wait for the
+ * whole drain. The lowest priority lane still being drained is only listed once per flush: files spooled in it during
+ * a flush are picked up by the next one, which bounds the flush.
+ * <p/>
+ * The backlog (number of files, size) and latency (age of the oldest file) of each lane are exported as metrics.
+ */
+public class PrioritizedDiskSpoolEventWriter implements EventWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(PrioritizedDiskSpoolEventWriter.class);
+
+    private final Map<FlushLane, DiskSpoolEventWriter> lanes;
+    private final Map<String, DiskSpoolEventWriter> writersByEventName = new HashMap<String, DiskSpoolEventWriter>();
+    private final DiskSpoolEventWriter defaultWriter;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean flushEnabled;
+    private final AtomicLong flushIntervalInSeconds;
+    private final AtomicBoolean currentlyFlushing = new AtomicBoolean(false);
+    private final List<MetricName> metricNames = new ArrayList<MetricName>();
+
+    private boolean acceptsEvents;
+
+    /**
+     * @param lanes priority lanes, in priority order. The last one gets events not associated with any lane.
+     */
+    public PrioritizedDiskSpoolEventWriter(
+        final EventHandler eventHandler,
+        final String spoolPath,
+        final List<FlushLane> lanes,
+        final boolean flushEnabled,
+        final long flushIntervalInSeconds,
+        final SyncType syncType,
+        final int syncBatchSize,
+        final CompressionCodec codec,
+        final EventSerializer eventSerializer
+    )
+    {
+        this(createWriters(eventHandler, spoolPath, lanes, flushIntervalInSeconds, syncType, syncBatchSize, codec, eventSerializer),
+            new FailsafeScheduledExecutor("PrioritizedDiskSpoolEventWriter-flusher"), flushEnabled, flushIntervalInSeconds);
+    }
+
+    /**
+     * @param lanes priority lanes and their writers, in priority order. The writers should have flushing disabled,
+     *              flushes are driven by this writer.
+     */
+    public PrioritizedDiskSpoolEventWriter(
+        final LinkedHashMap<FlushLane, DiskSpoolEventWriter> lanes,
+        final ScheduledExecutorService executor,
+        final boolean flushEnabled,
+        final long flushIntervalInSeconds
+    )
+    {
+        if (lanes.isEmpty()) {
+            throw new IllegalArgumentException("Eventwriter misconfigured - no lane specified");
+        }
+
+        this.lanes = lanes;
+        this.executor = executor;
+        this.flushEnabled = new AtomicBoolean(flushEnabled);
+        this.flushIntervalInSeconds = new AtomicLong(flushIntervalInSeconds);
+
+        DiskSpoolEventWriter lastWriter = null;
+        for (final Map.Entry<FlushLane, DiskSpoolEventWriter> entry : lanes.entrySet()) {
+            for (final String eventName : entry.getKey().getEventNames()) {
+                if (writersByEventName.put(eventName, entry.getValue()) != null) {
+                    throw new IllegalArgumentException(String.format("Eventwriter misconfigured - event %s is in multiple lanes", eventName));
+                }
+            }
+            registerMetrics(entry.getKey(), entry.getValue());
+            lastWriter = entry.getValue();
+        }
+        defaultWriter = lastWriter;
+
+        scheduleFlush();
+
+        acceptsEvents = true;
+    }
+
+    private static LinkedHashMap<FlushLane, DiskSpoolEventWriter> createWriters(
+        final EventHandler eventHandler,
+        final String spoolPath,
+        final List<FlushLane> lanes,
+        final long flushIntervalInSeconds,
+        final SyncType syncType,
+        final int syncBatchSize,
+        final CompressionCodec codec,
+        final EventSerializer eventSerializer
+    )
+    {
+        final LinkedHashMap<FlushLane, DiskSpoolEventWriter> writers = new LinkedHashMap<FlushLane, DiskSpoolEventWriter>();
+        for (final FlushLane lane : lanes) {
+            final String lanePath = new File(spoolPath, lane.getName()).getAbsolutePath();
+            // Flushing is driven by the PrioritizedDiskSpoolEventWriter
+            writers.put(lane, new DiskSpoolEventWriter(eventHandler, lanePath, false, flushIntervalInSeconds,
+                new FailsafeScheduledExecutor("PrioritizedDiskSpoolEventWriter-" + lane.getName()), syncType, syncBatchSize, codec, eventSerializer));
+        }
+        return writers;
+    }
+
+    private void registerMetrics(final FlushLane lane, final DiskSpoolEventWriter writer)
+    {
+        final MetricName backlogFilesName = new MetricName(PrioritizedDiskSpoolEventWriter.class, writer.getSpoolPath(), "backlogFiles");
+        Metrics.newGauge(backlogFilesName, new Gauge<Long>()
+        {
+            @Override
+            public Long value()
+            {
+                return writer.getSpooledFileCount();
+            }
+        });
+        metricNames.add(backlogFilesName);
+
+        final MetricName backlogSizeName = new MetricName(PrioritizedDiskSpoolEventWriter.class, writer.getSpoolPath(), "backlogSizeInKB");
+        Metrics.newGauge(backlogSizeName, new Gauge<Long>()
+        {
+            @Override
+            public Long value()
+            {
+                return writer.getDiskSpoolSize();
+            }
+        });
+        metricNames.add(backlogSizeName);
+
+        final MetricName latencyName = new MetricName(PrioritizedDiskSpoolEventWriter.class, writer.getSpoolPath(), "oldestFileAgeInSeconds");
+        Metrics.newGauge(latencyName, new Gauge<Long>()
+        {
+            @Override
+            public Long value()
+            {
+                return writer.getOldestSpooledFileAgeInSeconds();
+            }
+        });
+        metricNames.add(latencyName);
+
+        log.info("Spooling lane {} to {}", lane, writer.getSpoolPath());
+    }
+
+    private void scheduleFlush()
+    {
+        executor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    flush();
+                }
+                catch (Exception e) {
+                    log.error("Failed prioritized flush", e);
+                }
+                finally {
+                    try {
+                        executor.schedule(this, flushIntervalInSeconds.get(), TimeUnit.SECONDS);
+                    }
+                    catch (RejectedExecutionException e) {
+                        // Ignore if we've been asked to shutdown
+                        if (!executor.isShutdown()) {
+                            throw e;
+                        }
+                    }
+                }
+            }
+        }, flushIntervalInSeconds.get(), TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void write(final Event event) throws IOException
+    {
+        if (!acceptsEvents) {
+            log.warn("Writer not ready, discarding event: {}", event);
+            return;
+        }
+
+        final DiskSpoolEventWriter writer = writersByEventName.get(event.getName());
+        if (writer == null) {
+            defaultWriter.write(event);
+        }
+        else {
+            writer.write(event);
+        }
+    }
+
+    /**
+     * Commit the current files of all lanes
+     *
+     * @throws IOException as thrown by the underlying DiskSpoolEventWriter
+     */
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        for (final DiskSpoolEventWriter writer : lanes.values()) {
+            writer.commit();
+        }
+    }
+
+    @Override
+    public synchronized void forceCommit() throws IOException
+    {
+        for (final DiskSpoolEventWriter writer : lanes.values()) {
+            writer.forceCommit();
+        }
+    }
+
+    /**
+     * Flush all lanes, in weighted-fair rounds, until they are drained
+     */
+    @Override
+    @Managed(description = "Flush events (forward them to final handler)")
+    public void flush()
+    {
+        if (!currentlyFlushing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            // Lanes still being flushed, in priority order
+            final List<FlushLane> pendingLanes = new ArrayList<FlushLane>(lanes.keySet());
+            final Map<FlushLane, Iterator<File>> backlogs = new HashMap<FlushLane, Iterator<File>>();
+
+            while (!pendingLanes.isEmpty() && flushEnabled.get()) {
+                int i = 0;
+                while (i < pendingLanes.size()) {
+                    final FlushLane lane = pendingLanes.get(i);
+                    final DiskSpoolEventWriter laneWriter = lanes.get(lane);
+                    final boolean lowerLanesPending = i < pendingLanes.size() - 1;
+
+                    Iterator<File> backlog = backlogs.get(lane);
+                    if (backlog == null || lowerLanesPending) {
+                        backlog = laneWriter.getSpooledFilesOldestFirst().iterator();
+                        backlogs.put(lane, backlog);
+                    }
+
+                    final boolean hasFiles = backlog.hasNext();
+                    final int flushed = hasFiles ? laneWriter.flushOldest(backlog, lane.getWeight()) : 0;
+                    // Nothing flushed with files left means the lane is busy (e.g. reprocessing its quarantine)
+                    if ((hasFiles && flushed == 0) || (!backlog.hasNext() && !lowerLanesPending)) {
+                        pendingLanes.remove(i);
+                    }
+                    else {
+                        i++;
+                    }
+                }
+            }
+        }
+        finally {
+            currentlyFlushing.set(false);
+        }
+    }
+
+    @Override
+    public synchronized void rollback() throws IOException
+    {
+        for (final DiskSpoolEventWriter writer : lanes.values()) {
+            writer.rollback();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        acceptsEvents = false;
+
+        // Stop the flusher
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+
+        // Cleanup the current state
+        forceCommit();
+        flush();
+
+        IOException exception = null;
+        for (final DiskSpoolEventWriter writer : lanes.values()) {
+            try {
+                writer.close();
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to close writer for %s", writer.getSpoolPath()), e);
+                exception = e;
+            }
+        }
+
+        for (final MetricName metricName : metricNames) {
+            Metrics.defaultRegistry().removeMetric(metricName);
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * @return all local spool paths used by the writer (one per lane), separated by File.pathSeparator
+     */
+    @Override
+    public String getSpoolPath()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (final DiskSpoolEventWriter writer : lanes.values()) {
+            if (builder.length() > 0) {
+                builder.append(File.pathSeparator);
+            }
+            builder.append(writer.getSpoolPath());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the writer associated with each lane, in priority order
+     */
+    public Map<FlushLane, DiskSpoolEventWriter> getLanes()
+    {
+        return lanes;
+    }
+
+    @Managed(description = "enable/disable flushing to hdfs")
+    public void setFlushEnabled(final boolean enabled)
+    {
+        log.info("Setting flush enabled to {}", enabled);
+        flushEnabled.set(enabled);
+    }
+
+    @Managed(description = "check if hdfs flushing is enabled")
+    public boolean getFlushEnabled()
+    {
+        return flushEnabled.get();
+    }
+
+    @Managed(description = "set the commit interval for next scheduled commit to hdfs in seconds")
+    public void setFlushIntervalInSeconds(final long seconds)
+    {
+        log.info("setting persistent flushing to {} seconds", seconds);
+        flushIntervalInSeconds.set(seconds);
+    }
+
+    @Managed(description = "get the current commit interval to hdfs in seconds")
+    public long getFlushIntervalInSeconds()
+    {
+        return flushIntervalInSeconds.get();
+    }
+
+    @Managed(description = "size in kilobytes of disk spool queue not yet written to hdfs, across all lanes")
+    public long getDiskSpoolSize()
+    {
+        long size = 0;
+        for (final DiskSpoolEventWriter writer : lanes.values()) {
+            size += writer.getDiskSpoolSize();
+        }
+        return size;
+    }
+
+    @Managed(description = "backlog of each lane: number of files and age in seconds of the oldest one")
+    public String getLaneBacklogs()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (final Map.Entry<FlushLane, DiskSpoolEventWriter> entry : lanes.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(String.format("%s: %d files (%ds)", entry.getKey().getName(),
+                entry.getValue().getSpooledFileCount(), entry.getValue().getOldestSpooledFileAgeInSeconds()));
+        }
+        return builder.toString();
+    }
+}
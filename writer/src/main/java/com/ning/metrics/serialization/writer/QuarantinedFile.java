@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+/**
+ * Metadata about a spool file which could not be flushed and was moved to the quarantine area.
+ */
+public class QuarantinedFile
+{
+    private final String name;
+    private final String reason;
+    private final int attempts;
+    private final long firstFailureMillis;
+    private final long lastFailureMillis;
+    private final long sizeInBytes;
+
+    public QuarantinedFile(
+        final String name,
+        final String reason,
+        final int attempts,
+        final long firstFailureMillis,
+        final long lastFailureMillis,
+        final long sizeInBytes
+    )
+    {
+        this.name = name;
+        this.reason = reason;
+        this.attempts = attempts;
+        this.firstFailureMillis = firstFailureMillis;
+        this.lastFailureMillis = lastFailureMillis;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Record one more failure for the same file (e.g. a reprocessing attempt failed).
+     *
+     * @param newReason   description of the latest failure
+     * @param nowMillis   time of the latest failure
+     * @param newSize     current size of the file, in bytes
+     * @return the updated metadata
+     */
+    QuarantinedFile failedAgain(final String newReason, final long nowMillis, final long newSize)
+    {
+        return new QuarantinedFile(name, newReason, attempts + 1, firstFailureMillis, nowMillis, newSize);
+    }
+
+    /**
+     * @return name of the spool file
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return description of the last failure
+     */
+    public String getReason()
+    {
+        return reason;
+    }
+
+    /**
+     * @return number of times this file failed to be flushed
+     */
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    public long getFirstFailureMillis()
+    {
+        return firstFailureMillis;
+    }
+
+    public long getLastFailureMillis()
+    {
+        return lastFailureMillis;
+    }
+
+    public long getSizeInBytes()
+    {
+        return sizeInBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "QuarantinedFile{" +
+            "name='" + name + '\'' +
+            ", reason='" + reason + '\'' +
+            ", attempts=" + attempts +
+            ", firstFailureMillis=" + firstFailureMillis +
+            ", lastFailureMillis=" + lastFailureMillis +
+            ", sizeInBytes=" + sizeInBytes +
+            '}';
+    }
+}
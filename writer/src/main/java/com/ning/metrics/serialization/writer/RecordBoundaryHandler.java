@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import java.io.File;
+
+/**
+ * Optional interface for the EventHandler of a DiskSpoolEventWriter, to receive the record boundaries recorded when
+ * the spool file was written (see DiskSpoolEventWriter.Builder.withRecordBoundaryIntervalInBytes), e.g. to split the
+ * file without cutting an event in two.
+ */
+public interface RecordBoundaryHandler
+{
+    /**
+     * @param file             spool file
+     * @param recordBoundaries ascending offsets in the file which fall between two events. The end of the file is
+     *                         always a boundary, and may or may not be included. Empty if the boundaries are unknown
+     * @param handler          callback for the outcome
+     */
+    public void handle(File file, long[] recordBoundaries, CallbackHandler handler);
+}
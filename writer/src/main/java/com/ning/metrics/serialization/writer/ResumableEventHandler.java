@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventHandler sending spool files in chunks to a ChunkedEventHandler, checkpointing its progress so that a failed
+ * upload resumes from the last acknowledged chunk instead of from the beginning of the file.
+ * <p/>
+ * The checkpoint of a file is kept next to it, in a _checkpoints subdirectory (in the DiskSpoolEventWriter _lock area,
+ * which is skipped by the spool recovery). Since a spool file keeps its name when quarantined and reprocessed, or
+ * recovered on startup, its checkpoint is found again on retry. The checkpoint records the file size as well and is
+ * ignored if the file changed. It is deleted once the whole file has been acknowledged, or once the file is evicted
+ * from the quarantine (see DiscardedFileListener).
+ * <p/>
+ * When the DiskSpoolEventWriter records the record boundaries of its files (see RecordBoundaryHandler), chunks end on a
+ * record boundary: a chunk is cut at the last boundary within chunkSizeInBytes, or at the next one if a single event
+ * is larger than that. Otherwise, spool files are opaque (serialized, possibly compressed) streams and chunks are cut
+ * at byte offsets: the destination is expected to reassemble the chunks.
+ */
+public class ResumableEventHandler implements EventHandler, RecordBoundaryHandler, DiscardedFileListener
+{
+    private static final Logger log = LoggerFactory.getLogger(ResumableEventHandler.class);
+    private static final String CHECKPOINTS_DIRECTORY = "_checkpoints";
+
+    private final ChunkedEventHandler chunkedEventHandler;
+    private final int chunkSizeInBytes;
+    private final AtomicLong chunksSent = new AtomicLong(0);
+    private final AtomicLong bytesSent = new AtomicLong(0);
+    private final AtomicLong bytesResumed = new AtomicLong(0);
+    private final AtomicLong failedChunks = new AtomicLong(0);
+    // Checkpoint directories used so far, to find the checkpoint of a discarded file (which is not in _lock anymore)
+    private final Set<File> checkpointDirectories = Collections.synchronizedSet(new HashSet<File>());
+
+    /**
+     * @param chunkedEventHandler destination of the chunks
+     * @param chunkSizeInBytes    size of the chunks, and of the buffer used to send them
+     */
+    public ResumableEventHandler(final ChunkedEventHandler chunkedEventHandler, final int chunkSizeInBytes)
+    {
+        if (chunkSizeInBytes <= 0) {
+            throw new IllegalArgumentException("chunkSizeInBytes must be positive");
+        }
+
+        this.chunkedEventHandler = chunkedEventHandler;
+        this.chunkSizeInBytes = chunkSizeInBytes;
+    }
+
+    @Override
+    public void handle(final File file, final CallbackHandler handler)
+    {
+        handle(file, new long[0], handler);
+    }
+
+    @Override
+    public void handle(final File file, final long[] recordBoundaries, final CallbackHandler handler)
+    {
+        final File checkpointFile = getCheckpointFile(file);
+        checkpointDirectories.add(checkpointFile.getParentFile());
+        try {
+            final long fileLength = file.length();
+            long offset = readCheckpoint(checkpointFile, fileLength);
+            if (offset > 0) {
+                log.info("Resuming {} at offset {}", file, offset);
+                bytesResumed.addAndGet(offset);
+            }
+
+            byte[] buffer = new byte[(int) Math.min(chunkSizeInBytes, Math.max(fileLength, 1))];
+            final RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                // An empty file is sent as a single empty chunk
+                boolean first = fileLength == 0 && offset == 0;
+                while (offset < fileLength || first) {
+                    final long chunkLength = getChunkEnd(offset, fileLength, recordBoundaries) - offset;
+                    if (chunkLength > Integer.MAX_VALUE) {
+                        throw new IOException(String.format("Event too large to be sent as a chunk in %s at offset %d", file, offset));
+                    }
+                    final int length = (int) chunkLength;
+                    if (length > buffer.length) {
+                        buffer = new byte[length];
+                    }
+                    input.seek(offset);
+                    input.readFully(buffer, 0, length);
+
+                    try {
+                        chunkedEventHandler.handleChunk(file, offset, buffer, length, offset + length >= fileLength);
+                    }
+                    catch (IOException e) {
+                        failedChunks.incrementAndGet();
+                        throw e;
+                    }
+
+                    offset += length;
+                    chunksSent.incrementAndGet();
+                    bytesSent.addAndGet(length);
+                    first = false;
+                    if (offset < fileLength) {
+                        writeCheckpoint(checkpointFile, fileLength, offset);
+                    }
+                }
+            }
+            finally {
+                input.close();
+            }
+
+            if (checkpointFile.exists() && !checkpointFile.delete()) {
+                log.warn("Unable to delete checkpoint {}", checkpointFile);
+            }
+        }
+        catch (IOException e) {
+            handler.onError(e, file);
+            return;
+        }
+        catch (RuntimeException e) {
+            handler.onError(e, file);
+            return;
+        }
+
+        handler.onSuccess(file);
+    }
+
+    /**
+     * Delete the checkpoint of a file evicted from the quarantine
+     *
+     * @param file file which has been deleted
+     */
+    @Override
+    public void discarded(final File file)
+    {
+        final List<File> directories;
+        synchronized (checkpointDirectories) {
+            directories = new ArrayList<File>(checkpointDirectories);
+        }
+
+        for (final File directory : directories) {
+            final File checkpointFile = new File(directory, file.getName());
+            if (checkpointFile.exists() && !checkpointFile.delete()) {
+                log.warn("Unable to delete checkpoint {}", checkpointFile);
+            }
+        }
+    }
+
+    /**
+     * @return end of the chunk starting at offset, on a record boundary if they are known
+     */
+    private long getChunkEnd(final long offset, final long fileLength, final long[] recordBoundaries)
+    {
+        final long limit = offset + chunkSizeInBytes;
+        if (limit >= fileLength || recordBoundaries.length == 0) {
+            return Math.min(limit, fileLength);
+        }
+
+        // Last boundary within the chunk size
+        final int index = Arrays.binarySearch(recordBoundaries, limit);
+        final int floor = index >= 0 ? index : -index - 2;
+        if (floor >= 0 && recordBoundaries[floor] > offset) {
+            return recordBoundaries[floor];
+        }
+
+        // A single event larger than the chunk size
+        final int next = floor + 1;
+        return next < recordBoundaries.length ? recordBoundaries[next] : fileLength;
+    }
+
+    private File getCheckpointFile(final File file)
+    {
+        return new File(new File(file.getParentFile(), CHECKPOINTS_DIRECTORY), file.getName());
+    }
+
+    /**
+     * @return the offset to resume from, 0 if there is no valid checkpoint
+     */
+    private long readCheckpoint(final File checkpointFile, final long fileLength) throws IOException
+    {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+
+        final RandomAccessFile checkpoint = new RandomAccessFile(checkpointFile, "r");
+        try {
+            if (checkpoint.length() < 16) {
+                return 0;
+            }
+
+            final long checkpointedLength = checkpoint.readLong();
+            final long offset = checkpoint.readLong();
+            if (checkpointedLength != fileLength || offset < 0 || offset > fileLength) {
+                log.warn("Ignoring stale checkpoint {}", checkpointFile);
+                return 0;
+            }
+            return offset;
+        }
+        finally {
+            checkpoint.close();
+        }
+    }
+
+    private void writeCheckpoint(final File checkpointFile, final long fileLength, final long offset) throws IOException
+    {
+        final File directory = checkpointFile.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create checkpoint directory %s", directory));
+        }
+
+        // 16 bytes written in place, no file creation or rename once the checkpoint exists
+        final RandomAccessFile checkpoint = new RandomAccessFile(checkpointFile, "rw");
+        try {
+            checkpoint.writeLong(fileLength);
+            checkpoint.writeLong(offset);
+            checkpoint.getFD().sync();
+        }
+        finally {
+            checkpoint.close();
+        }
+    }
+
+    @Managed(description = "number of chunks acknowledged")
+    public long getChunksSent()
+    {
+        return chunksSent.get();
+    }
+
+    @Managed(description = "number of bytes acknowledged")
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    @Managed(description = "number of bytes not re-sent thanks to checkpoints")
+    public long getBytesResumed()
+    {
+        return bytesResumed.get();
+    }
+
+    @Managed(description = "number of chunks which could not be sent")
+    public long getFailedChunks()
+    {
+        return failedChunks.get();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+/**
+ * Time-windowed Bloom filter with bounded memory. Fingerprints are added to the current generation; membership is
+ * checked against both the current and the previous generations. Generations rotate every window, or as soon as the
+ * current one has received its expected number of fingerprints, so a fingerprint is remembered between one and two
+ * windows.
+ * <p/>
+ * Each generation is sized for half the requested false positive rate, as lookups go through two of them.
+ */
+class RotatingBloomFilter
+{
+    private final long expectedInsertions;
+    private final int numBits;
+    private final int numHashFunctions;
+    private final long windowMillis;
+
+    private long[] current;
+    private long[] previous;
+    private long currentInsertions = 0;
+    private long currentStartMillis;
+
+    RotatingBloomFilter(final long expectedInsertions, final double falsePositiveRate, final long windowMillis, final long now)
+    {
+        if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid Bloom filter configuration");
+        }
+
+        final double generationFalsePositiveRate = falsePositiveRate / 2;
+        final long bits = (long) Math.ceil(-expectedInsertions * Math.log(generationFalsePositiveRate) / (Math.log(2) * Math.log(2)));
+        if (bits > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter too large: " + bits + " bits");
+        }
+
+        this.expectedInsertions = expectedInsertions;
+        this.numBits = (int) Math.max(64, bits);
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.windowMillis = windowMillis;
+        this.current = new long[(numBits + 63) / 64];
+        this.previous = new long[current.length];
+        this.currentStartMillis = now;
+    }
+
+    /**
+     * Check whether the fingerprint has (probably) been seen in the last window, and remember it
+     *
+     * @param hash1 first 64 bits of the fingerprint
+     * @param hash2 last 64 bits of the fingerprint
+     * @param now   current time, in milliseconds
+     * @return true if the fingerprint has probably been seen before, false if it definitely has not
+     */
+    public synchronized boolean checkAndAdd(final long hash1, final long hash2, final long now)
+    {
+        if (now - currentStartMillis >= windowMillis || currentInsertions >= expectedInsertions) {
+            rotate(now);
+        }
+
+        boolean inCurrent = true;
+        boolean inPrevious = true;
+        // Kirsch-Mitzenmacher: derive the k hash functions from two
+        long combinedHash = hash1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            final int bit = (int) ((combinedHash & Long.MAX_VALUE) % numBits);
+            final long mask = 1L << bit;
+            final int index = bit >>> 6;
+
+            if ((current[index] & mask) == 0) {
+                inCurrent = false;
+                current[index] |= mask;
+            }
+            if ((previous[index] & mask) == 0) {
+                inPrevious = false;
+            }
+            combinedHash += hash2;
+        }
+
+        if (!inCurrent) {
+            currentInsertions++;
+        }
+        return inCurrent || inPrevious;
+    }
+
+    private void rotate(final long now)
+    {
+        final long[] recycled = previous;
+        previous = current;
+        current = recycled;
+        clear(current);
+
+        // Nothing seen for more than a window
+        if (now - currentStartMillis >= 2 * windowMillis) {
+            clear(previous);
+        }
+
+        currentInsertions = 0;
+        currentStartMillis = now;
+    }
+
+    private static void clear(final long[] bits)
+    {
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = 0;
+        }
+    }
+
+    public long getSizeInBytes()
+    {
+        return 2L * current.length * 8;
+    }
+
+    public int getNumHashFunctions()
+    {
+        return numHashFunctions;
+    }
+
+    /**
+     * MurmurHash3 (x64, 128 bits) of the given bytes
+     *
+     * @param data   bytes to hash
+     * @param seed   seed
+     * @param result array of size 2, receives the hash
+     */
+    static void murmurHash3(final byte[] data, final long seed, final long[] result)
+    {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        final int length = data.length;
+        final int numBlocks = length / 16;
+
+        long h1 = seed;
+        long h2 = seed;
+
+        for (int i = 0; i < numBlocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Tail
+        long k1 = 0;
+        long k2 = 0;
+        final int tail = numBlocks * 16;
+        for (int i = length - 1; i >= tail + 8; i--) {
+            k2 ^= ((long) data[i] & 0xff) << ((i - tail - 8) * 8);
+        }
+        for (int i = Math.min(length, tail + 8) - 1; i >= tail; i--) {
+            k1 ^= ((long) data[i] & 0xff) << ((i - tail) * 8);
+        }
+        if (k2 != 0) {
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+        }
+        if (k1 != 0) {
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+        }
+
+        // Finalization
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        result[0] = h1;
+        result[1] = h2;
+    }
+
+    private static long getLong(final byte[] data, final int offset)
+    {
+        return ((long) data[offset] & 0xff)
+            | (((long) data[offset + 1] & 0xff) << 8)
+            | (((long) data[offset + 2] & 0xff) << 16)
+            | (((long) data[offset + 3] & 0xff) << 24)
+            | (((long) data[offset + 4] & 0xff) << 32)
+            | (((long) data[offset + 5] & 0xff) << 40)
+            | (((long) data[offset + 6] & 0xff) << 48)
+            | (((long) data[offset + 7] & 0xff) << 56);
+    }
+
+    private static long fmix(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
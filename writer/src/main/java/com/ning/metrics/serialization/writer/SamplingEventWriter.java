@@ -0,0 +1,293 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.SampleRateRecorder;
+import org.joda.time.Period;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wrapper around another delegate writer, shedding load by sampling events when under pressure.
+ * <p/>
+ * Events are sampled independently for each event name (see Event.getName()), so that counts can be re-weighted
+ * downstream without bias. Sample rates are adjusted every second:
+ * <ul>
+ * <li>event names whose input rate (measured with EventRate) is above maxEventsPerSecond are sampled down to
+ * that rate
+ * <li>if the spool (optional) is larger than maxSpoolSizeInKB, all sample rates are halved, and doubled back once the
+ * spool is below the threshold
+ * </ul>
+ * Sample rates never go below minSampleRate. The sample rate of each kept event is passed to the SampleRateRecorder
+ * (optional, see SmileSampleRateRecorder and ThriftSampleRateRecorder), which records it in the event. Events which
+ * are not sampled (sample rate of 1.0) are written as is: recording the rate would copy every event.
+ */
+public class SamplingEventWriter implements EventWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(SamplingEventWriter.class);
+    private static final int RATE_WINDOW_IN_SECONDS = 10;
+    private static final long ADJUSTMENT_INTERVAL_MILLIS = 1000;
+
+    private final EventWriter delegate;
+    private final SampleRateRecorder recorder;
+    private final DiskSpoolEventWriter spool;
+    private final Map<String, EventSampler> samplers = new HashMap<String, EventSampler>();
+    private final Random random = new Random();
+    private final AtomicLong maxEventsPerSecond;
+    private final AtomicLong maxSpoolSizeInKB;
+    private final AtomicLong droppedEvents = new AtomicLong(0);
+
+    private volatile double minSampleRate;
+
+    // Multiplier applied to all sample rates, driven by the spool size
+    private double pressureFactor = 1.0;
+    private long lastAdjustmentMillis;
+    private boolean acceptsEvents;
+
+    /**
+     * @param delegate           writer for the events kept
+     * @param recorder           records the sample rate in the kept events, may be null
+     * @param spool              spool to monitor for pressure, may be null
+     * @param maxEventsPerSecond max input rate, per event name, before sampling kicks in (0 for unlimited)
+     * @param maxSpoolSizeInKB   max spool size before sampling kicks in (0 for unlimited)
+     * @param minSampleRate      lowest sample rate to use
+     */
+    public SamplingEventWriter(
+        final EventWriter delegate,
+        final SampleRateRecorder recorder,
+        final DiskSpoolEventWriter spool,
+        final long maxEventsPerSecond,
+        final long maxSpoolSizeInKB,
+        final double minSampleRate
+    )
+    {
+        this.delegate = delegate;
+        this.recorder = recorder;
+        this.spool = spool;
+        this.maxEventsPerSecond = new AtomicLong(maxEventsPerSecond);
+        this.maxSpoolSizeInKB = new AtomicLong(maxSpoolSizeInKB);
+        setMinSampleRate(minSampleRate);
+        this.lastAdjustmentMillis = getNow();
+
+        acceptsEvents = true;
+    }
+
+    /**
+     * Write an Event via the delegate writer, if it is kept by the sampler
+     *
+     * @param event the Event to write
+     * @throws IOException as thrown by the delegate writer
+     */
+    @Override
+    public synchronized void write(final Event event) throws IOException
+    {
+        if (!acceptsEvents) {
+            log.warn("Writer not ready, discarding event: {}", event);
+            return;
+        }
+
+        EventSampler sampler = samplers.get(event.getName());
+        if (sampler == null) {
+            sampler = new EventSampler();
+            samplers.put(event.getName(), sampler);
+        }
+        sampler.inputRate.increment();
+
+        adjustSampleRatesIfNeeded();
+
+        final double sampleRate = sampler.sampleRate;
+        if (sampleRate < 1.0 && nextRandom() >= sampleRate) {
+            droppedEvents.incrementAndGet();
+            return;
+        }
+
+        delegate.write(recorder == null || sampleRate == 1.0 ? event : recorder.record(event, sampleRate));
+    }
+
+    private void adjustSampleRatesIfNeeded()
+    {
+        final long now = getNow();
+        if (now - lastAdjustmentMillis < ADJUSTMENT_INTERVAL_MILLIS) {
+            return;
+        }
+        lastAdjustmentMillis = now;
+
+        final long maxSpoolSize = maxSpoolSizeInKB.get();
+        if (spool != null && maxSpoolSize > 0) {
+            if (spool.getDiskSpoolSize() > maxSpoolSize) {
+                pressureFactor = Math.max(minSampleRate, pressureFactor / 2);
+            }
+            else {
+                pressureFactor = Math.min(1.0, pressureFactor * 2);
+            }
+        }
+
+        final long maxRate = maxEventsPerSecond.get();
+        for (final Map.Entry<String, EventSampler> entry : samplers.entrySet()) {
+            final EventSampler sampler = entry.getValue();
+
+            double sampleRate = pressureFactor;
+            final double inputRate = (double) sampler.inputRate.getRate() / RATE_WINDOW_IN_SECONDS;
+            if (maxRate > 0 && inputRate > maxRate) {
+                sampleRate *= maxRate / inputRate;
+            }
+            sampleRate = Math.max(minSampleRate, Math.min(1.0, sampleRate));
+
+            if (sampleRate != sampler.sampleRate) {
+                log.info("Sampling {} events at {} (input rate: {} events/s)", new Object[]{entry.getKey(), sampleRate, inputRate});
+                sampler.sampleRate = sampleRate;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        delegate.commit();
+    }
+
+    @Override
+    public synchronized void forceCommit() throws IOException
+    {
+        delegate.forceCommit();
+    }
+
+    @Override
+    public synchronized void rollback() throws IOException
+    {
+        delegate.rollback();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        delegate.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        acceptsEvents = false;
+        delegate.close();
+    }
+
+    /**
+     * @return local spool path used by the writer
+     */
+    @Override
+    public String getSpoolPath()
+    {
+        return delegate.getSpoolPath();
+    }
+
+    /**
+     * @return the current sample rate of each event name
+     */
+    public synchronized Map<String, Double> getSampleRates()
+    {
+        final Map<String, Double> sampleRates = new TreeMap<String, Double>();
+        for (final Map.Entry<String, EventSampler> entry : samplers.entrySet()) {
+            sampleRates.put(entry.getKey(), entry.getValue().sampleRate);
+        }
+        return sampleRates;
+    }
+
+    //hook for unit testing
+    protected long getNow()
+    {
+        return System.currentTimeMillis();
+    }
+
+    //hook for unit testing
+    protected double nextRandom()
+    {
+        return random.nextDouble();
+    }
+
+    //hook for unit testing
+    protected EventRate createEventRate()
+    {
+        return new EventRate(Period.seconds(RATE_WINDOW_IN_SECONDS));
+    }
+
+    @Managed(description = "current sample rate of each event name")
+    public String getSampleRatesAsString()
+    {
+        return getSampleRates().toString();
+    }
+
+    @Managed(description = "number of events dropped by the sampler")
+    public long getDroppedEventCount()
+    {
+        return droppedEvents.get();
+    }
+
+    @Managed(description = "set the max number of events per second, per event name, before sampling (0 for unlimited)")
+    public void setMaxEventsPerSecond(final long maxEventsPerSecond)
+    {
+        this.maxEventsPerSecond.set(maxEventsPerSecond);
+    }
+
+    @Managed(description = "the max number of events per second, per event name, before sampling (0 for unlimited)")
+    public long getMaxEventsPerSecond()
+    {
+        return maxEventsPerSecond.get();
+    }
+
+    @Managed(description = "set the max spool size in kilobytes before sampling (0 for unlimited)")
+    public void setMaxSpoolSizeInKB(final long maxSpoolSizeInKB)
+    {
+        this.maxSpoolSizeInKB.set(maxSpoolSizeInKB);
+    }
+
+    @Managed(description = "the max spool size in kilobytes before sampling (0 for unlimited)")
+    public long getMaxSpoolSizeInKB()
+    {
+        return maxSpoolSizeInKB.get();
+    }
+
+    @Managed(description = "set the lowest sample rate to use")
+    public void setMinSampleRate(final double minSampleRate)
+    {
+        if (minSampleRate <= 0 || minSampleRate > 1) {
+            throw new IllegalArgumentException("The min sample rate must be in (0, 1]: " + minSampleRate);
+        }
+        this.minSampleRate = minSampleRate;
+    }
+
+    @Managed(description = "the lowest sample rate to use")
+    public double getMinSampleRate()
+    {
+        return minSampleRate;
+    }
+
+    private final class EventSampler
+    {
+        private final EventRate inputRate = createEventRate();
+        // Guarded by the SamplingEventWriter lock
+        private double sampleRate = 1.0;
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records, split in segments.
+ * <p/>
+ * Each record is assigned an offset, a sequence number starting at 0. Segments are named after the offset of their
+ * first record (base offset), e.g. 00000000000000004200.log, and a new segment is started once the current one is
+ * larger than segmentSizeInBytes. Each record is stored as its length, the CRC32 of its payload and the payload itself.
+ * <p/>
+ * Each segment has a sparse index (e.g. 00000000000000004200.index) with the position of one record every
+ * indexIntervalInBytes, so that reads don't have to scan the segment from the beginning. The index is only a hint:
+ * it is not synced, and it is rebuilt on startup if needed. The tail of the last segment is checked on startup, and
+ * truncated after the last valid record.
+ * <p/>
+ * Only whole segments are deleted, and the last (active) segment is never deleted.
+ */
+class SegmentLog
+{
+    private static final Logger log = LoggerFactory.getLogger(SegmentLog.class);
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+    // Length and CRC32
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File directory;
+    private final long segmentSizeInBytes;
+    private final long indexIntervalInBytes;
+    private final boolean syncOnAppend;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    private Segment activeSegment;
+    private FileChannel activeChannel;
+    private DataOutputStream activeIndex;
+
+    /**
+     * @param directory            directory for the segment files
+     * @param segmentSizeInBytes   size after which a new segment is started
+     * @param indexIntervalInBytes number of bytes between two index entries
+     * @param syncOnAppend         whether to sync the segment to disk on each append
+     * @throws IOException if the existing segments cannot be read
+     */
+    public SegmentLog(final File directory, final long segmentSizeInBytes, final long indexIntervalInBytes, final boolean syncOnAppend) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSizeInBytes = segmentSizeInBytes;
+        this.indexIntervalInBytes = indexIntervalInBytes;
+        this.syncOnAppend = syncOnAppend;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create log directory %s", directory));
+        }
+
+        load();
+    }
+
+    private void load() throws IOException
+    {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (file.isFile() && name.endsWith(LOG_SUFFIX)) {
+                    try {
+                        final long baseOffset = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+                        segments.put(baseOffset, new Segment(baseOffset));
+                    }
+                    catch (NumberFormatException e) {
+                        log.warn("Ignoring unexpected file {}", file);
+                    }
+                }
+            }
+        }
+
+        // Older segments end where the next one starts
+        Segment previous = null;
+        for (final Segment segment : segments.values()) {
+            segment.loadIndex();
+            if (previous != null) {
+                previous.nextOffset = segment.baseOffset;
+            }
+            previous = segment;
+        }
+
+        if (segments.isEmpty()) {
+            openActiveSegment(new Segment(0));
+        }
+        else {
+            final Segment last = segments.lastEntry().getValue();
+            last.recover();
+            openActiveSegment(last);
+        }
+    }
+
+    /**
+     * Append a record to the log
+     *
+     * @param payload record to append
+     * @return offset of the record
+     * @throws IOException generic I/O exception
+     */
+    public synchronized long append(final byte[] payload) throws IOException
+    {
+        if (activeSegment.size >= segmentSizeInBytes) {
+            roll();
+        }
+
+        final long offset = activeSegment.nextOffset;
+        final long position = activeSegment.size;
+        if (position - activeSegment.lastIndexedPosition() >= indexIntervalInBytes) {
+            activeSegment.addIndexEntry(offset, position);
+            activeIndex.writeLong(offset);
+            activeIndex.writeLong(position);
+            activeIndex.flush();
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            activeChannel.write(buffer, position + buffer.position());
+        }
+        if (syncOnAppend) {
+            activeChannel.force(false);
+        }
+
+        activeSegment.size += RECORD_HEADER_SIZE + payload.length;
+        activeSegment.nextOffset++;
+        return offset;
+    }
+
+    /**
+     * Read records, possibly across segments
+     *
+     * @param offset     offset of the first record to read
+     * @param maxRecords max number of records to read
+     * @return the records read, empty if there is no record at offset yet
+     * @throws IOException if offset has been deleted, or the records cannot be read
+     */
+    public synchronized List<byte[]> read(final long offset, final int maxRecords) throws IOException
+    {
+        final List<byte[]> records = new ArrayList<byte[]>();
+        if (offset < getStartOffset()) {
+            throw new IOException(String.format("Offset %d has been deleted, log starts at %d", offset, getStartOffset()));
+        }
+
+        long nextOffset = offset;
+        while (records.size() < maxRecords && nextOffset < activeSegment.nextOffset) {
+            final Segment segment = segments.floorEntry(nextOffset).getValue();
+            final int read = segment.read(nextOffset, maxRecords - records.size(), records);
+            if (read == 0) {
+                break;
+            }
+            nextOffset += read;
+        }
+        return records;
+    }
+
+    /**
+     * Locate consecutive records, within a single segment, without reading them
+     *
+     * @param offset     offset of the first record
+     * @param maxRecords max number of records in the range
+     * @return the range, null if there is no record at offset yet
+     * @throws IOException if offset has been deleted, or the segment cannot be read
+     */
+    public synchronized Range locate(final long offset, final int maxRecords) throws IOException
+    {
+        if (offset < getStartOffset()) {
+            throw new IOException(String.format("Offset %d has been deleted, log starts at %d", offset, getStartOffset()));
+        }
+        if (offset >= activeSegment.nextOffset) {
+            return null;
+        }
+        return segments.floorEntry(offset).getValue().locate(offset, maxRecords);
+    }
+
+    /**
+     * Read the records of a range returned by locate. Segments are append-only, so this can be done without holding
+     * the log lock, as long as the segment has not been deleted.
+     *
+     * @param segmentFile   segment holding the records
+     * @param startPosition position of the first record
+     * @param endPosition   position after the last record
+     * @return the payloads of the records
+     * @throws IOException if a record is corrupted, or the segment cannot be read
+     */
+    public static List<byte[]> readRange(final File segmentFile, final long startPosition, final long endPosition) throws IOException
+    {
+        final List<byte[]> records = new ArrayList<byte[]>();
+        final RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+        try {
+            long position = startPosition;
+            while (position < endPosition) {
+                final byte[] payload = readRecord(file.getChannel(), position, endPosition);
+                if (payload == null) {
+                    throw new IOException(String.format("Corrupted record at position %d in %s", position, segmentFile));
+                }
+                records.add(payload);
+                position += RECORD_HEADER_SIZE + payload.length;
+            }
+            return records;
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Delete the segments whose records are all before offset
+     *
+     * @param offset first offset to keep
+     * @return number of segments deleted
+     */
+    public synchronized int deleteSegmentsBefore(final long offset)
+    {
+        int deleted = 0;
+        final Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            final Segment segment = iterator.next();
+            if (segment == activeSegment || segment.nextOffset > offset) {
+                break;
+            }
+            segment.delete();
+            iterator.remove();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete the segments last modified before the given time
+     *
+     * @param millis time in milliseconds
+     * @return number of segments deleted
+     */
+    public synchronized int deleteSegmentsModifiedBefore(final long millis)
+    {
+        int deleted = 0;
+        final Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            final Segment segment = iterator.next();
+            if (segment == activeSegment || segment.logFile.lastModified() >= millis) {
+                break;
+            }
+            segment.delete();
+            iterator.remove();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete the oldest segments until the log is no larger than the given size
+     *
+     * @param maxSizeInBytes max size of the log
+     * @return number of segments deleted
+     */
+    public synchronized int deleteSegmentsAboveSize(final long maxSizeInBytes)
+    {
+        int deleted = 0;
+        long size = getSizeInBytes();
+        final Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext() && size > maxSizeInBytes) {
+            final Segment segment = iterator.next();
+            if (segment == activeSegment) {
+                break;
+            }
+            size -= segment.size;
+            segment.delete();
+            iterator.remove();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * @return offset of the oldest record still in the log
+     */
+    public synchronized long getStartOffset()
+    {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return offset the next record will get
+     */
+    public synchronized long getNextOffset()
+    {
+        return activeSegment.nextOffset;
+    }
+
+    public synchronized long getSizeInBytes()
+    {
+        long size = 0;
+        for (final Segment segment : segments.values()) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    public synchronized void close() throws IOException
+    {
+        try {
+            activeChannel.force(false);
+        }
+        finally {
+            IOUtils.closeQuietly(activeIndex);
+            activeChannel.close();
+        }
+    }
+
+    private void roll() throws IOException
+    {
+        close();
+        openActiveSegment(new Segment(activeSegment.nextOffset));
+        log.debug("Started segment {}", activeSegment.logFile);
+    }
+
+    private void openActiveSegment(final Segment segment) throws IOException
+    {
+        segments.put(segment.baseOffset, segment);
+        activeSegment = segment;
+        activeChannel = new RandomAccessFile(segment.logFile, "rw").getChannel();
+        activeIndex = new DataOutputStream(new FileOutputStream(segment.indexFile, true));
+    }
+
+    /**
+     * @return the payload of the record at position, null if it is truncated (past limit) or corrupted
+     */
+    private static byte[] readRecord(final FileChannel channel, final long position, final long limit) throws IOException
+    {
+        if (position + RECORD_HEADER_SIZE > limit) {
+            return null;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(channel, header, position);
+        final int length = header.getInt();
+        final int checksum = header.getInt();
+        if (length < 0 || position + RECORD_HEADER_SIZE + length > limit) {
+            return null;
+        }
+
+        final ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, position + RECORD_HEADER_SIZE);
+        final CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        return payload.array();
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    private final class Segment
+    {
+        private final long baseOffset;
+        private final File logFile;
+        private final File indexFile;
+        // Sparse index: offset to position in the segment. The first record is always at position 0.
+        private final TreeMap<Long, Long> index = new TreeMap<Long, Long>();
+
+        private long size;
+        private long nextOffset;
+
+        private Segment(final long baseOffset)
+        {
+            this.baseOffset = baseOffset;
+            this.logFile = new File(directory, String.format("%020d%s", baseOffset, LOG_SUFFIX));
+            this.indexFile = new File(directory, String.format("%020d%s", baseOffset, INDEX_SUFFIX));
+            this.size = logFile.length();
+            this.nextOffset = baseOffset;
+            index.put(baseOffset, 0L);
+        }
+
+        private void loadIndex()
+        {
+            if (!indexFile.exists()) {
+                return;
+            }
+
+            DataInputStream input = null;
+            try {
+                input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                for (long i = 0; i < indexFile.length() / 16; i++) {
+                    final long offset = input.readLong();
+                    final long position = input.readLong();
+                    // The index is not synced, ignore entries past the data
+                    if (position < size) {
+                        index.put(offset, position);
+                    }
+                }
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to read index %s, ignoring it", indexFile), e);
+            }
+            finally {
+                IOUtils.closeQuietly(input);
+            }
+        }
+
+        /**
+         * Find the end of the last valid record, truncate anything after it, and rewrite the index
+         */
+        private void recover() throws IOException
+        {
+            final Map.Entry<Long, Long> lastEntry = index.lastEntry();
+            long offset = lastEntry.getKey();
+            long position = lastEntry.getValue();
+
+            final RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+            try {
+                final FileChannel channel = file.getChannel();
+                while (true) {
+                    final byte[] payload = readRecord(channel, position);
+                    if (payload == null) {
+                        break;
+                    }
+                    position += RECORD_HEADER_SIZE + payload.length;
+                    offset++;
+                }
+
+                if (position < size) {
+                    log.warn("Truncating {} after the last valid record, from {} to {} bytes", new Object[]{logFile, size, position});
+                    channel.truncate(position);
+                }
+                size = position;
+                nextOffset = offset;
+            }
+            finally {
+                file.close();
+            }
+
+            final DataOutputStream output = new DataOutputStream(new FileOutputStream(indexFile));
+            try {
+                for (final Map.Entry<Long, Long> entry : index.entrySet()) {
+                    if (entry.getValue() > 0) {
+                        output.writeLong(entry.getKey());
+                        output.writeLong(entry.getValue());
+                    }
+                }
+            }
+            finally {
+                output.close();
+            }
+        }
+
+        private int read(final long startOffset, final int maxRecords, final List<byte[]> records) throws IOException
+        {
+            final Map.Entry<Long, Long> entry = index.floorEntry(startOffset);
+            long offset = entry.getKey();
+            long position = entry.getValue();
+
+            final FileChannel channel = this == activeSegment ? activeChannel : new RandomAccessFile(logFile, "r").getChannel();
+            try {
+                int read = 0;
+                while (offset < nextOffset && read < maxRecords) {
+                    final byte[] payload = readRecord(channel, position);
+                    if (payload == null) {
+                        throw new IOException(String.format("Corrupted record %d in %s", offset, logFile));
+                    }
+                    if (offset >= startOffset) {
+                        records.add(payload);
+                        read++;
+                    }
+                    position += RECORD_HEADER_SIZE + payload.length;
+                    offset++;
+                }
+                return read;
+            }
+            finally {
+                if (channel != activeChannel) {
+                    channel.close();
+                }
+            }
+        }
+
+        private byte[] readRecord(final FileChannel channel, final long position) throws IOException
+        {
+            return SegmentLog.readRecord(channel, position, size);
+        }
+
+        private Range locate(final long startOffset, final int maxRecords) throws IOException
+        {
+            final Map.Entry<Long, Long> entry = index.floorEntry(startOffset);
+            long offset = entry.getKey();
+            long position = entry.getValue();
+            long startPosition = position;
+            int count = 0;
+
+            final FileChannel channel = this == activeSegment ? activeChannel : new RandomAccessFile(logFile, "r").getChannel();
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                while (offset < nextOffset && count < maxRecords) {
+                    if (offset == startOffset) {
+                        startPosition = position;
+                    }
+                    header.clear();
+                    readFully(channel, header, position);
+                    final int length = header.getInt();
+                    if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+                        throw new IOException(String.format("Corrupted record %d in %s", offset, logFile));
+                    }
+                    if (offset >= startOffset) {
+                        count++;
+                    }
+                    position += RECORD_HEADER_SIZE + length;
+                    offset++;
+                }
+                return new Range(logFile, startOffset, count, startPosition, position);
+            }
+            finally {
+                if (channel != activeChannel) {
+                    channel.close();
+                }
+            }
+        }
+
+        private long lastIndexedPosition()
+        {
+            return index.lastEntry().getValue();
+        }
+
+        private void addIndexEntry(final long offset, final long position)
+        {
+            index.put(offset, position);
+        }
+
+        private void delete()
+        {
+            if (!logFile.delete()) {
+                log.warn("Unable to delete segment {}", logFile);
+            }
+            if (indexFile.exists() && !indexFile.delete()) {
+                log.warn("Unable to delete index {}", indexFile);
+            }
+            log.debug("Deleted segment {}", logFile);
+        }
+    }
+
+    /**
+     * Consecutive records of a segment, see locate
+     */
+    static final class Range
+    {
+        private final File segmentFile;
+        private final long firstOffset;
+        private final int recordCount;
+        private final long startPosition;
+        private final long endPosition;
+
+        private Range(final File segmentFile, final long firstOffset, final int recordCount, final long startPosition, final long endPosition)
+        {
+            this.segmentFile = segmentFile;
+            this.firstOffset = firstOffset;
+            this.recordCount = recordCount;
+            this.startPosition = startPosition;
+            this.endPosition = endPosition;
+        }
+
+        File getSegmentFile()
+        {
+            return segmentFile;
+        }
+
+        long getFirstOffset()
+        {
+            return firstOffset;
+        }
+
+        int getRecordCount()
+        {
+            return recordCount;
+        }
+
+        long getStartPosition()
+        {
+            return startPosition;
+        }
+
+        long getEndPosition()
+        {
+            return endPosition;
+        }
+    }
+}
@@ -0,0 +1,771 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk-backed persistent queue, stored as an append-only segmented log (see SegmentLog) instead of one file per
+ * commit. Each commit appends one record to the log, containing the events serialized exactly as they would be in a
+ * DiskSpoolEventWriter spool file (without compression).
+ * <p/>
+ * Several consumers, each with its own EventHandler, read the log independently: each one keeps track of the offset of
+ * the next record to handle, under _offsets. EventHandlers implementing SegmentRangeHandler are handed ranges of
+ * records, straight from the segments. Other EventHandlers are handed a copy of the records, in order, via a file under
+ * _consumers written once for each attempt (and deleted once the EventHandler reports on it). When the EventSerializer
+ * writes nothing on open and close (e.g. ThriftEnvelopeEventSerializer), records concatenate into a valid spool file and
+ * each file holds a batch of records. Otherwise (e.g. ObjectOutputEventSerializer, SmileEnvelopeEventSerializer), each
+ * file holds a single record: this fallback costs a file creation and deletion per record and consumer, prefer a
+ * SegmentRangeHandler or a framing-free serializer for high volumes. The offset is committed once the EventHandler
+ * reports success. On error or timeout, the consumer stops and retries from the same offset on
+ * the next flush.
+ * <p/>
+ * The rollback operation moves the uncommitted events to the quarantine area (_quarantine), see processQuarantinedFiles.
+ * <p/>
+ * Segments are deleted once all consumers are done with them, and regardless of the consumers once older than
+ * retentionInSeconds or once the log is larger than maxRetainedSizeInBytes (consumers then skip the deleted records).
+ */
+public class SegmentLogEventWriter implements EventWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(SegmentLogEventWriter.class);
+    private static final int FLUSH_BATCH_SIZE = 100;
+    private static final long INDEX_INTERVAL_IN_BYTES = 4096;
+
+    private final SegmentLog segmentLog;
+    private final File spoolDirectory;
+    private final File quarantineDirectory;
+    private final SpoolQuarantine quarantine;
+    private final List<LogConsumer> consumers = new ArrayList<LogConsumer>();
+    private final AtomicBoolean flushEnabled;
+    private final AtomicLong flushIntervalInSeconds;
+    private final ScheduledExecutorService executor;
+    private final EventSerializer eventSerializer;
+    private final AtomicLong retentionInSeconds;
+    private final AtomicLong maxRetainedSizeInBytes;
+    private final AtomicLong handlerTimeoutInSeconds = new AtomicLong(300);
+    private final AtomicBoolean currentlyFlushing = new AtomicBoolean(false);
+    private final AtomicLong eventSerializationFailures = new AtomicLong(0);
+    private final AtomicLong skippedRecords = new AtomicLong(0);
+    private final AtomicLong handledRecords = new AtomicLong(0);
+    private final AtomicLong rolledBackBatches = new AtomicLong(0);
+
+    // Whether several records can be handed in a single file, see the class documentation
+    private final boolean batchRecords;
+
+    private ByteArrayOutputStream currentBuffer = null;
+    private boolean acceptsEvents;
+
+    /**
+     * @param consumers              EventHandler of each consumer, by consumer name
+     * @param spoolPath              directory for the log
+     * @param flushEnabled           whether records are handed to the consumers
+     * @param flushIntervalInSeconds delay between flushes when the consumers are caught up
+     * @param executor               executor for the flusher
+     * @param syncType               SYNC to sync the log on each commit
+     * @param eventSerializer        event serializer, ObjectOutputEventSerializer if null
+     * @param segmentSizeInBytes     size of the log segments
+     * @param retentionInSeconds     max age of a segment (0 for unlimited)
+     * @param maxRetainedSizeInBytes max size of the log (0 for unlimited)
+     * @throws IOException if the existing log or offsets cannot be read
+     */
+    public SegmentLogEventWriter(
+        final Map<String, EventHandler> consumers,
+        final String spoolPath,
+        final boolean flushEnabled,
+        final long flushIntervalInSeconds,
+        final ScheduledExecutorService executor,
+        final SyncType syncType,
+        final EventSerializer eventSerializer,
+        final long segmentSizeInBytes,
+        final long retentionInSeconds,
+        final long maxRetainedSizeInBytes
+    ) throws IOException
+    {
+        if (consumers.isEmpty()) {
+            throw new IllegalArgumentException("Eventwriter misconfigured - no consumer specified");
+        }
+
+        this.spoolDirectory = new File(spoolPath);
+        this.segmentLog = new SegmentLog(spoolDirectory, segmentSizeInBytes, INDEX_INTERVAL_IN_BYTES, syncType == SyncType.SYNC);
+        this.flushEnabled = new AtomicBoolean(flushEnabled);
+        this.flushIntervalInSeconds = new AtomicLong(flushIntervalInSeconds);
+        this.executor = executor;
+        this.eventSerializer = eventSerializer == null ? new ObjectOutputEventSerializer() : eventSerializer;
+        this.batchRecords = !writesFraming(this.eventSerializer);
+        this.retentionInSeconds = new AtomicLong(retentionInSeconds);
+        this.maxRetainedSizeInBytes = new AtomicLong(maxRetainedSizeInBytes);
+
+        final File offsetsDirectory = new File(spoolDirectory, "_offsets");
+        final File consumersDirectory = new File(spoolDirectory, "_consumers");
+        this.quarantineDirectory = new File(spoolDirectory, "_quarantine");
+        createSpoolDir(offsetsDirectory);
+        createSpoolDir(consumersDirectory);
+        createSpoolDir(quarantineDirectory);
+        this.quarantine = new SpoolQuarantine(quarantineDirectory);
+        for (final Map.Entry<String, EventHandler> entry : consumers.entrySet()) {
+            this.consumers.add(new LogConsumer(entry.getKey(), entry.getValue(), offsetsDirectory, consumersDirectory));
+        }
+
+        acceptsEvents = true;
+        scheduleFlush();
+    }
+
+    /**
+     * @return true if the serializer writes headers or footers, in which case records cannot be concatenated
+     */
+    private static boolean writesFraming(final EventSerializer eventSerializer) throws IOException
+    {
+        final ByteArrayOutputStream emptyStream = new ByteArrayOutputStream();
+        eventSerializer.open(emptyStream);
+        eventSerializer.close();
+        return emptyStream.size() > 0;
+    }
+
+    private void createSpoolDir(final File dir) throws IOException
+    {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException(String.format("Unable to create spool directory %s", dir));
+        }
+    }
+
+    private void scheduleFlush()
+    {
+        executor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final long handledBefore = handledRecords.get();
+                try {
+                    flush();
+                }
+                catch (Exception e) {
+                    log.error(String.format("Failed flush of %s", spoolDirectory), e);
+                }
+                finally {
+                    // Keep going while the consumers are making progress
+                    final boolean progress = handledRecords.get() > handledBefore && getMaxConsumerLag() > 0;
+                    final long sleepSeconds = progress && flushEnabled.get() ? 0 : flushIntervalInSeconds.get();
+                    log.debug("Sleeping {} seconds before next flush of {}", sleepSeconds, spoolDirectory);
+
+                    try {
+                        executor.schedule(this, sleepSeconds, TimeUnit.SECONDS);
+                    }
+                    catch (RejectedExecutionException e) {
+                        // Ignore if we've been asked to shutdown
+                        if (!executor.isShutdown()) {
+                            throw e;
+                        }
+                    }
+                }
+            }
+        }, flushIntervalInSeconds.get(), TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void write(final Event event) throws IOException
+    {
+        if (!acceptsEvents) {
+            log.warn("Writer not ready, discarding event: {}", event);
+            return;
+        }
+
+        if (currentBuffer == null) {
+            currentBuffer = new ByteArrayOutputStream();
+            eventSerializer.open(currentBuffer);
+        }
+
+        try {
+            eventSerializer.serialize(event);
+        }
+        catch (RuntimeException e) {
+            eventSerializationFailures.incrementAndGet();
+            throw new IOException("unable to serialize event", e);
+        }
+        catch (IOException e) {
+            eventSerializationFailures.incrementAndGet();
+            // The serializer may be in a bad state, commit what we have and start over
+            try {
+                forceCommit();
+            }
+            catch (IOException ignored) {
+                // We want to throw the original one
+            }
+            throw new IOException("unable to serialize event", e);
+        }
+    }
+
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        forceCommit();
+    }
+
+    /**
+     * Append the events written since the last commit to the log, as a single record
+     *
+     * @throws IOException generic I/O exception
+     */
+    @Override
+    public synchronized void forceCommit() throws IOException
+    {
+        if (currentBuffer != null) {
+            try {
+                eventSerializer.close();
+                segmentLog.append(currentBuffer.toByteArray());
+            }
+            finally {
+                currentBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Move the events written since the last commit to the quarantine area, instead of the log
+     *
+     * @throws IOException generic I/O exception
+     */
+    @Override
+    public synchronized void rollback() throws IOException
+    {
+        if (currentBuffer != null) {
+            try {
+                eventSerializer.close();
+                final File quarantinedFile = new File(quarantineDirectory, String.format("%d-%d.bin", getNow(), rolledBackBatches.incrementAndGet()));
+                FileUtils.writeByteArrayToFile(quarantinedFile, currentBuffer.toByteArray());
+                quarantine.quarantined(quarantinedFile, "rollback");
+            }
+            finally {
+                currentBuffer = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        acceptsEvents = false;
+
+        // Stop the flusher
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+
+        // Cleanup the current state
+        forceCommit();
+        flush();
+
+        for (final LogConsumer consumer : consumers) {
+            consumer.close();
+        }
+        segmentLog.close();
+    }
+
+    /**
+     * @return local spool path used by the writer
+     */
+    @Override
+    public String getSpoolPath()
+    {
+        return spoolDirectory.getAbsolutePath();
+    }
+
+    /**
+     * Hand the new records to each consumer, then delete the segments which are not needed anymore
+     */
+    @Override
+    @Managed(description = "Flush events (forward them to final handlers)")
+    public void flush()
+    {
+        if (!currentlyFlushing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            if (flushEnabled.get()) {
+                for (final LogConsumer consumer : consumers) {
+                    consume(consumer);
+                }
+            }
+            applyRetention();
+        }
+        finally {
+            currentlyFlushing.set(false);
+        }
+    }
+
+    private void consume(final LogConsumer consumer)
+    {
+        try {
+            while (flushEnabled.get()) {
+                if (consumer.offset < segmentLog.getStartOffset()) {
+                    final long skipped = segmentLog.getStartOffset() - consumer.offset;
+                    log.warn("Consumer {} is behind the retention of {}, skipping {} records", new Object[]{consumer.name, spoolDirectory, skipped});
+                    skippedRecords.addAndGet(skipped);
+                    consumer.commit(segmentLog.getStartOffset());
+                }
+
+                if (consumer.eventHandler instanceof SegmentRangeHandler) {
+                    final SegmentLog.Range range = segmentLog.locate(consumer.offset, FLUSH_BATCH_SIZE);
+                    if (range == null) {
+                        return;
+                    }
+                    if (!consumer.handle(range)) {
+                        return;
+                    }
+                    consumer.commit(range.getFirstOffset() + range.getRecordCount());
+                    handledRecords.addAndGet(range.getRecordCount());
+                    continue;
+                }
+
+                final List<byte[]> records = segmentLog.read(consumer.offset, FLUSH_BATCH_SIZE);
+                if (records.isEmpty()) {
+                    return;
+                }
+
+                if (batchRecords) {
+                    if (!consumer.handle(records)) {
+                        return;
+                    }
+                    consumer.commit(consumer.offset + records.size());
+                    handledRecords.addAndGet(records.size());
+                    continue;
+                }
+
+                for (final byte[] record : records) {
+                    if (!consumer.handle(Collections.singletonList(record))) {
+                        return;
+                    }
+                    consumer.commit(consumer.offset + 1);
+                    handledRecords.incrementAndGet();
+                }
+            }
+        }
+        catch (IOException e) {
+            log.warn(String.format("Unable to flush %s to consumer %s", spoolDirectory, consumer.name), e);
+        }
+    }
+
+    /**
+     * Append the quarantined (rolled back) events to the log, so that the consumers get them
+     */
+    @Managed(description = "append quarantined events to the log")
+    public void processQuarantinedFiles()
+    {
+        for (final File file : quarantine.takeOldest(Integer.MAX_VALUE, quarantine.getFailureSequence())) {
+            try {
+                segmentLog.append(FileUtils.readFileToByteArray(file));
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to append quarantined file %s to %s", file, spoolDirectory), e);
+                quarantine.quarantined(file, String.valueOf(e));
+                continue;
+            }
+
+            quarantine.flushed(file.getName());
+            if (!file.delete()) {
+                log.warn("Unable to delete quarantined file {}", file);
+            }
+        }
+    }
+
+    /**
+     * Read the records of a range handed to a SegmentRangeHandler
+     *
+     * @param segmentFile   segment holding the records
+     * @param startPosition position of the first record in the segment
+     * @param endPosition   position after the last record in the segment
+     * @return the records, each holding events serialized as in a DiskSpoolEventWriter spool file
+     * @throws IOException if the segment has been deleted or a record is corrupted
+     */
+    public static List<byte[]> readRange(final File segmentFile, final long startPosition, final long endPosition) throws IOException
+    {
+        return SegmentLog.readRange(segmentFile, startPosition, endPosition);
+    }
+
+    private void applyRetention()
+    {
+        long minOffset = segmentLog.getNextOffset();
+        for (final LogConsumer consumer : consumers) {
+            minOffset = Math.min(minOffset, consumer.offset);
+        }
+
+        int deleted = segmentLog.deleteSegmentsBefore(minOffset);
+        if (retentionInSeconds.get() > 0) {
+            deleted += segmentLog.deleteSegmentsModifiedBefore(getNow() - TimeUnit.SECONDS.toMillis(retentionInSeconds.get()));
+        }
+        if (maxRetainedSizeInBytes.get() > 0) {
+            deleted += segmentLog.deleteSegmentsAboveSize(maxRetainedSizeInBytes.get());
+        }
+
+        if (deleted > 0) {
+            log.debug("Deleted {} segments from {}", deleted, spoolDirectory);
+        }
+    }
+
+    //hook for unit testing
+    protected long getNow()
+    {
+        return System.currentTimeMillis();
+    }
+
+    @Managed(description = "enable/disable flushing to the consumers")
+    public void setFlushEnabled(final boolean enabled)
+    {
+        log.info(String.format("setting flush enabled to %b", enabled));
+        flushEnabled.set(enabled);
+    }
+
+    @Managed(description = "check enabled/disabled flushing to the consumers")
+    public boolean getFlushEnabled()
+    {
+        return flushEnabled.get();
+    }
+
+    @Managed(description = "set the period after which the consumers are flushed again when they are caught up")
+    public void setFlushIntervalInSeconds(final long seconds)
+    {
+        log.info(String.format("setting flush interval to %d secs", seconds));
+        flushIntervalInSeconds.set(seconds);
+    }
+
+    @Managed(description = "get the period after which the consumers are flushed again when they are caught up")
+    public long getFlushIntervalInSeconds()
+    {
+        return flushIntervalInSeconds.get();
+    }
+
+    @Managed(description = "set the max age of a segment in seconds (0 for unlimited)")
+    public void setRetentionInSeconds(final long seconds)
+    {
+        retentionInSeconds.set(seconds);
+    }
+
+    @Managed(description = "the max age of a segment in seconds")
+    public long getRetentionInSeconds()
+    {
+        return retentionInSeconds.get();
+    }
+
+    @Managed(description = "set the max size of the log in megabytes (0 for unlimited)")
+    public void setMaxRetainedSizeInMB(final long sizeInMB)
+    {
+        maxRetainedSizeInBytes.set(sizeInMB * 1024 * 1024);
+    }
+
+    @Managed(description = "the max size of the log in megabytes")
+    public long getMaxRetainedSizeInMB()
+    {
+        return maxRetainedSizeInBytes.get() / (1024 * 1024);
+    }
+
+    @Managed(description = "set the time in seconds to wait for an EventHandler to report success or failure")
+    public void setHandlerTimeoutInSeconds(final long seconds)
+    {
+        handlerTimeoutInSeconds.set(seconds);
+    }
+
+    @Managed(description = "the time in seconds to wait for an EventHandler to report success or failure")
+    public long getHandlerTimeoutInSeconds()
+    {
+        return handlerTimeoutInSeconds.get();
+    }
+
+    @Managed(description = "size in kilobytes of the log")
+    public long getDiskSpoolSize()
+    {
+        return segmentLog.getSizeInBytes() / 1024;
+    }
+
+    @Managed(description = "number of segments in the log")
+    public int getSegmentCount()
+    {
+        return segmentLog.getSegmentCount();
+    }
+
+    @Managed(description = "offset of the next record appended to the log")
+    public long getNextOffset()
+    {
+        return segmentLog.getNextOffset();
+    }
+
+    @Managed(description = "number of records not yet handled by the slowest consumer")
+    public long getMaxConsumerLag()
+    {
+        long lag = 0;
+        for (final LogConsumer consumer : consumers) {
+            lag = Math.max(lag, segmentLog.getNextOffset() - consumer.offset);
+        }
+        return lag;
+    }
+
+    @Managed(description = "number of records not yet handled, and handling failures, by consumer")
+    public String getConsumerLags()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (final LogConsumer consumer : consumers) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(String.format("%s: %d records (%d failures)", consumer.name, segmentLog.getNextOffset() - consumer.offset, consumer.failures.get()));
+        }
+        return builder.toString();
+    }
+
+    @Managed(description = "number of records handled, across all consumers")
+    public long getHandledRecordCount()
+    {
+        return handledRecords.get();
+    }
+
+    @Managed(description = "number of records deleted by retention before all consumers handled them")
+    public long getSkippedRecordCount()
+    {
+        return skippedRecords.get();
+    }
+
+    @Managed(description = "size in kilobytes of quarantined (rolled back) events")
+    public long getQuarantineSize()
+    {
+        return quarantine.getSizeInBytes() / 1024;
+    }
+
+    @Managed(description = "number of quarantined (rolled back) batches of events")
+    public long getQuarantinedFileCount()
+    {
+        return quarantine.getFileCount();
+    }
+
+    @Managed(description = "set the max size in kilobytes of the quarantine (0 for unlimited), oldest files are deleted first")
+    public void setMaxQuarantineSize(final long sizeInKilobytes)
+    {
+        quarantine.setMaxSizeInBytes(sizeInKilobytes * 1024);
+    }
+
+    @Managed(description = "get the max size in kilobytes of the quarantine (0 for unlimited)")
+    public long getMaxQuarantineSize()
+    {
+        return quarantine.getMaxSizeInBytes() / 1024;
+    }
+
+    @Managed(description = "Number of events that could not be serialized")
+    public long getEventSerializationFailures()
+    {
+        return eventSerializationFailures.get();
+    }
+
+    /**
+     * @param consumer consumer name
+     * @return offset of the next record to hand to the consumer
+     */
+    public long getConsumerOffset(final String consumer)
+    {
+        for (final LogConsumer logConsumer : consumers) {
+            if (logConsumer.name.equals(consumer)) {
+                return logConsumer.offset;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown consumer %s", consumer));
+    }
+
+    private final class LogConsumer
+    {
+        private final String name;
+        private final EventHandler eventHandler;
+        private final RandomAccessFile offsetFile;
+        private final File consumersDirectory;
+        private final AtomicLong attempts = new AtomicLong(0);
+        private final AtomicLong failures = new AtomicLong(0);
+
+        private volatile long offset;
+
+        private LogConsumer(final String name, final EventHandler eventHandler, final File offsetsDirectory, final File consumersDirectory) throws IOException
+        {
+            this.name = name;
+            this.eventHandler = eventHandler;
+            this.offsetFile = new RandomAccessFile(new File(offsetsDirectory, name), "rw");
+            this.consumersDirectory = consumersDirectory;
+            // New consumers start with the oldest record still around
+            this.offset = offsetFile.length() >= 8 ? offsetFile.readLong() : segmentLog.getStartOffset();
+
+            // Records handed over before a restart
+            final String prefix = String.format("%s-", name);
+            final File[] leftovers = consumersDirectory.listFiles();
+            if (leftovers != null) {
+                for (final File file : leftovers) {
+                    if (file.getName().startsWith(prefix) && file.getName().endsWith(".bin") && !file.delete()) {
+                        log.warn("Unable to delete record file {}", file);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Overwrite the offset in place: a single 8 bytes write, no file creation or rename
+         */
+        private void commit(final long newOffset) throws IOException
+        {
+            offsetFile.seek(0);
+            offsetFile.writeLong(newOffset);
+            offset = newOffset;
+        }
+
+        private boolean handle(final SegmentLog.Range range)
+        {
+            final Attempt attempt = new Attempt(range.getFirstOffset(), null);
+            try {
+                ((SegmentRangeHandler) eventHandler).handleRange(range.getSegmentFile(), range.getFirstOffset(), range.getRecordCount(),
+                                                                 range.getStartPosition(), range.getEndPosition(), attempt);
+            }
+            catch (RuntimeException e) {
+                log.warn(String.format("Unknown error transferring records from %d to consumer %s", range.getFirstOffset(), name), e);
+                attempt.onError(e, range.getSegmentFile());
+            }
+            return attempt.await();
+        }
+
+        /**
+         * @param records consecutive records, from the current offset, handed in a single file
+         */
+        private boolean handle(final List<byte[]> records) throws IOException
+        {
+            // A new file for each attempt: the EventHandler of a timed out attempt may still be reading the previous one
+            final File recordFile = new File(consumersDirectory, String.format("%s-%d-%d.bin", name, offset, attempts.incrementAndGet()));
+            final FileOutputStream output = new FileOutputStream(recordFile);
+            try {
+                for (final byte[] record : records) {
+                    output.write(record);
+                }
+            }
+            finally {
+                output.close();
+            }
+
+            final Attempt attempt = new Attempt(offset, recordFile);
+            try {
+                eventHandler.handle(recordFile, attempt);
+            }
+            catch (RuntimeException e) {
+                log.warn(String.format("Unknown error transferring records from %d to consumer %s", offset, name), e);
+                attempt.onError(e, recordFile);
+            }
+            return attempt.await();
+        }
+
+        private void close()
+        {
+            try {
+                offsetFile.close();
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to close offset file of consumer %s", name), e);
+            }
+        }
+
+        /**
+         * Outcome of a hand-over. The first of the EventHandler report and the timeout wins, later reports only clean up.
+         */
+        private final class Attempt implements CallbackHandler
+        {
+            private final long firstOffset;
+            private final File recordFile;
+            private final AtomicBoolean settled = new AtomicBoolean(false);
+            private final AtomicBoolean success = new AtomicBoolean(false);
+            private final CountDownLatch done = new CountDownLatch(1);
+
+            private Attempt(final long firstOffset, final File recordFile)
+            {
+                this.firstOffset = firstOffset;
+                this.recordFile = recordFile;
+            }
+
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+                deleteRecordFile();
+                if (settled.compareAndSet(false, true)) {
+                    log.warn("Error trying to flush record {} to consumer {}: {}", new Object[]{firstOffset, name, t.getLocalizedMessage()});
+                    failures.incrementAndGet();
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+                deleteRecordFile();
+                if (settled.compareAndSet(false, true)) {
+                    success.set(true);
+                    done.countDown();
+                }
+            }
+
+            private boolean await()
+            {
+                try {
+                    if (!done.await(handlerTimeoutInSeconds.get(), TimeUnit.SECONDS)) {
+                        if (settled.compareAndSet(false, true)) {
+                            log.warn("Consumer {} did not handle record {} in time, it will be retried", name, firstOffset);
+                            failures.incrementAndGet();
+                            return false;
+                        }
+                        // The EventHandler reported just in time
+                        done.await();
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return success.get();
+            }
+
+            private void deleteRecordFile()
+            {
+                if (recordFile != null && recordFile.exists() && !recordFile.delete()) {
+                    log.warn("Unable to delete record file {}", recordFile);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import java.io.File;
+
+/**
+ * Optional interface for the EventHandler of a SegmentLogEventWriter consumer, to read records straight from the log
+ * segments instead of receiving a copy of each record.
+ * <p/>
+ * A range covers consecutive records of a single segment, from startPosition (inclusive) to endPosition (exclusive).
+ * Use SegmentLogEventWriter.readRange to get the records: each one holds events serialized as in a
+ * DiskSpoolEventWriter spool file. Segments are append-only, the range stays valid until the segment is deleted.
+ */
+public interface SegmentRangeHandler
+{
+    /**
+     * Handle a range of records, and report the outcome to handler (with the segment file)
+     *
+     * @param segmentFile   segment holding the records
+     * @param firstOffset   offset of the first record
+     * @param recordCount   number of records in the range
+     * @param startPosition position of the first record in the segment
+     * @param endPosition   position after the last record in the segment
+     * @param handler       callback for the outcome
+     */
+    public void handleRange(File segmentFile, long firstOffset, int recordCount, long startPosition, long endPosition, CallbackHandler handler);
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Coordination between several writers (typically in different processes) sharing a spool directory.
+ * <p/>
+ * Each writer gets a random tag, embedded in the names of the files it creates, and holds an exclusive lock on
+ * _processes/[tag].lock for its lifetime: a writer is alive if and only if its lock is held. Tags are never reused
+ * (unlike pids, e.g. every container is pid 1), so a restarted writer never mistakes the files of its previous run for
+ * its own. Writers take turns flushing by holding the lock on _processes/_flusher, so that a file is never picked up
+ * twice. The holder of the flusher lock deletes the lock files of dead writers (see deleteDeadWriterLocks), and
+ * recovers their files.
+ * <p/>
+ * File locks are held by the process, and closing any descriptor of a file releases all the locks the process holds
+ * on it. Lock files are thus opened once per JVM (see LockFile), and only closed once no writer of this JVM uses them.
+ */
+class SharedSpoolCoordinator
+{
+    private static final Logger log = LoggerFactory.getLogger(SharedSpoolCoordinator.class);
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final Pattern TAG_PATTERN = Pattern.compile("[0-9a-f]{32}");
+    // A lock file can be deleted, as stale, between its creation and its locking: start over with another tag
+    private static final int MAX_LOCK_ATTEMPTS = 10;
+
+    private final File processesDirectory;
+    private String tag;
+    private File processLockFile;
+    private LockFile processFile;
+    private final LockFile flusherFile;
+
+    private boolean processLocked;
+    private boolean flusherLocked = false;
+
+    SharedSpoolCoordinator(final File spoolDirectory) throws IOException
+    {
+        processesDirectory = new File(spoolDirectory, "_processes");
+        if (!processesDirectory.exists() && !processesDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + processesDirectory);
+        }
+
+        for (int attempt = 0; !processLocked; attempt++) {
+            if (attempt == MAX_LOCK_ATTEMPTS) {
+                throw new IOException("Unable to lock a writer tag in " + processesDirectory);
+            }
+
+            tag = UUID.randomUUID().toString().replace("-", "");
+            processLockFile = new File(processesDirectory, tag + LOCK_SUFFIX);
+            processFile = LockFile.open(processLockFile);
+            processLocked = processFile.tryLock() && processLockFile.exists();
+            if (!processLocked) {
+                processFile.unlock();
+                processFile.close();
+            }
+        }
+
+        flusherFile = LockFile.open(new File(processesDirectory, "_flusher"));
+    }
+
+    /**
+     * @param name name of a file or directory
+     * @return true if the name is a writer tag
+     */
+    static boolean isTag(final String name)
+    {
+        return TAG_PATTERN.matcher(name).matches();
+    }
+
+    String getTag()
+    {
+        return tag;
+    }
+
+    /**
+     * @param fileId unique id, within this writer
+     * @return name of the file, unique across writers. Names still sort by id.
+     */
+    String getFileName(final long fileId)
+    {
+        return String.format("%d-%s.bin", fileId, tag);
+    }
+
+    /**
+     * @param file spooled file
+     * @return true if the file was created by a live writer (including this one)
+     */
+    boolean isOwnedByLiveWriter(final File file)
+    {
+        final String fileTag = getWriterTag(file);
+        // Files without tag were created by a writer without coordination
+        return fileTag != null && isAlive(fileTag);
+    }
+
+    /**
+     * @param file spooled file
+     * @return tag of the writer which created the file, null if created by a writer without coordination
+     */
+    String getWriterTag(final File file)
+    {
+        final String name = file.getName();
+        final int dash = name.indexOf('-');
+        final int dot = name.indexOf('.');
+        if (dash < 0 || dot < dash) {
+            return null;
+        }
+        return name.substring(dash + 1, dot);
+    }
+
+    /**
+     * @return true if other writers are currently using the spool
+     */
+    boolean hasOtherLiveWriters()
+    {
+        final File[] files = processesDirectory.listFiles();
+        if (files == null) {
+            return false;
+        }
+
+        for (final File file : files) {
+            if (file.getName().endsWith(LOCK_SUFFIX)) {
+                final String fileTag = file.getName().substring(0, file.getName().length() - LOCK_SUFFIX.length());
+                if (!fileTag.equals(tag) && isAlive(fileTag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delete the lock files of the writers which are gone, so that they don't pile up in a long-lived spool. Only
+     * called by the holder of the flusher lock.
+     */
+    void deleteDeadWriterLocks()
+    {
+        final File[] files = processesDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (final File file : files) {
+            if (!file.getName().endsWith(LOCK_SUFFIX) || file.equals(processLockFile)) {
+                continue;
+            }
+
+            LockFile lockFile = null;
+            try {
+                lockFile = LockFile.open(file);
+                if (lockFile.deleteIfUnlocked(file)) {
+                    log.info("Deleted the lock file {} of a dead writer", file);
+                }
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to check the lock file %s", file), e);
+            }
+            finally {
+                if (lockFile != null) {
+                    lockFile.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param writerTag tag of a writer
+     * @return true if the writer is alive (this one is)
+     */
+    boolean isAlive(final String writerTag)
+    {
+        if (writerTag.equals(tag)) {
+            return true;
+        }
+
+        final File lockFile = new File(processesDirectory, writerTag + LOCK_SUFFIX);
+        if (!lockFile.exists()) {
+            return false;
+        }
+
+        LockFile file = null;
+        try {
+            file = LockFile.open(lockFile);
+            return file.isLocked();
+        }
+        catch (IOException e) {
+            log.warn(String.format("Unable to check the lock file %s, assuming the writer is alive", lockFile), e);
+            return true;
+        }
+        finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if this writer can flush, false if another writer is flushing
+     */
+    synchronized boolean tryLockFlusher()
+    {
+        if (flusherLocked) {
+            // Already flushing (e.g. flush and quarantine reprocessing)
+            return false;
+        }
+
+        try {
+            flusherLocked = flusherFile.tryLock();
+        }
+        catch (IOException e) {
+            log.warn("Unable to lock the shared spool for flushing", e);
+            flusherLocked = false;
+        }
+        return flusherLocked;
+    }
+
+    synchronized void unlockFlusher()
+    {
+        if (!flusherLocked) {
+            return;
+        }
+
+        flusherFile.unlock();
+        flusherLocked = false;
+    }
+
+    synchronized void close()
+    {
+        unlockFlusher();
+        flusherFile.close();
+
+        if (processLocked) {
+            // Delete before unlocking, so that other writers never see a stale file
+            if (!processLockFile.delete()) {
+                log.warn("Unable to delete lock file {}", processLockFile);
+            }
+            processFile.unlock();
+            processLocked = false;
+        }
+        processFile.close();
+    }
+
+    /**
+     * Lock file shared by all the writers of this JVM: a single descriptor is open per file, until the last writer
+     * using it closes it. At most one writer of this JVM holds the lock at a time.
+     */
+    private static final class LockFile
+    {
+        // Open lock files, by canonical path
+        private static final Map<String, LockFile> openFiles = new HashMap<String, LockFile>();
+
+        private final String path;
+        private final RandomAccessFile file;
+        private int references = 0;
+        private FileLock lock = null;
+
+        private LockFile(final String path, final RandomAccessFile file)
+        {
+            this.path = path;
+            this.file = file;
+        }
+
+        static LockFile open(final File lockFile) throws IOException
+        {
+            final String path = lockFile.getCanonicalPath();
+            synchronized (openFiles) {
+                LockFile file = openFiles.get(path);
+                if (file == null) {
+                    file = new LockFile(path, new RandomAccessFile(lockFile, "rw"));
+                    openFiles.put(path, file);
+                }
+                file.references++;
+                return file;
+            }
+        }
+
+        /**
+         * @return true if the lock was acquired, false if held by another process or by another writer of this JVM
+         * @throws IOException if the lock cannot be checked
+         */
+        boolean tryLock() throws IOException
+        {
+            synchronized (openFiles) {
+                if (lock != null) {
+                    return false;
+                }
+                lock = file.getChannel().tryLock();
+                return lock != null;
+            }
+        }
+
+        void unlock()
+        {
+            synchronized (openFiles) {
+                if (lock == null) {
+                    return;
+                }
+                try {
+                    lock.release();
+                }
+                catch (IOException e) {
+                    log.warn("Unable to release lock file {}", path);
+                }
+                lock = null;
+            }
+        }
+
+        /**
+         * Delete the file, while holding its lock, unless the lock is held by someone else
+         *
+         * @param lockFile the file
+         * @return true if the file was deleted
+         * @throws IOException if the lock cannot be checked
+         */
+        boolean deleteIfUnlocked(final File lockFile) throws IOException
+        {
+            synchronized (openFiles) {
+                if (lock != null) {
+                    return false;
+                }
+                final FileLock probe = file.getChannel().tryLock();
+                if (probe == null) {
+                    return false;
+                }
+                try {
+                    // A writer which opened the file in the meantime sees it gone once it gets the lock, see the constructor
+                    return lockFile.delete();
+                }
+                finally {
+                    probe.release();
+                }
+            }
+        }
+
+        /**
+         * @return true if the lock is held, by any process (including this one)
+         * @throws IOException if the lock cannot be checked
+         */
+        boolean isLocked() throws IOException
+        {
+            synchronized (openFiles) {
+                if (lock != null) {
+                    return true;
+                }
+                final FileLock probe = file.getChannel().tryLock();
+                if (probe == null) {
+                    return true;
+                }
+                probe.release();
+                return false;
+            }
+        }
+
+        void close()
+        {
+            synchronized (openFiles) {
+                references--;
+                // The descriptor is only closed once no writer of this JVM uses the file, i.e. holds its lock
+                if (references == 0) {
+                    openFiles.remove(path);
+                    IOUtils.closeQuietly(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layout of the files in the spool, locked and quarantine directories of a DiskSpoolEventWriter.
+ * <ul>
+ * <li>FLAT: all files live directly in the directory
+ * <li>SHARDED: files are spread in a two-level tree of 16x16 subdirectories, by hash of their base name (the part
+ * before the first dot), so that files sharing a base name are in the same subdirectory. This keeps directories small
+ * for very large backlogs
+ * </ul>
+ * Listing a SHARDED directory also returns files sitting directly in it (e.g. written with the FLAT layout). Files
+ * written with the other layout are returned by listUnmigratedFiles, so that spools can be migrated both ways.
+ */
+public enum SpoolLayout
+{
+    FLAT
+        {
+            @Override
+            public File getFile(final File directory, final String name)
+            {
+                return new File(directory, name);
+            }
+
+            @Override
+            public void prepare(final File directory)
+            {
+            }
+
+            @Override
+            public List<File> listFiles(final File directory)
+            {
+                return listRegularFiles(directory);
+            }
+
+            @Override
+            public List<File> listUnmigratedFiles(final File directory)
+            {
+                // Files left in the SHARDED subdirectories
+                final List<File> files = new ArrayList<File>();
+                for (final String shard : SHARDS) {
+                    final File shardDirectory = new File(directory, shard);
+                    if (!shardDirectory.isDirectory()) {
+                        continue;
+                    }
+                    for (final String subShard : SHARDS) {
+                        files.addAll(listRegularFiles(new File(shardDirectory, subShard)));
+                    }
+                }
+                return files;
+            }
+        },
+    SHARDED
+        {
+            @Override
+            public File getFile(final File directory, final String name)
+            {
+                final int dot = name.indexOf('.');
+                final int hash = (dot < 0 ? name : name.substring(0, dot)).hashCode();
+                return new File(new File(new File(directory, SHARDS[hash & 0xf]), SHARDS[(hash >>> 4) & 0xf]), name);
+            }
+
+            @Override
+            public void prepare(final File directory)
+            {
+                for (final String shard : SHARDS) {
+                    for (final String subShard : SHARDS) {
+                        final File shardDirectory = new File(new File(directory, shard), subShard);
+                        if (!shardDirectory.exists() && !shardDirectory.mkdirs()) {
+                            throw new IllegalArgumentException("Eventwriter misconfigured - couldn't create the spool directory " + shardDirectory);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public List<File> listFiles(final File directory)
+            {
+                final List<File> files = listRegularFiles(directory);
+                for (final String shard : SHARDS) {
+                    for (final String subShard : SHARDS) {
+                        files.addAll(listRegularFiles(new File(new File(directory, shard), subShard)));
+                    }
+                }
+                return files;
+            }
+
+            @Override
+            public List<File> listUnmigratedFiles(final File directory)
+            {
+                // Files written with the FLAT layout
+                return listRegularFiles(directory);
+            }
+        };
+
+    private static final String[] SHARDS = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "a", "b", "c", "d", "e", "f"};
+
+    /**
+     * @param directory spool, locked or quarantine directory
+     * @param name      name of the file
+     * @return location of the file in the directory
+     */
+    public abstract File getFile(File directory, String name);
+
+    /**
+     * Create the subdirectories needed by the layout, if any
+     *
+     * @param directory spool, locked or quarantine directory
+     */
+    public abstract void prepare(File directory);
+
+    /**
+     * @param directory spool, locked or quarantine directory
+     * @return all files in the directory, in no particular order
+     */
+    public abstract List<File> listFiles(File directory);
+
+    /**
+     * @param directory spool, locked or quarantine directory
+     * @return files which are not at the location given by getFile, e.g. written with another layout
+     */
+    public abstract List<File> listUnmigratedFiles(File directory);
+
+    private static List<File> listRegularFiles(final File directory)
+    {
+        final List<File> files = new ArrayList<File>();
+        final File[] children = directory.listFiles();
+        if (children == null) {
+            return files;
+        }
+
+        for (final File file : children) {
+            if (file.isFile()) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Bookkeeping for the quarantine area of a DiskSpoolEventWriter.
+ * <p/>
+ * Each quarantined file has a small properties file next to it (same name, with the METADATA_SUFFIX extension)
+ * recording the failure reason, the number of attempts and the time of the first failure, so that this information
+ * survives restarts. The total size of the quarantine is kept in memory: the quarantine directory is listed only once,
+ * on startup.
+ * <p/>
+ * The quarantine can be capped in size and/or age. When a cap is exceeded, the oldest files (by first failure) are
+ * deleted, and the DiscardedFileListener (if any) is told about them.
+ * <p/>
+ * Files taken out for reprocessing keep their metadata file until the retry completes (see flushed and quarantined):
+ * if the writer dies in between, the metadata is picked up again on restart. Retries the EventHandler never reports
+ * on are forgotten after retryTimeoutInMillis.
+ */
+class SpoolQuarantine
+{
+    private static final Logger log = LoggerFactory.getLogger(SpoolQuarantine.class);
+
+    static final String METADATA_SUFFIX = ".quarantine";
+
+    private static final Comparator<QuarantinedFile> OLDEST_FIRST = new Comparator<QuarantinedFile>()
+    {
+        @Override
+        public int compare(final QuarantinedFile left, final QuarantinedFile right)
+        {
+            if (left.getFirstFailureMillis() != right.getFirstFailureMillis()) {
+                return left.getFirstFailureMillis() < right.getFirstFailureMillis() ? -1 : 1;
+            }
+            return left.getName().compareTo(right.getName());
+        }
+    };
+
+    private final File quarantineDirectory;
+    private final SpoolLayout layout;
+    // May be null
+    private final DiscardedFileListener discardedFileListener;
+    // Files currently sitting in the quarantine directory
+    private final Map<String, QuarantinedFile> quarantined = new HashMap<String, QuarantinedFile>();
+    private final TreeSet<QuarantinedFile> oldestFirst = new TreeSet<QuarantinedFile>(OLDEST_FIRST);
+    // Files taken out of the quarantine for reprocessing, to keep their history if they fail again
+    private final Map<String, QuarantinedFile> retrying = new HashMap<String, QuarantinedFile>();
+    private final Map<String, Long> retryingSince = new HashMap<String, Long>();
+    // Order in which files were (last) quarantined, see takeOldest
+    private final Map<String, Long> failureSequences = new HashMap<String, Long>();
+
+    private long failureSequence = 0;
+
+    private long sizeInBytes = 0;
+    private long maxSizeInBytes = 0;
+    private long maxAgeInMillis = 0;
+    private long evictedFiles = 0;
+    private long retryTimeoutInMillis = 3600 * 1000L;
+    private long expiredRetries = 0;
+
+    SpoolQuarantine(final File quarantineDirectory)
+    {
+        this(quarantineDirectory, SpoolLayout.FLAT);
+    }
+
+    SpoolQuarantine(final File quarantineDirectory, final SpoolLayout layout)
+    {
+        this(quarantineDirectory, layout, null);
+    }
+
+    SpoolQuarantine(final File quarantineDirectory, final SpoolLayout layout, final DiscardedFileListener discardedFileListener)
+    {
+        this.quarantineDirectory = quarantineDirectory;
+        this.layout = layout;
+        this.discardedFileListener = discardedFileListener;
+        load();
+    }
+
+    private synchronized void load()
+    {
+        // Files quarantined with another layout (metadata files follow their data file)
+        for (final File file : layout.listUnmigratedFiles(quarantineDirectory)) {
+            try {
+                FileUtils.moveFile(file, layout.getFile(quarantineDirectory, file.getName()));
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to migrate quarantined file %s", file), e);
+            }
+        }
+
+        for (final File file : layout.listFiles(quarantineDirectory)) {
+            if (file.getName().endsWith(METADATA_SUFFIX)) {
+                final String dataFileName = file.getName().substring(0, file.getName().length() - METADATA_SUFFIX.length());
+                if (!layout.getFile(quarantineDirectory, dataFileName).exists()) {
+                    // The file was being retried when we stopped, it is back in the spool (or already flushed)
+                    final QuarantinedFile entry = readMetadata(file, dataFileName, 0);
+                    if (entry == null) {
+                        deleteMetadata(dataFileName);
+                    }
+                    else {
+                        startRetry(entry, getNow());
+                    }
+                }
+            }
+            else {
+                QuarantinedFile entry = readMetadata(layout.getFile(quarantineDirectory, file.getName() + METADATA_SUFFIX), file.getName(), file.length());
+                if (entry == null) {
+                    // Quarantined by an older version of the writer
+                    entry = new QuarantinedFile(file.getName(), "unknown", 1, file.lastModified(), file.lastModified(), file.length());
+                    writeMetadata(entry);
+                }
+                add(entry);
+            }
+        }
+    }
+
+    /**
+     * Record a file which has just been moved to the quarantine directory
+     *
+     * @param file   quarantined file
+     * @param reason description of the failure
+     * @return metadata associated with the file
+     */
+    synchronized QuarantinedFile quarantined(final File file, final String reason)
+    {
+        final long now = getNow();
+        final QuarantinedFile previous = stopRetry(file.getName());
+
+        final QuarantinedFile entry;
+        if (previous == null) {
+            entry = new QuarantinedFile(file.getName(), reason, 1, now, now, file.length());
+        }
+        else {
+            entry = previous.failedAgain(reason, now, file.length());
+        }
+
+        // The file may have been quarantined twice in a row (e.g. on startup)
+        remove(file.getName());
+        add(entry);
+        writeMetadata(entry);
+        evictIfNeeded(now);
+
+        return entry;
+    }
+
+    /**
+     * Forget about a file which was successfully flushed
+     *
+     * @param fileName name of the file
+     */
+    synchronized void flushed(final String fileName)
+    {
+        if (stopRetry(fileName) != null) {
+            deleteMetadata(fileName);
+        }
+    }
+
+    /**
+     * @return a marker which can be passed to takeOldest to ignore files quarantined after this call
+     */
+    synchronized long getFailureSequence()
+    {
+        return failureSequence;
+    }
+
+    /**
+     * Take out of the quarantine the oldest files, for reprocessing. Once returned, the files are not accounted for in
+     * the quarantine size anymore. Their metadata is kept until the retry is reported via flushed or quarantined.
+     *
+     * @param maxFiles     maximum number of files to return
+     * @param failedBefore only consider files quarantined before that marker (see getFailureSequence)
+     * @return the quarantined files, oldest first
+     */
+    synchronized List<File> takeOldest(final int maxFiles, final long failedBefore)
+    {
+        final long now = getNow();
+        evictIfNeeded(now);
+        expireRetries(now);
+
+        final List<File> files = new ArrayList<File>();
+        final Iterator<QuarantinedFile> iterator = oldestFirst.iterator();
+        while (iterator.hasNext() && files.size() < maxFiles) {
+            final QuarantinedFile entry = iterator.next();
+            if (failureSequences.get(entry.getName()) >= failedBefore) {
+                continue;
+            }
+
+            iterator.remove();
+            quarantined.remove(entry.getName());
+            failureSequences.remove(entry.getName());
+            sizeInBytes -= entry.getSizeInBytes();
+            startRetry(entry, now);
+
+            files.add(layout.getFile(quarantineDirectory, entry.getName()));
+        }
+
+        return files;
+    }
+
+    synchronized List<QuarantinedFile> getQuarantinedFiles()
+    {
+        return new ArrayList<QuarantinedFile>(oldestFirst);
+    }
+
+    synchronized long getSizeInBytes()
+    {
+        return sizeInBytes;
+    }
+
+    synchronized int getFileCount()
+    {
+        return quarantined.size();
+    }
+
+    synchronized long getEvictedFileCount()
+    {
+        return evictedFiles;
+    }
+
+    synchronized int getRetryingFileCount()
+    {
+        return retrying.size();
+    }
+
+    synchronized long getExpiredRetryCount()
+    {
+        return expiredRetries;
+    }
+
+    synchronized long getRetryTimeoutInMillis()
+    {
+        return retryTimeoutInMillis;
+    }
+
+    /**
+     * @param retryTimeoutInMillis time after which a retry the EventHandler never reported on is forgotten
+     */
+    synchronized void setRetryTimeoutInMillis(final long retryTimeoutInMillis)
+    {
+        this.retryTimeoutInMillis = retryTimeoutInMillis;
+    }
+
+    synchronized long getMaxSizeInBytes()
+    {
+        return maxSizeInBytes;
+    }
+
+    /**
+     * @param maxSizeInBytes maximum size of the quarantine, 0 for unlimited
+     */
+    synchronized void setMaxSizeInBytes(final long maxSizeInBytes)
+    {
+        this.maxSizeInBytes = maxSizeInBytes;
+        evictIfNeeded(getNow());
+    }
+
+    synchronized long getMaxAgeInMillis()
+    {
+        return maxAgeInMillis;
+    }
+
+    /**
+     * @param maxAgeInMillis maximum time a file can stay in quarantine, after its first failure. 0 for unlimited
+     */
+    synchronized void setMaxAgeInMillis(final long maxAgeInMillis)
+    {
+        this.maxAgeInMillis = maxAgeInMillis;
+        evictIfNeeded(getNow());
+    }
+
+    private void evictIfNeeded(final long now)
+    {
+        while (!oldestFirst.isEmpty()) {
+            final QuarantinedFile oldest = oldestFirst.first();
+            final boolean tooBig = maxSizeInBytes > 0 && sizeInBytes > maxSizeInBytes;
+            final boolean tooOld = maxAgeInMillis > 0 && oldest.getFirstFailureMillis() < now - maxAgeInMillis;
+            if (!tooBig && !tooOld) {
+                return;
+            }
+
+            log.warn("Quarantine over capacity ({} bytes), deleting {}", sizeInBytes, oldest);
+            remove(oldest.getName());
+            deleteMetadata(oldest.getName());
+            final File file = layout.getFile(quarantineDirectory, oldest.getName());
+            if (file.exists() && !file.delete()) {
+                log.warn("Unable to delete quarantined file {}", file);
+            }
+            evictedFiles++;
+
+            if (discardedFileListener != null) {
+                try {
+                    discardedFileListener.discarded(file);
+                }
+                catch (RuntimeException e) {
+                    log.warn(String.format("Unable to notify the eviction of %s", file), e);
+                }
+            }
+        }
+    }
+
+    private void startRetry(final QuarantinedFile entry, final long now)
+    {
+        retrying.put(entry.getName(), entry);
+        retryingSince.put(entry.getName(), now);
+    }
+
+    private QuarantinedFile stopRetry(final String fileName)
+    {
+        retryingSince.remove(fileName);
+        return retrying.remove(fileName);
+    }
+
+    private void expireRetries(final long now)
+    {
+        final Iterator<Map.Entry<String, Long>> iterator = retryingSince.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getValue() < now - retryTimeoutInMillis) {
+                log.warn("No outcome for the retry of quarantined file {} after {} ms, forgetting it", entry.getKey(), retryTimeoutInMillis);
+                iterator.remove();
+                retrying.remove(entry.getKey());
+                deleteMetadata(entry.getKey());
+                expiredRetries++;
+            }
+        }
+    }
+
+    private void add(final QuarantinedFile entry)
+    {
+        quarantined.put(entry.getName(), entry);
+        failureSequences.put(entry.getName(), failureSequence++);
+        oldestFirst.add(entry);
+        sizeInBytes += entry.getSizeInBytes();
+    }
+
+    private void remove(final String fileName)
+    {
+        final QuarantinedFile entry = quarantined.remove(fileName);
+        failureSequences.remove(fileName);
+        if (entry != null) {
+            oldestFirst.remove(entry);
+            sizeInBytes -= entry.getSizeInBytes();
+        }
+    }
+
+    private QuarantinedFile readMetadata(final File metadataFile, final String fileName, final long sizeInBytes)
+    {
+        if (!metadataFile.exists()) {
+            return null;
+        }
+
+        final Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(metadataFile);
+            properties.load(in);
+
+            return new QuarantinedFile(
+                fileName,
+                properties.getProperty("reason"),
+                Integer.valueOf(properties.getProperty("attempts")),
+                Long.valueOf(properties.getProperty("firstFailure")),
+                Long.valueOf(properties.getProperty("lastFailure")),
+                sizeInBytes
+            );
+        }
+        catch (IOException e) {
+            log.warn(String.format("Unable to read quarantine metadata file %s", metadataFile), e);
+            return null;
+        }
+        catch (RuntimeException e) {
+            log.warn(String.format("Corrupted quarantine metadata file %s", metadataFile), e);
+            return null;
+        }
+        finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeMetadata(final QuarantinedFile entry)
+    {
+        final Properties properties = new Properties();
+        properties.setProperty("reason", String.valueOf(entry.getReason()));
+        properties.setProperty("attempts", String.valueOf(entry.getAttempts()));
+        properties.setProperty("firstFailure", String.valueOf(entry.getFirstFailureMillis()));
+        properties.setProperty("lastFailure", String.valueOf(entry.getLastFailureMillis()));
+
+        final File metadataFile = layout.getFile(quarantineDirectory, entry.getName() + METADATA_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(metadataFile);
+            properties.store(out, null);
+        }
+        catch (IOException e) {
+            log.warn(String.format("Unable to write quarantine metadata file %s", metadataFile), e);
+        }
+        finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void deleteMetadata(final String fileName)
+    {
+        final File metadataFile = layout.getFile(quarantineDirectory, fileName + METADATA_SUFFIX);
+        if (metadataFile.exists() && !metadataFile.delete()) {
+            log.warn("Unable to delete quarantine metadata file {}", metadataFile);
+        }
+    }
+
+    //hook for unit testing
+    protected long getNow()
+    {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.mogwee.executors.FailsafeScheduledExecutor;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk-backed persistent queue striped across multiple spool directories (typically one per physical disk).
+ * <p/>
+ * Each spool root is handled by its own DiskSpoolEventWriter (with its own flusher). Files are striped: the current
+ * file is written to a single root, and a new root is picked on each commit, round-robin. Roots which are low on free
+ * space, or whose average write latency is too high, are skipped. Slow roots are given another chance after
+ * recheckIntervalInSeconds.
+ * <p/>
+ * If no root is healthy, the one with the most free space is used.
+ * <p/>
+ * Since each root has its own flusher, the roots' files are handed off concurrently. Given an EventHandlerFactory,
+ * each root gets its own EventHandler. A single EventHandler is shared by all roots instead, its handle() calls are
+ * then serialized (callbacks may still complete concurrently, if the handler is asynchronous).
+ */
+public class StripedDiskSpoolEventWriter implements EventWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(StripedDiskSpoolEventWriter.class);
+    // Weight of the latest write in the average write latency
+    private static final double LATENCY_SMOOTHING_FACTOR = 0.1;
+
+    private final List<SpoolRoot> roots = new ArrayList<SpoolRoot>();
+    private final AtomicLong minFreeSpaceInBytes;
+    private final AtomicLong maxWriteLatencyNanos;
+    private final AtomicLong recheckIntervalMillis = new AtomicLong(TimeUnit.SECONDS.toMillis(60));
+
+    private int nextRoot = 0;
+    private SpoolRoot currentRoot;
+
+    /**
+     * @param eventHandler handler shared by all spool roots, see the class documentation
+     */
+    public StripedDiskSpoolEventWriter(
+        final EventHandler eventHandler,
+        final List<String> spoolPaths,
+        final boolean flushEnabled,
+        final long flushIntervalInSeconds,
+        final SyncType syncType,
+        final int syncBatchSize,
+        final CompressionCodec codec,
+        final EventSerializer eventSerializer,
+        final long minFreeSpaceInBytes,
+        final long maxWriteLatencyInMillis
+    )
+    {
+        this(new SharedEventHandlerFactory(eventHandler), spoolPaths, flushEnabled, flushIntervalInSeconds, syncType, syncBatchSize, codec, eventSerializer, minFreeSpaceInBytes, maxWriteLatencyInMillis);
+    }
+
+    /**
+     * @param eventHandlerFactory creates one handler per spool root
+     */
+    public StripedDiskSpoolEventWriter(
+        final EventHandlerFactory eventHandlerFactory,
+        final List<String> spoolPaths,
+        final boolean flushEnabled,
+        final long flushIntervalInSeconds,
+        final SyncType syncType,
+        final int syncBatchSize,
+        final CompressionCodec codec,
+        final EventSerializer eventSerializer,
+        final long minFreeSpaceInBytes,
+        final long maxWriteLatencyInMillis
+    )
+    {
+        this(createWriters(eventHandlerFactory, spoolPaths, flushEnabled, flushIntervalInSeconds, syncType, syncBatchSize, codec, eventSerializer), minFreeSpaceInBytes, maxWriteLatencyInMillis);
+    }
+
+    public StripedDiskSpoolEventWriter(final List<DiskSpoolEventWriter> writers, final long minFreeSpaceInBytes, final long maxWriteLatencyInMillis)
+    {
+        if (writers.isEmpty()) {
+            throw new IllegalArgumentException("Eventwriter misconfigured - no spool directory specified");
+        }
+
+        for (final DiskSpoolEventWriter writer : writers) {
+            roots.add(new SpoolRoot(writer));
+        }
+        this.minFreeSpaceInBytes = new AtomicLong(minFreeSpaceInBytes);
+        this.maxWriteLatencyNanos = new AtomicLong(TimeUnit.MILLISECONDS.toNanos(maxWriteLatencyInMillis));
+
+        currentRoot = pickRoot();
+    }
+
+    private static List<DiskSpoolEventWriter> createWriters(
+        final EventHandlerFactory eventHandlerFactory,
+        final List<String> spoolPaths,
+        final boolean flushEnabled,
+        final long flushIntervalInSeconds,
+        final SyncType syncType,
+        final int syncBatchSize,
+        final CompressionCodec codec,
+        final EventSerializer eventSerializer
+    )
+    {
+        final List<DiskSpoolEventWriter> writers = new ArrayList<DiskSpoolEventWriter>();
+        for (final String spoolPath : spoolPaths) {
+            writers.add(new DiskSpoolEventWriter(eventHandlerFactory.createEventHandler(spoolPath), spoolPath, flushEnabled, flushIntervalInSeconds,
+                new FailsafeScheduledExecutor("StripedDiskSpoolEventWriter-flusher"), syncType, syncBatchSize, codec, eventSerializer));
+        }
+        return writers;
+    }
+
+    @Override
+    public synchronized void write(final Event event) throws IOException
+    {
+        final long startTime = getNanos();
+        try {
+            currentRoot.writer.write(event);
+        }
+        finally {
+            currentRoot.recordWrite(getNanos() - startTime);
+        }
+    }
+
+    /**
+     * Commit the current file and switch to the next healthy spool root
+     *
+     * @throws IOException as thrown by the underlying DiskSpoolEventWriter
+     */
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        try {
+            currentRoot.writer.commit();
+        }
+        finally {
+            currentRoot = pickRoot();
+        }
+    }
+
+    @Override
+    public synchronized void forceCommit() throws IOException
+    {
+        try {
+            currentRoot.writer.forceCommit();
+        }
+        finally {
+            currentRoot = pickRoot();
+        }
+    }
+
+    /**
+     * Flush events from all spool roots
+     */
+    @Override
+    @Managed(description = "Flush events (forward them to final handler)")
+    public void flush()
+    {
+        for (final SpoolRoot root : roots) {
+            root.writer.flush();
+        }
+    }
+
+    @Override
+    public synchronized void rollback() throws IOException
+    {
+        try {
+            currentRoot.writer.rollback();
+        }
+        finally {
+            currentRoot = pickRoot();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        IOException exception = null;
+        for (final SpoolRoot root : roots) {
+            try {
+                root.writer.close();
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to close writer for %s", root.writer.getSpoolPath()), e);
+                exception = e;
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * @return all local spool paths used by the writer, separated by File.pathSeparator
+     */
+    @Override
+    public String getSpoolPath()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (final SpoolRoot root : roots) {
+            if (builder.length() > 0) {
+                builder.append(File.pathSeparator);
+            }
+            builder.append(root.writer.getSpoolPath());
+        }
+        return builder.toString();
+    }
+
+    private SpoolRoot pickRoot()
+    {
+        final long now = getNow();
+
+        for (int i = 0; i < roots.size(); i++) {
+            final SpoolRoot root = roots.get(nextRoot);
+            nextRoot = (nextRoot + 1) % roots.size();
+
+            if (isHealthy(root, now)) {
+                return root;
+            }
+        }
+
+        // All disks are either full or slow, use the least full one
+        SpoolRoot bestRoot = roots.get(0);
+        for (final SpoolRoot root : roots) {
+            if (getUsableSpace(root.directory) > getUsableSpace(bestRoot.directory)) {
+                bestRoot = root;
+            }
+        }
+        log.warn("No healthy spool directory found, using {}", bestRoot.writer.getSpoolPath());
+
+        return bestRoot;
+    }
+
+    private boolean isHealthy(final SpoolRoot root, final long now)
+    {
+        if (getUsableSpace(root.directory) < minFreeSpaceInBytes.get()) {
+            log.debug("Skipping full spool directory {}", root.directory);
+            return false;
+        }
+
+        if (root.averageWriteNanos > maxWriteLatencyNanos.get()) {
+            if (root.slowSinceMillis < 0) {
+                log.info("Spool directory {} is slow ({} ns per write on average), skipping it", root.directory, (long) root.averageWriteNanos);
+                root.slowSinceMillis = now;
+            }
+
+            if (now - root.slowSinceMillis < recheckIntervalMillis.get()) {
+                return false;
+            }
+
+            // Give it another chance
+            root.averageWriteNanos = 0;
+            root.slowSinceMillis = -1;
+        }
+
+        return true;
+    }
+
+    /**
+     * Free space available on a spool root. This is a unit testing hook.
+     *
+     * @param directory spool root
+     * @return number of bytes available
+     */
+    protected long getUsableSpace(final File directory)
+    {
+        return directory.getUsableSpace();
+    }
+
+    /**
+     * Get the current nanoTime. This is a unit testing hook.
+     *
+     * @return the current nanoTime
+     */
+    protected long getNanos()
+    {
+        return System.nanoTime();
+    }
+
+    //hook for unit testing
+    protected long getNow()
+    {
+        return System.currentTimeMillis();
+    }
+
+    @Managed(description = "size in kilobytes of disk spool queue not yet written to hdfs, across all spool directories")
+    public long getDiskSpoolSize()
+    {
+        long size = 0;
+        for (final SpoolRoot root : roots) {
+            size += root.writer.getDiskSpoolSize();
+        }
+        return size;
+    }
+
+    @Managed(description = "size in kilobytes of quarantined data that could not be written to hdfs, across all spool directories")
+    public long getQuarantineSize()
+    {
+        long size = 0;
+        for (final SpoolRoot root : roots) {
+            size += root.writer.getQuarantineSize();
+        }
+        return size;
+    }
+
+    @Managed(description = "spool directory currently written to")
+    public synchronized String getCurrentSpoolPath()
+    {
+        return currentRoot.writer.getSpoolPath();
+    }
+
+    @Managed(description = "set the min free space in megabytes for a spool directory to be used")
+    public void setMinFreeSpaceInMB(final long minFreeSpaceInMB)
+    {
+        minFreeSpaceInBytes.set(minFreeSpaceInMB * 1024 * 1024);
+    }
+
+    @Managed(description = "the min free space in megabytes for a spool directory to be used")
+    public long getMinFreeSpaceInMB()
+    {
+        return minFreeSpaceInBytes.get() / (1024 * 1024);
+    }
+
+    @Managed(description = "set the max average write latency in milliseconds for a spool directory to be used")
+    public void setMaxWriteLatencyInMillis(final long maxWriteLatencyInMillis)
+    {
+        maxWriteLatencyNanos.set(TimeUnit.MILLISECONDS.toNanos(maxWriteLatencyInMillis));
+    }
+
+    @Managed(description = "the max average write latency in milliseconds for a spool directory to be used")
+    public long getMaxWriteLatencyInMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maxWriteLatencyNanos.get());
+    }
+
+    @Managed(description = "set the delay in seconds before a slow spool directory is used again")
+    public void setRecheckIntervalInSeconds(final long seconds)
+    {
+        recheckIntervalMillis.set(TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    @Managed(description = "the delay in seconds before a slow spool directory is used again")
+    public long getRecheckIntervalInSeconds()
+    {
+        return TimeUnit.MILLISECONDS.toSeconds(recheckIntervalMillis.get());
+    }
+
+    /**
+     * @return the underlying writers, one per spool directory
+     */
+    public List<DiskSpoolEventWriter> getWriters()
+    {
+        final List<DiskSpoolEventWriter> writers = new ArrayList<DiskSpoolEventWriter>();
+        for (final SpoolRoot root : roots) {
+            writers.add(root.writer);
+        }
+        return writers;
+    }
+
+    private static final class SpoolRoot
+    {
+        private final DiskSpoolEventWriter writer;
+        private final File directory;
+        // Guarded by the StripedDiskSpoolEventWriter lock
+        private double averageWriteNanos = 0;
+        private long slowSinceMillis = -1;
+
+        private SpoolRoot(final DiskSpoolEventWriter writer)
+        {
+            this.writer = writer;
+            this.directory = new File(writer.getSpoolPath());
+        }
+
+        private void recordWrite(final long nanos)
+        {
+            averageWriteNanos = LATENCY_SMOOTHING_FACTOR * nanos + (1 - LATENCY_SMOOTHING_FACTOR) * averageWriteNanos;
+        }
+    }
+
+    /**
+     * Hands the same EventHandler to all spool roots, one flusher at a time
+     */
+    static final class SharedEventHandlerFactory implements EventHandlerFactory
+    {
+        private final EventHandler eventHandler;
+
+        SharedEventHandlerFactory(final EventHandler delegate)
+        {
+            this.eventHandler = new EventHandler()
+            {
+                @Override
+                public void handle(final File file, final CallbackHandler handler)
+                {
+                    synchronized (delegate) {
+                        delegate.handle(file, handler);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public EventHandler createEventHandler(final String spoolPath)
+        {
+            return eventHandler;
+        }
+    }
+}
@@ -42,8 +42,7 @@ class SyncingObjectOutputter extends DefaultObjectOutputter
         objectsWritten++;
 
         if (objectsWritten >= batchSize) {
-            out.flush();
-            out.getFD().sync();
+            sync();
             objectsWritten = 0;
         }
     }
@@ -51,8 +50,19 @@ class SyncingObjectOutputter extends DefaultObjectOutputter
     @Override
     public void close() throws IOException
     {
-        out.flush();
-        out.getFD().sync();
+        sync();
         super.close();
     }
+
+    private void sync() throws IOException
+    {
+        if (out instanceof PreallocatedFileOutputStream) {
+            // Sync the size of the data as well
+            ((PreallocatedFileOutputStream) out).sync();
+        }
+        else {
+            out.flush();
+            out.getFD().sync();
+        }
+    }
 }
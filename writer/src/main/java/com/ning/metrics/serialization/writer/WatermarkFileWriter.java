@@ -0,0 +1,59 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Granularity;
+import com.ning.metrics.serialization.event.GranularityPathMapper;
+import org.joda.time.ReadableInterval;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * WatermarkListener creating an empty marker file in the directory of each complete bucket, with the same layout as
+ * Event.getOutputDir(), e.g. root/eventName/2012/01/31/17/_COMPLETE for hourly events.
+ */
+public class WatermarkFileWriter implements WatermarkListener
+{
+    public static final String MARKER_FILE_NAME = "_COMPLETE";
+
+    private final String rootPath;
+
+    public WatermarkFileWriter(final String rootPath)
+    {
+        this.rootPath = rootPath;
+    }
+
+    @Override
+    public void onBucketComplete(final String eventName, final Granularity granularity, final ReadableInterval bucket) throws IOException
+    {
+        final File marker = getMarkerFile(eventName, granularity, bucket);
+        final File directory = marker.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create directory %s", directory));
+        }
+        if (!marker.exists() && !marker.createNewFile()) {
+            throw new IOException(String.format("Unable to create marker file %s", marker));
+        }
+    }
+
+    public File getMarkerFile(final String eventName, final Granularity granularity, final ReadableInterval bucket)
+    {
+        final GranularityPathMapper pathMapper = new GranularityPathMapper(String.format("%s/%s", rootPath, eventName), granularity);
+        return new File(pathMapper.getPathForDateTime(bucket.getStart()), MARKER_FILE_NAME);
+    }
+}
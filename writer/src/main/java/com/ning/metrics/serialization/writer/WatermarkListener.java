@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Granularity;
+import org.joda.time.ReadableInterval;
+
+/**
+ * Notified by a WatermarkTracker when all events of a bucket (e.g. an hour, for hourly events) have been flushed.
+ */
+public interface WatermarkListener
+{
+    /**
+     * Called once per bucket, in order for a given event name and granularity. Buckets without any event are
+     * reported as well.
+     *
+     * @param eventName   event name (see Event.getName())
+     * @param granularity event granularity
+     * @param bucket      bucket interval, see Granularity.truncate
+     * @throws Exception if the notification failed, it will be retried
+     */
+    public void onBucketComplete(String eventName, Granularity granularity, ReadableInterval bucket) throws Exception;
+}
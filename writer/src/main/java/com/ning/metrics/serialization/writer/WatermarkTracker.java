@@ -0,0 +1,333 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.Granularity;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event-time completeness tracking for a DiskSpoolEventWriter.
+ * <p/>
+ * For each event name and granularity, the tracker keeps the max event time seen and the number of events of each
+ * bucket (see Granularity.truncate) written but not yet acknowledged by the EventHandler. A bucket is complete, and
+ * reported to the WatermarkListener, once:
+ * <ul>
+ * <li>the watermark is past its end: the watermark is the max event time seen minus allowedLatenessInSeconds, or, if
+ * no event has been seen for allowedLatenessInSeconds, the current time minus allowedLatenessInSeconds
+ * <li>all its events have been acknowledged, as well as all files found in the spool on startup (their content is not
+ * known)
+ * <li>all previous buckets are complete
+ * </ul>
+ * Events older than the last bucket reported complete are late: they are still written, and counted. Nothing is late
+ * before the first bucket of a stream is reported: reporting starts at the oldest bucket seen.
+ * <p/>
+ * Files quarantined (on flush failure or rollback) keep their events pending: their buckets, and all the following
+ * ones, stay incomplete until the file is reprocessed and flushed (it keeps its name). Only when a quarantined file is
+ * evicted, i.e. its events are lost, are they released, with a warning, and counted.
+ */
+public class WatermarkTracker
+{
+    private static final Logger log = LoggerFactory.getLogger(WatermarkTracker.class);
+    // Bound on the number of (possibly empty) buckets reported at once
+    private static final int MAX_BUCKETS_PER_PUBLISH = 1000;
+
+    private final WatermarkListener listener;
+    private final AtomicLong allowedLatenessMillis;
+    private final Map<String, EventStream> streams = new HashMap<String, EventStream>();
+    // File name -> number of events by stream and bucket
+    private final Map<String, Map<EventStream, Map<Long, Integer>>> pendingFiles = new HashMap<String, Map<EventStream, Map<Long, Integer>>>();
+    private final Set<String> startupFiles = new HashSet<String>();
+    private final AtomicLong lateEvents = new AtomicLong(0);
+    private final AtomicLong completeBuckets = new AtomicLong(0);
+    private final AtomicLong discardedEvents = new AtomicLong(0);
+
+    public WatermarkTracker(final WatermarkListener listener, final long allowedLatenessInSeconds)
+    {
+        this.listener = listener;
+        this.allowedLatenessMillis = new AtomicLong(TimeUnit.SECONDS.toMillis(allowedLatenessInSeconds));
+    }
+
+    /**
+     * Called on startup with the spooled files left by a previous run: nothing is reported until they are flushed
+     *
+     * @param fileNames names of the files
+     */
+    synchronized void filesFoundOnStartup(final Collection<String> fileNames)
+    {
+        startupFiles.addAll(fileNames);
+    }
+
+    synchronized void written(final String fileName, final Event event)
+    {
+        final Granularity granularity = event.getGranularity();
+        final String key = String.format("%s/%s", event.getName(), granularity);
+        EventStream stream = streams.get(key);
+        if (stream == null) {
+            stream = new EventStream(event.getName(), granularity);
+            streams.put(key, stream);
+        }
+
+        final DateTime eventDateTime = event.getEventDateTime();
+        final DateTime bucket = granularity.truncate(eventDateTime);
+        stream.maxEventMillis = Math.max(stream.maxEventMillis, eventDateTime.getMillis());
+        stream.lastSeenMillis = getNow();
+        if (stream.nextBucket == null) {
+            // Nothing reported yet
+            if (stream.firstBucket == null || bucket.isBefore(stream.firstBucket)) {
+                stream.firstBucket = bucket;
+            }
+        }
+        else if (bucket.isBefore(stream.nextBucket)) {
+            lateEvents.incrementAndGet();
+            return;
+        }
+
+        increment(stream.pendingBuckets, bucket.getMillis(), 1);
+
+        Map<EventStream, Map<Long, Integer>> fileBuckets = pendingFiles.get(fileName);
+        if (fileBuckets == null) {
+            fileBuckets = new HashMap<EventStream, Map<Long, Integer>>();
+            pendingFiles.put(fileName, fileBuckets);
+        }
+        Map<Long, Integer> streamBuckets = fileBuckets.get(stream);
+        if (streamBuckets == null) {
+            streamBuckets = new HashMap<Long, Integer>();
+            fileBuckets.put(stream, streamBuckets);
+        }
+        increment(streamBuckets, bucket.getMillis(), 1);
+    }
+
+    /**
+     * Called when a file has been acknowledged by the EventHandler
+     *
+     * @param fileName name of the file
+     */
+    synchronized void flushed(final String fileName)
+    {
+        startupFiles.remove(fileName);
+        release(fileName);
+    }
+
+    /**
+     * Called when a quarantined file has been evicted: its events will never be acknowledged
+     *
+     * @param fileName name of the file
+     */
+    synchronized void discarded(final String fileName)
+    {
+        if (startupFiles.remove(fileName)) {
+            log.warn("File {} found on startup was discarded, watermarks will be published without its events", fileName);
+        }
+
+        final int events = release(fileName);
+        if (events > 0) {
+            log.warn("File {} was discarded, watermarks will be published without its {} events", fileName, events);
+            discardedEvents.addAndGet(events);
+        }
+    }
+
+    /**
+     * Stop waiting for the events of a file
+     *
+     * @return number of events released
+     */
+    private int release(final String fileName)
+    {
+        final Map<EventStream, Map<Long, Integer>> fileBuckets = pendingFiles.remove(fileName);
+        if (fileBuckets == null) {
+            return 0;
+        }
+
+        int events = 0;
+        for (final Map.Entry<EventStream, Map<Long, Integer>> entry : fileBuckets.entrySet()) {
+            for (final Map.Entry<Long, Integer> bucketCount : entry.getValue().entrySet()) {
+                increment(entry.getKey().pendingBuckets, bucketCount.getKey(), -bucketCount.getValue());
+                events += bucketCount.getValue();
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Report the buckets which are now complete
+     */
+    public void publish()
+    {
+        final List<Object[]> completed = new ArrayList<Object[]>();
+        synchronized (this) {
+            if (!startupFiles.isEmpty()) {
+                log.debug("Waiting for {} files found on startup to be flushed", startupFiles.size());
+                return;
+            }
+
+            final long now = getNow();
+            for (final EventStream stream : streams.values()) {
+                final long watermark = getWatermark(stream, now);
+                DateTime bucket = stream.nextBucket == null ? stream.firstBucket : stream.nextBucket;
+                int published = 0;
+                while (published < MAX_BUCKETS_PER_PUBLISH) {
+                    final DateTime bucketEnd = bucket.plus(stream.granularity.getPeriod());
+                    if (bucketEnd.getMillis() > watermark || stream.pendingBuckets.containsKey(bucket.getMillis())) {
+                        break;
+                    }
+
+                    completed.add(new Object[]{stream, new Interval(bucket, bucketEnd)});
+                    bucket = bucketEnd;
+                    stream.nextBucket = bucketEnd;
+                    published++;
+                }
+            }
+        }
+
+        // Notify outside of the lock, the listener may be slow
+        final Set<EventStream> failedStreams = new HashSet<EventStream>();
+        for (final Object[] bucket : completed) {
+            final EventStream stream = (EventStream) bucket[0];
+            final Interval interval = (Interval) bucket[1];
+            if (failedStreams.contains(stream)) {
+                // Keep buckets in order
+                continue;
+            }
+
+            try {
+                listener.onBucketComplete(stream.eventName, stream.granularity, interval);
+                completeBuckets.incrementAndGet();
+            }
+            catch (Exception e) {
+                log.warn(String.format("Unable to publish watermark for %s (%s)", stream.eventName, interval), e);
+                failedStreams.add(stream);
+                retry(stream, interval);
+            }
+        }
+    }
+
+    private synchronized void retry(final EventStream stream, final Interval interval)
+    {
+        // Buckets are reported in order: go back to the first one which failed
+        if (stream.nextBucket.isAfter(interval.getStart())) {
+            stream.nextBucket = interval.getStart();
+        }
+    }
+
+    private long getWatermark(final EventStream stream, final long now)
+    {
+        final long lateness = allowedLatenessMillis.get();
+        long watermark = stream.maxEventMillis - lateness;
+        // Idle stream: don't wait for events which may never come
+        if (now - stream.lastSeenMillis > lateness) {
+            watermark = Math.max(watermark, now - lateness);
+        }
+        return watermark;
+    }
+
+    private static void increment(final Map<Long, Integer> counts, final Long bucket, final int delta)
+    {
+        final Integer count = counts.get(bucket);
+        final int newCount = (count == null ? 0 : count) + delta;
+        if (newCount <= 0) {
+            counts.remove(bucket);
+        }
+        else {
+            counts.put(bucket, newCount);
+        }
+    }
+
+    //hook for unit testing
+    protected long getNow()
+    {
+        return System.currentTimeMillis();
+    }
+
+    @Managed(description = "set the time in seconds to wait for late events before publishing a watermark")
+    public void setAllowedLatenessInSeconds(final long seconds)
+    {
+        allowedLatenessMillis.set(TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    @Managed(description = "the time in seconds to wait for late events before publishing a watermark")
+    public long getAllowedLatenessInSeconds()
+    {
+        return TimeUnit.MILLISECONDS.toSeconds(allowedLatenessMillis.get());
+    }
+
+    @Managed(description = "number of events older than the last complete bucket")
+    public long getLateEventCount()
+    {
+        return lateEvents.get();
+    }
+
+    @Managed(description = "number of events of evicted quarantined files, which are missing from complete buckets")
+    public long getDiscardedEventCount()
+    {
+        return discardedEvents.get();
+    }
+
+    @Managed(description = "number of buckets reported complete")
+    public long getCompleteBucketCount()
+    {
+        return completeBuckets.get();
+    }
+
+    @Managed(description = "first incomplete bucket and number of buckets with pending events, by event name and granularity")
+    public synchronized String getWatermarks()
+    {
+        final Map<String, String> watermarks = new TreeMap<String, String>();
+        for (final Map.Entry<String, EventStream> entry : streams.entrySet()) {
+            final EventStream stream = entry.getValue();
+            final DateTime nextBucket = stream.nextBucket == null ? stream.firstBucket : stream.nextBucket;
+            watermarks.put(entry.getKey(), String.format("%s (%d pending buckets)", nextBucket, stream.pendingBuckets.size()));
+        }
+        return watermarks.toString();
+    }
+
+    private static final class EventStream
+    {
+        private final String eventName;
+        private final Granularity granularity;
+        // Bucket start (millis) -> number of events written but not acknowledged
+        private final Map<Long, Integer> pendingBuckets = new HashMap<Long, Integer>();
+
+        private long maxEventMillis = 0;
+        private long lastSeenMillis;
+        // Oldest bucket seen, until the first one is reported
+        private DateTime firstBucket = null;
+        // First bucket not reported yet, null until a bucket is reported
+        private DateTime nextBucket = null;
+
+        private EventStream(final String eventName, final Granularity granularity)
+        {
+            this.eventName = eventName;
+            this.granularity = granularity;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compare the spool write path with the plain FileOutputStream and with preallocated files.
+ * <p/>
+ * This is not run as part of the test suite, run it manually on the target disk:
+ * java -cp ... com.ning.metrics.serialization.writer.SpoolOutputStreamBenchmark [directory] [files] [events per file] [event size]
+ */
+public class SpoolOutputStreamBenchmark
+{
+    private static final Event EVENT = new StubEvent();
+
+    public static void main(final String[] args) throws Exception
+    {
+        final File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "spooloutputstreambenchmark-" + System.nanoTime());
+        final int files = args.length > 1 ? Integer.valueOf(args[1]) : 20;
+        final int eventsPerFile = args.length > 2 ? Integer.valueOf(args[2]) : 10000;
+        final int eventSize = args.length > 3 ? Integer.valueOf(args[3]) : 200;
+
+        final CompressionCodec plainCodec = new NoCompressionCodec();
+        final CompressionCodec preallocatingCodec = new PreallocatingCodec((long) eventsPerFile * eventSize);
+
+        if (!directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        try {
+            for (final SyncType syncType : SyncType.values()) {
+                // Warm up
+                run(directory, plainCodec, syncType, files, eventsPerFile, eventSize);
+                run(directory, preallocatingCodec, syncType, files, eventsPerFile, eventSize);
+
+                report("FileOutputStream", syncType, files * eventsPerFile, run(directory, plainCodec, syncType, files, eventsPerFile, eventSize));
+                report("Preallocated", syncType, files * eventsPerFile, run(directory, preallocatingCodec, syncType, files, eventsPerFile, eventSize));
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    private static long run(final File directory, final CompressionCodec codec, final SyncType syncType, final int files, final int eventsPerFile, final int eventSize) throws IOException
+    {
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            final File file = new File(directory, "benchmark-" + i + ".bin");
+            final ObjectOutputter outputter = ObjectOutputterFactory.createObjectOutputter(codec.getFileOutputStream(file), syncType, 100, new PayloadSerializer(eventSize));
+            for (int j = 0; j < eventsPerFile; j++) {
+                outputter.writeObject(EVENT);
+            }
+            outputter.close();
+        }
+        final long elapsedNanos = System.nanoTime() - startTime;
+
+        FileUtils.cleanDirectory(directory);
+        return elapsedNanos;
+    }
+
+    private static void report(final String name, final SyncType syncType, final int events, final long elapsedNanos)
+    {
+        System.out.println(String.format("%-16s %-5s %8d ms %10.0f events/s", name, syncType, elapsedNanos / 1000000, events / (elapsedNanos / 1e9)));
+    }
+
+    private static final class PayloadSerializer implements EventSerializer
+    {
+        private final byte[] payload;
+        private OutputStream out;
+
+        private PayloadSerializer(final int size)
+        {
+            payload = new byte[size];
+        }
+
+        @Override
+        public void open(final OutputStream out) throws IOException
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void serialize(final Event event) throws IOException
+        {
+            out.write(payload);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestDeduplicatingEventWriter
+{
+    private MockEventWriter delegate;
+    private DeduplicatingEventWriter writer;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        delegate = new MockEventWriter();
+        writer = new DeduplicatingEventWriter(delegate, 1000, 0.001, 60);
+    }
+
+    @Test(groups = "fast")
+    public void testDropDuplicates() throws Exception
+    {
+        writer.write(createEvent("bar", "payload"));
+        writer.write(createEvent("bar", "payload"));
+        writer.write(createEvent("bar", "payload"));
+        writer.write(createEvent("bar", "other payload"));
+        // Same payload, different event type
+        writer.write(createEvent("foo", "payload"));
+
+        Assert.assertEquals(delegate.getWrittenEventList().size(), 3);
+        Assert.assertEquals(writer.getCheckedEventCount(), 5);
+        Assert.assertEquals(writer.getDuplicateEventCount(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testEventsWithoutSerializedForm() throws Exception
+    {
+        writer.write(new StubEvent());
+        writer.write(new StubEvent());
+
+        Assert.assertEquals(delegate.getWrittenEventList().size(), 2);
+        Assert.assertEquals(writer.getUnfingerprintedEventCount(), 2);
+        Assert.assertEquals(writer.getDuplicateEventCount(), 0);
+    }
+
+    private Event createEvent(final String name, final String payload)
+    {
+        return new StubEvent()
+        {
+            @Override
+            public String getName()
+            {
+                return name;
+            }
+
+            @Override
+            public byte[] getSerializedEvent()
+            {
+                return payload.getBytes();
+            }
+        };
+    }
+}
@@ -26,12 +26,15 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.io.ObjectOutput;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class TestDiskSpoolEventWriter
@@ -227,6 +230,331 @@ public class TestDiskSpoolEventWriter
         testSpoolDirs(0, 0, 1);
     }
 
+    @Test(groups = "fast")
+    public void testProcessQuarantinedFilesByBatches() throws Exception
+    {
+        final DiskSpoolEventWriter writer = createWriter(writerThrowsIOExceptionOnCommit);
+
+        writer.write(createEvent());
+        writer.commit();
+        writer.write(createEvent());
+        writer.commit();
+        commandToRun.run();
+        testSpoolDirs(0, 0, 2);
+        Assert.assertEquals(writer.getQuarantinedFileCount(), 2);
+        Assert.assertEquals(writer.getQuarantinedFiles().get(0).getAttempts(), 1);
+
+        // Reprocess one file at a time
+        writer.setQuarantineReprocessingBatchSize(1);
+        writer.processQuarantinedFiles();
+        Assert.assertTrue(writer.isReprocessingQuarantinedFiles());
+        // The first batch is sent from the flusher thread
+        Assert.assertEquals(writer.getQuarantinedFiles().get(0).getAttempts(), 1);
+        commandToRun.run();
+        testSpoolDirs(0, 0, 2);
+        Assert.assertEquals(writer.getQuarantinedFiles().get(0).getAttempts(), 2);
+        Assert.assertEquals(writer.getQuarantinedFiles().get(1).getAttempts(), 1);
+
+        commandToRun.run();
+        testSpoolDirs(0, 0, 2);
+        Assert.assertEquals(writer.getQuarantinedFiles().get(1).getAttempts(), 2);
+
+        // Files quarantined again during this run are not retried
+        commandToRun.run();
+        Assert.assertFalse(writer.isReprocessingQuarantinedFiles());
+        testSpoolDirs(0, 0, 2);
+    }
+
+    @Test(groups = "fast")
+    public void testSpoolStatsAreTrackedInMemory() throws Exception
+    {
+        final DiskSpoolEventWriter writer = createWriter(writerSucceeds);
+        Assert.assertEquals(writer.getDiskSpoolSize(), 0);
+
+        for (int i = 0; i < 2000; i++) {
+            writer.write(createEvent());
+        }
+        writer.commit();
+        long size = 0;
+        for (final File file : listBinFiles(spoolDir)) {
+            size += file.length();
+        }
+        Assert.assertTrue(size >= 1024);
+        Assert.assertEquals(writer.getDiskSpoolSize(), size / 1024);
+        Assert.assertEquals(writer.getSpooledFileCount(), 1);
+
+        commandToRun.run();
+        Assert.assertEquals(writer.getDiskSpoolSize(), 0);
+        Assert.assertEquals(writer.getSpooledFileCount(), 0);
+        Assert.assertEquals(writer.getOldestSpooledFileAgeInSeconds(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testThrottledFlush() throws Exception
+    {
+        final AtomicLong sleptNanos = new AtomicLong(0);
+        // 1 file per second, without burst
+        final FlushRateLimiter limiter = new FlushRateLimiter(0, 1, 0)
+        {
+            @Override
+            protected void sleep(final long nanos)
+            {
+                sleptNanos.addAndGet(nanos);
+            }
+        };
+        final DiskSpoolEventWriter writer = new DiskSpoolEventWriter.Builder(spoolPath, executor)
+            .withEventHandler(writerSucceeds)
+            .withFlushIntervalInSeconds(1)
+            .withFlushRateLimiter(limiter)
+            .build();
+
+        for (int i = 0; i < 3; i++) {
+            writer.write(createEvent());
+            writer.commit();
+        }
+        commandToRun.run();
+
+        testSpoolDirs(0, 0, 0);
+        Assert.assertEquals(limiter.getThrottledFileCount(), 3);
+        Assert.assertTrue(sleptNanos.get() >= TimeUnit.SECONDS.toNanos(5));
+        Assert.assertEquals(writer.getFlushThrottledTimeInMillis(), TimeUnit.NANOSECONDS.toMillis(sleptNanos.get()));
+    }
+
+    @Test(groups = "fast")
+    public void testBackgroundRecovery() throws Exception
+    {
+        // Files left by a previous run
+        Assert.assertTrue(tmpDir.mkdirs() && lockDir.mkdirs());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(new File(tmpDir, String.format("%d.bin", i)).createNewFile());
+            Assert.assertTrue(new File(lockDir, String.format("%d.bin", 100 + i)).createNewFile());
+        }
+
+        final DiskSpoolEventWriter writer = createWriter(writerSucceeds);
+        // Events are accepted right away
+        writer.write(createEvent());
+
+        Assert.assertTrue(writer.awaitRecovery(10, TimeUnit.SECONDS));
+        Assert.assertFalse(writer.isRecovering());
+        Assert.assertEquals(writer.getRecoveredFileCount(), 20);
+        Assert.assertEquals(writer.getFilesToRecoverCount(), 0);
+        // The current file is left alone
+        testSpoolDirs(1, 20, 0);
+
+        // The leftover files are empty, hence invalid
+        writer.commit();
+        commandToRun.run();
+        testSpoolDirs(0, 0, 20);
+    }
+
+    @Test(groups = "fast")
+    public void testShardedLayout() throws Exception
+    {
+        final DiskSpoolEventWriter writer = createShardedWriter(writerSucceeds);
+
+        for (int i = 0; i < 5; i++) {
+            writer.write(createEvent());
+            writer.commit();
+        }
+        Assert.assertEquals(listBinFiles(spoolDir).length, 0);
+        Assert.assertEquals(SpoolLayout.SHARDED.listFiles(spoolDir).size(), 5);
+        Assert.assertEquals(writer.getSpooledFileCount(), 5);
+        for (final File file : SpoolLayout.SHARDED.listFiles(spoolDir)) {
+            Assert.assertEquals(file, SpoolLayout.SHARDED.getFile(spoolDir, file.getName()));
+        }
+
+        commandToRun.run();
+        Assert.assertEquals(SpoolLayout.SHARDED.listFiles(spoolDir).size(), 0);
+        Assert.assertEquals(SpoolLayout.SHARDED.listFiles(lockDir).size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testMigrateToShardedLayout() throws Exception
+    {
+        final DiskSpoolEventWriter flatWriter = createWriter(writerThrowsIOExceptionOnCommit);
+        flatWriter.write(createEvent());
+        flatWriter.commit();
+        commandToRun.run();
+        for (int i = 0; i < 3; i++) {
+            flatWriter.write(createEvent());
+            flatWriter.commit();
+        }
+        testSpoolDirs(0, 3, 1);
+
+        final DiskSpoolEventWriter writer = createShardedWriter(writerSucceeds);
+        Assert.assertTrue(writer.awaitRecovery(10, TimeUnit.SECONDS));
+
+        testSpoolDirs(0, 0, 0);
+        Assert.assertEquals(SpoolLayout.SHARDED.listFiles(spoolDir).size(), 3);
+        Assert.assertEquals(writer.getQuarantinedFileCount(), 1);
+        Assert.assertEquals(writer.getQuarantinedFiles().get(0).getAttempts(), 1);
+        Assert.assertTrue(writer.getQuarantinedFiles().get(0).getReason().contains("IOException"));
+
+        commandToRun.run();
+        Assert.assertEquals(SpoolLayout.SHARDED.listFiles(spoolDir).size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testMigrateToFlatLayout() throws Exception
+    {
+        final DiskSpoolEventWriter shardedWriter = createShardedWriter(writerThrowsIOExceptionOnCommit);
+        shardedWriter.write(createEvent());
+        shardedWriter.commit();
+        commandToRun.run();
+        for (int i = 0; i < 3; i++) {
+            shardedWriter.write(createEvent());
+            shardedWriter.commit();
+        }
+        testSpoolDirs(0, 0, 0);
+
+        final DiskSpoolEventWriter writer = createWriter(writerSucceeds);
+        Assert.assertTrue(writer.awaitRecovery(10, TimeUnit.SECONDS));
+
+        testSpoolDirs(0, 3, 1);
+        Assert.assertEquals(writer.getSpooledFileCount(), 3);
+        Assert.assertEquals(writer.getQuarantinedFileCount(), 1);
+        Assert.assertEquals(SpoolLayout.FLAT.listUnmigratedFiles(spoolDir).size(), 0);
+
+        commandToRun.run();
+        testSpoolDirs(0, 0, 1);
+    }
+
+    @Test(groups = "fast")
+    public void testSharedSpool() throws Exception
+    {
+        final AtomicReference<DiskSpoolEventWriter> otherWriter = new AtomicReference<DiskSpoolEventWriter>();
+        final AtomicLong filesFlushedByFirstWriter = new AtomicLong(0);
+        final AtomicLong filesFlushedBySecondWriter = new AtomicLong(0);
+
+        final DiskSpoolEventWriter firstWriter = createSharedWriter(new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                // The other writer can't flush at the same time
+                otherWriter.get().flush();
+                filesFlushedByFirstWriter.incrementAndGet();
+                handler.onSuccess(file);
+            }
+        });
+        final DiskSpoolEventWriter secondWriter = createSharedWriter(new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                filesFlushedBySecondWriter.incrementAndGet();
+                handler.onSuccess(file);
+            }
+        });
+        otherWriter.set(secondWriter);
+
+        firstWriter.write(createEvent());
+        firstWriter.commit();
+        secondWriter.write(createEvent());
+        secondWriter.commit();
+
+        // File names are unique across writers
+        testSpoolDirs(0, 2, 0);
+        for (final File file : listBinFiles(spoolDir)) {
+            Assert.assertTrue(file.getName().matches("\\d+-\\w+\\.bin"), file.getName());
+        }
+
+        firstWriter.flush();
+        testSpoolDirs(0, 0, 0);
+        Assert.assertEquals(filesFlushedByFirstWriter.get(), 2);
+        Assert.assertEquals(filesFlushedBySecondWriter.get(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSharedSpoolRecovery() throws Exception
+    {
+        final DiskSpoolEventWriter liveWriter = createSharedWriter(writerSucceeds);
+        liveWriter.write(createEvent());
+        // Left by a writer which is gone
+        Assert.assertTrue(new File(tmpDir, "1-0_0.bin").createNewFile());
+
+        final DiskSpoolEventWriter writer = createSharedWriter(writerSucceeds);
+        Assert.assertTrue(writer.awaitRecovery(10, TimeUnit.SECONDS));
+
+        // The file being written by the live writer is left alone
+        testSpoolDirs(1, 1, 0);
+        Assert.assertTrue(new File(spoolDir, "1-0_0.bin").exists());
+    }
+
+    @Test(groups = "fast")
+    public void testSharedSpoolRecoversFilesOfDeadWriters() throws Exception
+    {
+        final List<String> flushedFiles = new ArrayList<String>();
+        final DiskSpoolEventWriter writer = createSharedWriter(new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                flushedFiles.add(file.getName());
+                handler.onSuccess(file);
+            }
+        });
+        Assert.assertTrue(writer.awaitRecovery(10, TimeUnit.SECONDS));
+
+        // Left, after the startup, by a writer which died while flushing and writing
+        final String deadTag = "0123456789abcdef0123456789abcdef";
+        final File deadLockDir = new File(lockDir, deadTag);
+        Assert.assertTrue(deadLockDir.mkdirs());
+        Assert.assertTrue(new File(deadLockDir, "1-" + deadTag + ".bin").createNewFile());
+        Assert.assertTrue(new File(tmpDir, "2-" + deadTag + ".bin").createNewFile());
+        final File deadLockFile = new File(new File(spoolDir, "_processes"), deadTag + ".lock");
+        Assert.assertTrue(deadLockFile.createNewFile());
+
+        writer.flush();
+        Assert.assertEquals(flushedFiles, Arrays.asList("1-" + deadTag + ".bin", "2-" + deadTag + ".bin"));
+        Assert.assertFalse(deadLockDir.exists());
+        Assert.assertFalse(deadLockFile.exists());
+        testSpoolDirs(0, 0, 0);
+    }
+
+    @Test(groups = "fast")
+    public void testEventTypeCounters() throws Exception
+    {
+        final File countersSpoolDir = new File(spoolPath + "-counters-" + System.nanoTime());
+        final DiskSpoolEventWriter writer = new DiskSpoolEventWriter(writerSucceeds, countersSpoolDir.getAbsolutePath(), true, 1, executor, SyncType.NONE, 1);
+        final Event otherEvent = new StubEvent()
+        {
+            @Override
+            public String getName()
+            {
+                return "foo";
+            }
+        };
+
+        writer.write(createEvent());
+        writer.write(createEvent());
+        writer.write(otherEvent);
+        writer.commit();
+        long spooledBytes = 0;
+        for (final File file : listBinFiles(countersSpoolDir)) {
+            spooledBytes += file.length();
+        }
+
+        try {
+            writer.write(eventThrowsOnWrite);
+            Assert.fail("expected IOException");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+
+        final Map<String, long[]> snapshot = writer.getEventTypeCounters().getSnapshot();
+        Assert.assertEquals(snapshot.get("bar")[0], 2);
+        Assert.assertEquals(snapshot.get("bar")[2], 1);
+        Assert.assertEquals(snapshot.get("foo")[0], 1);
+        Assert.assertEquals(snapshot.get("foo")[2], 0);
+
+        // All bytes of the committed file are attributed
+        Assert.assertEquals(snapshot.get("bar")[1] + snapshot.get("foo")[1], spooledBytes);
+        Assert.assertTrue(snapshot.get("foo")[1] > 0);
+        Assert.assertTrue(writer.getEventTypeStats().contains("foo: 1 events"));
+    }
+
     @Test(groups = "fast")
     public void testInvalidConfiguration() throws Exception
     {
@@ -245,6 +573,24 @@ public class TestDiskSpoolEventWriter
         return new DiskSpoolEventWriter(persistentWriter, spoolPath, true, 1, executor, SyncType.NONE, 1);
     }
 
+    private DiskSpoolEventWriter createShardedWriter(final EventHandler persistentWriter)
+    {
+        return new DiskSpoolEventWriter.Builder(spoolPath, executor)
+            .withEventHandler(persistentWriter)
+            .withFlushIntervalInSeconds(1)
+            .withLayout(SpoolLayout.SHARDED)
+            .build();
+    }
+
+    private DiskSpoolEventWriter createSharedWriter(final EventHandler persistentWriter)
+    {
+        return new DiskSpoolEventWriter.Builder(spoolPath, executor)
+            .withEventHandler(persistentWriter)
+            .withFlushIntervalInSeconds(1)
+            .withSharedSpool(true)
+            .build();
+    }
+
     private void testSpoolDirs(final int tmpCount, final int spoolCount, final int quarantineCount)
     {
         Assert.assertEquals(listBinFiles(tmpDir).length, tmpCount);
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+public class TestEventTypeCounters
+{
+    @Test(groups = "fast")
+    public void testCardinalityGuard() throws Exception
+    {
+        final EventTypeCounters counters = new EventTypeCounters(TestEventTypeCounters.class, "guard-" + System.nanoTime(), 3);
+        for (int i = 0; i < 10; i++) {
+            counters.written("event-" + i, 10);
+        }
+        counters.dropped("event-0");
+        counters.serializationFailed("event-9");
+
+        final Map<String, long[]> snapshot = counters.getSnapshot();
+        Assert.assertEquals(snapshot.size(), 4);
+        Assert.assertEquals(snapshot.get("event-0")[0], 1);
+        Assert.assertEquals(snapshot.get("event-0")[3], 1);
+        Assert.assertEquals(snapshot.get(EventTypeCounters.OTHER)[0], 7);
+        Assert.assertEquals(snapshot.get(EventTypeCounters.OTHER)[1], 70);
+        Assert.assertEquals(snapshot.get(EventTypeCounters.OTHER)[2], 1);
+    }
+
+    @Test(groups = "fast")
+    public void testRegistry() throws Exception
+    {
+        final String prefix = "registry-" + System.nanoTime();
+        final EventTypeCounters counters = new EventTypeCounters(TestEventTypeCounters.class, prefix, 10);
+        counters.written("foo", 42);
+
+        final MetricName name = new MetricName(TestEventTypeCounters.class, prefix + "-bytesWritten", "foo");
+        Assert.assertTrue(Metrics.defaultRegistry().allMetrics().containsKey(name));
+
+        counters.unregister();
+        Assert.assertFalse(Metrics.defaultRegistry().allMetrics().containsKey(name));
+        Assert.assertEquals(counters.getSnapshot().size(), 0);
+    }
+}
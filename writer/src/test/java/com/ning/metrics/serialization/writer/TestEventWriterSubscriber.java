@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.StubEvent;
+import com.ning.metrics.serialization.flow.Subscription;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class TestEventWriterSubscriber
+{
+    private final List<Long> requests = new ArrayList<Long>();
+    private final List<Runnable> scheduledTasks = new ArrayList<Runnable>();
+    private boolean cancelled;
+    private long spoolSizeInKB;
+    private MockEventWriter writer;
+    private EventWriterSubscriber subscriber;
+
+    private final Subscription subscription = new Subscription()
+    {
+        @Override
+        public void request(final long n)
+        {
+            requests.add(n);
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+        }
+    };
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        requests.clear();
+        scheduledTasks.clear();
+        cancelled = false;
+        spoolSizeInKB = 0;
+        writer = new MockEventWriter();
+
+        final File spoolDir = new File(System.getProperty("java.io.tmpdir"), "eventwritersubscriber-" + System.nanoTime());
+        final DiskSpoolEventWriter spool = new DiskSpoolEventWriter(new StubEventHandler(), spoolDir.getAbsolutePath(), true, 1, new StubScheduledExecutorService(), SyncType.NONE, 1);
+        final StubScheduledExecutorService executor = new StubScheduledExecutorService()
+        {
+            @Override
+            public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit)
+            {
+                scheduledTasks.add(command);
+                return null;
+            }
+        };
+
+        // Batches of 3 events, pause above 100 KB
+        subscriber = new EventWriterSubscriber(writer, spool, executor, 3, 100)
+        {
+            @Override
+            protected long getSpoolSizeInKB()
+            {
+                return spoolSizeInKB;
+            }
+        };
+    }
+
+    @Test(groups = "fast")
+    public void testDemandFollowsCommits() throws Exception
+    {
+        subscriber.onSubscribe(subscription);
+        Assert.assertEquals(requests.size(), 1);
+        Assert.assertEquals((long) requests.get(0), 3);
+
+        subscriber.onNext(new StubEvent());
+        subscriber.onNext(new StubEvent());
+        Assert.assertEquals(writer.getWrittenEventList().size(), 2);
+        Assert.assertEquals(writer.getCommittedEventList().size(), 0);
+        Assert.assertEquals(requests.size(), 1);
+
+        // The batch is committed, the next one is requested
+        subscriber.onNext(new StubEvent());
+        Assert.assertEquals(writer.getCommittedEventList().size(), 3);
+        Assert.assertEquals(requests.size(), 2);
+
+        // Pending events are committed on completion
+        subscriber.onNext(new StubEvent());
+        subscriber.onComplete();
+        Assert.assertEquals(writer.getCommittedEventList().size(), 4);
+        Assert.assertEquals(subscriber.getWrittenEventCount(), 4);
+    }
+
+    @Test(groups = "fast")
+    public void testCommitBatchSizeChangedMidBatch() throws Exception
+    {
+        subscriber.onSubscribe(subscription);
+        subscriber.onNext(new StubEvent());
+
+        // The batch in flight is still committed once complete, the new size applies to the next one
+        subscriber.setCommitBatchSize(10);
+        subscriber.onNext(new StubEvent());
+        subscriber.onNext(new StubEvent());
+        Assert.assertEquals(writer.getCommittedEventList().size(), 3);
+        Assert.assertEquals(requests.size(), 2);
+        Assert.assertEquals((long) requests.get(1), 10);
+    }
+
+    @Test(groups = "fast")
+    public void testPauseOnSpoolPressure() throws Exception
+    {
+        subscriber.onSubscribe(subscription);
+        spoolSizeInKB = 200;
+        for (int i = 0; i < 3; i++) {
+            subscriber.onNext(new StubEvent());
+        }
+
+        // Demand is withheld while the spool is too large
+        Assert.assertEquals(requests.size(), 1);
+        Assert.assertTrue(subscriber.isPaused());
+        Assert.assertEquals(scheduledTasks.size(), 1);
+
+        scheduledTasks.remove(0).run();
+        Assert.assertEquals(requests.size(), 1);
+        Assert.assertEquals(scheduledTasks.size(), 1);
+
+        // Spool drained
+        spoolSizeInKB = 50;
+        scheduledTasks.remove(0).run();
+        Assert.assertFalse(subscriber.isPaused());
+        Assert.assertEquals(requests.size(), 2);
+        Assert.assertEquals(subscriber.getPressurePauseCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testCancelOnWriteFailure() throws Exception
+    {
+        final MockEventWriter failingWriter = new MockEventWriter(false, false, true);
+        final EventWriterSubscriber failingSubscriber = new EventWriterSubscriber(failingWriter, 3);
+
+        failingSubscriber.onSubscribe(subscription);
+        failingSubscriber.onNext(new StubEvent());
+        Assert.assertTrue(cancelled);
+
+        // Events after cancellation are ignored
+        failingSubscriber.onNext(new StubEvent());
+        failingSubscriber.onComplete();
+        Assert.assertEquals(failingSubscriber.getWrittenEventCount(), 0);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.StubEvent;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestFanOutEventHandler
+{
+    private final List<File> successes = new ArrayList<File>();
+    private final List<File> errors = new ArrayList<File>();
+    private final CallbackHandler callbackHandler = new CallbackHandler()
+    {
+        @Override
+        public void onError(final Throwable t, final File file)
+        {
+            errors.add(file);
+        }
+
+        @Override
+        public void onSuccess(final File file)
+        {
+            successes.add(file);
+        }
+    };
+
+    private File spoolDir;
+    private Map<String, EventHandler> eventHandlers;
+    private RecordingEventHandler hdfs;
+    private RecordingEventHandler archive;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        successes.clear();
+        errors.clear();
+        spoolDir = new File(System.getProperty("java.io.tmpdir"), "fanouteventhandler-" + System.nanoTime());
+        hdfs = new RecordingEventHandler();
+        archive = new RecordingEventHandler();
+
+        eventHandlers = new LinkedHashMap<String, EventHandler>();
+        eventHandlers.put("hdfs", hdfs);
+        eventHandlers.put("archive", archive);
+    }
+
+    @Test(groups = "fast")
+    public void testAllDestinationsAcknowledge() throws Exception
+    {
+        final FanOutEventHandler handler = new FanOutEventHandler(eventHandlers, new File(spoolDir, "_acks"));
+        final File file = new File(spoolDir, "1.bin");
+
+        handler.handle(file, callbackHandler);
+        Assert.assertEquals(hdfs.files.size(), 1);
+        Assert.assertEquals(archive.files.size(), 1);
+        Assert.assertEquals(successes.size(), 1);
+        Assert.assertEquals(errors.size(), 0);
+        Assert.assertEquals(handler.getPartiallyAcknowledgedFileCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRetryOnlyFailedDestinations() throws Exception
+    {
+        final FanOutEventHandler handler = new FanOutEventHandler(eventHandlers, new File(spoolDir, "_acks"));
+        final File file = new File(spoolDir, "1.bin");
+
+        hdfs.fails = true;
+        handler.handle(file, callbackHandler);
+        Assert.assertEquals(successes.size(), 0);
+        Assert.assertEquals(errors.size(), 1);
+        Assert.assertEquals(handler.getPartiallyAcknowledgedFileCount(), 1);
+
+        // Reprocessing (e.g. from quarantine) doesn't send the file again to the archive
+        hdfs.fails = false;
+        handler.handle(file, callbackHandler);
+        Assert.assertEquals(hdfs.files.size(), 2);
+        Assert.assertEquals(archive.files.size(), 1);
+        Assert.assertEquals(successes.size(), 1);
+        Assert.assertEquals(handler.getPartiallyAcknowledgedFileCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testAcknowledgementsSurviveRestart() throws Exception
+    {
+        FanOutEventHandler handler = new FanOutEventHandler(eventHandlers, new File(spoolDir, "_acks"));
+        hdfs.fails = true;
+        handler.handle(new File(spoolDir, "1.bin"), callbackHandler);
+        hdfs.fails = false;
+        handler.handle(new File(spoolDir, "2.bin"), callbackHandler);
+        handler.close();
+
+        handler = new FanOutEventHandler(eventHandlers, new File(spoolDir, "_acks"));
+        // 2.bin was acknowledged by all destinations, its entries are compacted away
+        Assert.assertEquals(handler.getPartiallyAcknowledgedFileCount(), 1);
+
+        handler.handle(new File(spoolDir, "1.bin"), callbackHandler);
+        Assert.assertEquals(archive.files.size(), 2);
+        Assert.assertEquals(hdfs.files.size(), 3);
+        Assert.assertEquals(successes.size(), 2);
+        handler.close();
+    }
+
+    @Test(groups = "fast")
+    public void testDiscardedFilesAreForgotten() throws Exception
+    {
+        FanOutEventHandler handler = new FanOutEventHandler(eventHandlers, new File(spoolDir, "_acks"));
+        hdfs.fails = true;
+        handler.handle(new File(spoolDir, "1.bin"), callbackHandler);
+        Assert.assertEquals(handler.getPartiallyAcknowledgedFileCount(), 1);
+
+        // Evicted from the quarantine: it won't come back
+        handler.discarded(new File(spoolDir, "1.bin"));
+        Assert.assertEquals(handler.getPartiallyAcknowledgedFileCount(), 0);
+        handler.close();
+
+        handler = new FanOutEventHandler(eventHandlers, new File(spoolDir, "_acks"));
+        Assert.assertEquals(handler.getPartiallyAcknowledgedFileCount(), 0);
+        handler.close();
+    }
+
+    @Test(groups = "fast")
+    public void testSpoolOnceForAllDestinations() throws Exception
+    {
+        final MockEventWriter hdfsEvents = new MockEventWriter();
+        final MockEventWriter archiveEvents = new MockEventWriter();
+        eventHandlers.put("hdfs", new StubEventHandler(hdfsEvents));
+        eventHandlers.put("archive", new StubEventHandler(archiveEvents));
+
+        final DiskSpoolEventWriter writer = new DiskSpoolEventWriter.Builder(spoolDir.getAbsolutePath(), new StubScheduledExecutorService())
+            .withEventHandlers(eventHandlers)
+            .withFlushIntervalInSeconds(1)
+            .build();
+        for (int i = 0; i < 3; i++) {
+            writer.write(new StubEvent());
+            writer.commit();
+        }
+
+        writer.flush();
+        Assert.assertEquals(hdfsEvents.getCommittedEventList().size(), 3);
+        Assert.assertEquals(archiveEvents.getCommittedEventList().size(), 3);
+        Assert.assertEquals(writer.getSpooledFileCount(), 0);
+        Assert.assertEquals(writer.getQuarantineSize(), 0);
+    }
+
+    private static final class RecordingEventHandler implements EventHandler
+    {
+        private final List<File> files = new ArrayList<File>();
+        private boolean fails = false;
+
+        @Override
+        public void handle(final File file, final CallbackHandler handler)
+        {
+            files.add(file);
+            if (fails) {
+                handler.onError(new IOException("IGNORE - Expected exception for tests"), file);
+            }
+            else {
+                handler.onSuccess(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestFlushRateLimiter
+{
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private long nanos;
+    private long sleptNanos;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        nanos = 0;
+        sleptNanos = 0;
+    }
+
+    @Test(groups = "fast")
+    public void testUnlimited() throws Exception
+    {
+        final FlushRateLimiter limiter = createLimiter(0, 0, 1);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(limiter.acquire(1000000), 0);
+        }
+        Assert.assertEquals(sleptNanos, 0);
+        Assert.assertEquals(limiter.getThrottledFileCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testBytesPerSecond() throws Exception
+    {
+        // 100 bytes/s, with a burst of 2 seconds
+        final FlushRateLimiter limiter = createLimiter(100, 0, 2);
+
+        // The burst allowance goes at full speed
+        Assert.assertEquals(limiter.acquire(150), 0);
+        Assert.assertEquals(limiter.acquire(50), 0);
+
+        // Then we're limited
+        Assert.assertEquals(limiter.acquire(50), ONE_SECOND / 2);
+        Assert.assertEquals(limiter.acquire(100), ONE_SECOND);
+        Assert.assertEquals(sleptNanos, ONE_SECOND + ONE_SECOND / 2);
+        Assert.assertEquals(limiter.getThrottledFileCount(), 2);
+        Assert.assertEquals(limiter.getThrottledTimeInMillis(), 1500);
+
+        // Unused bandwidth is accumulated, up to the burst allowance
+        nanos += 10 * ONE_SECOND;
+        Assert.assertEquals(limiter.acquire(200), 0);
+        Assert.assertEquals(limiter.acquire(100), ONE_SECOND);
+    }
+
+    @Test(groups = "fast")
+    public void testFilesPerSecond() throws Exception
+    {
+        final FlushRateLimiter limiter = createLimiter(0, 4, 1);
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(limiter.acquire(1000000), 0);
+        }
+        Assert.assertEquals(limiter.acquire(1), ONE_SECOND / 4);
+    }
+
+    @Test(groups = "fast")
+    public void testAdjustAtRuntime() throws Exception
+    {
+        final FlushRateLimiter limiter = createLimiter(0, 0, 1);
+        Assert.assertEquals(limiter.acquire(1000), 0);
+
+        limiter.setMaxBytesPerSecond(1000);
+        Assert.assertEquals(limiter.acquire(1000), ONE_SECOND);
+
+        limiter.setMaxBytesPerSecond(0);
+        Assert.assertEquals(limiter.acquire(1000), 0);
+        Assert.assertEquals(limiter.getMaxBytesPerSecond(), 0);
+    }
+
+    private FlushRateLimiter createLimiter(final long maxBytesPerSecond, final long maxFilesPerSecond, final long burstInSeconds)
+    {
+        return new FlushRateLimiter(maxBytesPerSecond, maxFilesPerSecond, burstInSeconds)
+        {
+            @Override
+            protected long getNanos()
+            {
+                return nanos;
+            }
+
+            @Override
+            protected void sleep(final long nanosToSleep)
+            {
+                sleptNanos += nanosToSleep;
+                nanos += nanosToSleep;
+            }
+        };
+    }
+}
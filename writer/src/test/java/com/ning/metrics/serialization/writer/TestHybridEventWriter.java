@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TestHybridEventWriter
+{
+    private final Event event = new StubEvent()
+    {
+        @Override
+        public byte[] getSerializedEvent()
+        {
+            return new byte[10];
+        }
+    };
+
+    private final List<Event> shippedEvents = new ArrayList<Event>();
+    private final List<Runnable> senderTasks = new ArrayList<Runnable>();
+    private MockEventWriter spoolWriter;
+    private boolean sinkFails;
+    private boolean sinkRunsInline;
+    private HybridEventWriter writer;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        shippedEvents.clear();
+        senderTasks.clear();
+        spoolWriter = new MockEventWriter();
+        sinkFails = false;
+        sinkRunsInline = true;
+
+        final EventBatchHandler sink = new EventBatchHandler()
+        {
+            @Override
+            public void handle(final List<Event> events) throws IOException
+            {
+                if (sinkFails) {
+                    throw new IOException("IGNORE - Expected exception for tests");
+                }
+                shippedEvents.addAll(events);
+            }
+        };
+
+        final StubScheduledExecutorService sender = new StubScheduledExecutorService()
+        {
+            @Override
+            public void execute(final Runnable command)
+            {
+                if (sinkRunsInline) {
+                    command.run();
+                }
+                else {
+                    senderTasks.add(command);
+                }
+            }
+
+            @Override
+            public void shutdown()
+            {
+            }
+
+            @Override
+            public boolean awaitTermination(final long timeout, final TimeUnit unit)
+            {
+                return true;
+            }
+
+            @Override
+            public List<Runnable> shutdownNow()
+            {
+                return Collections.emptyList();
+            }
+        };
+
+        // 100 bytes budget, batches of 3 events
+        writer = new HybridEventWriter(sink, spoolWriter, sender, 100, 3);
+    }
+
+    @Test(groups = "fast")
+    public void testHandOffWithoutSpilling() throws Exception
+    {
+        writer.write(event);
+        writer.write(event);
+        Assert.assertEquals(shippedEvents.size(), 0);
+        Assert.assertEquals(writer.getBufferedBytes(), 20);
+
+        // Full batch
+        writer.write(event);
+        Assert.assertEquals(shippedEvents.size(), 3);
+
+        // Commit ships partial batches
+        writer.write(event);
+        writer.commit();
+        Assert.assertEquals(shippedEvents.size(), 4);
+        Assert.assertEquals(writer.getHandedOffEventCount(), 4);
+        Assert.assertEquals(writer.getSpilledEventCount(), 0);
+        Assert.assertEquals(writer.getBufferedBytes(), 0);
+        Assert.assertEquals(spoolWriter.getWrittenEventList().size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSpillOnMemoryPressure() throws Exception
+    {
+        writer.setMaxBatchSize(100);
+        for (int i = 0; i < 12; i++) {
+            writer.write(event);
+        }
+
+        // Only 100 bytes fit in memory
+        Assert.assertEquals(writer.getBufferedBytes(), 100);
+        Assert.assertEquals(spoolWriter.getWrittenEventList().size(), 2);
+        Assert.assertEquals(writer.getSpilledEventCount(), 2);
+
+        writer.commit();
+        Assert.assertEquals(shippedEvents.size(), 10);
+        Assert.assertEquals(spoolWriter.getCommittedEventList().size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testSpillOnSinkFailure() throws Exception
+    {
+        sinkFails = true;
+        for (int i = 0; i < 3; i++) {
+            writer.write(event);
+        }
+
+        Assert.assertEquals(shippedEvents.size(), 0);
+        Assert.assertEquals(spoolWriter.getWrittenEventList().size(), 3);
+        Assert.assertEquals(writer.getFailedBatchCount(), 1);
+        Assert.assertEquals(writer.getBufferedBytes(), 0);
+        // Not committed yet by the application
+        Assert.assertEquals(spoolWriter.getCommittedEventList().size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSpillOfCommittedBatchIsCommitted() throws Exception
+    {
+        sinkRunsInline = false;
+        writer.write(event);
+        writer.write(event);
+        writer.commit();
+        Assert.assertEquals(senderTasks.size(), 1);
+
+        sinkFails = true;
+        senderTasks.get(0).run();
+        Assert.assertEquals(spoolWriter.getWrittenEventList().size(), 0);
+        Assert.assertEquals(spoolWriter.getCommittedEventList().size(), 2);
+        Assert.assertEquals(writer.getBufferedBytes(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRollbackCoversPendingBatches() throws Exception
+    {
+        sinkRunsInline = false;
+        // A full batch waiting for the sender, and a partial one
+        for (int i = 0; i < 4; i++) {
+            writer.write(event);
+        }
+        Assert.assertEquals(senderTasks.size(), 1);
+
+        writer.rollback();
+        Assert.assertEquals(spoolWriter.getQuarantinedEventList().size(), 4);
+        Assert.assertEquals(writer.getBufferedBytes(), 0);
+
+        senderTasks.get(0).run();
+        Assert.assertEquals(shippedEvents.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSpillOnSlowSink() throws Exception
+    {
+        sinkRunsInline = false;
+        for (int i = 0; i < 9; i++) {
+            writer.write(event);
+        }
+
+        // Two batches are waiting for the sink, the third one went to disk
+        Assert.assertEquals(senderTasks.size(), 2);
+        Assert.assertEquals(spoolWriter.getWrittenEventList().size(), 3);
+
+        for (final Runnable task : senderTasks) {
+            task.run();
+        }
+        Assert.assertEquals(shippedEvents.size(), 6);
+        Assert.assertEquals(writer.getBufferedBytes(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSpillOnClose() throws Exception
+    {
+        sinkRunsInline = false;
+        for (int i = 0; i < 4; i++) {
+            writer.write(event);
+        }
+
+        writer.close();
+        Assert.assertTrue(spoolWriter.isClosed());
+        Assert.assertEquals(shippedEvents.size(), 0);
+        Assert.assertEquals(spoolWriter.getFlushedEventList().size(), 4);
+        Assert.assertEquals(writer.getBufferedBytes(), 0);
+    }
+}
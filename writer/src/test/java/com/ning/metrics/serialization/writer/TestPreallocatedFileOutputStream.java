@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.StubEvent;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+public class TestPreallocatedFileOutputStream
+{
+    private File tmpDir;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        tmpDir = new File(System.getProperty("java.io.tmpdir"), "preallocatedfileoutputstream-" + System.nanoTime());
+        Assert.assertTrue(tmpDir.mkdirs());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(tmpDir);
+    }
+
+    @Test(groups = "fast")
+    public void testPreallocateAndTruncate() throws Exception
+    {
+        final File file = new File(tmpDir, "file.bin");
+        final PreallocatedFileOutputStream out = new PreallocatedFileOutputStream(file, 1000, 16);
+
+        final byte[] data = new byte[40];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i + 1);
+        }
+
+        out.write(data, 0, 10);
+        out.flush();
+        // The file is extended up front, the partial block is written in place
+        Assert.assertEquals(file.length(), 1000);
+        Assert.assertEquals(FileUtils.readFileToByteArray(file)[9], 10);
+        Assert.assertEquals(FileUtils.readFileToByteArray(file)[10], 0);
+
+        out.write(data, 10, 29);
+        out.write(data[39]);
+        Assert.assertEquals(out.getSize(), 40);
+        out.close();
+
+        Assert.assertEquals(FileUtils.readFileToByteArray(file), data);
+        Assert.assertFalse(PreallocatedFileOutputStream.getLengthFile(file).exists());
+    }
+
+    @Test(groups = "fast")
+    public void testRecoverUnclosedFile() throws Exception
+    {
+        final File file = new File(tmpDir, "file.bin");
+        final PreallocatedFileOutputStream out = new PreallocatedFileOutputStream(file, 1000, 16);
+
+        final byte[] data = new byte[20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i + 1);
+        }
+        out.write(data);
+        out.sync();
+        // Not flushed: lost on crash
+        out.write(data, 0, 5);
+        Assert.assertEquals(file.length(), 1000);
+
+        // The process dies, the file is recovered on restart
+        PreallocatedFileOutputStream.recover(file);
+        Assert.assertEquals(FileUtils.readFileToByteArray(file), data);
+        Assert.assertFalse(PreallocatedFileOutputStream.getLengthFile(file).exists());
+
+        // No-op on regular files
+        final File regularFile = new File(tmpDir, "regular.bin");
+        FileUtils.writeByteArrayToFile(regularFile, data);
+        PreallocatedFileOutputStream.recover(regularFile);
+        Assert.assertEquals(FileUtils.readFileToByteArray(regularFile), data);
+        out.close();
+    }
+
+    @Test(groups = "fast")
+    public void testGrowBeyondPreallocation() throws Exception
+    {
+        final File file = new File(tmpDir, "file.bin");
+        final PreallocatedFileOutputStream out = new PreallocatedFileOutputStream(file, 100, 64);
+
+        final byte[] data = new byte[250];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        out.write(data);
+        out.flush();
+        Assert.assertEquals(file.length(), 300);
+
+        out.close();
+        out.close();
+        Assert.assertEquals(FileUtils.readFileToByteArray(file), data);
+    }
+
+    @Test(groups = "fast")
+    public void testSameOutputAsFileOutputStream() throws Exception
+    {
+        final File expectedFile = new File(tmpDir, "expected.bin");
+        final File actualFile = new File(tmpDir, "actual.bin");
+
+        writeEvents(new FileOutputStream(expectedFile));
+        writeEvents(new PreallocatingCodec(1024 * 1024).getFileOutputStream(actualFile));
+
+        Assert.assertEquals(FileUtils.readFileToByteArray(actualFile), FileUtils.readFileToByteArray(expectedFile));
+    }
+
+    private void writeEvents(final FileOutputStream out) throws Exception
+    {
+        final ObjectOutputter outputter = ObjectOutputterFactory.createObjectOutputter(out, SyncType.SYNC, 2);
+        for (int i = 0; i < 5; i++) {
+            outputter.writeObject(new StubEvent());
+        }
+        outputter.close();
+    }
+}
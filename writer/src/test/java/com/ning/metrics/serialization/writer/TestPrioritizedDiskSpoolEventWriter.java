@@ -0,0 +1,202 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestPrioritizedDiskSpoolEventWriter
+{
+    private final Event billingEvent = new StubEvent()
+    {
+        @Override
+        public String getName()
+        {
+            return "billing";
+        }
+    };
+    private final Event debugEvent = new StubEvent();
+    private final List<String> flushedLanes = new ArrayList<String>();
+
+    private File spoolDir;
+    private EventHandler eventHandler;
+    private PrioritizedDiskSpoolEventWriter writer;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        flushedLanes.clear();
+        spoolDir = new File(System.getProperty("java.io.tmpdir"), "prioritizeddiskspooleventwriter-" + System.nanoTime());
+
+        eventHandler = new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                // The file is in <lane>/_lock
+                flushedLanes.add(file.getParentFile().getParentFile().getName());
+                handler.onSuccess(file);
+            }
+        };
+
+        final LinkedHashMap<FlushLane, DiskSpoolEventWriter> lanes = new LinkedHashMap<FlushLane, DiskSpoolEventWriter>();
+        lanes.put(new FlushLane("high", 2, new HashSet<String>(Arrays.asList("billing"))), createLaneWriter(eventHandler, "high"));
+        lanes.put(new FlushLane("low", 1, Collections.<String>emptySet()), createLaneWriter(eventHandler, "low"));
+
+        writer = new PrioritizedDiskSpoolEventWriter(lanes, new StubScheduledExecutorService(), true, 30);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(spoolDir);
+    }
+
+    @Test(groups = "fast")
+    public void testRouteByEventName() throws Exception
+    {
+        writer.write(billingEvent);
+        writer.write(debugEvent);
+        writer.write(debugEvent);
+        writer.commit();
+
+        Assert.assertEquals(getLaneWriter(0).getSpooledFileCount(), 1);
+        Assert.assertEquals(getLaneWriter(1).getSpooledFileCount(), 1);
+        Assert.assertEquals(writer.getSpoolPath().split(File.pathSeparator).length, 2);
+    }
+
+    @Test(groups = "fast")
+    public void testWeightedFairFlush() throws Exception
+    {
+        // Large low priority backlog
+        for (int i = 0; i < 4; i++) {
+            writer.write(debugEvent);
+            writer.commit();
+        }
+        for (int i = 0; i < 3; i++) {
+            writer.write(billingEvent);
+            writer.commit();
+        }
+        Assert.assertEquals(writer.getLaneBacklogs(), "high: 3 files (0s), low: 4 files (0s)");
+
+        writer.flush();
+
+        Assert.assertEquals(flushedLanes, Arrays.asList("high", "high", "low", "high", "low", "low", "low"));
+        Assert.assertEquals(getLaneWriter(0).getSpooledFileCount(), 0);
+        Assert.assertEquals(getLaneWriter(1).getSpooledFileCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testHighPriorityFilesSpooledDuringFlush() throws Exception
+    {
+        final AtomicReference<PrioritizedDiskSpoolEventWriter> writerReference = new AtomicReference<PrioritizedDiskSpoolEventWriter>();
+        final EventHandler spoolingHandler = new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                eventHandler.handle(file, handler);
+                if (flushedLanes.size() == 1) {
+                    // A high priority file shows up while the low priority backlog drains
+                    try {
+                        writerReference.get().write(billingEvent);
+                        writerReference.get().commit();
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        };
+        final LinkedHashMap<FlushLane, DiskSpoolEventWriter> lanes = new LinkedHashMap<FlushLane, DiskSpoolEventWriter>();
+        lanes.put(new FlushLane("high", 2, new HashSet<String>(Arrays.asList("billing"))), createLaneWriter(spoolingHandler, "high"));
+        lanes.put(new FlushLane("low", 1, Collections.<String>emptySet()), createLaneWriter(spoolingHandler, "low"));
+        writerReference.set(new PrioritizedDiskSpoolEventWriter(lanes, new StubScheduledExecutorService(), true, 30));
+
+        for (int i = 0; i < 4; i++) {
+            writerReference.get().write(debugEvent);
+            writerReference.get().commit();
+        }
+
+        writerReference.get().flush();
+
+        // The high priority file doesn't wait for the whole low priority backlog
+        Assert.assertEquals(flushedLanes, Arrays.asList("low", "high", "low", "low", "low"));
+        Assert.assertEquals(lanes.values().iterator().next().getSpooledFileCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFlushDisabled() throws Exception
+    {
+        writer.write(billingEvent);
+        writer.commit();
+
+        writer.setFlushEnabled(false);
+        writer.flush();
+        Assert.assertEquals(flushedLanes.size(), 0);
+        Assert.assertEquals(getLaneWriter(0).getSpooledFileCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testFileWhichCannotBeFlushed() throws Exception
+    {
+        // A spooled file which vanishes before it can be handed off
+        final DiskSpoolEventWriter laneWriter = new DiskSpoolEventWriter(eventHandler, new File(spoolDir, "phantom").getAbsolutePath(), false, 30, new StubScheduledExecutorService(), SyncType.NONE, 1)
+        {
+            @Override
+            protected List<File> getSpooledFileList()
+            {
+                final List<File> files = super.getSpooledFileList();
+                files.add(new File(spoolDir, "0.bin"));
+                return files;
+            }
+        };
+        final LinkedHashMap<FlushLane, DiskSpoolEventWriter> lanes = new LinkedHashMap<FlushLane, DiskSpoolEventWriter>();
+        lanes.put(new FlushLane("phantom", 1, Collections.<String>emptySet()), laneWriter);
+        final PrioritizedDiskSpoolEventWriter phantomWriter = new PrioritizedDiskSpoolEventWriter(lanes, new StubScheduledExecutorService(), true, 30);
+
+        phantomWriter.write(debugEvent);
+        phantomWriter.commit();
+        phantomWriter.flush();
+        Assert.assertEquals(flushedLanes, Arrays.asList("phantom"));
+    }
+
+    private DiskSpoolEventWriter createLaneWriter(final EventHandler eventHandler, final String name)
+    {
+        return new DiskSpoolEventWriter(eventHandler, new File(spoolDir, name).getAbsolutePath(), false, 30, new StubScheduledExecutorService(), SyncType.NONE, 1);
+    }
+
+    private DiskSpoolEventWriter getLaneWriter(final int index)
+    {
+        return new ArrayList<DiskSpoolEventWriter>(writer.getLanes().values()).get(index);
+    }
+}
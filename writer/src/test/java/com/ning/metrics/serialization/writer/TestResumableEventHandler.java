@@ -0,0 +1,217 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestResumableEventHandler
+{
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final List<Long> offsets = new ArrayList<Long>();
+    private final List<String> results = new ArrayList<String>();
+    private final CallbackHandler callbackHandler = new CallbackHandler()
+    {
+        @Override
+        public void onError(final Throwable t, final File file)
+        {
+            results.add("error");
+        }
+
+        @Override
+        public void onSuccess(final File file)
+        {
+            results.add("success");
+        }
+    };
+
+    private int failAtChunk;
+    private File lockDir;
+    private ChunkedEventHandler destination;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        received.reset();
+        offsets.clear();
+        results.clear();
+        failAtChunk = -1;
+        lockDir = new File(System.getProperty("java.io.tmpdir"), "resumableeventhandler-" + System.nanoTime() + "/_lock");
+        lockDir.mkdirs();
+
+        destination = new ChunkedEventHandler()
+        {
+            @Override
+            public void handleChunk(final File file, final long offset, final byte[] data, final int length, final boolean lastChunk) throws IOException
+            {
+                if (offsets.size() == failAtChunk) {
+                    failAtChunk = -1;
+                    throw new IOException("IGNORE - Expected exception for tests");
+                }
+                Assert.assertEquals(offset, received.size());
+                offsets.add(offset);
+                received.write(data, 0, length);
+            }
+        };
+    }
+
+    @Test(groups = "fast")
+    public void testResumeAfterFailure() throws Exception
+    {
+        final File file = createFile(250);
+
+        // The third chunk fails
+        failAtChunk = 2;
+        new ResumableEventHandler(destination, 100).handle(file, callbackHandler);
+        Assert.assertEquals(results.get(0), "error");
+        Assert.assertEquals(received.size(), 200);
+        Assert.assertTrue(new File(lockDir, "_checkpoints/" + file.getName()).exists());
+
+        // A new handler (e.g. after a restart) resumes from the checkpoint
+        final ResumableEventHandler handler = new ResumableEventHandler(destination, 100);
+        handler.handle(file, callbackHandler);
+        Assert.assertEquals(results.get(1), "success");
+        Assert.assertEquals(received.toByteArray(), FileUtils.readFileToByteArray(file));
+        Assert.assertEquals(handler.getBytesResumed(), 200);
+        Assert.assertEquals(handler.getChunksSent(), 1);
+        Assert.assertFalse(new File(lockDir, "_checkpoints/" + file.getName()).exists());
+    }
+
+    @Test(groups = "fast")
+    public void testStaleCheckpointIsIgnored() throws Exception
+    {
+        final File file = createFile(250);
+        failAtChunk = 1;
+        new ResumableEventHandler(destination, 100).handle(file, callbackHandler);
+
+        // Same name, different content
+        FileUtils.writeByteArrayToFile(file, new byte[300]);
+        received.reset();
+        new ResumableEventHandler(destination, 100).handle(file, callbackHandler);
+        Assert.assertEquals(results.get(1), "success");
+        Assert.assertEquals(received.size(), 300);
+    }
+
+    @Test(groups = "fast")
+    public void testEmptyFile() throws Exception
+    {
+        final File file = createFile(0);
+        new ResumableEventHandler(destination, 100).handle(file, callbackHandler);
+        Assert.assertEquals(results.get(0), "success");
+        Assert.assertEquals(offsets.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testChunksEndOnRecordBoundaries() throws Exception
+    {
+        final File file = createFile(250);
+        new ResumableEventHandler(destination, 100).handle(file, new long[]{30, 90, 150, 160, 240}, callbackHandler);
+        Assert.assertEquals(results.get(0), "success");
+        Assert.assertEquals(offsets, Arrays.asList(0L, 90L, 160L));
+        Assert.assertEquals(received.toByteArray(), FileUtils.readFileToByteArray(file));
+
+        // An event larger than a chunk is sent whole
+        offsets.clear();
+        received.reset();
+        new ResumableEventHandler(destination, 100).handle(file, new long[]{150}, callbackHandler);
+        Assert.assertEquals(offsets, Arrays.asList(0L, 150L));
+        Assert.assertEquals(received.toByteArray(), FileUtils.readFileToByteArray(file));
+    }
+
+    @Test(groups = "fast")
+    public void testCheckpointOfDiscardedFileIsDeleted() throws Exception
+    {
+        final File file = createFile(250);
+        failAtChunk = 1;
+        final ResumableEventHandler handler = new ResumableEventHandler(destination, 100);
+        handler.handle(file, callbackHandler);
+        final File checkpointFile = new File(lockDir, "_checkpoints/" + file.getName());
+        Assert.assertTrue(checkpointFile.exists());
+
+        // Evicted from the quarantine
+        handler.discarded(new File(new File(lockDir.getParentFile(), "_quarantine"), file.getName()));
+        Assert.assertFalse(checkpointFile.exists());
+    }
+
+    @Test(groups = "fast")
+    public void testRecordBoundariesFromTheWriter() throws Exception
+    {
+        final List<Event> events = new ArrayList<Event>();
+        final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        final ChunkedEventHandler decodingDestination = new ChunkedEventHandler()
+        {
+            @Override
+            public void handleChunk(final File file, final long offset, final byte[] data, final int length, final boolean lastChunk) throws IOException
+            {
+                // Each chunk holds whole events: what was received so far can always be decoded
+                chunk.write(data, 0, length);
+                events.clear();
+                final ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(chunk.toByteArray()));
+                try {
+                    while (input.read() != -1) {
+                        events.add((Event) input.readObject());
+                    }
+                }
+                catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+                offsets.add(offset);
+            }
+        };
+
+        final File spoolDir = lockDir.getParentFile();
+        final DiskSpoolEventWriter writer = new DiskSpoolEventWriter.Builder(spoolDir.getAbsolutePath(), new StubScheduledExecutorService())
+            .withEventHandler(new ResumableEventHandler(decodingDestination, 1))
+            .withRecordBoundaryIntervalInBytes(1)
+            .build();
+        for (int i = 0; i < 3; i++) {
+            writer.write(new StubEvent());
+        }
+        writer.commit();
+        Assert.assertEquals(new File(spoolDir, "_records").list().length, 1);
+
+        writer.flush();
+        Assert.assertEquals(offsets.size(), 3);
+        Assert.assertEquals(events.size(), 3);
+        Assert.assertEquals(writer.getSpooledFileCount(), 0);
+        Assert.assertEquals(new File(spoolDir, "_records").list().length, 0);
+    }
+
+    private File createFile(final int size) throws IOException
+    {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        final File file = new File(lockDir, System.nanoTime() + ".bin");
+        FileUtils.writeByteArrayToFile(file, data);
+        return file;
+    }
+}
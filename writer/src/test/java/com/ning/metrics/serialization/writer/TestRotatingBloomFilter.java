@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+public class TestRotatingBloomFilter
+{
+    @Test(groups = "fast")
+    public void testMurmurHash3() throws Exception
+    {
+        final long[] hash = new long[2];
+
+        RotatingBloomFilter.murmurHash3(new byte[0], 0, hash);
+        Assert.assertEquals(hash[0], 0L);
+        Assert.assertEquals(hash[1], 0L);
+
+        RotatingBloomFilter.murmurHash3("hello".getBytes("UTF-8"), 0, hash);
+        Assert.assertEquals(hash[0], 0xcbd8a7b341bd9b02L);
+        Assert.assertEquals(hash[1], 0x5b1e906a48ae1d19L);
+    }
+
+    @Test(groups = "fast")
+    public void testRotation() throws Exception
+    {
+        final RotatingBloomFilter filter = new RotatingBloomFilter(1000, 0.01, 1000, 0);
+
+        Assert.assertFalse(filter.checkAndAdd(1, 2, 0));
+        Assert.assertTrue(filter.checkAndAdd(1, 2, 10));
+
+        // Still remembered in the previous generation
+        Assert.assertTrue(filter.checkAndAdd(1, 2, 1500));
+        // Forgotten after two windows without being seen
+        Assert.assertFalse(filter.checkAndAdd(1, 2, 4000));
+    }
+
+    @Test(groups = "fast")
+    public void testFalsePositiveRate() throws Exception
+    {
+        final int expectedInsertions = 10000;
+        final RotatingBloomFilter filter = new RotatingBloomFilter(expectedInsertions, 0.01, Long.MAX_VALUE, 0);
+        final Random random = new Random(42);
+        final long[] hash = new long[2];
+        final byte[] data = new byte[16];
+
+        int falsePositives = 0;
+        for (int i = 0; i < expectedInsertions - 1; i++) {
+            random.nextBytes(data);
+            RotatingBloomFilter.murmurHash3(data, 0, hash);
+            if (filter.checkAndAdd(hash[0], hash[1], 0)) {
+                falsePositives++;
+            }
+        }
+
+        Assert.assertTrue(falsePositives < expectedInsertions * 0.01, "Too many false positives: " + falsePositives);
+        Assert.assertEquals(filter.getSizeInBytes() / 2 / 1024, 13);
+    }
+}
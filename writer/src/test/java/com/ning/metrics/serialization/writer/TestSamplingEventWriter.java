@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.SampleRateRecorder;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestSamplingEventWriter
+{
+    private final DateTime eventRateNow = new DateTime();
+    private final Event billingEvent = new StubEvent()
+    {
+        @Override
+        public String getName()
+        {
+            return "billing";
+        }
+    };
+    private final List<Double> recordedSampleRates = new ArrayList<Double>();
+    private final SampleRateRecorder recorder = new SampleRateRecorder()
+    {
+        @Override
+        public Event record(final Event event, final double sampleRate)
+        {
+            recordedSampleRates.add(sampleRate);
+            return event;
+        }
+    };
+
+    private MockEventWriter delegate;
+    private long now;
+    private long spoolSizeInKB;
+    private DiskSpoolEventWriter spool;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        delegate = new MockEventWriter();
+        recordedSampleRates.clear();
+        now = 0;
+        spoolSizeInKB = 0;
+
+        final String spoolPath = new File(System.getProperty("java.io.tmpdir"), "samplingeventwriter-" + System.nanoTime()).getAbsolutePath();
+        spool = new DiskSpoolEventWriter(new StubEventHandler(), spoolPath, false, 30, new StubScheduledExecutorService(), SyncType.NONE, 1)
+        {
+            @Override
+            public long getDiskSpoolSize()
+            {
+                return spoolSizeInKB;
+            }
+        };
+    }
+
+    @Test(groups = "fast")
+    public void testNoPressure() throws Exception
+    {
+        final SamplingEventWriter writer = createWriter(10, 100, 0.1);
+
+        for (int i = 0; i < 50; i++) {
+            writer.write(new StubEvent());
+        }
+        now += 1000;
+        writer.write(new StubEvent());
+
+        Assert.assertEquals(delegate.getWrittenEventList().size(), 51);
+        Assert.assertEquals(writer.getDroppedEventCount(), 0);
+        Assert.assertEquals(writer.getSampleRates().get("bar"), 1.0);
+        // Events which are not sampled are written as is
+        Assert.assertTrue(recordedSampleRates.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testSampleByEventName() throws Exception
+    {
+        final SamplingEventWriter writer = createWriter(10, 0, 0.01);
+
+        // 100 events/s for bar (the rate window is 10 seconds), 1 event/s for billing
+        for (int i = 0; i < 999; i++) {
+            writer.write(new StubEvent());
+        }
+        for (int i = 0; i < 10; i++) {
+            writer.write(billingEvent);
+        }
+        now += 1000;
+        writer.write(new StubEvent());
+
+        Assert.assertEquals(writer.getSampleRates().get("bar"), 0.1);
+        Assert.assertEquals(writer.getSampleRates().get("billing"), 1.0);
+        Assert.assertEquals(writer.getDroppedEventCount(), 1);
+
+        writer.write(billingEvent);
+        Assert.assertEquals(delegate.getWrittenEventList().size(), 1010);
+        Assert.assertTrue(recordedSampleRates.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testSampleOnSpoolPressure() throws Exception
+    {
+        final SamplingEventWriter writer = createWriter(0, 100, 0.2);
+        writer.write(new StubEvent());
+
+        spoolSizeInKB = 1000;
+        now += 1000;
+        writer.write(billingEvent);
+        Assert.assertEquals(writer.getSampleRates().get("bar"), 0.5);
+        Assert.assertEquals(writer.getSampleRates().get("billing"), 0.5);
+
+        now += 1000;
+        writer.write(billingEvent);
+        now += 1000;
+        writer.write(billingEvent);
+        Assert.assertEquals(writer.getSampleRates().get("billing"), 0.2);
+
+        // Back to normal once the spool is drained
+        spoolSizeInKB = 0;
+        now += 1000;
+        writer.write(billingEvent);
+        Assert.assertEquals(writer.getSampleRates().get("billing"), 0.4);
+        now += 1000;
+        writer.write(billingEvent);
+        now += 1000;
+        writer.write(billingEvent);
+        Assert.assertEquals(writer.getSampleRates().get("billing"), 1.0);
+    }
+
+    private SamplingEventWriter createWriter(final long maxEventsPerSecond, final long maxSpoolSizeInKB, final double minSampleRate)
+    {
+        return new SamplingEventWriter(delegate, recorder, spool, maxEventsPerSecond, maxSpoolSizeInKB, minSampleRate)
+        {
+            @Override
+            protected long getNow()
+            {
+                return now;
+            }
+
+            @Override
+            protected double nextRandom()
+            {
+                return 0.5;
+            }
+
+            @Override
+            protected EventRate createEventRate()
+            {
+                return new EventRate(Period.seconds(10))
+                {
+                    @Override
+                    protected DateTime getNow()
+                    {
+                        return eventRateNow;
+                    }
+                };
+            }
+        };
+    }
+}
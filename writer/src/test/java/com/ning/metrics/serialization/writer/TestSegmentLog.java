@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+public class TestSegmentLog
+{
+    private File logDir;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        logDir = new File(System.getProperty("java.io.tmpdir"), "segmentlog-" + System.nanoTime());
+    }
+
+    @Test(groups = "fast")
+    public void testAppendAndReadAcrossSegments() throws Exception
+    {
+        // ~100 bytes per segment, index entry every ~30 bytes
+        final SegmentLog log = new SegmentLog(logDir, 100, 30, false);
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(log.append(record(i)), i);
+        }
+        Assert.assertEquals(log.getNextOffset(), 50);
+        Assert.assertTrue(log.getSegmentCount() > 5);
+
+        final List<byte[]> records = log.read(7, 30);
+        Assert.assertEquals(records.size(), 30);
+        for (int i = 0; i < 30; i++) {
+            Assert.assertEquals(records.get(i), record(7 + i));
+        }
+
+        Assert.assertEquals(log.read(48, 10).size(), 2);
+        Assert.assertEquals(log.read(50, 10).size(), 0);
+        log.close();
+    }
+
+    @Test(groups = "fast")
+    public void testRecoverTornTail() throws Exception
+    {
+        SegmentLog log = new SegmentLog(logDir, 1000, 30, false);
+        for (int i = 0; i < 10; i++) {
+            log.append(record(i));
+        }
+        log.close();
+
+        // Simulate a partial write
+        final File segment = new File(logDir, String.format("%020d.log", 0));
+        final long size = segment.length();
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(size);
+        file.writeInt(100);
+        file.writeInt(42);
+        file.write(new byte[10]);
+        file.close();
+
+        log = new SegmentLog(logDir, 1000, 30, false);
+        Assert.assertEquals(log.getNextOffset(), 10);
+        Assert.assertEquals(segment.length(), size);
+        Assert.assertEquals(log.append(record(10)), 10);
+        Assert.assertEquals(log.read(9, 10).get(1), record(10));
+        log.close();
+    }
+
+    @Test(groups = "fast")
+    public void testRetention() throws Exception
+    {
+        final SegmentLog log = new SegmentLog(logDir, 100, 30, false);
+        for (int i = 0; i < 50; i++) {
+            log.append(record(i));
+        }
+
+        final int segments = log.getSegmentCount();
+        Assert.assertTrue(log.deleteSegmentsBefore(20) > 0);
+        Assert.assertTrue(log.getStartOffset() <= 20);
+        Assert.assertEquals(log.read(20, 1).get(0), record(20));
+
+        log.deleteSegmentsAboveSize(0);
+        // The active segment is kept
+        Assert.assertEquals(log.getSegmentCount(), 1);
+        Assert.assertTrue(log.getSegmentCount() < segments);
+        Assert.assertEquals(log.getNextOffset(), 50);
+
+        try {
+            log.read(0, 1);
+            Assert.fail();
+        }
+        catch (java.io.IOException e) {
+            // Expected, offset deleted
+        }
+        log.close();
+    }
+
+    private byte[] record(final int i)
+    {
+        return String.format("record-%d", i).getBytes();
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class TestSegmentLogEventWriter
+{
+    private File spoolDir;
+    private MockEventWriter firstConsumer;
+    private MockEventWriter secondConsumer;
+    private boolean secondConsumerFails;
+    private Map<String, EventHandler> handlers;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        spoolDir = new File(System.getProperty("java.io.tmpdir"), "segmentlogeventwriter-" + System.nanoTime());
+        firstConsumer = new MockEventWriter();
+        secondConsumer = new MockEventWriter();
+        secondConsumerFails = false;
+
+        handlers = new LinkedHashMap<String, EventHandler>();
+        handlers.put("first", new StubEventHandler(firstConsumer));
+        handlers.put("second", new EventHandler()
+        {
+            private final EventHandler delegate = new StubEventHandler(secondConsumer);
+
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                if (secondConsumerFails) {
+                    handler.onError(new IOException("IGNORE - Expected exception for tests"), file);
+                }
+                else {
+                    delegate.handle(file, handler);
+                }
+            }
+        });
+    }
+
+    @Test(groups = "fast")
+    public void testIndependentConsumers() throws Exception
+    {
+        final SegmentLogEventWriter writer = createWriter();
+        writeBatches(writer, 3, 2);
+
+        secondConsumerFails = true;
+        writer.flush();
+        Assert.assertEquals(firstConsumer.getCommittedEventList().size(), 6);
+        Assert.assertEquals(secondConsumer.getCommittedEventList().size(), 0);
+        Assert.assertEquals(writer.getConsumerOffset("first"), 3);
+        Assert.assertEquals(writer.getConsumerOffset("second"), 0);
+        Assert.assertEquals(writer.getMaxConsumerLag(), 3);
+
+        // The failed consumer retries from where it stopped, the other one is not sent dups
+        secondConsumerFails = false;
+        writer.flush();
+        Assert.assertEquals(firstConsumer.getCommittedEventList().size(), 6);
+        Assert.assertEquals(secondConsumer.getCommittedEventList().size(), 6);
+        Assert.assertEquals(writer.getMaxConsumerLag(), 0);
+        Assert.assertEquals(writer.getHandledRecordCount(), 6);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testOffsetsSurviveRestart() throws Exception
+    {
+        SegmentLogEventWriter writer = createWriter();
+        writeBatches(writer, 2, 1);
+        secondConsumerFails = true;
+        writer.flush();
+        writer.close();
+
+        secondConsumerFails = false;
+        writer = createWriter();
+        Assert.assertEquals(writer.getNextOffset(), 2);
+        Assert.assertEquals(writer.getConsumerOffset("first"), 2);
+        Assert.assertEquals(writer.getConsumerOffset("second"), 0);
+
+        writer.flush();
+        Assert.assertEquals(firstConsumer.getCommittedEventList().size(), 2);
+        Assert.assertEquals(secondConsumer.getCommittedEventList().size(), 2);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testConsumedSegmentsAreDeleted() throws Exception
+    {
+        final SegmentLogEventWriter writer = createWriter();
+        writeBatches(writer, 20, 5);
+        final int segments = writer.getSegmentCount();
+        Assert.assertTrue(segments > 1);
+
+        // Segments are kept until both consumers are done with them
+        secondConsumerFails = true;
+        writer.flush();
+        Assert.assertEquals(writer.getSegmentCount(), segments);
+
+        secondConsumerFails = false;
+        writer.flush();
+        Assert.assertEquals(writer.getSegmentCount(), 1);
+
+        // Rollbacks are quarantined, not appended
+        writer.write(new StubEvent());
+        writer.rollback();
+        Assert.assertEquals(writer.getNextOffset(), 20);
+        Assert.assertEquals(writer.getQuarantinedFileCount(), 1);
+
+        writer.processQuarantinedFiles();
+        Assert.assertEquals(writer.getQuarantinedFileCount(), 0);
+        Assert.assertEquals(writer.getNextOffset(), 21);
+        writer.flush();
+        Assert.assertEquals(firstConsumer.getCommittedEventList().size(), 101);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testRangesAreHandedFromTheSegments() throws Exception
+    {
+        final List<String> ranges = new ArrayList<String>();
+        final List<byte[]> records = new ArrayList<byte[]>();
+        handlers.put("second", new RangeEventHandler()
+        {
+            @Override
+            public void handleRange(final File segmentFile, final long firstOffset, final int recordCount, final long startPosition, final long endPosition, final CallbackHandler handler)
+            {
+                try {
+                    ranges.add(String.format("%s:%d+%d", segmentFile.getName(), firstOffset, recordCount));
+                    records.addAll(SegmentLogEventWriter.readRange(segmentFile, startPosition, endPosition));
+                    handler.onSuccess(segmentFile);
+                }
+                catch (IOException e) {
+                    handler.onError(e, segmentFile);
+                }
+            }
+        });
+
+        final SegmentLogEventWriter writer = createWriter();
+        writeBatches(writer, 20, 5);
+        final int segments = writer.getSegmentCount();
+        writer.flush();
+
+        // One range per segment, nothing copied under _consumers
+        Assert.assertEquals(ranges.size(), segments);
+        Assert.assertTrue(ranges.get(0).startsWith("00000000000000000000.log:0+"));
+        Assert.assertEquals(records.size(), 20);
+        Assert.assertEquals(writer.getConsumerOffset("second"), 20);
+        Assert.assertEquals(new File(spoolDir, "_consumers").list().length, 0);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testEachAttemptGetsItsOwnFile() throws Exception
+    {
+        final List<File> files = new ArrayList<File>();
+        final List<CallbackHandler> callbacks = new ArrayList<CallbackHandler>();
+        handlers.put("second", new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                // Never reports in time
+                files.add(file);
+                callbacks.add(handler);
+            }
+        });
+
+        final SegmentLogEventWriter writer = createWriter();
+        writer.setHandlerTimeoutInSeconds(0);
+        writeBatches(writer, 1, 1);
+        writer.flush();
+        writer.flush();
+
+        Assert.assertEquals(files.size(), 2);
+        Assert.assertFalse(files.get(0).equals(files.get(1)));
+        Assert.assertTrue(files.get(0).exists());
+        Assert.assertEquals(writer.getConsumerOffset("second"), 0);
+
+        // Late reports are ignored, but their file is cleaned up
+        callbacks.get(0).onSuccess(files.get(0));
+        Assert.assertFalse(files.get(0).exists());
+        Assert.assertTrue(files.get(1).exists());
+        Assert.assertEquals(writer.getConsumerOffset("second"), 0);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testRecordsAreBatchedWithoutSerializerFraming() throws Exception
+    {
+        final List<String> files = new ArrayList<String>();
+        handlers.clear();
+        handlers.put("first", new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                try {
+                    files.add(FileUtils.readFileToString(file));
+                    handler.onSuccess(file);
+                }
+                catch (IOException e) {
+                    handler.onError(e, file);
+                }
+            }
+        });
+
+        // One line per event, no header nor footer
+        final SegmentLogEventWriter writer = createWriter(System.currentTimeMillis(), new EventSerializer()
+        {
+            private OutputStream out;
+
+            @Override
+            public void open(final OutputStream out)
+            {
+                this.out = out;
+            }
+
+            @Override
+            public void serialize(final Event event) throws IOException
+            {
+                out.write(String.format("%s%n", event.getName()).getBytes("UTF-8"));
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                out.close();
+            }
+        });
+        writeBatches(writer, 3, 2);
+        writer.flush();
+
+        // A single file for the three records
+        Assert.assertEquals(files.size(), 1);
+        Assert.assertEquals(files.get(0).split(String.format("%n")).length, 6);
+        Assert.assertEquals(writer.getConsumerOffset("first"), 3);
+        Assert.assertEquals(writer.getHandledRecordCount(), 3);
+        Assert.assertEquals(new File(spoolDir, "_consumers").list().length, 0);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testRetentionSkipsSlowConsumers() throws Exception
+    {
+        final SegmentLogEventWriter writer = createWriter();
+        writeBatches(writer, 20, 5);
+
+        secondConsumerFails = true;
+        writer.setRetentionInSeconds(60);
+        writer.flush();
+        // Not old enough yet
+        Assert.assertTrue(writer.getSegmentCount() > 1);
+        writer.close();
+
+        final SegmentLogEventWriter laterWriter = createWriter(System.currentTimeMillis() + 60000);
+        laterWriter.setRetentionInSeconds(1);
+        laterWriter.flush();
+        Assert.assertEquals(laterWriter.getSegmentCount(), 1);
+
+        secondConsumerFails = false;
+        laterWriter.flush();
+        Assert.assertTrue(laterWriter.getSkippedRecordCount() > 0);
+        Assert.assertEquals(laterWriter.getMaxConsumerLag(), 0);
+        Assert.assertTrue(secondConsumer.getCommittedEventList().size() < 100);
+        laterWriter.close();
+    }
+
+    private abstract static class RangeEventHandler implements EventHandler, SegmentRangeHandler
+    {
+        @Override
+        public void handle(final File file, final CallbackHandler handler)
+        {
+            handler.onError(new IOException("Ranges only"), file);
+        }
+    }
+
+    private void writeBatches(final SegmentLogEventWriter writer, final int batches, final int eventsPerBatch) throws IOException
+    {
+        for (int i = 0; i < batches; i++) {
+            for (int j = 0; j < eventsPerBatch; j++) {
+                writer.write(new StubEvent());
+            }
+            writer.commit();
+        }
+    }
+
+    private SegmentLogEventWriter createWriter() throws IOException
+    {
+        return createWriter(System.currentTimeMillis());
+    }
+
+    private SegmentLogEventWriter createWriter(final long now) throws IOException
+    {
+        return createWriter(now, null);
+    }
+
+    private SegmentLogEventWriter createWriter(final long now, final EventSerializer eventSerializer) throws IOException
+    {
+        final StubScheduledExecutorService executor = new StubScheduledExecutorService()
+        {
+            @Override
+            public void shutdown()
+            {
+            }
+
+            @Override
+            public boolean awaitTermination(final long timeout, final TimeUnit unit)
+            {
+                return true;
+            }
+
+            @Override
+            public List<Runnable> shutdownNow()
+            {
+                return Collections.emptyList();
+            }
+        };
+
+        // 1 KB segments
+        return new SegmentLogEventWriter(handlers, spoolDir.getAbsolutePath(), true, 1, executor, SyncType.NONE, eventSerializer, 1024, 0, 0)
+        {
+            @Override
+            protected long getNow()
+            {
+                return now;
+            }
+        };
+    }
+}
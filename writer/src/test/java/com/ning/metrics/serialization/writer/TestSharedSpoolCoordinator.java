@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class TestSharedSpoolCoordinator
+{
+    private File spoolDir;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        spoolDir = new File(System.getProperty("java.io.tmpdir"), "sharedspoolcoordinator-" + System.nanoTime());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(spoolDir);
+    }
+
+    @Test(groups = "fast")
+    public void testWritersInTheSameJvm() throws Exception
+    {
+        final SharedSpoolCoordinator first = new SharedSpoolCoordinator(spoolDir);
+        final SharedSpoolCoordinator second = new SharedSpoolCoordinator(spoolDir);
+        final File firstFile = new File(spoolDir, first.getFileName(1));
+
+        Assert.assertTrue(first.tryLockFlusher());
+        Assert.assertFalse(second.tryLockFlusher());
+
+        // Checking liveness, or closing another writer, doesn't release the locks of this JVM
+        Assert.assertTrue(second.isOwnedByLiveWriter(firstFile));
+        Assert.assertTrue(second.hasOtherLiveWriters());
+        second.close();
+        assertOpenDescriptors("_flusher", 1);
+        assertOpenDescriptors(first.getTag() + ".lock", 1);
+
+        final SharedSpoolCoordinator third = new SharedSpoolCoordinator(spoolDir);
+        // Shared with the first writer
+        assertOpenDescriptors("_flusher", 1);
+        Assert.assertFalse(third.tryLockFlusher());
+        Assert.assertTrue(third.isOwnedByLiveWriter(firstFile));
+
+        first.unlockFlusher();
+        Assert.assertTrue(third.tryLockFlusher());
+
+        first.close();
+        Assert.assertFalse(third.isOwnedByLiveWriter(firstFile));
+        Assert.assertFalse(third.hasOtherLiveWriters());
+        third.close();
+        assertOpenDescriptors("_flusher", 0);
+    }
+
+    @Test(groups = "fast")
+    public void testTagsAreNeverReused() throws Exception
+    {
+        final SharedSpoolCoordinator first = new SharedSpoolCoordinator(spoolDir);
+        final String firstTag = first.getTag();
+        first.close();
+
+        // E.g. restarted with the same pid: the files of the previous run are not considered live
+        final SharedSpoolCoordinator second = new SharedSpoolCoordinator(spoolDir);
+        Assert.assertTrue(SharedSpoolCoordinator.isTag(second.getTag()));
+        Assert.assertFalse(second.getTag().equals(firstTag));
+        Assert.assertFalse(second.isOwnedByLiveWriter(new File(spoolDir, "1-" + firstTag + ".bin")));
+        Assert.assertTrue(second.isOwnedByLiveWriter(new File(spoolDir, second.getFileName(1))));
+
+        // Lock files of dead writers are deleted, not the live ones
+        final File processesDir = new File(spoolDir, "_processes");
+        final File deadLockFile = new File(processesDir, firstTag + ".lock");
+        Assert.assertTrue(deadLockFile.createNewFile());
+        final SharedSpoolCoordinator third = new SharedSpoolCoordinator(spoolDir);
+        second.deleteDeadWriterLocks();
+        Assert.assertFalse(deadLockFile.exists());
+        Assert.assertTrue(new File(processesDir, third.getTag() + ".lock").exists());
+        Assert.assertTrue(second.isAlive(third.getTag()));
+
+        second.close();
+        third.close();
+    }
+
+    // Linux only: closing any descriptor of a file releases the process locks on it
+    private void assertOpenDescriptors(final String fileName, final int expected) throws Exception
+    {
+        final File[] descriptors = new File("/proc/self/fd").listFiles();
+        if (descriptors == null) {
+            return;
+        }
+
+        int count = 0;
+        for (final File descriptor : descriptors) {
+            final File target = descriptor.getCanonicalFile();
+            if (target.getName().equals(fileName) && target.getParentFile().getParentFile().getName().equals(spoolDir.getName())) {
+                count++;
+            }
+        }
+        Assert.assertEquals(count, expected);
+    }
+}
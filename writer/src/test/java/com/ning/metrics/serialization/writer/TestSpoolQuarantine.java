@@ -0,0 +1,203 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestSpoolQuarantine
+{
+    private File quarantineDir;
+    private long now;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup() throws IOException
+    {
+        quarantineDir = new File(System.getProperty("java.io.tmpdir"), "spoolquarantine-" + System.nanoTime());
+        FileUtils.forceMkdir(quarantineDir);
+        now = 1000000;
+    }
+
+    @Test(groups = "fast")
+    public void testMetadataAndSize() throws Exception
+    {
+        final SpoolQuarantine quarantine = createQuarantine();
+
+        final File file = createFile("1.bin", 10);
+        QuarantinedFile entry = quarantine.quarantined(file, "boom");
+        Assert.assertEquals(entry.getAttempts(), 1);
+        Assert.assertEquals(entry.getReason(), "boom");
+        Assert.assertEquals(entry.getFirstFailureMillis(), now);
+        Assert.assertEquals(quarantine.getSizeInBytes(), 10);
+        Assert.assertEquals(quarantine.getFileCount(), 1);
+
+        // Take it out for reprocessing, then fail again
+        now += 1000;
+        final List<File> files = quarantine.takeOldest(10, quarantine.getFailureSequence());
+        Assert.assertEquals(files.size(), 1);
+        Assert.assertEquals(quarantine.getSizeInBytes(), 0);
+
+        now += 1000;
+        entry = quarantine.quarantined(file, "boom again");
+        Assert.assertEquals(entry.getAttempts(), 2);
+        Assert.assertEquals(entry.getReason(), "boom again");
+        Assert.assertEquals(entry.getFirstFailureMillis(), now - 2000);
+        Assert.assertEquals(entry.getLastFailureMillis(), now);
+
+        // Metadata survives a restart
+        final SpoolQuarantine reloaded = createQuarantine();
+        Assert.assertEquals(reloaded.getSizeInBytes(), 10);
+        Assert.assertEquals(reloaded.getQuarantinedFiles().size(), 1);
+        Assert.assertEquals(reloaded.getQuarantinedFiles().get(0).getAttempts(), 2);
+        Assert.assertEquals(reloaded.getQuarantinedFiles().get(0).getReason(), "boom again");
+    }
+
+    @Test(groups = "fast")
+    public void testWavesAreBoundedAndOldestFirst() throws Exception
+    {
+        final SpoolQuarantine quarantine = createQuarantine();
+        for (int i = 0; i < 5; i++) {
+            quarantine.quarantined(createFile(i + ".bin", 1), "boom");
+            now++;
+        }
+
+        final long failureSequence = quarantine.getFailureSequence();
+        List<File> files = quarantine.takeOldest(2, failureSequence);
+        Assert.assertEquals(files.size(), 2);
+        Assert.assertEquals(files.get(0).getName(), "0.bin");
+        Assert.assertEquals(files.get(1).getName(), "1.bin");
+
+        // Files which failed after the reprocessing started are skipped
+        quarantine.quarantined(files.get(0), "boom");
+        files = quarantine.takeOldest(10, failureSequence);
+        Assert.assertEquals(files.size(), 3);
+        Assert.assertEquals(quarantine.getFileCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testEviction() throws Exception
+    {
+        final List<File> discarded = new ArrayList<File>();
+        final SpoolQuarantine quarantine = new SpoolQuarantine(quarantineDir, SpoolLayout.FLAT, new DiscardedFileListener()
+        {
+            @Override
+            public void discarded(final File file)
+            {
+                discarded.add(file);
+            }
+        })
+        {
+            @Override
+            protected long getNow()
+            {
+                return now;
+            }
+        };
+        quarantine.setMaxSizeInBytes(25);
+
+        quarantine.quarantined(createFile("1.bin", 10), "boom");
+        now++;
+        quarantine.quarantined(createFile("2.bin", 10), "boom");
+        now++;
+        quarantine.quarantined(createFile("3.bin", 10), "boom");
+
+        Assert.assertEquals(quarantine.getFileCount(), 2);
+        Assert.assertEquals(quarantine.getSizeInBytes(), 20);
+        Assert.assertEquals(quarantine.getEvictedFileCount(), 1);
+        Assert.assertEquals(discarded, Arrays.asList(new File(quarantineDir, "1.bin")));
+        Assert.assertFalse(new File(quarantineDir, "1.bin").exists());
+        Assert.assertFalse(new File(quarantineDir, "1.bin" + SpoolQuarantine.METADATA_SUFFIX).exists());
+
+        quarantine.setMaxSizeInBytes(0);
+        now += 10;
+        quarantine.setMaxAgeInMillis(10);
+        Assert.assertEquals(quarantine.getFileCount(), 1);
+        Assert.assertEquals(quarantine.getQuarantinedFiles().get(0).getName(), "3.bin");
+    }
+
+    @Test(groups = "fast")
+    public void testMetadataIsKeptUntilTheRetryCompletes() throws Exception
+    {
+        final SpoolQuarantine quarantine = createQuarantine();
+        quarantine.quarantined(createFile("1.bin", 10), "boom");
+        quarantine.quarantined(createFile("2.bin", 10), "boom");
+
+        // Taken out for reprocessing (the writer moves the files out of the quarantine directory)
+        final List<File> files = quarantine.takeOldest(10, quarantine.getFailureSequence());
+        Assert.assertEquals(files.size(), 2);
+        for (final File file : files) {
+            Assert.assertTrue(file.delete());
+        }
+        final File metadataFile = new File(quarantineDir, "1.bin" + SpoolQuarantine.METADATA_SUFFIX);
+        Assert.assertTrue(metadataFile.exists());
+
+        quarantine.flushed("1.bin");
+        Assert.assertFalse(metadataFile.exists());
+        Assert.assertEquals(quarantine.getRetryingFileCount(), 1);
+
+        // Restart during the retry of 2.bin: its history is kept
+        now += 1000;
+        final SpoolQuarantine reloaded = createQuarantine();
+        Assert.assertEquals(reloaded.getFileCount(), 0);
+        Assert.assertEquals(reloaded.getRetryingFileCount(), 1);
+        Assert.assertEquals(reloaded.quarantined(createFile("2.bin", 10), "boom again").getAttempts(), 2);
+        Assert.assertEquals(reloaded.getRetryingFileCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRetriesWithoutOutcomeExpire() throws Exception
+    {
+        final SpoolQuarantine quarantine = createQuarantine();
+        quarantine.setRetryTimeoutInMillis(100);
+        quarantine.quarantined(createFile("1.bin", 10), "boom");
+        Assert.assertTrue(quarantine.takeOldest(10, quarantine.getFailureSequence()).get(0).delete());
+        Assert.assertEquals(quarantine.getRetryingFileCount(), 1);
+
+        now += 101;
+        quarantine.takeOldest(10, quarantine.getFailureSequence());
+        Assert.assertEquals(quarantine.getRetryingFileCount(), 0);
+        Assert.assertEquals(quarantine.getExpiredRetryCount(), 1);
+        Assert.assertFalse(new File(quarantineDir, "1.bin" + SpoolQuarantine.METADATA_SUFFIX).exists());
+    }
+
+    private SpoolQuarantine createQuarantine()
+    {
+        return new SpoolQuarantine(quarantineDir)
+        {
+            @Override
+            protected long getNow()
+            {
+                return now;
+            }
+        };
+    }
+
+    private File createFile(final String name, final int size) throws IOException
+    {
+        final File file = new File(quarantineDir, name);
+        FileUtils.writeByteArrayToFile(file, new byte[size]);
+        return file;
+    }
+}
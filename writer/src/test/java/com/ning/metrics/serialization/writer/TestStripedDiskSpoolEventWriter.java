@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.StubEvent;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestStripedDiskSpoolEventWriter
+{
+    private final Map<String, Long> usableSpace = new HashMap<String, Long>();
+    private final List<File> spoolDirs = new ArrayList<File>();
+    private long nanos;
+    private long writeLatencyNanos;
+    private long now;
+    private StripedDiskSpoolEventWriter writer;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        usableSpace.clear();
+        spoolDirs.clear();
+        nanos = 0;
+        writeLatencyNanos = 0;
+        now = 0;
+
+        final List<DiskSpoolEventWriter> writers = new ArrayList<DiskSpoolEventWriter>();
+        for (int i = 0; i < 3; i++) {
+            final File spoolDir = new File(System.getProperty("java.io.tmpdir"), "stripeddiskspooleventwriter-" + System.nanoTime() + "-" + i);
+            spoolDirs.add(spoolDir);
+            usableSpace.put(spoolDir.getAbsolutePath(), 100L);
+            writers.add(new DiskSpoolEventWriter(new StubEventHandler(), spoolDir.getAbsolutePath(), true, 1, new StubScheduledExecutorService(), SyncType.NONE, 1));
+        }
+
+        // 10 bytes min free space, 5 ms max write latency
+        writer = new StripedDiskSpoolEventWriter(writers, 10, 5)
+        {
+            @Override
+            protected long getUsableSpace(final File directory)
+            {
+                return usableSpace.get(directory.getAbsolutePath());
+            }
+
+            @Override
+            protected long getNanos()
+            {
+                nanos += writeLatencyNanos / 2;
+                return nanos;
+            }
+
+            @Override
+            protected long getNow()
+            {
+                return now;
+            }
+        };
+    }
+
+    @Test(groups = "fast")
+    public void testStriping() throws Exception
+    {
+        for (int i = 0; i < 6; i++) {
+            writer.write(new StubEvent());
+            writer.commit();
+        }
+
+        for (final File spoolDir : spoolDirs) {
+            Assert.assertEquals(countSpooledFiles(spoolDir), 2);
+        }
+        Assert.assertEquals(writer.getSpoolPath().split(File.pathSeparator).length, 3);
+    }
+
+    @Test(groups = "fast")
+    public void testSkipFullDisk() throws Exception
+    {
+        usableSpace.put(spoolDirs.get(1).getAbsolutePath(), 5L);
+
+        for (int i = 0; i < 4; i++) {
+            writer.write(new StubEvent());
+            writer.commit();
+        }
+
+        Assert.assertEquals(countSpooledFiles(spoolDirs.get(0)), 2);
+        Assert.assertEquals(countSpooledFiles(spoolDirs.get(1)), 0);
+        Assert.assertEquals(countSpooledFiles(spoolDirs.get(2)), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testSkipSlowDisk() throws Exception
+    {
+        // The first disk is very slow
+        writeLatencyNanos = 1000000000L;
+        writer.write(new StubEvent());
+        writer.commit();
+        writeLatencyNanos = 0;
+
+        for (int i = 0; i < 4; i++) {
+            writer.write(new StubEvent());
+            writer.commit();
+        }
+        Assert.assertEquals(countSpooledFiles(spoolDirs.get(0)), 1);
+        Assert.assertEquals(countSpooledFiles(spoolDirs.get(1)), 2);
+        Assert.assertEquals(countSpooledFiles(spoolDirs.get(2)), 2);
+
+        // After a while, it's used again
+        now += 60 * 1000;
+        for (int i = 0; i < 3; i++) {
+            writer.write(new StubEvent());
+            writer.commit();
+        }
+        Assert.assertEquals(countSpooledFiles(spoolDirs.get(0)), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testAllDisksFull() throws Exception
+    {
+        usableSpace.put(spoolDirs.get(0).getAbsolutePath(), 1L);
+        usableSpace.put(spoolDirs.get(1).getAbsolutePath(), 3L);
+        usableSpace.put(spoolDirs.get(2).getAbsolutePath(), 2L);
+
+        writer.write(new StubEvent());
+        writer.commit();
+        writer.write(new StubEvent());
+        writer.commit();
+
+        Assert.assertEquals(writer.getCurrentSpoolPath(), spoolDirs.get(1).getAbsolutePath());
+        Assert.assertEquals(countSpooledFiles(spoolDirs.get(1)), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testFlushAllDisks() throws Exception
+    {
+        for (int i = 0; i < 3; i++) {
+            writer.write(new StubEvent());
+            writer.commit();
+        }
+
+        writer.flush();
+        for (final File spoolDir : spoolDirs) {
+            Assert.assertEquals(countSpooledFiles(spoolDir), 0);
+        }
+        Assert.assertEquals(writer.getDiskSpoolSize(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSharedEventHandlerIsCalledOneRootAtATime() throws Exception
+    {
+        final AtomicInteger concurrentCalls = new AtomicInteger(0);
+        final AtomicInteger maxConcurrentCalls = new AtomicInteger(0);
+        final EventHandlerFactory factory = new StripedDiskSpoolEventWriter.SharedEventHandlerFactory(new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                maxConcurrentCalls.set(Math.max(maxConcurrentCalls.get(), concurrentCalls.incrementAndGet()));
+                try {
+                    Thread.sleep(10);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                concurrentCalls.decrementAndGet();
+                handler.onSuccess(file);
+            }
+        });
+
+        final CallbackHandler callback = new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+            }
+        };
+        final List<Thread> flushers = new ArrayList<Thread>();
+        for (final File spoolDir : spoolDirs) {
+            final EventHandler eventHandler = factory.createEventHandler(spoolDir.getAbsolutePath());
+            flushers.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 5; i++) {
+                        eventHandler.handle(new File(spoolDir, String.valueOf(i)), callback);
+                    }
+                }
+            }));
+        }
+        for (final Thread flusher : flushers) {
+            flusher.start();
+        }
+        for (final Thread flusher : flushers) {
+            flusher.join();
+        }
+
+        Assert.assertEquals(maxConcurrentCalls.get(), 1);
+    }
+
+    private int countSpooledFiles(final File spoolDir)
+    {
+        int count = 0;
+        for (final File file : Arrays.asList(spoolDir.listFiles())) {
+            if (file.isFile()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.serialization.writer;
+
+import com.ning.metrics.serialization.event.Granularity;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.ReadableInterval;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestWatermarkTracker
+{
+    private static final DateTime TEN_AM = new DateTime(2012, 1, 31, 10, 0, 0, 0, DateTimeZone.UTC);
+
+    private final List<String> completeBuckets = new ArrayList<String>();
+    private boolean listenerFails;
+    private long now;
+    private WatermarkTracker tracker;
+
+    @BeforeMethod(alwaysRun = true)
+    void setup()
+    {
+        completeBuckets.clear();
+        listenerFails = false;
+        now = TEN_AM.getMillis();
+
+        final WatermarkListener listener = new WatermarkListener()
+        {
+            @Override
+            public void onBucketComplete(final String eventName, final Granularity granularity, final ReadableInterval bucket) throws Exception
+            {
+                if (listenerFails) {
+                    throw new Exception("IGNORE - Expected exception for tests");
+                }
+                completeBuckets.add(String.format("%s %d", eventName, bucket.getStart().getHourOfDay()));
+            }
+        };
+
+        // 10 minutes of allowed lateness
+        tracker = new WatermarkTracker(listener, 600)
+        {
+            @Override
+            protected long getNow()
+            {
+                return now;
+            }
+        };
+    }
+
+    @Test(groups = "fast")
+    public void testBucketCompleteOnceFlushed() throws Exception
+    {
+        tracker.written("1.bin", new TimedEvent(TEN_AM.plusMinutes(5)));
+        tracker.written("2.bin", new TimedEvent(TEN_AM.plusMinutes(50)));
+        tracker.written("2.bin", new TimedEvent(TEN_AM.plusMinutes(90)));
+
+        // The watermark (11:20) is past 11:00, but 10:xx events are not flushed yet
+        tracker.publish();
+        Assert.assertEquals(completeBuckets.size(), 0);
+
+        tracker.flushed("1.bin");
+        tracker.publish();
+        Assert.assertEquals(completeBuckets.size(), 0);
+
+        tracker.flushed("2.bin");
+        tracker.publish();
+        Assert.assertEquals(completeBuckets, Arrays.asList("bar 10"));
+
+        // Events for a complete bucket are late
+        tracker.written("3.bin", new TimedEvent(TEN_AM.plusMinutes(30)));
+        Assert.assertEquals(tracker.getLateEventCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testIdleStream() throws Exception
+    {
+        tracker.written("1.bin", new TimedEvent(TEN_AM.plusMinutes(5)));
+        tracker.flushed("1.bin");
+        tracker.publish();
+        Assert.assertEquals(completeBuckets.size(), 0);
+
+        // No event for a while, empty buckets are reported too
+        now = TEN_AM.plusHours(3).getMillis();
+        tracker.publish();
+        Assert.assertEquals(completeBuckets, Arrays.asList("bar 10", "bar 11"));
+        Assert.assertEquals(tracker.getCompleteBucketCount(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testOutOfOrderEventsBeforeFirstReport() throws Exception
+    {
+        // The first event seen is not the oldest one
+        tracker.written("1.bin", new TimedEvent(TEN_AM.plusMinutes(65)));
+        tracker.written("1.bin", new TimedEvent(TEN_AM.plusMinutes(55)));
+        Assert.assertEquals(tracker.getLateEventCount(), 0);
+
+        tracker.flushed("1.bin");
+        now = TEN_AM.plusHours(3).getMillis();
+        tracker.publish();
+        Assert.assertEquals(completeBuckets, Arrays.asList("bar 10", "bar 11"));
+
+        // Now that 10:xx has been reported, it is late
+        tracker.written("2.bin", new TimedEvent(TEN_AM.plusMinutes(30)));
+        Assert.assertEquals(tracker.getLateEventCount(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testWaitForStartupFiles() throws Exception
+    {
+        tracker.filesFoundOnStartup(Arrays.asList("0.bin", "00.bin"));
+        tracker.written("1.bin", new TimedEvent(TEN_AM));
+        tracker.flushed("1.bin");
+        now = TEN_AM.plusHours(2).getMillis();
+
+        tracker.publish();
+        Assert.assertEquals(completeBuckets.size(), 0);
+
+        tracker.flushed("0.bin");
+        tracker.discarded("00.bin");
+        tracker.publish();
+        Assert.assertEquals(completeBuckets, Arrays.asList("bar 10"));
+    }
+
+    @Test(groups = "fast")
+    public void testRetryFailedNotifications() throws Exception
+    {
+        tracker.written("1.bin", new TimedEvent(TEN_AM));
+        tracker.flushed("1.bin");
+        now = TEN_AM.plusHours(3).getMillis();
+
+        listenerFails = true;
+        tracker.publish();
+        Assert.assertEquals(completeBuckets.size(), 0);
+
+        listenerFails = false;
+        tracker.publish();
+        Assert.assertEquals(completeBuckets, Arrays.asList("bar 10", "bar 11"));
+    }
+
+    @Test(groups = "fast")
+    public void testWithDiskSpoolEventWriter() throws Exception
+    {
+        final File root = new File(System.getProperty("java.io.tmpdir"), "watermarks-" + System.nanoTime());
+        final WatermarkFileWriter markers = new WatermarkFileWriter(new File(root, "markers").getAbsolutePath());
+        final WatermarkTracker fileTracker = new WatermarkTracker(markers, 0);
+        final DiskSpoolEventWriter writer = new DiskSpoolEventWriter.Builder(new File(root, "spool").getAbsolutePath(), new StubScheduledExecutorService())
+            .withEventHandler(new StubEventHandler())
+            .withFlushIntervalInSeconds(1)
+            .withWatermarkTracker(fileTracker)
+            .build();
+
+        writer.write(new TimedEvent(TEN_AM.plusMinutes(5)));
+        writer.write(new TimedEvent(TEN_AM.plusMinutes(65)));
+        writer.commit();
+        Assert.assertEquals(fileTracker.getCompleteBucketCount(), 0);
+
+        writer.flush();
+        final File marker = markers.getMarkerFile("bar", Granularity.HOURLY, new org.joda.time.Interval(TEN_AM, TEN_AM.plusHours(1)));
+        Assert.assertTrue(marker.exists());
+        Assert.assertTrue(marker.getPath().endsWith("bar/2012/01/31/10/_COMPLETE"));
+    }
+
+    @Test(groups = "fast")
+    public void testQuarantinedFilesHoldWatermarks() throws Exception
+    {
+        final File root = new File(System.getProperty("java.io.tmpdir"), "watermarks-" + System.nanoTime());
+        final DiskSpoolEventWriter writer = new DiskSpoolEventWriter.Builder(new File(root, "spool").getAbsolutePath(), new StubScheduledExecutorService())
+            .withEventHandler(new StubEventHandler())
+            .withFlushIntervalInSeconds(1)
+            .withWatermarkTracker(tracker)
+            .build();
+
+        for (int i = 0; i < 2000; i++) {
+            writer.write(new TimedEvent(TEN_AM.plusMinutes(5)));
+        }
+        writer.rollback();
+        writer.write(new TimedEvent(TEN_AM.plusMinutes(10)));
+        writer.commit();
+        writer.flush();
+
+        // The events of the quarantined file were never acknowledged
+        now = TEN_AM.plusHours(3).getMillis();
+        tracker.publish();
+        Assert.assertEquals(completeBuckets.size(), 0);
+
+        // Until the file is evicted
+        Assert.assertTrue(writer.getQuarantineSize() > 1);
+        writer.setMaxQuarantineSize(1);
+        Assert.assertEquals(writer.getQuarantinedFileCount(), 0);
+        tracker.publish();
+        Assert.assertEquals(completeBuckets, Arrays.asList("bar 10", "bar 11"));
+        Assert.assertEquals(tracker.getDiscardedEventCount(), 2000);
+    }
+
+    public static class TimedEvent extends StubEvent
+    {
+        private DateTime eventDateTime;
+
+        public TimedEvent()
+        {
+        }
+
+        public TimedEvent(final DateTime eventDateTime)
+        {
+            this.eventDateTime = eventDateTime;
+        }
+
+        @Override
+        public DateTime getEventDateTime()
+        {
+            return eventDateTime;
+        }
+    }
+}